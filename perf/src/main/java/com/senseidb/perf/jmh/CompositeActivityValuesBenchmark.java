@@ -0,0 +1,161 @@
+package com.senseidb.perf.jmh;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import proj.zoie.impl.indexing.ZoieConfig;
+
+import com.senseidb.conf.SenseiSchema.FieldDefinition;
+import com.senseidb.indexing.activity.ActivityPersistenceFactory;
+import com.senseidb.indexing.activity.CompositeActivityValues;
+
+/**
+ * Measures the throughput of the "+n" activity updates of the existing documents, while the readers
+ * resolve the uids to the array indexes and read the values, the way the activity facet handlers do.
+ * The writers either update the documents one by one or apply batches of 1000 updates.
+ *
+ * Run with: java -cp target/classes:<dependencies> com.senseidb.perf.jmh.CompositeActivityValuesBenchmark
+ * The main method runs the groups with 1, 4 and 16 writer threads and 4 reader threads.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class CompositeActivityValuesBenchmark
+{
+  private static final int DOCS = 1000000;
+  private static final int BATCH_SIZE = 1000;
+  private static final String VERSION = "00000001";
+
+  private CompositeActivityValues _activityValues;
+  private Map<String, Object> _update;
+
+  @State(Scope.Thread)
+  public static class ThreadState
+  {
+    final Random random = new Random(Thread.currentThread().getId());
+    final long[] uids = new long[BATCH_SIZE];
+    final long[] readUids = new long[BATCH_SIZE];
+    List<Map<String, Object>> updates;
+
+    @Setup
+    public void setup()
+    {
+      updates = new ArrayList<Map<String, Object>>(Collections.nCopies(BATCH_SIZE, likesUpdate()));
+      for (int i = 0; i < BATCH_SIZE; i++)
+      {
+        readUids[i] = random.nextInt(DOCS);
+      }
+    }
+  }
+
+  @Setup(Level.Trial)
+  public void setup()
+  {
+    FieldDefinition likes = new FieldDefinition();
+    likes.name = "likes";
+    likes.type = int.class;
+    likes.isActivity = true;
+    _activityValues = CompositeActivityValues.createCompositeValues(ActivityPersistenceFactory.getInMemoryInstance(),
+        Arrays.asList(likes), Collections.EMPTY_LIST, ZoieConfig.DEFAULT_VERSION_COMPARATOR);
+    _activityValues.init(DOCS);
+    _update = likesUpdate();
+    for (int uid = 0; uid < DOCS; uid++)
+    {
+      _activityValues.update(uid, VERSION, _update);
+    }
+  }
+
+  private static Map<String, Object> likesUpdate()
+  {
+    Map<String, Object> update = new HashMap<String, Object>();
+    update.put("likes", "+1");
+    return update;
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown()
+  {
+    _activityValues.close();
+  }
+
+  @Benchmark
+  @Group("single")
+  @GroupThreads(1)
+  public int singleWriter(ThreadState state)
+  {
+    return _activityValues.update(state.random.nextInt(DOCS), VERSION, _update);
+  }
+
+  @Benchmark
+  @Group("single")
+  @GroupThreads(4)
+  public int singleReader(ThreadState state)
+  {
+    return read(state);
+  }
+
+  @Benchmark
+  @Group("batch")
+  @GroupThreads(1)
+  public int[] batchWriter(ThreadState state)
+  {
+    for (int i = 0; i < BATCH_SIZE; i++)
+    {
+      state.uids[i] = state.random.nextInt(DOCS);
+    }
+    return _activityValues.update(state.uids, VERSION, state.updates);
+  }
+
+  @Benchmark
+  @Group("batch")
+  @GroupThreads(4)
+  public int batchReader(ThreadState state)
+  {
+    return read(state);
+  }
+
+  private int read(ThreadState state)
+  {
+    long uid = state.readUids[state.random.nextInt(BATCH_SIZE)];
+    return _activityValues.getIntValueByUID(uid, "likes");
+  }
+
+  public static void main(String[] args) throws Exception
+  {
+    for (int writers : new int[] {1, 4, 16})
+    {
+      Options opt = new OptionsBuilder()
+          .include(CompositeActivityValuesBenchmark.class.getSimpleName())
+          .threadGroups(writers, 4)
+          .build();
+      new Runner(opt).run();
+    }
+  }
+}
@@ -0,0 +1,159 @@
+package com.senseidb.perf.jmh;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.search.SortField;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.senseidb.search.node.HitMerger;
+import com.senseidb.search.node.ResultMerger;
+import com.senseidb.search.req.SenseiHit;
+import com.senseidb.search.req.SenseiRequest;
+import com.senseidb.search.req.SenseiResult;
+
+/**
+ * Compares the heap based hit merge with the iterator based one it replaced, for the results
+ * of 8, 32 and 128 partitions that each return offset+count hits.
+ *
+ * Run with: java -cp target/classes:<dependencies> com.senseidb.perf.jmh.HitMergeBenchmark
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class HitMergeBenchmark
+{
+  private static final int TOTAL_DOCS = 1000000;
+
+  @Param({"8", "32", "128"})
+  public int partitions;
+
+  @Param({"0", "1000"})
+  public int offset;
+
+  @Param({"10"})
+  public int count;
+
+  @Param({"score", "field"})
+  public String sortBy;
+
+  private SortField[] _sort;
+  private SenseiRequest _req;
+  private List<SenseiResult> _results;
+  private int[][] _docids;
+
+  @Setup(Level.Trial)
+  public void setupTrial()
+  {
+    if ("field".equals(sortBy))
+    {
+      _sort = new SortField[] { new SortField("price", SortField.STRING) };
+    }
+    else
+    {
+      _sort = new SortField[] { SortField.FIELD_SCORE };
+    }
+    _req = new SenseiRequest();
+    _req.setOffset(offset);
+    _req.setCount(count);
+    _req.setSort(_sort);
+
+    final Random rand = new Random(1);
+    final boolean byScore = _sort[0].getType() == SortField.SCORE;
+    int hitsPerPartition = offset + count;
+    _results = new ArrayList<SenseiResult>(partitions);
+    _docids = new int[partitions][hitsPerPartition];
+    for (int p = 0; p < partitions; ++p)
+    {
+      SenseiHit[] hits = new SenseiHit[hitsPerPartition];
+      for (int i = 0; i < hitsPerPartition; ++i)
+      {
+        SenseiHit hit = new SenseiHit();
+        hit.setDocid(rand.nextInt(TOTAL_DOCS));
+        hit.setScore(rand.nextFloat());
+        Map<String, String[]> fields = new HashMap<String, String[]>();
+        fields.put("price", new String[] { String.format("%08d", rand.nextInt(100000)) });
+        hit.setFieldValues(fields);
+        hits[i] = hit;
+      }
+      Arrays.sort(hits, new Comparator<SenseiHit>()
+      {
+        @Override
+        public int compare(SenseiHit o1, SenseiHit o2)
+        {
+          if (byScore)
+            return Float.compare(o2.getScore(), o1.getScore());
+          return o1.getField("price").compareTo(o2.getField("price"));
+        }
+      });
+      for (int i = 0; i < hitsPerPartition; ++i)
+      {
+        _docids[p][i] = hits[i].getDocid();
+      }
+      SenseiResult res = new SenseiResult();
+      res.setHits(hits);
+      res.setTotalDocs(TOTAL_DOCS);
+      _results.add(res);
+    }
+  }
+
+  /**
+   * Both merges rewrite the docids of the hits into unique ones, so they are put back before
+   * every call.
+   */
+  @Setup(Level.Invocation)
+  public void resetDocids()
+  {
+    for (int p = 0; p < partitions; ++p)
+    {
+      SenseiHit[] hits = _results.get(p).getSenseiHits();
+      for (int i = 0; i < hits.length; ++i)
+      {
+        hits[i].setDocid(_docids[p][i]);
+      }
+    }
+  }
+
+  @Benchmark
+  public SenseiHit[] heapMerge()
+  {
+    return HitMerger.merge(_results, _sort, offset, count);
+  }
+
+  @Benchmark
+  public SenseiHit[] listMerge()
+  {
+    return ResultMerger.mergeHitsWithListMerger(_req, _results);
+  }
+
+  public static void main(String[] args) throws Exception
+  {
+    Options opt = new OptionsBuilder()
+        .include(HitMergeBenchmark.class.getSimpleName())
+        .build();
+    new Runner(opt).run();
+  }
+}
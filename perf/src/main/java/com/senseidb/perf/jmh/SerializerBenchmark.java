@@ -0,0 +1,136 @@
+package com.senseidb.perf.jmh;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.search.Explanation;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.browseengine.bobo.api.BrowseFacet;
+import com.browseengine.bobo.api.FacetAccessible;
+import com.linkedin.norbert.network.Serializer;
+import com.senseidb.search.node.ResultMerger.MappedFacetAccessible;
+import com.senseidb.search.req.SenseiHit;
+import com.senseidb.search.req.SenseiRequest;
+import com.senseidb.search.req.SenseiResult;
+import com.senseidb.svc.impl.CoreSenseiServiceImpl;
+
+/**
+ * Compares the java serialization of the node results with the schema based binary serializer: the encode and the decode
+ * time of the result, that a node sends to the broker, and the bytes on the wire, which are printed when the state is built.
+ * The result has the hits with the field values, the uid, the comparable and the source data, and the facets of 3 fields.
+ *
+ * Run with: java -cp target/classes:<dependencies> com.senseidb.perf.jmh.SerializerBenchmark
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SerializerBenchmark
+{
+  private static final String[] COLORS = new String[] {"red", "gold", "black", "white", "silver", "blue", "green"};
+
+  @Param({"java", "binary"})
+  public String serializer;
+
+  @Param({"10", "100"})
+  public int hits;
+
+  @Param({"100"})
+  public int facetsPerField;
+
+  private Serializer<SenseiRequest, SenseiResult> _serializer;
+  private SenseiResult _result;
+  private byte[] _bytes;
+
+  @Setup
+  public void setup()
+  {
+    _serializer = "binary".equals(serializer) ? CoreSenseiServiceImpl.BINARY_SERIALIZER : CoreSenseiServiceImpl.JAVA_SERIALIZER;
+    _result = createResult(hits, facetsPerField);
+    _bytes = _serializer.responseToBytes(_result);
+    System.out.println(serializer + ": the result with " + hits + " hits takes " + _bytes.length + " bytes on the wire");
+  }
+
+  private static SenseiResult createResult(int hitCount, int facetsPerField)
+  {
+    Random random = new Random(0);
+    SenseiResult result = new SenseiResult();
+    result.setNumHits(100000);
+    result.setTotalDocs(1000000);
+    result.setTime(12);
+    result.setParsedQuery("color:red");
+    SenseiHit[] hits = new SenseiHit[hitCount];
+    for (int i = 0; i < hitCount; i++)
+    {
+      SenseiHit hit = new SenseiHit();
+      hit.setUID(random.nextInt(1000000));
+      hit.setDocid(random.nextInt(1000000));
+      hit.setScore(random.nextFloat());
+      hit.setComparable(Long.valueOf(random.nextInt(100000)));
+      hit.setExplanation(new Explanation(hit.getScore(), "score"));
+      Map<String, String[]> fieldValues = new HashMap<String, String[]>();
+      Map<String, Object[]> rawFieldValues = new HashMap<String, Object[]>();
+      String color = COLORS[random.nextInt(COLORS.length)];
+      int year = 1990 + random.nextInt(23);
+      fieldValues.put("color", new String[] {color});
+      fieldValues.put("year", new String[] {String.valueOf(year)});
+      rawFieldValues.put("color", new Object[] {color});
+      rawFieldValues.put("year", new Object[] {year});
+      hit.setFieldValues(fieldValues);
+      hit.setRawFieldValues(rawFieldValues);
+      hit.setSrcData("{\"id\":" + hit.getUID() + ",\"color\":\"" + color + "\",\"year\":" + year + "}");
+      hits[i] = hit;
+    }
+    result.setHits(hits);
+    Map<String, FacetAccessible> facetMap = new HashMap<String, FacetAccessible>();
+    for (String field : new String[] {"color", "year", "city"})
+    {
+      BrowseFacet[] facets = new BrowseFacet[facetsPerField];
+      for (int i = 0; i < facetsPerField; i++)
+      {
+        facets[i] = new BrowseFacet(field + i, random.nextInt(100000));
+      }
+      facetMap.put(field, new MappedFacetAccessible(facets));
+    }
+    result.addAll(facetMap);
+    return result;
+  }
+
+  @Benchmark
+  public byte[] encode()
+  {
+    return _serializer.responseToBytes(_result);
+  }
+
+  @Benchmark
+  public SenseiResult decode()
+  {
+    return _serializer.responseFromBytes(_bytes);
+  }
+
+  public static void main(String[] args) throws Exception
+  {
+    Options opt = new OptionsBuilder()
+        .include(SerializerBenchmark.class.getSimpleName())
+        .build();
+    new Runner(opt).run();
+  }
+}
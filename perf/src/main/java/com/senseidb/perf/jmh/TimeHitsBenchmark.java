@@ -0,0 +1,158 @@
+package com.senseidb.perf.jmh;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.senseidb.indexing.activity.time.PackedTimeHits;
+import com.senseidb.indexing.activity.time.TimeAggregatedActivityValues.TimeHitsHolder;
+import com.senseidb.indexing.activity.time.TimeHits;
+
+/**
+ * Compares the per document {@link TimeHitsHolder} with the {@link PackedTimeHits} for the time hits of
+ * the time aggregated activities: the heap taken by the time hits of all the documents, which is printed
+ * when the state is built, the throughput of the updates and the time of a sweep over all the documents,
+ * the way the AggregatesUpdateJob expires the old activities.
+ *
+ * Run with: java -cp target/classes:<dependencies> com.senseidb.perf.jmh.TimeHitsBenchmark
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgs = {"-Xms4g", "-Xmx4g"})
+public class TimeHitsBenchmark
+{
+  private static final int WINDOW_IN_MINUTES = 60;
+
+  @Param({"holder", "packed"})
+  public String layout;
+
+  @Param({"1000000"})
+  public int docs;
+
+  @Param({"3"})
+  public int entriesPerDoc;
+
+  private TimeHits _timeHits;
+  private int _time;
+  private int[] _updateDocs;
+
+  @Setup(Level.Iteration)
+  public void setup()
+  {
+    long before = usedMemory();
+    _timeHits = "packed".equals(layout) ? new PackedTimeHits(docs) : new TimeHitsHolder(docs);
+    Random random = new Random(0);
+    for (int doc = 0; doc < docs; doc++)
+    {
+      int time = random.nextInt(WINDOW_IN_MINUTES);
+      for (int i = 0; i < entriesPerDoc; i++)
+      {
+        _timeHits.add(doc, time, 1);
+        time += 1 + random.nextInt(WINDOW_IN_MINUTES / entriesPerDoc);
+      }
+    }
+    _time = WINDOW_IN_MINUTES * 2;
+    long after = usedMemory();
+    System.out.println(layout + ": time hits of " + docs + " docs take " + ((after - before) >> 20) + "MB of heap");
+
+    _updateDocs = new int[100000];
+    for (int i = 0; i < _updateDocs.length; i++)
+    {
+      _updateDocs[i] = random.nextInt(docs);
+    }
+  }
+
+  private static long usedMemory()
+  {
+    Runtime runtime = Runtime.getRuntime();
+    for (int i = 0; i < 3; i++)
+    {
+      System.gc();
+    }
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+
+  /**
+   * Reads the time hits of every document and sums the activities, that are older than the window
+   */
+  @Benchmark
+  public long sweep()
+  {
+    long expired = 0;
+    int oldest = _time - WINDOW_IN_MINUTES;
+    for (int doc = 0; doc < docs; doc++)
+    {
+      synchronized (_timeHits.getLock(doc))
+      {
+        if (!_timeHits.isSet(doc))
+        {
+          continue;
+        }
+        int size = _timeHits.size(doc);
+        for (int i = 0; i < size; i++)
+        {
+          if (_timeHits.getTime(doc, i) >= oldest)
+          {
+            break;
+          }
+          expired += _timeHits.getActivity(doc, i);
+        }
+      }
+    }
+    return expired;
+  }
+
+  /**
+   * Adds 100k activities at the next minute, then expires the oldest activity of the same documents
+   */
+  @Benchmark
+  @OutputTimeUnit(TimeUnit.MICROSECONDS)
+  public int updates()
+  {
+    int time = ++_time;
+    for (int doc : _updateDocs)
+    {
+      synchronized (_timeHits.getLock(doc))
+      {
+        _timeHits.add(doc, time, 1);
+      }
+    }
+    for (int doc : _updateDocs)
+    {
+      synchronized (_timeHits.getLock(doc))
+      {
+        if (_timeHits.size(doc) > 0)
+        {
+          _timeHits.removeFirst(doc);
+        }
+      }
+    }
+    return time;
+  }
+
+  public static void main(String[] args) throws Exception
+  {
+    Options opt = new OptionsBuilder()
+        .include(TimeHitsBenchmark.class.getSimpleName())
+        .build();
+    new Runner(opt).run();
+  }
+}
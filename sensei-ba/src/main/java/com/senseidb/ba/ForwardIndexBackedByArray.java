@@ -34,6 +34,15 @@ public class ForwardIndexBackedByArray implements ForwardIndex {
   public ForwardIndexBackedByArray(String column) {
     this.column = column;
   }
+  /**
+   * Wraps the dictionary and the forward index, that were built incrementally by the {@link IndexSegmentBuilder}
+   */
+  public ForwardIndexBackedByArray(String column, TermValueList<?> dictionary, int[] forwardIndex, int[] freqs) {
+    this.column = column;
+    this.dictionary = dictionary;
+    this.forwardIndex = forwardIndex;
+    this.freqs = freqs;
+  }
   public void initByLongValues(List<Long> values) {
     LongAVLTreeSet longAVLTreeSet = new LongAVLTreeSet();
     for (Long value : values) {
@@ -0,0 +1,44 @@
+package com.senseidb.ba;
+
+import com.browseengine.bobo.facets.data.TermValueList;
+import com.senseidb.ba.util.FixedSizeEncodingWrapper;
+
+/**
+ * The forward index, that keeps Math.ceil(log2(dictionary.size())) bits per document in the byte buffer.
+ * The buffer is usually the read only memory mapped forward index file written by the {@link SegmentPersistentManager}
+ */
+public class ForwardIndexBackedByByteBuffer implements ForwardIndex {
+  private final FixedSizeEncodingWrapper compressedValues;
+  private final TermValueList<?> dictionary;
+  private final int[] freqs;
+
+  public ForwardIndexBackedByByteBuffer(FixedSizeEncodingWrapper compressedValues, TermValueList<?> dictionary, int[] freqs) {
+    this.compressedValues = compressedValues;
+    this.dictionary = dictionary;
+    this.freqs = freqs;
+  }
+
+  @Override
+  public int getLength() {
+    return compressedValues.getCapacity();
+  }
+
+  @Override
+  public int getValueIndex(int docId) {
+    return compressedValues.readInt(docId);
+  }
+
+  @Override
+  public int getFrequency(int valueId) {
+    return freqs[valueId];
+  }
+
+  @Override
+  public TermValueList<?> getDictionary() {
+    return dictionary;
+  }
+
+  public int getNumOfBitsPerElement() {
+    return compressedValues.getNumOfBitsPerElement();
+  }
+}
@@ -1,5 +1,16 @@
 package com.senseidb.ba;
 
-public interface ForwardIndexForSortedColumn {
-  
+/**
+ * The forward index of the column, which values are sorted by the docId, as it happens for the leading dimensions of the offline segments.
+ * Every dictionary value takes a single run of docs, so the run boundaries replace the per doc values
+ */
+public interface ForwardIndexForSortedColumn extends ForwardIndex {
+  /**
+   * @return the first doc of the value's run
+   */
+  int getStartDoc(int valueId);
+  /**
+   * @return the doc after the value's run, it's equal to the start doc if the value doesn't occur in the segment
+   */
+  int getEndDoc(int valueId);
 }
@@ -0,0 +1,292 @@
+package com.senseidb.ba;
+
+import it.unimi.dsi.fastutil.ints.Int2IntMap;
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntList;
+import it.unimi.dsi.fastutil.longs.Long2IntMap;
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongList;
+import it.unimi.dsi.fastutil.objects.Object2IntMap;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.LineIterator;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.browseengine.bobo.facets.data.TermIntList;
+import com.browseengine.bobo.facets.data.TermLongList;
+import com.browseengine.bobo.facets.data.TermStringList;
+import com.browseengine.bobo.facets.data.TermValueList;
+import com.senseidb.indexing.DefaultSenseiInterpreter;
+
+/**
+ * Builds the {@link IndexSegment} from the stream of json documents in a single pass. Every document is parsed once and is not kept:
+ * the column values are mapped to the ids in the order of appearance, and only the int id per document and column is buffered.
+ * The column type is inferred on the fly and promoted from int to long and from the numbers to String, keeping the ids.
+ * The ids are remapped to the sorted dictionary ids, when the segment is built
+ */
+public class IndexSegmentBuilder {
+  private final Set<String> excludedColumns;
+  private final int maxInvertedIndexCardinality;
+  private final Map<String, ColumnBuilder> columns = new HashMap<String, ColumnBuilder>();
+  private int length;
+
+  public IndexSegmentBuilder(Set<String> excludedColumns) {
+    this(excludedColumns, IndexSegmentCreator.DEFAULT_MAX_INVERTED_INDEX_CARDINALITY);
+  }
+
+  public IndexSegmentBuilder(Set<String> excludedColumns, int maxInvertedIndexCardinality) {
+    this.excludedColumns = excludedColumns;
+    this.maxInvertedIndexCardinality = maxInvertedIndexCardinality;
+  }
+
+  /**
+   * Streams the file with one json document per line into the segment
+   */
+  public static IndexSegment build(File jsonFile, Set<String> excludedColumns) throws IOException, JSONException {
+    IndexSegmentBuilder builder = new IndexSegmentBuilder(excludedColumns);
+    LineIterator lineIterator = FileUtils.lineIterator(jsonFile);
+    try {
+      while (lineIterator.hasNext()) {
+        String line = lineIterator.next();
+        if (line != null && line.contains("{")) {
+          builder.add(line);
+        }
+      }
+    } finally {
+      LineIterator.closeQuietly(lineIterator);
+    }
+    return builder.build();
+  }
+
+  public void add(String jsonDoc) throws JSONException {
+    add(new JSONObject(jsonDoc));
+  }
+
+  /**
+   * Only int, long and String values are indexed. The other values are treated as missing
+   */
+  public void add(JSONObject jsonDoc) {
+    Iterator<?> keys = jsonDoc.keys();
+    while (keys.hasNext()) {
+      String key = (String) keys.next();
+      if (excludedColumns.contains(key)) {
+        continue;
+      }
+      Object value = jsonDoc.opt(key);
+      if (!(value instanceof Integer || value instanceof Long || value instanceof String)) {
+        continue;
+      }
+      ColumnBuilder column = columns.get(key);
+      if (column == null) {
+        column = new ColumnBuilder();
+        columns.put(key, column);
+      }
+      column.add(length, value);
+    }
+    length++;
+  }
+
+  public int getLength() {
+    return length;
+  }
+
+  public IndexSegment build() {
+    IndexSegmentImpl segment = new IndexSegmentImpl();
+    Map<String, Class<?>> columnTypes = new HashMap<String, Class<?>>();
+    for (Map.Entry<String, ColumnBuilder> entry : columns.entrySet()) {
+      String column = entry.getKey();
+      columnTypes.put(column, entry.getValue().type);
+      ForwardIndexBackedByArray forwardIndex = entry.getValue().build(column, length);
+      segment.dictionaries.put(column, forwardIndex.getDictionary());
+      // the sorted columns don't need the inverted index, as every value is a single run of docs
+      SortedForwardIndex sortedForwardIndex = SortedForwardIndex.createIfSorted(forwardIndex);
+      if (sortedForwardIndex != null) {
+        segment.forwardIndexes.put(column, sortedForwardIndex);
+        continue;
+      }
+      segment.forwardIndexes.put(column, forwardIndex);
+      if (forwardIndex.getDictionary().size() <= maxInvertedIndexCardinality) {
+        segment.invertedIndexes.put(column, IndexSegmentCreator.createInvertedIndex(forwardIndex));
+      }
+    }
+    columns.clear();
+    segment.length = length;
+    segment.setColumnTypes(columnTypes);
+    return segment;
+  }
+
+  private static class ColumnBuilder {
+    private Class<?> type;
+    private Int2IntOpenHashMap intIds;
+    private Long2IntOpenHashMap longIds;
+    private Object2IntOpenHashMap<String> stringIds;
+    /**
+     * The id of the value in the order of appearance starting from 1. 0 stands for the missing value
+     */
+    private int[] valueIds = new int[16];
+
+    public void add(int docId, Object value) {
+      if (docId >= valueIds.length) {
+        valueIds = Arrays.copyOf(valueIds, Math.max(docId + 1, valueIds.length + (valueIds.length >> 1)));
+      }
+      valueIds[docId] = getId(value);
+    }
+
+    private int getId(Object value) {
+      promote(value);
+      if (type == int.class) {
+        int intValue = (Integer) value;
+        int id = intIds.get(intValue);
+        if (id == 0) {
+          id = intIds.size() + 1;
+          intIds.put(intValue, id);
+        }
+        return id;
+      }
+      if (type == long.class) {
+        long longValue = ((Number) value).longValue();
+        int id = longIds.get(longValue);
+        if (id == 0) {
+          id = longIds.size() + 1;
+          longIds.put(longValue, id);
+        }
+        return id;
+      }
+      String stringValue = value.toString();
+      int id = stringIds.getInt(stringValue);
+      if (id == 0) {
+        id = stringIds.size() + 1;
+        stringIds.put(stringValue, id);
+      }
+      return id;
+    }
+
+    private void promote(Object value) {
+      if (value instanceof String) {
+        if (type != String.class) {
+          promoteToString();
+        }
+      } else if (value instanceof Long) {
+        if (type == null || type == int.class) {
+          promoteToLong();
+        }
+      } else if (type == null) {
+        type = int.class;
+        intIds = new Int2IntOpenHashMap();
+      }
+    }
+
+    private void promoteToLong() {
+      longIds = new Long2IntOpenHashMap();
+      if (intIds != null) {
+        for (Int2IntMap.Entry entry : intIds.int2IntEntrySet()) {
+          longIds.put(entry.getIntKey(), entry.getIntValue());
+        }
+        intIds = null;
+      }
+      type = long.class;
+    }
+
+    private void promoteToString() {
+      stringIds = new Object2IntOpenHashMap<String>();
+      if (intIds != null) {
+        for (Int2IntMap.Entry entry : intIds.int2IntEntrySet()) {
+          stringIds.put(String.valueOf(entry.getIntKey()), entry.getIntValue());
+        }
+        intIds = null;
+      }
+      if (longIds != null) {
+        for (Long2IntMap.Entry entry : longIds.long2IntEntrySet()) {
+          stringIds.put(String.valueOf(entry.getLongKey()), entry.getIntValue());
+        }
+        longIds = null;
+      }
+      type = String.class;
+    }
+
+    /**
+     * Sorts the values into the dictionary and remaps the ids in the order of appearance to the dictionary ids
+     */
+    @SuppressWarnings("unchecked")
+    public ForwardIndexBackedByArray build(String column, int length) {
+      TermValueList<?> dictionary;
+      int[] dictionaryIds;
+      if (type == int.class) {
+        int[] values = new int[intIds.size()];
+        for (Int2IntMap.Entry entry : intIds.int2IntEntrySet()) {
+          values[entry.getIntValue() - 1] = entry.getIntKey();
+        }
+        int[] sortedValues = values.clone();
+        Arrays.sort(sortedValues);
+        dictionaryIds = new int[values.length + 1];
+        for (int i = 0; i < values.length; i++) {
+          dictionaryIds[i + 1] = Arrays.binarySearch(sortedValues, values[i]) + 1;
+        }
+        TermIntList termIntList = new TermIntList(sortedValues.length, DefaultSenseiInterpreter.DEFAULT_FORMAT_STRING_MAP.get(int.class));
+        termIntList.add(null);
+        for (int value : sortedValues) {
+          ((IntList) termIntList.getInnerList()).add(value);
+        }
+        dictionary = termIntList;
+      } else if (type == long.class) {
+        long[] values = new long[longIds.size()];
+        for (Long2IntMap.Entry entry : longIds.long2IntEntrySet()) {
+          values[entry.getIntValue() - 1] = entry.getLongKey();
+        }
+        long[] sortedValues = values.clone();
+        Arrays.sort(sortedValues);
+        dictionaryIds = new int[values.length + 1];
+        for (int i = 0; i < values.length; i++) {
+          dictionaryIds[i + 1] = Arrays.binarySearch(sortedValues, values[i]) + 1;
+        }
+        TermLongList termLongList = new TermLongList(sortedValues.length, DefaultSenseiInterpreter.DEFAULT_FORMAT_STRING_MAP.get(long.class));
+        termLongList.add(null);
+        for (long value : sortedValues) {
+          ((LongList) termLongList.getInnerList()).add(value);
+        }
+        dictionary = termLongList;
+      } else {
+        String[] values = new String[stringIds.size()];
+        for (Object2IntMap.Entry<String> entry : stringIds.object2IntEntrySet()) {
+          values[entry.getIntValue() - 1] = entry.getKey();
+        }
+        String[] sortedValues = values.clone();
+        Arrays.sort(sortedValues);
+        dictionaryIds = new int[values.length + 1];
+        for (int i = 0; i < values.length; i++) {
+          dictionaryIds[i + 1] = Arrays.binarySearch(sortedValues, values[i]) + 1;
+        }
+        TermStringList termStringList = new TermStringList(sortedValues.length);
+        termStringList.add(null);
+        for (String value : sortedValues) {
+          ((List<String>) termStringList.getInnerList()).add(value);
+        }
+        dictionary = termStringList;
+      }
+      dictionary.seal();
+      intIds = null;
+      longIds = null;
+      stringIds = null;
+      int[] forwardIndex = valueIds.length == length ? valueIds : Arrays.copyOf(valueIds, length);
+      valueIds = null;
+      int[] freqs = new int[dictionary.size()];
+      for (int docId = 0; docId < length; docId++) {
+        int dictionaryId = dictionaryIds[forwardIndex[docId]];
+        forwardIndex[docId] = dictionaryId;
+        freqs[dictionaryId]++;
+      }
+      return new ForwardIndexBackedByArray(column, dictionary, forwardIndex, freqs);
+    }
+  }
+}
@@ -1,55 +1,61 @@
 package com.senseidb.ba;
 
-import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
-import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import org.apache.lucene.search.DocIdSet;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import com.senseidb.ba.index.PostingList;
+
 public class IndexSegmentCreator {
+    /**
+     * The columns with more values are considered metrics and don't get the inverted index
+     */
+    public static final int DEFAULT_MAX_INVERTED_INDEX_CARDINALITY = 10000;
+
     public static IndexSegment convert(String[] jsonDocs, Set<String> excludedColumns)  {
-      Map<String, List> columnValues = new HashMap<String, List>();
+      return convert(jsonDocs, excludedColumns, DEFAULT_MAX_INVERTED_INDEX_CARDINALITY);
+    }
+
+    public static IndexSegment convert(String[] jsonDocs, Set<String> excludedColumns, int maxInvertedIndexCardinality)  {
+      IndexSegmentBuilder builder = new IndexSegmentBuilder(excludedColumns, maxInvertedIndexCardinality);
       try {
-      Map<String, Class<?>> columnTypes = getColumnTypes(jsonDocs, excludedColumns, 10);
-      for (String column : columnTypes.keySet()) {
-        columnValues.put(column, new ArrayList(jsonDocs.length));
-      }
-      for (String jsonDocStr : jsonDocs) {        
-        
-        JSONObject jsonDoc = new JSONObject(jsonDocStr);
-        for (String column : columnTypes.keySet()) {
-          Object value = jsonDoc.opt(column);
-          if (value instanceof Integer && columnTypes.get(column) == long.class) {
-            value = Long.valueOf((Integer) value);
-          }
-          columnValues.get(column).add(value);
+        for (String jsonDoc : jsonDocs) {
+          builder.add(jsonDoc);
         }
-      } 
-      IndexSegmentImpl offlineSegmentImpl = new IndexSegmentImpl(); 
-      for (String column : columnTypes.keySet()) {
-        ForwardIndexBackedByArray forwardIndexBackedByArray = new ForwardIndexBackedByArray(column);
-        Class<?> type = columnTypes.get(column);
-        if (type == int.class) {
-          forwardIndexBackedByArray.initByIntValues(columnValues.get(column));
-        } else if (type == long.class) {
-          forwardIndexBackedByArray.initByLongValues(columnValues.get(column));
-        } else if (type == String.class) {
-          forwardIndexBackedByArray.initByStringValues(columnValues.get(column));
+      } catch (JSONException ex) {
+        throw new RuntimeException(ex);
+      }
+      return builder.build();
+    }
+
+    /**
+     * Builds the posting list for every dictionary value except the null one
+     */
+    public static DocIdSet[] createInvertedIndex(ForwardIndex forwardIndex) {
+      int cardinality = forwardIndex.getDictionary().size();
+      int[][] docIds = new int[cardinality][];
+      for (int i = 1; i < cardinality; i++) {
+        docIds[i] = new int[forwardIndex.getFrequency(i)];
+      }
+      int[] positions = new int[cardinality];
+      for (int docId = 0; docId < forwardIndex.getLength(); docId++) {
+        int valueIndex = forwardIndex.getValueIndex(docId);
+        if (valueIndex > 0) {
+          docIds[valueIndex][positions[valueIndex]++] = docId;
         }
-        offlineSegmentImpl.forwardIndexes.put(column, forwardIndexBackedByArray);
-        offlineSegmentImpl.dictionaries.put(column, forwardIndexBackedByArray.getDictionary());
       }
-      offlineSegmentImpl.length = jsonDocs.length;
-      offlineSegmentImpl.setColumnTypes(columnTypes);
-      return offlineSegmentImpl;
-      } catch (Exception ex) {
-        throw new RuntimeException(ex);
+      DocIdSet[] invertedIndex = new DocIdSet[cardinality];
+      for (int i = 1; i < cardinality; i++) {
+        invertedIndex[i] = PostingList.create(docIds[i], forwardIndex.getLength());
+        docIds[i] = null;
       }
+      return invertedIndex;
     }
 
     public static Map<String, Class<?>> getColumnTypes(String[] jsonDocs, Set<String> excludedColumns, int mod)
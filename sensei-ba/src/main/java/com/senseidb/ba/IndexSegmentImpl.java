@@ -12,6 +12,7 @@ public class IndexSegmentImpl implements IndexSegment {
   Map<String, ForwardIndex> forwardIndexes = new HashMap<String, ForwardIndex>();
   Map<String, TermValueList> dictionaries = new HashMap<String, TermValueList>();
   Map<String, Class<?>> columnTypes = new HashMap<String, Class<?>>();
+  Map<String, DocIdSet[]> invertedIndexes = new HashMap<String, DocIdSet[]>();
   int length;
   @Override
   public Map<String, Class<?>> getColumnTypes() {
@@ -26,7 +27,7 @@ public class IndexSegmentImpl implements IndexSegment {
 
   @Override
   public DocIdSet[] getInvertedIndex(String column) {
-    return null;
+    return invertedIndexes.get(column);
   }
 
   @Override
@@ -0,0 +1,298 @@
+package com.senseidb.ba;
+
+import it.unimi.dsi.fastutil.ints.IntList;
+import it.unimi.dsi.fastutil.longs.LongList;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+import org.apache.lucene.search.DocIdSet;
+
+import com.browseengine.bobo.facets.data.TermIntList;
+import com.browseengine.bobo.facets.data.TermLongList;
+import com.browseengine.bobo.facets.data.TermStringList;
+import com.browseengine.bobo.facets.data.TermValueList;
+import com.senseidb.ba.index.PostingList;
+import com.senseidb.ba.util.FixedSizeEncodingWrapper;
+import com.senseidb.indexing.DefaultSenseiInterpreter;
+
+/**
+ * Writes the index segment to the directory and reads it back. Every column is kept in the following files:
+ * <ul>
+ * <li>column.dict - the sorted dictionary values without the null value at the index 0, followed by the frequencies of all the dictionary values</li>
+ * <li>column.fwd - the forward index, that uses Math.ceil(log2(cardinality)) bits per document</li>
+ * <li>column.inv - the posting lists of the dictionary values, only for the columns with the inverted index</li>
+ * <li>column.runs - the run start of every dictionary value and the segment length, it replaces the forward index of the sorted columns</li>
+ * </ul>
+ * The segment length and the column types, cardinalities and bit widths are kept in metadata.properties.
+ * The forward indexes are memory mapped when the segment is read, only the dictionaries are loaded into the heap
+ */
+public class SegmentPersistentManager {
+  public static final String METADATA_FILE_NAME = "metadata.properties";
+  public static final String DICTIONARY_EXTENSION = ".dict";
+  public static final String FORWARD_INDEX_EXTENSION = ".fwd";
+  public static final String INVERTED_INDEX_EXTENSION = ".inv";
+  public static final String RUNS_EXTENSION = ".runs";
+  private static final int FORMAT_VERSION = 1;
+
+  public static boolean isSegmentDirectory(File dir) {
+    return new File(dir, METADATA_FILE_NAME).exists();
+  }
+
+  public static void persist(IndexSegment segment, File dir) throws IOException {
+    dir.mkdirs();
+    Properties metadata = new Properties();
+    metadata.setProperty("segment.version", String.valueOf(FORMAT_VERSION));
+    metadata.setProperty("segment.length", String.valueOf(segment.getLength()));
+    metadata.setProperty("segment.columns", StringUtils.join(segment.getColumnTypes().keySet(), ","));
+    for (Map.Entry<String, Class<?>> entry : segment.getColumnTypes().entrySet()) {
+      String column = entry.getKey();
+      ForwardIndex forwardIndex = segment.getForwardIndex(column);
+      int cardinality = forwardIndex.getDictionary().size();
+      metadata.setProperty("column." + column + ".type", getTypeName(entry.getValue()));
+      metadata.setProperty("column." + column + ".cardinality", String.valueOf(cardinality));
+      writeDictionary(forwardIndex, entry.getValue(), new File(dir, column + DICTIONARY_EXTENSION));
+      if (forwardIndex instanceof ForwardIndexForSortedColumn) {
+        metadata.setProperty("column." + column + ".sorted", "true");
+        writeRuns((ForwardIndexForSortedColumn) forwardIndex, new File(dir, column + RUNS_EXTENSION));
+      } else {
+        int numOfBits = FixedSizeEncodingWrapper.getNumOfBits(cardinality);
+        metadata.setProperty("column." + column + ".bitsPerElement", String.valueOf(numOfBits));
+        writeForwardIndex(forwardIndex, segment.getLength(), numOfBits, new File(dir, column + FORWARD_INDEX_EXTENSION));
+      }
+      DocIdSet[] invertedIndex = segment.getInvertedIndex(column);
+      if (invertedIndex != null) {
+        metadata.setProperty("column." + column + ".invertedIndex", "true");
+        writeInvertedIndex(invertedIndex, new File(dir, column + INVERTED_INDEX_EXTENSION));
+      }
+    }
+    // the metadata goes last, so that the directory becomes a segment only once all the columns are written
+    FileOutputStream metadataStream = new FileOutputStream(new File(dir, METADATA_FILE_NAME));
+    try {
+      metadata.store(metadataStream, null);
+    } finally {
+      IOUtils.closeQuietly(metadataStream);
+    }
+  }
+
+  public static IndexSegment read(File dir) throws IOException {
+    Properties metadata = new Properties();
+    FileInputStream metadataStream = new FileInputStream(new File(dir, METADATA_FILE_NAME));
+    try {
+      metadata.load(metadataStream);
+    } finally {
+      IOUtils.closeQuietly(metadataStream);
+    }
+    int version = Integer.parseInt(metadata.getProperty("segment.version"));
+    if (version != FORMAT_VERSION) {
+      throw new IllegalStateException("Unsupported segment version " + version + " in " + dir.getAbsolutePath());
+    }
+    IndexSegmentImpl segment = new IndexSegmentImpl();
+    segment.length = Integer.parseInt(metadata.getProperty("segment.length"));
+    Map<String, Class<?>> columnTypes = new HashMap<String, Class<?>>();
+    for (String column : StringUtils.split(metadata.getProperty("segment.columns", ""), ",")) {
+      Class<?> type = getType(metadata.getProperty("column." + column + ".type"));
+      int cardinality = Integer.parseInt(metadata.getProperty("column." + column + ".cardinality"));
+      int[] freqs = new int[cardinality];
+      TermValueList<?> dictionary = readDictionary(type, cardinality, freqs, new File(dir, column + DICTIONARY_EXTENSION));
+      ForwardIndex forwardIndex;
+      if (Boolean.parseBoolean(metadata.getProperty("column." + column + ".sorted"))) {
+        forwardIndex = new SortedForwardIndex(dictionary, readRuns(cardinality, new File(dir, column + RUNS_EXTENSION)));
+      } else {
+        int numOfBits = Integer.parseInt(metadata.getProperty("column." + column + ".bitsPerElement"));
+        ByteBuffer buffer = map(new File(dir, column + FORWARD_INDEX_EXTENSION));
+        forwardIndex = new ForwardIndexBackedByByteBuffer(new FixedSizeEncodingWrapper(buffer, segment.length, numOfBits), dictionary, freqs);
+      }
+      columnTypes.put(column, type);
+      segment.forwardIndexes.put(column, forwardIndex);
+      segment.dictionaries.put(column, dictionary);
+      if (Boolean.parseBoolean(metadata.getProperty("column." + column + ".invertedIndex"))) {
+        segment.invertedIndexes.put(column, readInvertedIndex(cardinality, new File(dir, column + INVERTED_INDEX_EXTENSION)));
+      }
+    }
+    segment.setColumnTypes(columnTypes);
+    return segment;
+  }
+
+  private static void writeForwardIndex(ForwardIndex forwardIndex, int length, int numOfBits, File file) throws IOException {
+    FixedSizeEncodingWrapper compressedValues = new FixedSizeEncodingWrapper(length, numOfBits);
+    byte[] tempBuf = compressedValues.getByteBuf();
+    for (int i = 0; i < length; i++) {
+      compressedValues.addInt(i, forwardIndex.getValueIndex(i), tempBuf);
+    }
+    ByteBuffer buffer = compressedValues.getBuffer().duplicate();
+    buffer.clear();
+    FileChannel channel = new FileOutputStream(file).getChannel();
+    try {
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+    } finally {
+      channel.close();
+    }
+  }
+
+  private static void writeRuns(ForwardIndexForSortedColumn forwardIndex, File file) throws IOException {
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+    try {
+      int cardinality = forwardIndex.getDictionary().size();
+      for (int i = 0; i < cardinality; i++) {
+        out.writeInt(forwardIndex.getStartDoc(i));
+      }
+      out.writeInt(forwardIndex.getEndDoc(cardinality - 1));
+    } finally {
+      out.close();
+    }
+  }
+
+  private static int[] readRuns(int cardinality, File file) throws IOException {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+    try {
+      int[] runStarts = new int[cardinality + 1];
+      for (int i = 0; i < runStarts.length; i++) {
+        runStarts[i] = in.readInt();
+      }
+      return runStarts;
+    } finally {
+      in.close();
+    }
+  }
+
+  private static void writeInvertedIndex(DocIdSet[] invertedIndex, File file) throws IOException {
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+    try {
+      for (DocIdSet postingList : invertedIndex) {
+        if (postingList != null && !(postingList instanceof PostingList)) {
+          throw new UnsupportedOperationException("Only the posting lists might be persisted - " + postingList.getClass());
+        }
+        PostingList.write((PostingList) postingList, out);
+      }
+    } finally {
+      out.close();
+    }
+  }
+
+  private static DocIdSet[] readInvertedIndex(int cardinality, File file) throws IOException {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+    try {
+      DocIdSet[] invertedIndex = new DocIdSet[cardinality];
+      for (int i = 0; i < cardinality; i++) {
+        invertedIndex[i] = PostingList.read(in);
+      }
+      return invertedIndex;
+    } finally {
+      in.close();
+    }
+  }
+
+  private static MappedByteBuffer map(File file) throws IOException {
+    RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+    try {
+      return randomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, randomAccessFile.length());
+    } finally {
+      randomAccessFile.close();
+    }
+  }
+
+  private static void writeDictionary(ForwardIndex forwardIndex, Class<?> type, File file) throws IOException {
+    TermValueList<?> dictionary = forwardIndex.getDictionary();
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+    try {
+      if (type == int.class) {
+        int[] elements = ((TermIntList) dictionary).getElements();
+        for (int i = 1; i < dictionary.size(); i++) {
+          out.writeInt(elements[i]);
+        }
+      } else if (type == long.class) {
+        long[] elements = ((TermLongList) dictionary).getElements();
+        for (int i = 1; i < dictionary.size(); i++) {
+          out.writeLong(elements[i]);
+        }
+      } else {
+        for (int i = 1; i < dictionary.size(); i++) {
+          out.writeUTF(((TermStringList) dictionary).get(i));
+        }
+      }
+      for (int i = 0; i < dictionary.size(); i++) {
+        out.writeInt(forwardIndex.getFrequency(i));
+      }
+    } finally {
+      out.close();
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private static TermValueList<?> readDictionary(Class<?> type, int cardinality, int[] freqs, File file) throws IOException {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+    try {
+      TermValueList<?> dictionary;
+      if (type == int.class) {
+        TermIntList termIntList = new TermIntList(cardinality, DefaultSenseiInterpreter.DEFAULT_FORMAT_STRING_MAP.get(int.class));
+        termIntList.add(null);
+        for (int i = 1; i < cardinality; i++) {
+          ((IntList) termIntList.getInnerList()).add(in.readInt());
+        }
+        dictionary = termIntList;
+      } else if (type == long.class) {
+        TermLongList termLongList = new TermLongList(cardinality, DefaultSenseiInterpreter.DEFAULT_FORMAT_STRING_MAP.get(long.class));
+        termLongList.add(null);
+        for (int i = 1; i < cardinality; i++) {
+          ((LongList) termLongList.getInnerList()).add(in.readLong());
+        }
+        dictionary = termLongList;
+      } else {
+        TermStringList termStringList = new TermStringList(cardinality);
+        termStringList.add(null);
+        for (int i = 1; i < cardinality; i++) {
+          ((List<String>) termStringList.getInnerList()).add(in.readUTF());
+        }
+        dictionary = termStringList;
+      }
+      dictionary.seal();
+      for (int i = 0; i < cardinality; i++) {
+        freqs[i] = in.readInt();
+      }
+      return dictionary;
+    } finally {
+      in.close();
+    }
+  }
+
+  private static String getTypeName(Class<?> type) {
+    if (type == int.class) {
+      return "int";
+    } else if (type == long.class) {
+      return "long";
+    } else if (type == String.class) {
+      return "string";
+    }
+    throw new UnsupportedOperationException("Unsupported column type " + type);
+  }
+
+  private static Class<?> getType(String typeName) {
+    if ("int".equals(typeName)) {
+      return int.class;
+    } else if ("long".equals(typeName)) {
+      return long.class;
+    } else if ("string".equals(typeName)) {
+      return String.class;
+    }
+    throw new UnsupportedOperationException("Unsupported column type " + typeName);
+  }
+}
@@ -0,0 +1,88 @@
+package com.senseidb.ba;
+
+import com.browseengine.bobo.facets.data.TermValueList;
+
+/**
+ * Keeps the [startDoc, endDoc) run of every dictionary value. The runs are adjacent, so only the start docs are stored
+ * plus the segment length at the end. getValueIndex is the binary search over the run starts
+ */
+public class SortedForwardIndex implements ForwardIndexForSortedColumn {
+  private final TermValueList<?> dictionary;
+  private final int[] runStarts;
+
+  /**
+   * @param runStarts the start doc of every dictionary value followed by the segment length
+   */
+  public SortedForwardIndex(TermValueList<?> dictionary, int[] runStarts) {
+    if (runStarts.length != dictionary.size() + 1) {
+      throw new IllegalArgumentException("Expected " + (dictionary.size() + 1) + " run starts, but got " + runStarts.length);
+    }
+    this.dictionary = dictionary;
+    this.runStarts = runStarts;
+  }
+
+  /**
+   * @return the sorted forward index, or null if the values of the forward index are not sorted by docId
+   */
+  public static SortedForwardIndex createIfSorted(ForwardIndex forwardIndex) {
+    int previous = 0;
+    for (int docId = 0; docId < forwardIndex.getLength(); docId++) {
+      int valueIndex = forwardIndex.getValueIndex(docId);
+      if (valueIndex < previous) {
+        return null;
+      }
+      previous = valueIndex;
+    }
+    int cardinality = forwardIndex.getDictionary().size();
+    int[] runStarts = new int[cardinality + 1];
+    for (int i = 0; i < cardinality; i++) {
+      runStarts[i + 1] = runStarts[i] + forwardIndex.getFrequency(i);
+    }
+    return new SortedForwardIndex(forwardIndex.getDictionary(), runStarts);
+  }
+
+  @Override
+  public int getLength() {
+    return runStarts[runStarts.length - 1];
+  }
+
+  @Override
+  public int getValueIndex(int docId) {
+    // the last value, which run starts not after the docId. The empty runs share the start with the next value, so they are skipped
+    int low = 0;
+    int high = runStarts.length - 1;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (runStarts[mid] <= docId) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low - 1;
+  }
+
+  @Override
+  public int getFrequency(int valueId) {
+    return runStarts[valueId + 1] - runStarts[valueId];
+  }
+
+  @Override
+  public TermValueList<?> getDictionary() {
+    return dictionary;
+  }
+
+  @Override
+  public int getStartDoc(int valueId) {
+    return runStarts[valueId];
+  }
+
+  @Override
+  public int getEndDoc(int valueId) {
+    return runStarts[valueId + 1];
+  }
+
+  public int[] getRunStarts() {
+    return runStarts;
+  }
+}
@@ -17,12 +17,14 @@ import com.browseengine.bobo.facets.FacetCountCollector;
 import com.browseengine.bobo.facets.FacetCountCollectorSource;
 import com.browseengine.bobo.facets.FacetHandler;
 import com.browseengine.bobo.facets.data.FacetDataCache;
+import com.browseengine.bobo.facets.filter.FacetRangeFilter;
 import com.browseengine.bobo.facets.filter.RandomAccessFilter;
 import com.browseengine.bobo.facets.impl.DefaultFacetCountCollector;
 import com.browseengine.bobo.facets.impl.SimpleFacetHandler;
 import com.browseengine.bobo.sort.DocComparator;
 import com.browseengine.bobo.sort.DocComparatorSource;
 import com.senseidb.ba.ForwardIndex;
+import com.senseidb.ba.ForwardIndexForSortedColumn;
 import com.senseidb.ba.IndexSegment;
 
 public class ZeusFacetHandler extends FacetHandler<ZeusDataCache> {
@@ -46,6 +48,19 @@ public class ZeusFacetHandler extends FacetHandler<ZeusDataCache> {
     
   }
 
+  /**
+   * @return the inclusive range of the dictionary indexes, that match the value, or null if nothing matches.
+   * The value might be the range string like [a TO b]
+   */
+  private static int[] getValueRange(ZeusDataCache zeusDataCache, String value) {
+    if (value.startsWith("[") || value.startsWith("(")) {
+      int[] range = FacetRangeFilter.parse(zeusDataCache.getFakeCache(), value);
+      return range[0] > range[1] ? null : range;
+    }
+    int index = zeusDataCache.getDictionary().indexOf(value);
+    return index < 0 ? null : new int[] {index, index};
+  }
+
   @Override
   public RandomAccessFilter buildRandomAccessFilter(final String value, Properties selectionProperty) throws IOException {
     
@@ -54,19 +69,34 @@ public class ZeusFacetHandler extends FacetHandler<ZeusDataCache> {
       @Override
       public double getFacetSelectivity(BoboIndexReader reader) {
         final ZeusDataCache zeusDataCache = ZeusFacetHandler.this.load(reader);
-        final int index = zeusDataCache.getDictionary().indexOf(value);
-        if (index < 0) return 0.0;
-        return ((double)zeusDataCache.getForwardIndex().getFrequency(index)) / zeusDataCache.getForwardIndex().getLength();
+        int[] range = getValueRange(zeusDataCache, value);
+        if (range == null) return 0.0;
+        ForwardIndex forwardIndex = zeusDataCache.getForwardIndex();
+        long count = 0;
+        if (forwardIndex instanceof ForwardIndexForSortedColumn) {
+          count = ((ForwardIndexForSortedColumn) forwardIndex).getEndDoc(range[1]) - ((ForwardIndexForSortedColumn) forwardIndex).getStartDoc(range[0]);
+        } else {
+          for (int i = range[0]; i <= range[1]; i++) {
+            count += forwardIndex.getFrequency(i);
+          }
+        }
+        return ((double) count) / forwardIndex.getLength();
       }
       @Override
       public RandomAccessDocIdSet getRandomAccessDocIdSet(BoboIndexReader reader) throws IOException {
         final ZeusDataCache zeusDataCache = ZeusFacetHandler.this.load(reader);
-        final int index = zeusDataCache.getDictionary().indexOf(value);
-        if (index < 0) {
+        final int[] range = getValueRange(zeusDataCache, value);
+        if (range == null) {
           return EmptyDocIdSet.getInstance();
         }
+        //The sorted column keeps every value as a single run of docs
+        if (zeusDataCache.getForwardIndex() instanceof ForwardIndexForSortedColumn) {
+          ForwardIndexForSortedColumn forwardIndex = (ForwardIndexForSortedColumn) zeusDataCache.getForwardIndex();
+          return new RunDocIdSet(forwardIndex.getStartDoc(range[0]), forwardIndex.getEndDoc(range[1]));
+        }
+        final int index = range[0];
         //Go by inverted index path
-        if (zeusDataCache.invertedIndexPresent(index)) {
+        if (index == range[1] && zeusDataCache.invertedIndexPresent(index)) {
            final DocIdSet invertedIndex = zeusDataCache.getInvertedIndexes()[index];
            return new RandomAccessDocIdSet() {
             @Override
@@ -80,7 +110,7 @@ public class ZeusFacetHandler extends FacetHandler<ZeusDataCache> {
           };
         }
         else {
-          return new ForwardDocIdSet(zeusDataCache.getForwardIndex(), index); 
+          return new ForwardDocIdSet(zeusDataCache.getForwardIndex(), range[0], range[1]); 
        }
         
     }};
@@ -96,6 +126,30 @@ public class ZeusFacetHandler extends FacetHandler<ZeusDataCache> {
         ZeusDataCache dataCache = load(reader);
         final ForwardIndex forwardIndex = dataCache.getForwardIndex();
         final FacetDataCache fakeCache = dataCache.getFakeCache();
+        if (forwardIndex instanceof ForwardIndexForSortedColumn) {
+          final ForwardIndexForSortedColumn sortedForwardIndex = (ForwardIndexForSortedColumn) forwardIndex;
+          return new DefaultFacetCountCollector(getName(), dataCache.getFakeCache(), docBase, sel, fspec) {
+            private int runValue = -1;
+            private int runStart = 0;
+            private int runEnd = 0;
+
+            // the docs come in the ascending order, so the run is looked up only once per value
+            @Override
+            public void collect(int docid) {
+              if (docid >= runEnd || docid < runStart) {
+                runValue = sortedForwardIndex.getValueIndex(docid);
+                runStart = sortedForwardIndex.getStartDoc(runValue);
+                runEnd = sortedForwardIndex.getEndDoc(runValue);
+              }
+              _count[runValue]++;
+            }
+
+            @Override
+            public void collectAll() {
+              _count = fakeCache.freqs;
+            }
+          };
+        }
         return new DefaultFacetCountCollector(getName(), dataCache.getFakeCache(), docBase, sel, fspec) {
          
           @Override
@@ -144,17 +198,20 @@ public class ZeusFacetHandler extends FacetHandler<ZeusDataCache> {
   private static class ForwardIndexIterator extends DocIdSetIterator {
     int doc = -1;
     private final ForwardIndex forwardIndex;
-    private final int index;
-    public ForwardIndexIterator(ForwardIndex forwardIndex, int index) {
+    private final int startIndex;
+    private final int endIndex;
+    public ForwardIndexIterator(ForwardIndex forwardIndex, int startIndex, int endIndex) {
       this.forwardIndex = forwardIndex;
-      this.index = index;
+      this.startIndex = startIndex;
+      this.endIndex = endIndex;
     }
     @Override
     public int nextDoc() throws IOException {
       while (true) {
         doc++;
         if (forwardIndex.getLength() <= doc) return NO_MORE_DOCS;
-          if (forwardIndex.getValueIndex(doc) == index) {
+          int valueIndex = forwardIndex.getValueIndex(doc);
+          if (valueIndex >= startIndex && valueIndex <= endIndex) {
             return doc;
           }
         }
@@ -172,20 +229,70 @@ public class ZeusFacetHandler extends FacetHandler<ZeusDataCache> {
   }
   public static class ForwardDocIdSet extends RandomAccessDocIdSet {
     private ForwardIndex forwardIndex;
-    private int index;
+    private int startIndex;
+    private int endIndex;
 
     public ForwardDocIdSet(ForwardIndex forwardIndex, int index) {
+      this(forwardIndex, index, index);
+    }
+    /**
+     * Matches the docs, which dictionary indexes are in the [startIndex, endIndex] range
+     */
+    public ForwardDocIdSet(ForwardIndex forwardIndex, int startIndex, int endIndex) {
       this.forwardIndex = forwardIndex;
-      this.index = index;
+      this.startIndex = startIndex;
+      this.endIndex = endIndex;
     }
     @Override
     public DocIdSetIterator iterator() throws IOException {
-      return new ForwardIndexIterator(forwardIndex, index);
+      return new ForwardIndexIterator(forwardIndex, startIndex, endIndex);
     }
     
     @Override
     public boolean get(int docId) {
-      return forwardIndex.getValueIndex(docId) == index;
+      int valueIndex = forwardIndex.getValueIndex(docId);
+      return valueIndex >= startIndex && valueIndex <= endIndex;
+    }
+  }
+  /**
+   * Matches the [startDoc, endDoc) run of docs of the sorted column
+   */
+  public static class RunDocIdSet extends RandomAccessDocIdSet {
+    private final int startDoc;
+    private final int endDoc;
+
+    public RunDocIdSet(int startDoc, int endDoc) {
+      this.startDoc = startDoc;
+      this.endDoc = endDoc;
+    }
+    @Override
+    public DocIdSetIterator iterator() throws IOException {
+      return new DocIdSetIterator() {
+        int doc = -1;
+        @Override
+        public int docID() {
+          return doc;
+        }
+        @Override
+        public int nextDoc() throws IOException {
+          return advance(doc + 1);
+        }
+        @Override
+        public int advance(int target) throws IOException {
+          if (doc == NO_MORE_DOCS) {
+            return doc;
+          }
+          doc = Math.max(target, startDoc);
+          if (doc >= endDoc) {
+            doc = NO_MORE_DOCS;
+          }
+          return doc;
+        }
+      };
+    }
+    @Override
+    public boolean get(int docId) {
+      return docId >= startDoc && docId < endDoc;
     }
   }
 }
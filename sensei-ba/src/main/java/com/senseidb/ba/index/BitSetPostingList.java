@@ -0,0 +1,68 @@
+package com.senseidb.ba.index;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.OpenBitSet;
+import org.apache.lucene.util.OpenBitSetIterator;
+
+/**
+ * Keeps a bit per segment document, is used for the dense values
+ */
+public class BitSetPostingList extends PostingList {
+  private final OpenBitSet bits;
+  private final int size;
+
+  public BitSetPostingList(int[] docIds, int maxDoc) {
+    bits = new OpenBitSet(maxDoc);
+    for (int docId : docIds) {
+      bits.fastSet(docId);
+    }
+    size = docIds.length;
+  }
+
+  private BitSetPostingList(OpenBitSet bits, int size) {
+    this.bits = bits;
+    this.size = size;
+  }
+
+  @Override
+  public DocIdSetIterator iterator() {
+    return new OpenBitSetIterator(bits);
+  }
+
+  public boolean get(int docId) {
+    return bits.fastGet(docId);
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  @Override
+  protected byte getEncoding() {
+    return BITSET_ENCODING;
+  }
+
+  @Override
+  protected void writeTo(DataOutput out) throws IOException {
+    out.writeInt(size);
+    long[] words = bits.getBits();
+    out.writeInt(bits.getNumWords());
+    for (int i = 0; i < bits.getNumWords(); i++) {
+      out.writeLong(words[i]);
+    }
+  }
+
+  static BitSetPostingList readFrom(DataInput in) throws IOException {
+    int size = in.readInt();
+    long[] words = new long[in.readInt()];
+    for (int i = 0; i < words.length; i++) {
+      words[i] = in.readLong();
+    }
+    return new BitSetPostingList(new OpenBitSet(words, words.length), size);
+  }
+}
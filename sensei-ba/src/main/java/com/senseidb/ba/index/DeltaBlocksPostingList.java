@@ -0,0 +1,165 @@
+package com.senseidb.ba.index;
+
+import it.unimi.dsi.fastutil.bytes.ByteArrayList;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.apache.lucene.search.DocIdSetIterator;
+
+/**
+ * Splits the sorted doc ids into the blocks of BLOCK_SIZE docs. The first doc of every block is kept in the skip array,
+ * the rest are stored as the variable byte encoded deltas. The advance finds the block by the binary search over the skip array
+ * and decodes only that block
+ */
+public class DeltaBlocksPostingList extends PostingList {
+  public static final int BLOCK_SIZE = 128;
+  private final int size;
+  private final int[] blockFirstDocs;
+  private final int[] blockOffsets;
+  private final byte[] deltas;
+
+  public DeltaBlocksPostingList(int[] docIds) {
+    size = docIds.length;
+    int numBlocks = (size + BLOCK_SIZE - 1) / BLOCK_SIZE;
+    blockFirstDocs = new int[numBlocks];
+    blockOffsets = new int[numBlocks];
+    ByteArrayList bytes = new ByteArrayList(size);
+    for (int block = 0; block < numBlocks; block++) {
+      int start = block * BLOCK_SIZE;
+      int end = Math.min(start + BLOCK_SIZE, size);
+      blockFirstDocs[block] = docIds[start];
+      blockOffsets[block] = bytes.size();
+      for (int i = start + 1; i < end; i++) {
+        int delta = docIds[i] - docIds[i - 1];
+        while ((delta & ~0x7F) != 0) {
+          bytes.add((byte) ((delta & 0x7F) | 0x80));
+          delta >>>= 7;
+        }
+        bytes.add((byte) delta);
+      }
+    }
+    deltas = bytes.toByteArray();
+  }
+
+  private DeltaBlocksPostingList(int size, int[] blockFirstDocs, int[] blockOffsets, byte[] deltas) {
+    this.size = size;
+    this.blockFirstDocs = blockFirstDocs;
+    this.blockOffsets = blockOffsets;
+    this.deltas = deltas;
+  }
+
+  @Override
+  public DocIdSetIterator iterator() {
+    return new DeltaBlocksIterator();
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  @Override
+  protected byte getEncoding() {
+    return DELTA_BLOCKS_ENCODING;
+  }
+
+  @Override
+  protected void writeTo(DataOutput out) throws IOException {
+    out.writeInt(size);
+    for (int i = 0; i < blockFirstDocs.length; i++) {
+      out.writeInt(blockFirstDocs[i]);
+      out.writeInt(blockOffsets[i]);
+    }
+    out.writeInt(deltas.length);
+    out.write(deltas);
+  }
+
+  static DeltaBlocksPostingList readFrom(DataInput in) throws IOException {
+    int size = in.readInt();
+    int numBlocks = (size + BLOCK_SIZE - 1) / BLOCK_SIZE;
+    int[] blockFirstDocs = new int[numBlocks];
+    int[] blockOffsets = new int[numBlocks];
+    for (int i = 0; i < numBlocks; i++) {
+      blockFirstDocs[i] = in.readInt();
+      blockOffsets[i] = in.readInt();
+    }
+    byte[] deltas = new byte[in.readInt()];
+    in.readFully(deltas);
+    return new DeltaBlocksPostingList(size, blockFirstDocs, blockOffsets, deltas);
+  }
+
+  private class DeltaBlocksIterator extends DocIdSetIterator {
+    private final int[] buffer = new int[BLOCK_SIZE];
+    private int bufferSize = 0;
+    private int block = -1;
+    private int position = -1;
+    private int doc = -1;
+
+    private void decode(int newBlock) {
+      block = newBlock;
+      bufferSize = Math.min(BLOCK_SIZE, size - newBlock * BLOCK_SIZE);
+      buffer[0] = blockFirstDocs[newBlock];
+      int offset = blockOffsets[newBlock];
+      for (int i = 1; i < bufferSize; i++) {
+        int delta = 0;
+        int shift = 0;
+        byte b;
+        do {
+          b = deltas[offset++];
+          delta |= (b & 0x7F) << shift;
+          shift += 7;
+        } while (b < 0);
+        buffer[i] = buffer[i - 1] + delta;
+      }
+      position = -1;
+    }
+
+    private int exhaust() {
+      block = blockFirstDocs.length;
+      bufferSize = 0;
+      position = -1;
+      return doc = NO_MORE_DOCS;
+    }
+
+    @Override
+    public int docID() {
+      return doc;
+    }
+
+    @Override
+    public int nextDoc() {
+      if (position + 1 >= bufferSize) {
+        if (block + 1 >= blockFirstDocs.length) {
+          return doc = NO_MORE_DOCS;
+        }
+        decode(block + 1);
+      }
+      return doc = buffer[++position];
+    }
+
+    @Override
+    public int advance(int target) {
+      if (target == NO_MORE_DOCS) {
+        return exhaust();
+      }
+      if (bufferSize == 0 || buffer[bufferSize - 1] < target) {
+        // the largest block, that starts not after the target, but the current block's docs are all smaller than the target
+        int newBlock = IntArrayPostingList.gallop(blockFirstDocs, block + 1, blockFirstDocs.length, target + 1) - 1;
+        newBlock = Math.max(newBlock, block + 1);
+        if (newBlock >= blockFirstDocs.length) {
+          return exhaust();
+        }
+        decode(newBlock);
+        if (buffer[bufferSize - 1] < target) {
+          // the next block starts after the target
+          position = bufferSize - 1;
+          return nextDoc();
+        }
+      }
+      position = IntArrayPostingList.gallop(buffer, position + 1, bufferSize, target);
+      return doc = buffer[position];
+    }
+  }
+}
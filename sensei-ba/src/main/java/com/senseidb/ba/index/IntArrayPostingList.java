@@ -0,0 +1,107 @@
+package com.senseidb.ba.index;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.apache.lucene.search.DocIdSetIterator;
+
+/**
+ * Keeps the sorted doc ids as is, is used for the short posting lists
+ */
+public class IntArrayPostingList extends PostingList {
+  private final int[] docIds;
+
+  public IntArrayPostingList(int[] docIds) {
+    this.docIds = docIds;
+  }
+
+  @Override
+  public DocIdSetIterator iterator() {
+    return new IntArrayIterator(docIds);
+  }
+
+  @Override
+  public int size() {
+    return docIds.length;
+  }
+
+  @Override
+  protected byte getEncoding() {
+    return INT_ARRAY_ENCODING;
+  }
+
+  @Override
+  protected void writeTo(DataOutput out) throws IOException {
+    out.writeInt(docIds.length);
+    for (int docId : docIds) {
+      out.writeInt(docId);
+    }
+  }
+
+  static IntArrayPostingList readFrom(DataInput in) throws IOException {
+    int[] docIds = new int[in.readInt()];
+    for (int i = 0; i < docIds.length; i++) {
+      docIds[i] = in.readInt();
+    }
+    return new IntArrayPostingList(docIds);
+  }
+
+  /**
+   * Finds the first element >= target in the sorted array, starting from the position. Gallops first, so that the short jumps are cheap
+   * @return the found position or length if all the elements are smaller than the target
+   */
+  static int gallop(int[] array, int position, int length, int target) {
+    int low = position;
+    int high = position;
+    int step = 1;
+    while (high < length && array[high] < target) {
+      low = high + 1;
+      high += step;
+      step <<= 1;
+    }
+    high = Math.min(high, length);
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (array[mid] < target) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low;
+  }
+
+  private static class IntArrayIterator extends DocIdSetIterator {
+    private final int[] docIds;
+    private int position = -1;
+    private int doc = -1;
+
+    public IntArrayIterator(int[] docIds) {
+      this.docIds = docIds;
+    }
+
+    @Override
+    public int docID() {
+      return doc;
+    }
+
+    @Override
+    public int nextDoc() {
+      if (++position >= docIds.length) {
+        position = docIds.length;
+        return doc = NO_MORE_DOCS;
+      }
+      return doc = docIds[position];
+    }
+
+    @Override
+    public int advance(int target) {
+      position = gallop(docIds, position + 1, docIds.length, target);
+      if (position >= docIds.length) {
+        return doc = NO_MORE_DOCS;
+      }
+      return doc = docIds[position];
+    }
+  }
+}
@@ -0,0 +1,72 @@
+package com.senseidb.ba.index;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.apache.lucene.search.DocIdSet;
+
+/**
+ * The sorted doc ids of one dictionary value. The encoding is chosen by the density of the value:
+ * the bitset for the dense values, the int array for the short lists and the delta compressed blocks for everything in between.
+ * All the encodings support the sublinear advance
+ */
+public abstract class PostingList extends DocIdSet {
+  protected static final byte BITSET_ENCODING = 1;
+  protected static final byte INT_ARRAY_ENCODING = 2;
+  protected static final byte DELTA_BLOCKS_ENCODING = 3;
+
+  /**
+   * @return the number of docs in the posting list
+   */
+  public abstract int size();
+
+  protected abstract byte getEncoding();
+
+  protected abstract void writeTo(DataOutput out) throws IOException;
+
+  @Override
+  public boolean isCacheable() {
+    return true;
+  }
+
+  /**
+   * @param docIds the sorted doc ids
+   * @param maxDoc the number of docs in the segment
+   */
+  public static PostingList create(int[] docIds, int maxDoc) {
+    if (docIds.length >= maxDoc / 8) {
+      // the delta compressed list would take at least a byte per doc, more than the bitset does
+      return new BitSetPostingList(docIds, maxDoc);
+    }
+    if (docIds.length <= DeltaBlocksPostingList.BLOCK_SIZE) {
+      return new IntArrayPostingList(docIds);
+    }
+    return new DeltaBlocksPostingList(docIds);
+  }
+
+  public static void write(PostingList postingList, DataOutput out) throws IOException {
+    if (postingList == null) {
+      out.writeByte(0);
+      return;
+    }
+    out.writeByte(postingList.getEncoding());
+    postingList.writeTo(out);
+  }
+
+  public static PostingList read(DataInput in) throws IOException {
+    byte encoding = in.readByte();
+    switch (encoding) {
+    case 0:
+      return null;
+    case BITSET_ENCODING:
+      return BitSetPostingList.readFrom(in);
+    case INT_ARRAY_ENCODING:
+      return IntArrayPostingList.readFrom(in);
+    case DELTA_BLOCKS_ENCODING:
+      return DeltaBlocksPostingList.readFrom(in);
+    default:
+      throw new IllegalStateException("Unknown posting list encoding " + encoding);
+    }
+  }
+}
@@ -0,0 +1,278 @@
+package com.senseidb.ba.mapred;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.browseengine.bobo.facets.data.TermIntList;
+import com.browseengine.bobo.facets.data.TermLongList;
+import com.browseengine.bobo.facets.data.TermValueList;
+import com.senseidb.ba.ForwardIndex;
+import com.senseidb.ba.IndexSegment;
+import com.senseidb.ba.mapred.GroupByResult.GroupKey;
+import com.senseidb.search.req.mapred.CombinerStage;
+import com.senseidb.search.req.mapred.FacetCountAccessor;
+import com.senseidb.search.req.mapred.FieldAccessor;
+import com.senseidb.search.req.mapred.SenseiMapReduce;
+import com.senseidb.util.JSONUtil.FastJSONArray;
+import com.senseidb.util.JSONUtil.FastJSONObject;
+
+/**
+ * Group by with the sum/min/max/count/avg aggregates over the sensei-ba segments. Unlike the generic map reduce functions it doesn't
+ * go through the {@link FieldAccessor}, but reads the dictionary ids from the forward indexes of the {@link IndexSegment} and aggregates into
+ * the primitive arrays keyed by the packed dictionary ids. The dictionary ids are resolved to the values only once per segment.
+ * <pre>
+ * "mapReduce":{"function":"sensei.ba.groupBy","parameters":{"columns":["country", "day"],
+ *     "metrics":[{"function":"sum", "column":"impressions"}, {"function":"count"}], "limit":100}}
+ * </pre>
+ * The groups are sorted by the first metric in the descending order. The limit is optional.
+ * The nickname is registered by the ZeusFactoryFactory, the brokers, that don't load it, might refer the function by the class name
+ */
+public class GroupByMapReduce implements SenseiMapReduce<GroupByResult, GroupByResult> {
+  private static final long serialVersionUID = 1L;
+  /**
+   * The key space, that is always aggregated into the dense array. The bigger key spaces use the dense array only if they do not exceed the number of docs
+   */
+  static final int DENSE_KEY_SPACE = 4096;
+
+  public static enum AggregateFunction {
+    SUM, MIN, MAX, COUNT, AVG;
+
+    long merge(long state, long value) {
+      switch (this) {
+        case MIN:
+          return Math.min(state, value);
+        case MAX:
+          return Math.max(state, value);
+        default:
+          return state + value;
+      }
+    }
+  }
+
+  private String[] columns;
+  private AggregateFunction[] functions;
+  private String[] metricColumns;
+  private int limit;
+
+  @Override
+  public void init(JSONObject params) {
+    try {
+      JSONArray columnsJson = params.optJSONArray("columns");
+      if (columnsJson == null || columnsJson.length() == 0) {
+        throw new IllegalStateException("The columns parameter shouldn't be empty");
+      }
+      columns = new String[columnsJson.length()];
+      for (int i = 0; i < columns.length; i++) {
+        columns[i] = columnsJson.getString(i);
+      }
+      JSONArray metricsJson = params.optJSONArray("metrics");
+      int metricCount = metricsJson == null ? 0 : metricsJson.length();
+      functions = new AggregateFunction[metricCount];
+      metricColumns = new String[metricCount];
+      for (int i = 0; i < metricCount; i++) {
+        JSONObject metric = metricsJson.getJSONObject(i);
+        functions[i] = AggregateFunction.valueOf(metric.getString("function").toUpperCase());
+        metricColumns[i] = metric.optString("column", null);
+        if (metricColumns[i] == null && functions[i] != AggregateFunction.COUNT) {
+          throw new IllegalStateException("The column of the " + metric.getString("function") + " metric shouldn't be null");
+        }
+      }
+      limit = params.optInt("limit", Integer.MAX_VALUE);
+    } catch (JSONException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  @Override
+  public GroupByResult map(int[] docIds, int docIdCount, long[] uids, FieldAccessor accessor, FacetCountAccessor facetCountsAccessor) {
+    IndexSegment segment = (IndexSegment) accessor.getBoboIndexReader().getFacetData(IndexSegment.class.getSimpleName());
+    if (segment == null) {
+      throw new IllegalStateException("The " + getClass().getSimpleName() + " is supported only for the sensei-ba segments");
+    }
+    return aggregate(segment, docIds, docIdCount);
+  }
+
+  public GroupByResult aggregate(IndexSegment segment, int[] docIds, int docIdCount) {
+    ForwardIndex[] groupIndexes = new ForwardIndex[columns.length];
+    TermValueList<?>[] dictionaries = new TermValueList<?>[columns.length];
+    long[] strides = new long[columns.length];
+    long keySpace = 1;
+    for (int i = columns.length - 1; i >= 0; i--) {
+      groupIndexes[i] = getForwardIndex(segment, columns[i]);
+      dictionaries[i] = groupIndexes[i].getDictionary();
+      strides[i] = keySpace;
+      int cardinality = dictionaries[i].size();
+      if (keySpace > Long.MAX_VALUE / cardinality) {
+        throw new IllegalStateException("The combined cardinality of the columns " + Arrays.toString(columns) + " is too high to group by");
+      }
+      keySpace *= cardinality;
+    }
+    ForwardIndex[] metricIndexes = new ForwardIndex[functions.length];
+    long[][] metricValues = new long[functions.length][];
+    for (int i = 0; i < functions.length; i++) {
+      if (metricColumns[i] != null) {
+        metricIndexes[i] = getForwardIndex(segment, metricColumns[i]);
+        metricValues[i] = getValues(metricColumns[i], metricIndexes[i].getDictionary());
+      }
+    }
+    boolean dense = keySpace <= Math.max(DENSE_KEY_SPACE, docIdCount);
+    SegmentGroups groups = new SegmentGroups(segment, dictionaries, strides, keySpace, 1 + 2 * functions.length, dense);
+    for (int i = 0; i < docIdCount; i++) {
+      int docId = docIds[i];
+      long key = 0;
+      for (int j = 0; j < groupIndexes.length; j++) {
+        key += groupIndexes[j].getValueIndex(docId) * strides[j];
+      }
+      int offset = groups.offset(key);
+      long[] states = groups.states;
+      states[offset]++;
+      for (int j = 0; j < metricIndexes.length; j++) {
+        if (metricIndexes[j] == null) {
+          continue;
+        }
+        int valueId = metricIndexes[j].getValueIndex(docId);
+        if (valueId == 0) {
+          continue;
+        }
+        int valueOffset = offset + 1 + 2 * j;
+        long value = metricValues[j][valueId];
+        states[valueOffset] = states[valueOffset + 1] == 0 ? value : functions[j].merge(states[valueOffset], value);
+        states[valueOffset + 1]++;
+      }
+    }
+    return new GroupByResult(groups);
+  }
+
+  private static ForwardIndex getForwardIndex(IndexSegment segment, String column) {
+    ForwardIndex forwardIndex = segment.getForwardIndex(column);
+    if (forwardIndex == null) {
+      throw new IllegalStateException("The column " + column + " doesn't exist in the segment");
+    }
+    return forwardIndex;
+  }
+
+  private static long[] getValues(String column, TermValueList<?> dictionary) {
+    if (dictionary instanceof TermLongList) {
+      return ((TermLongList) dictionary).getElements();
+    }
+    if (dictionary instanceof TermIntList) {
+      int[] elements = ((TermIntList) dictionary).getElements();
+      long[] values = new long[elements.length];
+      for (int i = 1; i < elements.length; i++) {
+        values[i] = elements[i];
+      }
+      return values;
+    }
+    throw new IllegalStateException("The metric column " + column + " should be either int or long");
+  }
+
+  /**
+   * Merges the aggregates of the same segment by the dictionary ids first, and only then resolves them to the column values
+   */
+  @Override
+  public List<GroupByResult> combine(List<GroupByResult> mapResults, CombinerStage combinerStage) {
+    Map<IndexSegment, SegmentGroups> segments = new IdentityHashMap<IndexSegment, SegmentGroups>();
+    GroupByResult ret = new GroupByResult();
+    for (GroupByResult mapResult : mapResults) {
+      SegmentGroups segmentGroups = mapResult.segmentGroups;
+      if (segmentGroups == null) {
+        ret.merge(mapResult, functions);
+        continue;
+      }
+      SegmentGroups merged = segments.get(segmentGroups.segment);
+      if (merged == null) {
+        segments.put(segmentGroups.segment, segmentGroups);
+      } else {
+        merged.merge(segmentGroups, functions);
+      }
+    }
+    for (SegmentGroups segmentGroups : segments.values()) {
+      ret.merge(segmentGroups.toResult(), functions);
+    }
+    mapResults.clear();
+    mapResults.add(ret);
+    return mapResults;
+  }
+
+  @Override
+  public GroupByResult reduce(List<GroupByResult> combineResults) {
+    return combine(combineResults, CombinerStage.nodeLevel).get(0);
+  }
+
+  @Override
+  public JSONObject render(GroupByResult reduceResult) {
+    List<Map.Entry<GroupKey, long[]>> groups = new ArrayList<Map.Entry<GroupKey, long[]>>(reduceResult.getGroups().entrySet());
+    Collections.sort(groups, new Comparator<Map.Entry<GroupKey, long[]>>() {
+      @Override
+      public int compare(Map.Entry<GroupKey, long[]> o1, Map.Entry<GroupKey, long[]> o2) {
+        return Double.compare(getMetric(o2.getValue(), 0), getMetric(o1.getValue(), 0));
+      }
+    });
+    try {
+      JSONArray groupsJson = new FastJSONArray();
+      for (int i = 0; i < groups.size() && i < limit; i++) {
+        JSONObject groupJson = new FastJSONObject();
+        Object[] values = groups.get(i).getKey().getValues();
+        for (int j = 0; j < columns.length; j++) {
+          groupJson.put(columns[j], values[j] == null ? JSONObject.NULL : values[j]);
+        }
+        long[] states = groups.get(i).getValue();
+        groupJson.put("count", states[0]);
+        for (int j = 0; j < functions.length; j++) {
+          groupJson.put(getMetricName(j), getMetricJson(states, j));
+        }
+        groupsJson.put(groupJson);
+      }
+      return new FastJSONObject().put("numGroups", groups.size()).put("groups", groupsJson);
+    } catch (JSONException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private String getMetricName(int metric) {
+    String function = functions[metric].name().toLowerCase();
+    return metricColumns[metric] == null ? function : function + "(" + metricColumns[metric] + ")";
+  }
+
+  private Object getMetricJson(long[] states, int metric) {
+    long count = states[2 + 2 * metric];
+    switch (functions[metric]) {
+      case COUNT:
+        return metricColumns[metric] == null ? states[0] : count;
+      case AVG:
+        return count == 0 ? JSONObject.NULL : (Object) ((double) states[1 + 2 * metric] / count);
+      case SUM:
+        return states[1 + 2 * metric];
+      default:
+        return count == 0 ? JSONObject.NULL : (Object) states[1 + 2 * metric];
+    }
+  }
+
+  /**
+   * @return the value of the metric, that is used to sort the groups, or the doc count if there are no metrics
+   */
+  private double getMetric(long[] states, int metric) {
+    if (metric >= functions.length) {
+      return states[0];
+    }
+    long value = states[1 + 2 * metric];
+    long count = states[2 + 2 * metric];
+    switch (functions[metric]) {
+      case COUNT:
+        return metricColumns[metric] == null ? states[0] : count;
+      case AVG:
+        return count == 0 ? 0 : (double) value / count;
+      default:
+        return value;
+    }
+  }
+}
@@ -0,0 +1,109 @@
+package com.senseidb.ba.mapred;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.senseidb.ba.mapred.GroupByMapReduce.AggregateFunction;
+
+/**
+ * The partial result of the {@link GroupByMapReduce}. The groups are keyed by the column values rather than by the dictionary ids,
+ * as the dictionaries are local to the segment, so that the results of different segments, partitions and nodes can be merged.
+ * Every group keeps the array of the primitive aggregate states: the count of the docs at index 0 followed by the
+ * (value, count of not null values) pair per aggregate
+ */
+public class GroupByResult implements Serializable {
+  private static final long serialVersionUID = 1L;
+  private final HashMap<GroupKey, long[]> groups;
+  /**
+   * The aggregates of the map call, that are still keyed by the dictionary ids. They are merged per segment and resolved to
+   * the column values by the partition level combine, so they never leave the node
+   */
+  transient SegmentGroups segmentGroups;
+
+  public GroupByResult() {
+    groups = new HashMap<GroupKey, long[]>();
+  }
+
+  GroupByResult(SegmentGroups segmentGroups) {
+    this();
+    this.segmentGroups = segmentGroups;
+  }
+
+  public GroupByResult(int expectedSize) {
+    groups = new HashMap<GroupKey, long[]>(Math.max(16, expectedSize * 4 / 3 + 1));
+  }
+
+  public Map<GroupKey, long[]> getGroups() {
+    return groups;
+  }
+
+  public void put(GroupKey key, long[] states) {
+    groups.put(key, states);
+  }
+
+  public void merge(GroupByResult other, AggregateFunction[] functions) {
+    for (Map.Entry<GroupKey, long[]> entry : other.groups.entrySet()) {
+      long[] states = groups.get(entry.getKey());
+      if (states == null) {
+        groups.put(entry.getKey(), entry.getValue());
+      } else {
+        merge(states, 0, entry.getValue(), 0, functions);
+      }
+    }
+  }
+
+  static void merge(long[] states, int offset, long[] otherStates, int otherOffset, AggregateFunction[] functions) {
+    states[offset] += otherStates[otherOffset];
+    for (int i = 0; i < functions.length; i++) {
+      int value = offset + 1 + 2 * i;
+      int otherValue = otherOffset + 1 + 2 * i;
+      if (otherStates[otherValue + 1] == 0) {
+        continue;
+      }
+      states[value] = states[value + 1] == 0 ? otherStates[otherValue] : functions[i].merge(states[value], otherStates[otherValue]);
+      states[value + 1] += otherStates[otherValue + 1];
+    }
+  }
+
+  /**
+   * The values of the group by columns. Null stands for the missing value
+   */
+  public static class GroupKey implements Serializable {
+    private static final long serialVersionUID = 1L;
+    private final Object[] values;
+    private final int hashCode;
+
+    public GroupKey(Object[] values) {
+      this.values = values;
+      this.hashCode = Arrays.hashCode(values);
+    }
+
+    public Object[] getValues() {
+      return values;
+    }
+
+    @Override
+    public int hashCode() {
+      return hashCode;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (this == obj) {
+        return true;
+      }
+      if (!(obj instanceof GroupKey)) {
+        return false;
+      }
+      GroupKey other = (GroupKey) obj;
+      return hashCode == other.hashCode && Arrays.equals(values, other.values);
+    }
+
+    @Override
+    public String toString() {
+      return Arrays.toString(values);
+    }
+  }
+}
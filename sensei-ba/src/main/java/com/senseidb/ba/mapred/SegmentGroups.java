@@ -0,0 +1,114 @@
+package com.senseidb.ba.mapred;
+
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+
+import java.util.Arrays;
+
+import com.browseengine.bobo.facets.data.TermValueList;
+import com.senseidb.ba.IndexSegment;
+import com.senseidb.ba.mapred.GroupByMapReduce.AggregateFunction;
+import com.senseidb.ba.mapred.GroupByResult.GroupKey;
+
+/**
+ * The aggregates of a single segment, keyed by the dictionary ids of the group by columns packed into the long.
+ * The key is the mixed radix number, where every digit is the dictionary id of the group by column.
+ * If the key space is small the states are kept in the dense array indexed by the key, otherwise the key is mapped to the slot
+ * in the growing states array by the primitive hash map.
+ */
+class SegmentGroups {
+  private static final int INITIAL_SLOTS = 64;
+  final IndexSegment segment;
+  private final TermValueList<?>[] dictionaries;
+  private final long[] strides;
+  private final int stateSize;
+  private final boolean dense;
+  private final Long2IntOpenHashMap keyToSlot;
+  private long[] keys;
+  long[] states;
+  private int size;
+
+  SegmentGroups(IndexSegment segment, TermValueList<?>[] dictionaries, long[] strides, long keySpace, int stateSize, boolean dense) {
+    this.segment = segment;
+    this.dictionaries = dictionaries;
+    this.strides = strides;
+    this.stateSize = stateSize;
+    this.dense = dense;
+    if (dense) {
+      keyToSlot = null;
+      states = new long[(int) keySpace * stateSize];
+    } else {
+      keyToSlot = new Long2IntOpenHashMap(INITIAL_SLOTS);
+      keyToSlot.defaultReturnValue(-1);
+      keys = new long[INITIAL_SLOTS];
+      states = new long[INITIAL_SLOTS * stateSize];
+    }
+  }
+
+  /**
+   * Returns the offset of the key's states in the {@link #states} array, allocating the new group if needed.
+   * The states array might be reallocated by this call
+   */
+  int offset(long key) {
+    if (dense) {
+      return (int) key * stateSize;
+    }
+    int slot = keyToSlot.get(key);
+    if (slot < 0) {
+      slot = size++;
+      if (slot == keys.length) {
+        keys = Arrays.copyOf(keys, slot * 2);
+        states = Arrays.copyOf(states, slot * 2 * stateSize);
+      }
+      keys[slot] = key;
+      keyToSlot.put(key, slot);
+    }
+    return slot * stateSize;
+  }
+
+  /**
+   * Merges the aggregates of the same segment
+   */
+  void merge(SegmentGroups other, AggregateFunction[] functions) {
+    long[] otherStates = other.states;
+    int slots = other.slots();
+    for (int slot = 0; slot < slots; slot++) {
+      int otherOffset = slot * stateSize;
+      if (otherStates[otherOffset] == 0) {
+        continue;
+      }
+      int offset = offset(other.keyAt(slot));
+      GroupByResult.merge(states, offset, otherStates, otherOffset, functions);
+    }
+  }
+
+  /**
+   * Resolves the dictionary ids to the column values, so that the result can be merged with the other segments
+   */
+  GroupByResult toResult() {
+    int slots = slots();
+    GroupByResult result = new GroupByResult(dense ? 16 : size);
+    for (int slot = 0; slot < slots; slot++) {
+      int offset = slot * stateSize;
+      if (states[offset] == 0) {
+        continue;
+      }
+      long key = keyAt(slot);
+      Object[] values = new Object[dictionaries.length];
+      for (int i = 0; i < dictionaries.length; i++) {
+        int valueId = (int) (key / strides[i]);
+        key -= valueId * strides[i];
+        values[i] = valueId == 0 ? null : dictionaries[i].getRawValue(valueId);
+      }
+      result.put(new GroupKey(values), Arrays.copyOfRange(states, offset, offset + stateSize));
+    }
+    return result;
+  }
+
+  private int slots() {
+    return dense ? states.length / stateSize : size;
+  }
+
+  private long keyAt(int slot) {
+    return dense ? slot : keys[slot];
+  }
+}
@@ -6,11 +6,16 @@ import proj.zoie.api.Zoie;
 import proj.zoie.api.indexing.ZoieIndexableInterpreter;
 import proj.zoie.impl.indexing.ZoieConfig;
 
+import com.senseidb.ba.mapred.GroupByMapReduce;
 import com.senseidb.conf.ZoieFactoryFactory;
 import com.senseidb.search.node.SenseiIndexReaderDecorator;
 import com.senseidb.search.node.SenseiZoieFactory;
+import com.senseidb.search.req.mapred.impl.MapReduceRegistry;
 @SuppressWarnings("unchecked")
 public class ZeusFactoryFactory implements ZoieFactoryFactory {
+  static {
+    MapReduceRegistry.register("sensei.ba.groupBy", GroupByMapReduce.class);
+  }
 
  
   @Override
@@ -4,16 +4,21 @@ import java.io.File;
 import java.io.FileFilter;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Comparator;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
 
 import javax.management.StandardMBean;
 
 import org.apache.commons.io.FileUtils;
-import org.apache.commons.io.LineIterator;
 import org.apache.commons.lang.StringUtils;
 import org.apache.lucene.analysis.Analyzer;
 
@@ -23,16 +28,21 @@ import proj.zoie.api.ZoieIndexReader;
 import proj.zoie.mbean.ZoieAdminMBean;
 
 import com.browseengine.bobo.api.BoboIndexReader;
-import com.senseidb.ba.IndexSegmentCreator;
+import com.senseidb.ba.IndexSegmentBuilder;
 import com.senseidb.ba.IndexSegment;
+import com.senseidb.ba.SegmentPersistentManager;
 import com.senseidb.ba.SegmentToZoieAdapter;
 import com.senseidb.plugin.SenseiPluginRegistry;
 import com.senseidb.search.node.SenseiIndexReaderDecorator;
 
 public class ZeusIndexFactory implements Zoie<BoboIndexReader, Object> {
+  public static final String SEGMENT_DIR_SUFFIX = ".segment";
+  // the segments are written here before they are renamed into the index directory
+  public static final String STAGING_DIR_NAME = ".staging";
   List<ZoieIndexReader<BoboIndexReader>> offlineSegments = new ArrayList<ZoieIndexReader<BoboIndexReader>>();
   private final File idxDir;
   private final SenseiIndexReaderDecorator decorator;
+  private int loaderThreads = Runtime.getRuntime().availableProcessors();
 
   public ZeusIndexFactory(File idxDir, SenseiIndexReaderDecorator decorator) {
     this.idxDir = idxDir;
@@ -42,28 +52,31 @@ public class ZeusIndexFactory implements Zoie<BoboIndexReader, Object> {
 
   
 
+  /**
+   * Converts the json files of file.path into the segment directories of the index directory, that start() memory maps along
+   * with the other ones, so each segment is served once and none is kept on the heap
+   */
   public void init(Map<String, String> config, SenseiPluginRegistry pluginRegistry) {
     String fileLocations = config.get("file.path");
     if (fileLocations == null) {
       throw new IllegalStateException("fileLocations should be specified");
     }
-    try {
-      for (String location : fileLocations.split(",")) {
-        if (!StringUtils.isEmpty(location)) {
-          LineIterator lineIterator;
-          lineIterator = FileUtils.lineIterator(new File(location));
-          ArrayList<String> docs = new ArrayList<String>();
-          while (lineIterator.hasNext()) {
-            String car = lineIterator.next();
-            if (car != null && car.contains("{"))
-              docs.add(car);
-          }
-          IndexSegment offlineSegment = IndexSegmentCreator.convert(docs.toArray(new String[docs.size()]), new HashSet<String>());
-
-        }
+    if (config.containsKey("loader.threads")) {
+      loaderThreads = Integer.parseInt(config.get("loader.threads"));
+    }
+    List<File> jsonFiles = new ArrayList<File>();
+    for (String location : fileLocations.split(",")) {
+      if (!StringUtils.isEmpty(location)) {
+        jsonFiles.add(new File(location));
       }
+    }
+    ExecutorService executor = Executors.newFixedThreadPool(loaderThreads);
+    try {
+      convert(jsonFiles, executor);
     } catch (Exception ex) {
       throw new RuntimeException(ex);
+    } finally {
+      executor.shutdownNow();
     }
   }
 
@@ -104,29 +117,100 @@ public class ZeusIndexFactory implements Zoie<BoboIndexReader, Object> {
     return null;
   }
 
+  /**
+   * @return the segment directory of the current content of the json file, named after the file, its size and its modification
+   *         time, so that a replaced file is converted again
+   */
+  File getSegmentDir(File jsonFile) {
+    return new File(idxDir, jsonFile.getName() + "." + jsonFile.length() + "-" + jsonFile.lastModified() + SEGMENT_DIR_SUFFIX);
+  }
+
+  /**
+   * Persists every json file, that has no segment directory for its current content in the index directory yet. The segment is
+   * written into the staging directory and then renamed into place, so a conversion that didn't finish never leaves a
+   * directory that looks like a segment, and the segment directories of the previous contents of the file are deleted.
+   */
+  private void convert(List<File> jsonFiles, ExecutorService executor) throws Exception {
+    final File stagingDir = new File(idxDir, STAGING_DIR_NAME);
+    List<Future<?>> conversions = new ArrayList<Future<?>>();
+    for (final File jsonFile : jsonFiles) {
+      final File segmentDir = getSegmentDir(jsonFile);
+      if (SegmentPersistentManager.isSegmentDirectory(segmentDir)) {
+        continue;
+      }
+      conversions.add(executor.submit(new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+          File tempDir = new File(stagingDir, segmentDir.getName());
+          FileUtils.deleteDirectory(tempDir);
+          SegmentPersistentManager.persist(IndexSegmentBuilder.build(jsonFile, new HashSet<String>()), tempDir);
+          for (File staleDir : getStaleSegmentDirs(jsonFile, segmentDir)) {
+            FileUtils.deleteDirectory(staleDir);
+          }
+          if (!tempDir.renameTo(segmentDir)) {
+            throw new IOException("Failed to move " + tempDir + " to " + segmentDir);
+          }
+          return null;
+        }
+      }));
+    }
+    for (Future<?> conversion : conversions) {
+      conversion.get();
+    }
+  }
+
+  /**
+   * @return the segment directories of the other contents of the json file, including the one named after the file alone
+   */
+  private File[] getStaleSegmentDirs(File jsonFile, final File segmentDir) {
+    final Pattern pattern = Pattern.compile(Pattern.quote(jsonFile.getName()) + "(\\.\\d+-\\d+)?" + Pattern.quote(SEGMENT_DIR_SUFFIX));
+    return idxDir.listFiles(new FileFilter() {
+      @Override
+      public boolean accept(File pathname) {
+        return !pathname.equals(segmentDir) && pattern.matcher(pathname.getName()).matches();
+      }
+    });
+  }
+
+  /**
+   * Every json file in the index directory is converted into the segment directory next to it, again whenever it changes.
+   * All the segment directories, including the ones built offline or by init, are memory mapped.
+   * The files are converted and the segments are read in parallel by at most loaderThreads threads
+   */
   @Override
   public void start() {
+    ExecutorService executor = Executors.newFixedThreadPool(loaderThreads);
     try {
       File[] jsonFiles = idxDir.listFiles(new FileFilter() {
-      @Override
-      public boolean accept(File pathname) {
-        return pathname.getName().endsWith("json");
+        @Override
+        public boolean accept(File pathname) {
+          return pathname.getName().endsWith("json");
+        }
+      });
+      convert(Arrays.asList(jsonFiles), executor);
+      File[] segmentDirs = idxDir.listFiles(new FileFilter() {
+        @Override
+        public boolean accept(File pathname) {
+          return pathname.isDirectory() && SegmentPersistentManager.isSegmentDirectory(pathname);
+        }
+      });
+      Arrays.sort(segmentDirs);
+      List<Future<IndexSegment>> segments = new ArrayList<Future<IndexSegment>>(segmentDirs.length);
+      for (final File segmentDir : segmentDirs) {
+        segments.add(executor.submit(new Callable<IndexSegment>() {
+          @Override
+          public IndexSegment call() throws Exception {
+            return SegmentPersistentManager.read(segmentDir);
+          }
+        }));
       }
-    });
-    for (File jsonFile : jsonFiles) {
-      LineIterator lineIterator;
-      lineIterator = FileUtils.lineIterator(jsonFile);
-      ArrayList<String> docs = new ArrayList<String>();
-      while (lineIterator.hasNext()) {
-        String car = lineIterator.next();
-        if (car != null && car.contains("{"))
-          docs.add(car);
+      for (Future<IndexSegment> segment : segments) {
+        offlineSegments.add(new SegmentToZoieAdapter(segment.get(), decorator));
       }
-      IndexSegment offlineSegment = IndexSegmentCreator.convert(docs.toArray(new String[docs.size()]), new HashSet<String>());
-      offlineSegments.add(new SegmentToZoieAdapter(offlineSegment, decorator));
-    }
     } catch (Exception ex) {
       throw new RuntimeException(ex);
+    } finally {
+      executor.shutdownNow();
     }
   }
 
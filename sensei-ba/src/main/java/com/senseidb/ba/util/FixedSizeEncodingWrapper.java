@@ -2,6 +2,10 @@ package com.senseidb.ba.util;
 
 import java.nio.ByteBuffer;
 
+/**
+ * Packs the ints using numOfBitsPerElement bits per element, the most significant bit first.
+ * The buffer might be the memory mapped file written from {@link #getBuffer()}
+ */
 public class FixedSizeEncodingWrapper {
   private ByteBuffer buf;
   private int capacity;
@@ -10,16 +14,40 @@ public class FixedSizeEncodingWrapper {
  public FixedSizeEncodingWrapper(int numOfElements, int numOfBitsPerElement) {
    this.numOfBitsPerElement = numOfBitsPerElement;
    capacity = numOfElements;
-   buf = ByteBuffer.allocateDirect((int)Math.ceil((float)numOfElements / 8 * numOfBitsPerElement));
+   buf = ByteBuffer.allocateDirect(getSizeInBytes(numOfElements, numOfBitsPerElement));
  
  }
+ public FixedSizeEncodingWrapper(ByteBuffer buf, int numOfElements, int numOfBitsPerElement) {
+   this.buf = buf;
+   this.numOfBitsPerElement = numOfBitsPerElement;
+   capacity = numOfElements;
+ }
+ /**
+  * @return the number of bits that is enough to store the values from 0 to cardinality - 1
+  */
+ public static int getNumOfBits(int cardinality) {
+   return Math.max(1, 32 - Integer.numberOfLeadingZeros(cardinality - 1));
+ }
+ public static int getSizeInBytes(int numOfElements, int numOfBitsPerElement) {
+   return (int) (((long) numOfElements * numOfBitsPerElement + 7) >>> 3);
+ }
+ public ByteBuffer getBuffer() {
+   return buf;
+ }
+ public int getCapacity() {
+   return capacity;
+ }
+ public int getNumOfBitsPerElement() {
+   return numOfBitsPerElement;
+ }
  public byte[] getByteBuf() {    
    return new byte[numOfBitsPerElement /8 + (numOfBitsPerElement % 8 < 2 ? 1 : 2)];
  }
 
  public  void addInt(int position, int  number, byte[] tempBuf) {
-   int bytePosition = position * numOfBitsPerElement / 8;
-   int startBitOffset = (position * numOfBitsPerElement) % 8;   
+   long mult = (long) position * numOfBitsPerElement;
+   int bytePosition = (int) (mult >>> 3);
+   int startBitOffset = (int) (mult & 7);
    int endBitOffset = (8 - ((startBitOffset + numOfBitsPerElement) % 8)) % 8;
    int numberOfBytesUsed = (startBitOffset + numOfBitsPerElement) / 8 + ((startBitOffset + numOfBitsPerElement) % 8 != 0 ? 1 : 0);
    buf.position(bytePosition);
@@ -42,6 +70,21 @@ public class FixedSizeEncodingWrapper {
    buf.position(bytePosition);    
    buf.put(tempBuf, 0, numberOfBytesUsed);
  }
+ /**
+  * Uses only the absolute gets, so unlike {@link #readInt(int, byte[])} it's safe to call from several threads
+  */
+ public int readInt(int position) {
+   long mult = (long) position * numOfBitsPerElement;
+   int bytePosition = (int) (mult >>> 3);
+   int sum = (int) (mult & 7) + numOfBitsPerElement;
+   int numberOfBytesUsed = (sum + 7) >>> 3;
+   long number = 0;
+   for (int i = 0; i < numberOfBytesUsed; i++) {
+     number = (number << 8) | (buf.get(bytePosition + i) & 0xFF);
+   }
+   number >>>= (numberOfBytesUsed << 3) - sum;
+   return (int) (number & (0xFFFFFFFFL >>> (32 - numOfBitsPerElement)));
+ }
  public  int readInt(int position,  byte[] tempBuf) {
    
    /*  int bytePosition = position * numOfBitsPerElement / 8;
@@ -49,9 +92,9 @@ public class FixedSizeEncodingWrapper {
      int endBitOffset = (8 - ((startBitOffset + numOfBitsPerElement) % 8)) % 8;
      int numberOfBytesUsed = (startBitOffset + numOfBitsPerElement) / 8 + ((startBitOffset + numOfBitsPerElement) % 8 != 0 ? 1 : 0);buf.position(bytePosition);
    */
-   int mult = position * numOfBitsPerElement;
-   int bytePosition = mult >>>3;
-   int startBitOffset = mult & 7;   
+   long mult = (long) position * numOfBitsPerElement;
+   int bytePosition = (int) (mult >>> 3);
+   int startBitOffset = (int) (mult & 7);
    int sum = startBitOffset + numOfBitsPerElement;
    int endBitOffset = (8 - (sum & 7)) & 7;
  
@@ -53,6 +53,7 @@ public class ByteBufferStorageTest {
    }
    for (int i = 0; i < values.length; i++) {
      assertEquals(values[i], byteBufferStorage.readInt(i, byteBuf));
+     assertEquals(values[i], byteBufferStorage.readInt(i));
    }
   }
 
@@ -0,0 +1,84 @@
+package com.senseidb.ba;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+import org.json.JSONObject;
+
+public class IndexSegmentBuilderTest extends TestCase {
+  private File dir;
+
+  @Override
+  protected void setUp() throws Exception {
+    dir = new File("sensei-test/ba-builder");
+    FileUtils.deleteDirectory(dir);
+    dir.mkdirs();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    FileUtils.deleteDirectory(new File("sensei-test"));
+  }
+
+  public void test1StreamWithTypePromotion() throws Exception {
+    List<String> lines = new ArrayList<String>();
+    for (int i = 0; i < 1000; i++) {
+      JSONObject doc = new JSONObject().put("id", 999 - i).put("ratio", 0.5);
+      doc.put("mileage", i == 500 ? 10000000000L : (Object) (i % 10));
+      doc.put("zip", i == 700 ? "n/a" : (Object) (i % 5));
+      if (i >= 100) {
+        doc.put("late", "v" + i % 3);
+      }
+      lines.add(doc.toString());
+    }
+    File jsonFile = new File(dir, "data.json");
+    FileUtils.writeLines(jsonFile, lines);
+    IndexSegment segment = IndexSegmentBuilder.build(jsonFile, new HashSet<String>());
+
+    assertEquals(1000, segment.getLength());
+    assertEquals(int.class, segment.getColumnTypes().get("id"));
+    assertEquals(long.class, segment.getColumnTypes().get("mileage"));
+    assertEquals(String.class, segment.getColumnTypes().get("zip"));
+    assertEquals(String.class, segment.getColumnTypes().get("late"));
+    assertFalse(segment.getColumnTypes().containsKey("ratio"));
+
+    ForwardIndex id = segment.getForwardIndex("id");
+    for (int docId = 0; docId < 1000; docId++) {
+      assertEquals(Integer.valueOf(999 - docId), id.getDictionary().getRawValue(id.getValueIndex(docId)));
+    }
+    ForwardIndex mileage = segment.getForwardIndex("mileage");
+    assertEquals(12, mileage.getDictionary().size());
+    assertEquals(Long.valueOf(10000000000L), mileage.getDictionary().getRawValue(mileage.getValueIndex(500)));
+    assertEquals(Long.valueOf(7), mileage.getDictionary().getRawValue(mileage.getValueIndex(7)));
+    assertEquals(100, mileage.getFrequency(mileage.getValueIndex(7)));
+
+    ForwardIndex zip = segment.getForwardIndex("zip");
+    assertEquals(7, zip.getDictionary().size());
+    assertEquals("n/a", zip.getDictionary().get(zip.getValueIndex(700)));
+    assertEquals("3", zip.getDictionary().get(zip.getValueIndex(3)));
+    assertEquals(1, zip.getDictionary().indexOf("0"));
+
+    ForwardIndex late = segment.getForwardIndex("late");
+    assertEquals(0, late.getValueIndex(99));
+    assertEquals(100, late.getFrequency(0));
+    assertEquals("v1", late.getDictionary().get(late.getValueIndex(100)));
+    assertNotNull(segment.getInvertedIndex("late"));
+  }
+
+  public void test2SameSegmentAsConvert() throws Exception {
+    String[] docs = new String[100];
+    for (int i = 0; i < docs.length; i++) {
+      docs[i] = new JSONObject().put("day", i / 10).put("color", i % 2 == 0 ? "red" : "blue").toString();
+    }
+    IndexSegment segment = IndexSegmentCreator.convert(docs, new HashSet<String>());
+    assertTrue(segment.getForwardIndex("day") instanceof SortedForwardIndex);
+    assertNull(segment.getInvertedIndex("day"));
+    assertEquals(3, segment.getDictionary("color").size());
+    assertEquals(50, segment.getForwardIndex("color").getFrequency(segment.getDictionary("color").indexOf("red")));
+  }
+}
@@ -0,0 +1,85 @@
+package com.senseidb.ba;
+
+import java.io.File;
+import java.util.HashSet;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.json.JSONObject;
+
+import com.senseidb.ba.index.PostingList;
+
+public class SegmentPersistentManagerTest extends TestCase {
+  private static final String[] COLORS = new String[] {"red", "gold", "black", "white", "silver"};
+  private File dir;
+
+  @Override
+  protected void setUp() throws Exception {
+    dir = new File("sensei-test/ba-segment");
+    FileUtils.deleteDirectory(dir);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    FileUtils.deleteDirectory(new File("sensei-test"));
+  }
+
+  public void test1PersistAndRead() throws Exception {
+    String[] docs = new String[10000];
+    for (int i = 0; i < docs.length; i++) {
+      JSONObject doc = new JSONObject().put("color", COLORS[i % COLORS.length]).put("year", 1990 + i % 23).put("mileage", 10000000000L + i).put("day", i / 100);
+      //the same cardinality as mileage, but not sorted by docId
+      doc.put("serial", 10000000000L + (i * 7919L) % docs.length);
+      if (i % 7 != 0) {
+        doc.put("price", i % 1000);
+      }
+      docs[i] = doc.toString();
+    }
+    IndexSegment segment = IndexSegmentCreator.convert(docs, new HashSet<String>());
+    SegmentPersistentManager.persist(segment, dir);
+    assertTrue(SegmentPersistentManager.isSegmentDirectory(dir));
+    IndexSegment persistedSegment = SegmentPersistentManager.read(dir);
+    assertEquals(segment.getLength(), persistedSegment.getLength());
+    assertEquals(segment.getColumnTypes(), persistedSegment.getColumnTypes());
+    for (String column : segment.getColumnTypes().keySet()) {
+      ForwardIndex forwardIndex = segment.getForwardIndex(column);
+      ForwardIndex persistedForwardIndex = persistedSegment.getForwardIndex(column);
+      assertEquals(forwardIndex.getLength(), persistedForwardIndex.getLength());
+      assertEquals(forwardIndex.getDictionary().size(), persistedForwardIndex.getDictionary().size());
+      for (int i = 1; i < forwardIndex.getDictionary().size(); i++) {
+        assertEquals(forwardIndex.getDictionary().get(i), persistedForwardIndex.getDictionary().get(i));
+      }
+      for (int i = 0; i < forwardIndex.getDictionary().size(); i++) {
+        assertEquals(forwardIndex.getFrequency(i), persistedForwardIndex.getFrequency(i));
+      }
+      for (int docId = 0; docId < segment.getLength(); docId++) {
+        assertEquals(forwardIndex.getValueIndex(docId), persistedForwardIndex.getValueIndex(docId));
+      }
+    }
+    assertEquals(3, ((ForwardIndexBackedByByteBuffer) persistedSegment.getForwardIndex("color")).getNumOfBitsPerElement());
+    assertTrue(persistedSegment.getForwardIndex("mileage") instanceof SortedForwardIndex);
+    assertEquals(14, ((ForwardIndexBackedByByteBuffer) persistedSegment.getForwardIndex("serial")).getNumOfBitsPerElement());
+    assertEquals(0, persistedSegment.getForwardIndex("price").getValueIndex(0));
+    assertNull(persistedSegment.getInvertedIndex("mileage"));
+    assertNull(persistedSegment.getInvertedIndex("serial"));
+    DocIdSet[] invertedIndex = persistedSegment.getInvertedIndex("color");
+    int gold = persistedSegment.getDictionary("color").indexOf("gold");
+    DocIdSetIterator iterator = invertedIndex[gold].iterator();
+    assertEquals(1, iterator.nextDoc());
+    assertEquals(6, iterator.nextDoc());
+    assertEquals(501, iterator.advance(500));
+    assertEquals(2000, ((PostingList) invertedIndex[gold]).size());
+    assertNull(persistedSegment.getInvertedIndex("day"));
+    assertTrue(segment.getForwardIndex("day") instanceof SortedForwardIndex);
+    ForwardIndexForSortedColumn day = (ForwardIndexForSortedColumn) persistedSegment.getForwardIndex("day");
+    int fifthDay = day.getValueIndex(500);
+    assertEquals(500, day.getStartDoc(fifthDay));
+    assertEquals(600, day.getEndDoc(fifthDay));
+    assertEquals(fifthDay, day.getValueIndex(599));
+    assertEquals(fifthDay + 1, day.getValueIndex(600));
+    assertEquals(100, day.getFrequency(fifthDay));
+  }
+}
@@ -0,0 +1,83 @@
+package com.senseidb.ba.index;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.util.Random;
+import java.util.TreeSet;
+
+import junit.framework.TestCase;
+
+import org.apache.lucene.search.DocIdSetIterator;
+
+public class PostingListTest extends TestCase {
+
+  public void test1EncodingByDensity() {
+    assertTrue(PostingList.create(docIds(new Random(0), 100000, 0.5), 100000) instanceof BitSetPostingList);
+    assertTrue(PostingList.create(docIds(new Random(0), 100000, 0.01), 100000) instanceof DeltaBlocksPostingList);
+    assertTrue(PostingList.create(new int[] {5, 100, 99999}, 100000) instanceof IntArrayPostingList);
+  }
+
+  public void test2NextDocAndAdvance() throws Exception {
+    Random random = new Random(0);
+    int maxDoc = 50000;
+    for (double density : new double[] {0.0001, 0.001, 0.01, 0.1, 0.5}) {
+      int[] docIds = docIds(random, maxDoc, density);
+      TreeSet<Integer> expected = new TreeSet<Integer>();
+      for (int docId : docIds) {
+        expected.add(docId);
+      }
+      PostingList[] postingLists = new PostingList[] {new BitSetPostingList(docIds, maxDoc), new IntArrayPostingList(docIds), new DeltaBlocksPostingList(docIds)};
+      for (PostingList postingList : postingLists) {
+        assertEquals(docIds.length, postingList.size());
+        check(random, expected, postingList, density);
+        check(random, expected, writeAndRead(postingList), density);
+      }
+    }
+  }
+
+  private void check(Random random, TreeSet<Integer> expected, PostingList postingList, double density) throws Exception {
+    DocIdSetIterator iterator = postingList.iterator();
+    int doc = -1;
+    while (true) {
+      Integer next;
+      int actual;
+      if (random.nextBoolean()) {
+        next = expected.higher(doc);
+        actual = iterator.nextDoc();
+      } else {
+        int target = doc + 1 + random.nextInt((int) (2 / density) + 1);
+        next = expected.ceiling(target);
+        actual = iterator.advance(target);
+      }
+      assertEquals(next == null ? DocIdSetIterator.NO_MORE_DOCS : next.intValue(), actual);
+      assertEquals(actual, iterator.docID());
+      if (actual == DocIdSetIterator.NO_MORE_DOCS) {
+        break;
+      }
+      doc = actual;
+    }
+  }
+
+  private PostingList writeAndRead(PostingList postingList) throws Exception {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    PostingList.write(postingList, new DataOutputStream(bytes));
+    return PostingList.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+  }
+
+  private static int[] docIds(Random random, int maxDoc, double density) {
+    TreeSet<Integer> docIds = new TreeSet<Integer>();
+    for (int i = 0; i < maxDoc; i++) {
+      if (random.nextDouble() < density) {
+        docIds.add(i);
+      }
+    }
+    int[] ret = new int[docIds.size()];
+    int i = 0;
+    for (int docId : docIds) {
+      ret[i++] = docId;
+    }
+    return ret;
+  }
+}
@@ -0,0 +1,146 @@
+package com.senseidb.ba.mapred;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import com.senseidb.ba.IndexSegment;
+import com.senseidb.ba.IndexSegmentCreator;
+import com.senseidb.ba.mapred.GroupByResult.GroupKey;
+import com.senseidb.search.req.mapred.CombinerStage;
+
+public class GroupByMapReduceTest extends TestCase {
+  private static final String[] COUNTRIES = new String[] {"us", "ca", "uk", "de", "fr", "in", "br"};
+  private static final int DOCS = 10000;
+
+  private static IndexSegment createSegment(int offset) throws Exception {
+    String[] docs = new String[DOCS];
+    for (int i = 0; i < docs.length; i++) {
+      int doc = offset + i;
+      JSONObject json = new JSONObject().put("country", COUNTRIES[doc % COUNTRIES.length]).put("day", doc % 3).put("campaign", doc % 100);
+      if (doc % 11 != 0) {
+        json.put("impressions", doc % 1000);
+      }
+      docs[i] = json.toString();
+    }
+    return IndexSegmentCreator.convert(docs, new HashSet<String>());
+  }
+
+  private static GroupByMapReduce createGroupBy(String columns, int limit) throws Exception {
+    GroupByMapReduce groupBy = new GroupByMapReduce();
+    JSONArray metrics = new JSONArray();
+    metrics.put(new JSONObject().put("function", "sum").put("column", "impressions"));
+    metrics.put(new JSONObject().put("function", "min").put("column", "impressions"));
+    metrics.put(new JSONObject().put("function", "max").put("column", "impressions"));
+    metrics.put(new JSONObject().put("function", "avg").put("column", "impressions"));
+    metrics.put(new JSONObject().put("function", "count"));
+    groupBy.init(new JSONObject().put("columns", new JSONArray(columns)).put("metrics", metrics).put("limit", limit));
+    return groupBy;
+  }
+
+  private static List<GroupByResult> map(GroupByMapReduce groupBy, IndexSegment segment) {
+    List<GroupByResult> mapResults = new ArrayList<GroupByResult>();
+    int[] docIds = new int[2048];
+    int docIdCount = 0;
+    for (int docId = 0; docId < segment.getLength(); docId++) {
+      docIds[docIdCount++] = docId;
+      if (docIdCount == docIds.length) {
+        mapResults.add(groupBy.aggregate(segment, docIds, docIdCount));
+        docIdCount = 0;
+      }
+    }
+    mapResults.add(groupBy.aggregate(segment, docIds, docIdCount));
+    return mapResults;
+  }
+
+  private static GroupByResult serialize(GroupByResult result) throws Exception {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ObjectOutputStream outputStream = new ObjectOutputStream(bytes);
+    outputStream.writeObject(result);
+    outputStream.close();
+    return (GroupByResult) new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())).readObject();
+  }
+
+  public void test1GroupByAcrossSegmentsAndNodes() throws Exception {
+    GroupByMapReduce groupBy = createGroupBy("[\"country\", \"day\"]", Integer.MAX_VALUE);
+    List<GroupByResult> partitionResults = new ArrayList<GroupByResult>();
+    for (int node = 0; node < 2; node++) {
+      List<GroupByResult> mapResults = new ArrayList<GroupByResult>();
+      for (int segment = 0; segment < 2; segment++) {
+        mapResults.addAll(map(groupBy, createSegment((node * 2 + segment) * DOCS)));
+      }
+      partitionResults.add(serialize(groupBy.combine(mapResults, CombinerStage.partitionLevel).get(0)));
+    }
+    JSONObject json = groupBy.render(groupBy.reduce(partitionResults));
+
+    Map<String, long[]> expected = new HashMap<String, long[]>();
+    for (int doc = 0; doc < 4 * DOCS; doc++) {
+      String key = COUNTRIES[doc % COUNTRIES.length] + ":" + doc % 3;
+      long[] states = expected.get(key);
+      if (states == null) {
+        states = new long[] {0, 0, Long.MAX_VALUE, Long.MIN_VALUE, 0};
+        expected.put(key, states);
+      }
+      states[0]++;
+      if (doc % 11 != 0) {
+        int impressions = doc % 1000;
+        states[1] += impressions;
+        states[2] = Math.min(states[2], impressions);
+        states[3] = Math.max(states[3], impressions);
+        states[4]++;
+      }
+    }
+    assertEquals(21, json.getInt("numGroups"));
+    JSONArray groups = json.getJSONArray("groups");
+    assertEquals(21, groups.length());
+    long previousSum = Long.MAX_VALUE;
+    for (int i = 0; i < groups.length(); i++) {
+      JSONObject group = groups.getJSONObject(i);
+      long[] states = expected.get(group.getString("country") + ":" + group.getInt("day"));
+      assertNotNull(group.toString(), states);
+      assertEquals(states[0], group.getLong("count"));
+      assertEquals(states[1], group.getLong("sum(impressions)"));
+      assertEquals(states[2], group.getLong("min(impressions)"));
+      assertEquals(states[3], group.getLong("max(impressions)"));
+      assertEquals((double) states[1] / states[4], group.getDouble("avg(impressions)"), 0.0001);
+      assertTrue(previousSum >= states[1]);
+      previousSum = states[1];
+    }
+  }
+
+  public void test2HashedGroupsWithLimit() throws Exception {
+    GroupByMapReduce groupBy = createGroupBy("[\"impressions\", \"country\"]", 10);
+    IndexSegment segment = createSegment(0);
+    GroupByResult result = groupBy.combine(map(groupBy, segment), CombinerStage.partitionLevel).get(0);
+    HashSet<String> expectedGroups = new HashSet<String>();
+    for (int doc = 0; doc < DOCS; doc++) {
+      expectedGroups.add((doc % 11 == 0 ? "null" : String.valueOf(doc % 1000)) + ":" + COUNTRIES[doc % COUNTRIES.length]);
+    }
+    assertEquals(expectedGroups.size(), result.getGroups().size());
+    long count = 0;
+    for (Map.Entry<GroupKey, long[]> entry : result.getGroups().entrySet()) {
+      Object[] values = entry.getKey().getValues();
+      assertTrue(expectedGroups.contains((values[0] == null ? "null" : values[0].toString()) + ":" + values[1]));
+      count += entry.getValue()[0];
+    }
+    assertEquals(DOCS, count);
+    JSONObject json = groupBy.render(result);
+    assertEquals(expectedGroups.size(), json.getInt("numGroups"));
+    JSONArray groups = json.getJSONArray("groups");
+    assertEquals(10, groups.length());
+    for (int i = 1; i < groups.length(); i++) {
+      assertTrue(groups.getJSONObject(i - 1).getLong("sum(impressions)") >= groups.getJSONObject(i).getLong("sum(impressions)"));
+    }
+  }
+}
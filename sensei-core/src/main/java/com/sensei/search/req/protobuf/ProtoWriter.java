@@ -0,0 +1,160 @@
+package com.sensei.search.req.protobuf;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Writes the protobuf wire format into the growing byte array. Unlike the CodedOutputStream it doesn't need the size of the
+ * embedded message in advance: one byte is reserved for the length, and the message body is shifted in place, if the length
+ * takes more than one byte. The output can be parsed by the protobuf generated code or the CodedInputStream
+ */
+final class ProtoWriter {
+  static final int WIRETYPE_VARINT = 0;
+  static final int WIRETYPE_FIXED64 = 1;
+  static final int WIRETYPE_LENGTH_DELIMITED = 2;
+  static final int WIRETYPE_FIXED32 = 5;
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private byte[] buffer;
+  private int position;
+
+  ProtoWriter(int initialCapacity) {
+    buffer = new byte[initialCapacity];
+  }
+
+  void writeInt32(int field, int value) {
+    writeTag(field, WIRETYPE_VARINT);
+    if (value >= 0) {
+      writeVarint32(value);
+    } else {
+      // the negative int32 is sign extended to 10 bytes by the protobuf spec
+      writeVarint64(value);
+    }
+  }
+
+  void writeInt64(int field, long value) {
+    writeTag(field, WIRETYPE_VARINT);
+    writeVarint64(value);
+  }
+
+  void writeSInt32(int field, int value) {
+    writeTag(field, WIRETYPE_VARINT);
+    writeVarint32((value << 1) ^ (value >> 31));
+  }
+
+  void writeSInt64(int field, long value) {
+    writeTag(field, WIRETYPE_VARINT);
+    writeSInt64NoTag(value);
+  }
+
+  void writeSInt64NoTag(long value) {
+    writeVarint64((value << 1) ^ (value >> 63));
+  }
+
+  void writeInt32NoTag(int value) {
+    if (value >= 0) {
+      writeVarint32(value);
+    } else {
+      writeVarint64(value);
+    }
+  }
+
+  void writeBool(int field, boolean value) {
+    writeTag(field, WIRETYPE_VARINT);
+    writeVarint32(value ? 1 : 0);
+  }
+
+  void writeFloat(int field, float value) {
+    writeTag(field, WIRETYPE_FIXED32);
+    int bits = Float.floatToRawIntBits(value);
+    ensureCapacity(4);
+    for (int i = 0; i < 4; i++) {
+      buffer[position++] = (byte) (bits >>> (8 * i));
+    }
+  }
+
+  void writeDouble(int field, double value) {
+    writeTag(field, WIRETYPE_FIXED64);
+    long bits = Double.doubleToRawLongBits(value);
+    ensureCapacity(8);
+    for (int i = 0; i < 8; i++) {
+      buffer[position++] = (byte) (bits >>> (8 * i));
+    }
+  }
+
+  void writeString(int field, String value) {
+    writeBytes(field, value.getBytes(UTF8));
+  }
+
+  void writeBytes(int field, byte[] value) {
+    writeTag(field, WIRETYPE_LENGTH_DELIMITED);
+    writeVarint32(value.length);
+    ensureCapacity(value.length);
+    System.arraycopy(value, 0, buffer, position, value.length);
+    position += value.length;
+  }
+
+  /**
+   * Starts the embedded message or the packed repeated field
+   * @return the position of the message, that should be passed to {@link #endMessage(int)}
+   */
+  int beginMessage(int field) {
+    writeTag(field, WIRETYPE_LENGTH_DELIMITED);
+    ensureCapacity(1);
+    return position++;
+  }
+
+  void endMessage(int start) {
+    int length = position - start - 1;
+    int lengthSize = varint32Size(length);
+    if (lengthSize > 1) {
+      ensureCapacity(lengthSize - 1);
+      System.arraycopy(buffer, start + 1, buffer, start + lengthSize, length);
+      position += lengthSize - 1;
+    }
+    int end = position;
+    position = start;
+    writeVarint32(length);
+    position = end;
+  }
+
+  byte[] toByteArray() {
+    return Arrays.copyOf(buffer, position);
+  }
+
+  private void writeTag(int field, int wireType) {
+    writeVarint32((field << 3) | wireType);
+  }
+
+  private void writeVarint32(int value) {
+    ensureCapacity(5);
+    while ((value & ~0x7F) != 0) {
+      buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    buffer[position++] = (byte) value;
+  }
+
+  private void writeVarint64(long value) {
+    ensureCapacity(10);
+    while ((value & ~0x7FL) != 0) {
+      buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    buffer[position++] = (byte) value;
+  }
+
+  private static int varint32Size(int value) {
+    if ((value & (0xffffffff << 7)) == 0) return 1;
+    if ((value & (0xffffffff << 14)) == 0) return 2;
+    if ((value & (0xffffffff << 21)) == 0) return 3;
+    if ((value & (0xffffffff << 28)) == 0) return 4;
+    return 5;
+  }
+
+  private void ensureCapacity(int bytes) {
+    if (position + bytes > buffer.length) {
+      buffer = Arrays.copyOf(buffer, Math.max(position + bytes, buffer.length * 2));
+    }
+  }
+}
@@ -0,0 +1,70 @@
+package com.sensei.search.req.protobuf;
+
+import java.io.IOException;
+
+import com.google.protobuf.CodedInputStream;
+import com.linkedin.norbert.network.Serializer;
+import com.senseidb.search.req.SenseiRequest;
+import com.senseidb.search.req.SenseiResult;
+
+/**
+ * The schema based serializer, that encodes the results with the {@link SenseiResultBinaryCodec}.
+ * The request is much smaller than the results and carries the pluggable queries, facet handler parameters and map reduce functions,
+ * so it is embedded as the java serialized bytes into the BinaryRequest message.
+ * The nodes register all the serializers under the different message names, so that the broker can choose any of them
+ */
+public class SenseiBinarySerializer implements Serializer<SenseiRequest, SenseiResult> {
+  private static final int REQUEST_JAVA_REQUEST = 1;
+
+  public String requestName() {
+    return "SenseiBinaryRequest";
+  }
+
+  public String responseName() {
+    return "SenseiBinaryResult";
+  }
+
+  public byte[] requestToBytes(SenseiRequest request) {
+    try {
+      ProtoWriter out = new ProtoWriter(1024);
+      out.writeBytes(REQUEST_JAVA_REQUEST, SenseiResultBinaryCodec.javaSerialize(request));
+      return out.toByteArray();
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  public SenseiRequest requestFromBytes(byte[] request) {
+    try {
+      CodedInputStream input = CodedInputStream.newInstance(request);
+      input.setSizeLimit(Integer.MAX_VALUE);
+      SenseiRequest ret = null;
+      for (int tag = input.readTag(); tag != 0; tag = input.readTag()) {
+        if (tag >>> 3 == REQUEST_JAVA_REQUEST) {
+          ret = (SenseiRequest) SenseiResultBinaryCodec.javaDeserialize(input.readBytes().toByteArray());
+        } else {
+          input.skipField(tag);
+        }
+      }
+      return ret;
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  public byte[] responseToBytes(SenseiResult response) {
+    try {
+      return SenseiResultBinaryCodec.encode(response);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  public SenseiResult responseFromBytes(byte[] response) {
+    try {
+      return SenseiResultBinaryCodec.decode(response);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+}
@@ -0,0 +1,654 @@
+package com.sensei.search.req.protobuf;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.search.Explanation;
+
+import com.browseengine.bobo.api.BrowseFacet;
+import com.browseengine.bobo.api.BrowseHit;
+import com.browseengine.bobo.api.FacetAccessible;
+import com.browseengine.bobo.mapred.MapReduceResult;
+import com.google.protobuf.CodedInputStream;
+import com.senseidb.search.node.ResultMerger.MappedFacetAccessible;
+import com.senseidb.search.req.ErrorType;
+import com.senseidb.search.req.SenseiError;
+import com.senseidb.search.req.SenseiHit;
+import com.senseidb.search.req.SenseiResult;
+
+/**
+ * Encodes the {@link SenseiResult} field by field in the protobuf wire format described by protobuf/sensei-binary.proto.
+ * The hits, facets, group accessibles and errors are encoded natively, the facet hit counts are packed. The objects,
+ * which don't have the fixed schema (stored fields, explanations, term vectors, map reduce results and custom comparables),
+ * are embedded as the java serialized bytes. The facet accessibles are decoded as the MappedFacetAccessible, the way
+ * the broker merges them. The bobo errors are decoded as the SenseiErrors of the BoboExecutionError type
+ */
+public class SenseiResultBinaryCodec {
+  // BinaryResult
+  private static final int RESULT_TID = 1;
+  private static final int RESULT_NUM_HITS = 2;
+  private static final int RESULT_TOTAL_DOCS = 3;
+  private static final int RESULT_NUM_GROUPS = 4;
+  private static final int RESULT_TIME = 5;
+  private static final int RESULT_PARSED_QUERY = 6;
+  private static final int RESULT_INDEX_VERSION = 7;
+  private static final int RESULT_HITS = 8;
+  private static final int RESULT_FACETS = 9;
+  private static final int RESULT_GROUP_ACCESSIBLES = 10;
+  private static final int RESULT_ERRORS = 11;
+  private static final int RESULT_MAP_REDUCE_RESULT = 12;
+  private static final int RESULT_NUM_HITS_LOWER_BOUND = 13;
+  // FacetList
+  private static final int FACETS_NAME = 1;
+  private static final int FACETS_VALUES = 2;
+  private static final int FACETS_HIT_COUNTS = 3;
+  private static final int FACETS_ABSENT = 4;
+  private static final int FACETS_NULL_VALUES = 5;
+  // Error
+  private static final int ERROR_MESSAGE = 1;
+  private static final int ERROR_TYPE = 2;
+  private static final int ERROR_CODE = 3;
+  // Hit
+  private static final int HIT_UID = 1;
+  private static final int HIT_DOCID = 2;
+  private static final int HIT_SCORE = 3;
+  private static final int HIT_COMPARABLE = 4;
+  private static final int HIT_FIELD_VALUES = 5;
+  private static final int HIT_RAW_FIELD_VALUES = 6;
+  private static final int HIT_GROUP_FIELD = 7;
+  private static final int HIT_GROUP_VALUE = 8;
+  private static final int HIT_RAW_GROUP_VALUE = 9;
+  private static final int HIT_GROUP_HITS_COUNT = 10;
+  private static final int HIT_GROUP_POSITION = 11;
+  private static final int HIT_GROUP_HITS = 12;
+  private static final int HIT_SRC_DATA = 13;
+  private static final int HIT_STORED_VALUE = 14;
+  private static final int HIT_STORED_FIELDS = 15;
+  private static final int HIT_EXPLANATION = 16;
+  private static final int HIT_TERM_FREQ_MAP = 17;
+  private static final int HIT_FIELD_MAPS = 18;
+  private static final int HAS_FIELD_VALUES = 1;
+  private static final int HAS_RAW_FIELD_VALUES = 2;
+  // FieldValues and RawFieldValues
+  private static final int FIELD_NAME = 1;
+  private static final int FIELD_VALUES = 2;
+  private static final int FIELD_NULL_VALUES = 3;
+  // Value
+  private static final int VALUE_STRING = 1;
+  private static final int VALUE_INT = 2;
+  private static final int VALUE_LONG = 3;
+  private static final int VALUE_FLOAT = 4;
+  private static final int VALUE_DOUBLE = 5;
+  private static final int VALUE_BOOL = 6;
+  private static final int VALUE_LONG_ARRAY = 7;
+  private static final int VALUE_JAVA = 15;
+
+  public static byte[] encode(SenseiResult result) throws IOException {
+    ProtoWriter out = new ProtoWriter(1024);
+    out.writeInt64(RESULT_TID, result.getTid());
+    out.writeInt32(RESULT_NUM_HITS, result.getNumHits());
+    out.writeInt32(RESULT_TOTAL_DOCS, result.getTotalDocs());
+    out.writeInt32(RESULT_NUM_GROUPS, result.getNumGroups());
+    out.writeInt64(RESULT_TIME, result.getTime());
+    if (result.getParsedQuery() != null) {
+      out.writeString(RESULT_PARSED_QUERY, result.getParsedQuery());
+    }
+    if (result.getIndexVersion() != null) {
+      out.writeString(RESULT_INDEX_VERSION, result.getIndexVersion());
+    }
+    BrowseHit[] hits = result.getHits();
+    if (hits != null) {
+      for (BrowseHit hit : hits) {
+        writeHit(out, RESULT_HITS, (SenseiHit) hit);
+      }
+    }
+    Map<String, FacetAccessible> facetMap = result.getFacetMap();
+    if (facetMap != null) {
+      for (Map.Entry<String, FacetAccessible> entry : facetMap.entrySet()) {
+        writeFacets(out, RESULT_FACETS, entry.getKey(), entry.getValue());
+      }
+    }
+    FacetAccessible[] groupAccessibles = result.getGroupAccessibles();
+    if (groupAccessibles != null) {
+      for (FacetAccessible groupAccessible : groupAccessibles) {
+        writeFacets(out, RESULT_GROUP_ACCESSIBLES, null, groupAccessible);
+      }
+    }
+    for (SenseiError error : result.getErrors()) {
+      writeError(out, error.getMessage(), error.getErrorType(), error.getErrorCode());
+    }
+    for (String boboError : result.getBoboErrors()) {
+      writeError(out, boboError, ErrorType.BoboExecutionError, ErrorType.BoboExecutionError.getDefaultErrorCode());
+    }
+    if (result.getMapReduceResult() != null) {
+      out.writeBytes(RESULT_MAP_REDUCE_RESULT, javaSerialize(result.getMapReduceResult()));
+    }
+    if (result.isNumHitsLowerBound()) {
+      out.writeBool(RESULT_NUM_HITS_LOWER_BOUND, true);
+    }
+    return out.toByteArray();
+  }
+
+  public static SenseiResult decode(byte[] bytes) throws IOException {
+    CodedInputStream input = CodedInputStream.newInstance(bytes);
+    input.setSizeLimit(Integer.MAX_VALUE);
+    SenseiResult result = new SenseiResult();
+    List<SenseiHit> hits = new ArrayList<SenseiHit>();
+    Map<String, FacetAccessible> facetMap = new HashMap<String, FacetAccessible>();
+    List<FacetAccessible> groupAccessibles = null;
+    while (true) {
+      int tag = input.readTag();
+      switch (tag >>> 3) {
+        case 0:
+          result.setHits(hits.toArray(new SenseiHit[hits.size()]));
+          result.addAll(facetMap);
+          if (groupAccessibles != null) {
+            result.setGroupAccessibles(groupAccessibles.toArray(new FacetAccessible[groupAccessibles.size()]));
+          }
+          return result;
+        case RESULT_TID:
+          result.setTid(input.readInt64());
+          break;
+        case RESULT_NUM_HITS:
+          result.setNumHits(input.readInt32());
+          break;
+        case RESULT_TOTAL_DOCS:
+          result.setTotalDocs(input.readInt32());
+          break;
+        case RESULT_NUM_GROUPS:
+          result.setNumGroups(input.readInt32());
+          break;
+        case RESULT_TIME:
+          result.setTime(input.readInt64());
+          break;
+        case RESULT_PARSED_QUERY:
+          result.setParsedQuery(input.readString());
+          break;
+        case RESULT_INDEX_VERSION:
+          result.setIndexVersion(input.readString());
+          break;
+        case RESULT_HITS: {
+          int limit = input.pushLimit(input.readRawVarint32());
+          hits.add(readHit(input));
+          input.popLimit(limit);
+          break;
+        }
+        case RESULT_FACETS: {
+          int limit = input.pushLimit(input.readRawVarint32());
+          String[] name = new String[1];
+          FacetAccessible facets = readFacets(input, name);
+          facetMap.put(name[0], facets);
+          input.popLimit(limit);
+          break;
+        }
+        case RESULT_GROUP_ACCESSIBLES: {
+          int limit = input.pushLimit(input.readRawVarint32());
+          if (groupAccessibles == null) {
+            groupAccessibles = new ArrayList<FacetAccessible>();
+          }
+          groupAccessibles.add(readFacets(input, null));
+          input.popLimit(limit);
+          break;
+        }
+        case RESULT_ERRORS: {
+          int limit = input.pushLimit(input.readRawVarint32());
+          result.addError(readError(input));
+          input.popLimit(limit);
+          break;
+        }
+        case RESULT_MAP_REDUCE_RESULT:
+          result.setMapReduceResult((MapReduceResult) javaDeserialize(input.readBytes().toByteArray()));
+          break;
+        case RESULT_NUM_HITS_LOWER_BOUND:
+          result.setNumHitsLowerBound(input.readBool());
+          break;
+        default:
+          input.skipField(tag);
+      }
+    }
+  }
+
+  private static void writeHit(ProtoWriter out, int field, SenseiHit hit) throws IOException {
+    int start = out.beginMessage(field);
+    out.writeSInt64(HIT_UID, hit.getUID());
+    out.writeInt32(HIT_DOCID, hit.getDocid());
+    out.writeFloat(HIT_SCORE, hit.getScore());
+    if (hit.getComparable() != null) {
+      writeValue(out, HIT_COMPARABLE, hit.getComparable());
+    }
+    int fieldMaps = 0;
+    Map<String, String[]> fieldValues = hit.getFieldValues();
+    if (fieldValues != null) {
+      fieldMaps |= HAS_FIELD_VALUES;
+      for (Map.Entry<String, String[]> entry : fieldValues.entrySet()) {
+        int fieldStart = out.beginMessage(HIT_FIELD_VALUES);
+        out.writeString(FIELD_NAME, entry.getKey());
+        String[] values = entry.getValue();
+        if (values != null) {
+          for (String value : values) {
+            out.writeString(FIELD_VALUES, value == null ? "" : value);
+          }
+          writeNullPositions(out, FIELD_NULL_VALUES, values);
+        }
+        out.endMessage(fieldStart);
+      }
+    }
+    Map<String, Object[]> rawFieldValues = hit.getRawFieldValues();
+    if (rawFieldValues != null) {
+      fieldMaps |= HAS_RAW_FIELD_VALUES;
+      for (Map.Entry<String, Object[]> entry : rawFieldValues.entrySet()) {
+        int fieldStart = out.beginMessage(HIT_RAW_FIELD_VALUES);
+        out.writeString(FIELD_NAME, entry.getKey());
+        if (entry.getValue() != null) {
+          for (Object value : entry.getValue()) {
+            writeValue(out, FIELD_VALUES, value);
+          }
+        }
+        out.endMessage(fieldStart);
+      }
+    }
+    out.writeInt32(HIT_FIELD_MAPS, fieldMaps);
+    if (hit.getGroupField() != null) {
+      out.writeString(HIT_GROUP_FIELD, hit.getGroupField());
+    }
+    if (hit.getGroupValue() != null) {
+      out.writeString(HIT_GROUP_VALUE, hit.getGroupValue());
+    }
+    if (hit.getRawGroupValue() != null) {
+      writeValue(out, HIT_RAW_GROUP_VALUE, hit.getRawGroupValue());
+    }
+    out.writeInt32(HIT_GROUP_HITS_COUNT, hit.getGroupHitsCount());
+    out.writeInt32(HIT_GROUP_POSITION, hit.getGroupPosition());
+    BrowseHit[] groupHits = hit.getGroupHits();
+    if (groupHits != null) {
+      for (BrowseHit groupHit : groupHits) {
+        writeHit(out, HIT_GROUP_HITS, (SenseiHit) groupHit);
+      }
+    }
+    if (hit.getSrcData() != null) {
+      out.writeString(HIT_SRC_DATA, hit.getSrcData());
+    }
+    if (hit.getStoredValue() != null) {
+      out.writeBytes(HIT_STORED_VALUE, hit.getStoredValue());
+    }
+    if (hit.getStoredFields() != null) {
+      out.writeBytes(HIT_STORED_FIELDS, javaSerialize(hit.getStoredFields()));
+    }
+    if (hit.getExplanation() != null) {
+      out.writeBytes(HIT_EXPLANATION, javaSerialize(hit.getExplanation()));
+    }
+    if (hit.getTermFreqMap() != null) {
+      out.writeBytes(HIT_TERM_FREQ_MAP, javaSerialize(hit.getTermFreqMap()));
+    }
+    out.endMessage(start);
+  }
+
+  @SuppressWarnings({ "unchecked", "rawtypes" })
+  private static SenseiHit readHit(CodedInputStream input) throws IOException {
+    SenseiHit hit = new SenseiHit();
+    Map<String, String[]> fieldValues = new HashMap<String, String[]>();
+    Map<String, Object[]> rawFieldValues = new HashMap<String, Object[]>();
+    List<SenseiHit> groupHits = null;
+    int fieldMaps = 0;
+    while (true) {
+      int tag = input.readTag();
+      switch (tag >>> 3) {
+        case 0:
+          if ((fieldMaps & HAS_FIELD_VALUES) != 0) {
+            hit.setFieldValues(fieldValues);
+          }
+          if ((fieldMaps & HAS_RAW_FIELD_VALUES) != 0) {
+            hit.setRawFieldValues(rawFieldValues);
+          }
+          if (groupHits != null) {
+            hit.setGroupHits(groupHits.toArray(new SenseiHit[groupHits.size()]));
+          }
+          return hit;
+        case HIT_UID:
+          hit.setUID(input.readSInt64());
+          break;
+        case HIT_DOCID:
+          hit.setDocid(input.readInt32());
+          break;
+        case HIT_SCORE:
+          hit.setScore(input.readFloat());
+          break;
+        case HIT_COMPARABLE:
+          hit.setComparable((Comparable) readValue(input));
+          break;
+        case HIT_FIELD_VALUES: {
+          int limit = input.pushLimit(input.readRawVarint32());
+          String name = null;
+          List<String> values = new ArrayList<String>();
+          List<Integer> nullPositions = new ArrayList<Integer>();
+          for (int fieldTag = input.readTag(); fieldTag != 0; fieldTag = input.readTag()) {
+            if (fieldTag >>> 3 == FIELD_NAME) {
+              name = input.readString();
+            } else if (fieldTag >>> 3 == FIELD_VALUES) {
+              values.add(input.readString());
+            } else if (fieldTag >>> 3 == FIELD_NULL_VALUES) {
+              readNullPositions(input, nullPositions);
+            } else {
+              input.skipField(fieldTag);
+            }
+          }
+          setNulls(values, nullPositions);
+          fieldValues.put(name, values.toArray(new String[values.size()]));
+          input.popLimit(limit);
+          break;
+        }
+        case HIT_RAW_FIELD_VALUES: {
+          int limit = input.pushLimit(input.readRawVarint32());
+          String name = null;
+          List<Object> values = new ArrayList<Object>();
+          for (int fieldTag = input.readTag(); fieldTag != 0; fieldTag = input.readTag()) {
+            if (fieldTag >>> 3 == FIELD_NAME) {
+              name = input.readString();
+            } else if (fieldTag >>> 3 == FIELD_VALUES) {
+              values.add(readValue(input));
+            } else {
+              input.skipField(fieldTag);
+            }
+          }
+          rawFieldValues.put(name, values.toArray());
+          input.popLimit(limit);
+          break;
+        }
+        case HIT_FIELD_MAPS:
+          fieldMaps = input.readInt32();
+          break;
+        case HIT_GROUP_FIELD:
+          hit.setGroupField(input.readString());
+          break;
+        case HIT_GROUP_VALUE:
+          hit.setGroupValue(input.readString());
+          break;
+        case HIT_RAW_GROUP_VALUE:
+          hit.setRawGroupValue(readValue(input));
+          break;
+        case HIT_GROUP_HITS_COUNT:
+          hit.setGroupHitsCount(input.readInt32());
+          break;
+        case HIT_GROUP_POSITION:
+          hit.setGroupPosition(input.readInt32());
+          break;
+        case HIT_GROUP_HITS: {
+          int limit = input.pushLimit(input.readRawVarint32());
+          if (groupHits == null) {
+            groupHits = new ArrayList<SenseiHit>();
+          }
+          groupHits.add(readHit(input));
+          input.popLimit(limit);
+          break;
+        }
+        case HIT_SRC_DATA:
+          hit.setSrcData(input.readString());
+          break;
+        case HIT_STORED_VALUE:
+          hit.setStoredValue(input.readBytes().toByteArray());
+          break;
+        case HIT_STORED_FIELDS:
+          hit.setStoredFields((Document) javaDeserialize(input.readBytes().toByteArray()));
+          break;
+        case HIT_EXPLANATION:
+          hit.setExplanation((Explanation) javaDeserialize(input.readBytes().toByteArray()));
+          break;
+        case HIT_TERM_FREQ_MAP:
+          hit.setTermFreqMap((Map) javaDeserialize(input.readBytes().toByteArray()));
+          break;
+        default:
+          input.skipField(tag);
+      }
+    }
+  }
+
+  private static void writeFacets(ProtoWriter out, int field, String name, FacetAccessible facetAccessible) {
+    int start = out.beginMessage(field);
+    if (name != null) {
+      out.writeString(FACETS_NAME, name);
+    }
+    if (facetAccessible == null) {
+      out.writeBool(FACETS_ABSENT, true);
+      out.endMessage(start);
+      return;
+    }
+    List<BrowseFacet> facets = facetAccessible.getFacets();
+    String[] values = new String[facets.size()];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = facets.get(i).getValue();
+      out.writeString(FACETS_VALUES, values[i] == null ? "" : values[i]);
+    }
+    writeNullPositions(out, FACETS_NULL_VALUES, values);
+    if (!facets.isEmpty()) {
+      int hitCountsStart = out.beginMessage(FACETS_HIT_COUNTS);
+      for (BrowseFacet facet : facets) {
+        out.writeInt32NoTag(facet.getHitCount());
+      }
+      out.endMessage(hitCountsStart);
+    }
+    out.endMessage(start);
+  }
+
+  private static FacetAccessible readFacets(CodedInputStream input, String[] name) throws IOException {
+    List<String> values = new ArrayList<String>();
+    List<Integer> nullPositions = new ArrayList<Integer>();
+    int[] hitCounts = new int[16];
+    int hitCountsSize = 0;
+    boolean absent = false;
+    for (int tag = input.readTag(); tag != 0; tag = input.readTag()) {
+      switch (tag >>> 3) {
+        case FACETS_NAME:
+          name[0] = input.readString();
+          break;
+        case FACETS_VALUES:
+          values.add(input.readString());
+          break;
+        case FACETS_HIT_COUNTS: {
+          int limit = input.pushLimit(input.readRawVarint32());
+          while (input.getBytesUntilLimit() > 0) {
+            if (hitCountsSize == hitCounts.length) {
+              hitCounts = Arrays.copyOf(hitCounts, hitCountsSize * 2);
+            }
+            hitCounts[hitCountsSize++] = input.readInt32();
+          }
+          input.popLimit(limit);
+          break;
+        }
+        case FACETS_ABSENT:
+          absent = input.readBool();
+          break;
+        case FACETS_NULL_VALUES:
+          readNullPositions(input, nullPositions);
+          break;
+        default:
+          input.skipField(tag);
+      }
+    }
+    if (absent) {
+      return null;
+    }
+    setNulls(values, nullPositions);
+    BrowseFacet[] facets = new BrowseFacet[values.size()];
+    for (int i = 0; i < facets.length; i++) {
+      facets[i] = new BrowseFacet(values.get(i), hitCounts[i]);
+    }
+    return new MappedFacetAccessible(facets);
+  }
+
+  /**
+   * Writes the positions of the null values, that are written as the empty strings, as a packed field, if there are any
+   */
+  private static void writeNullPositions(ProtoWriter out, int field, String[] values) {
+    int start = -1;
+    for (int i = 0; i < values.length; i++) {
+      if (values[i] == null) {
+        if (start < 0) {
+          start = out.beginMessage(field);
+        }
+        out.writeInt32NoTag(i);
+      }
+    }
+    if (start >= 0) {
+      out.endMessage(start);
+    }
+  }
+
+  private static void readNullPositions(CodedInputStream input, List<Integer> nullPositions) throws IOException {
+    int limit = input.pushLimit(input.readRawVarint32());
+    while (input.getBytesUntilLimit() > 0) {
+      nullPositions.add(input.readInt32());
+    }
+    input.popLimit(limit);
+  }
+
+  private static void setNulls(List<String> values, List<Integer> nullPositions) {
+    for (int position : nullPositions) {
+      if (position < values.size()) {
+        values.set(position, null);
+      }
+    }
+  }
+
+  private static void writeError(ProtoWriter out, String message, ErrorType errorType, int errorCode) {
+    int start = out.beginMessage(RESULT_ERRORS);
+    if (message != null) {
+      out.writeString(ERROR_MESSAGE, message);
+    }
+    if (errorType != null) {
+      out.writeString(ERROR_TYPE, errorType.name());
+    }
+    out.writeInt32(ERROR_CODE, errorCode);
+    out.endMessage(start);
+  }
+
+  private static SenseiError readError(CodedInputStream input) throws IOException {
+    String message = null;
+    ErrorType errorType = ErrorType.UnknownError;
+    int errorCode = errorType.getDefaultErrorCode();
+    for (int tag = input.readTag(); tag != 0; tag = input.readTag()) {
+      switch (tag >>> 3) {
+        case ERROR_MESSAGE:
+          message = input.readString();
+          break;
+        case ERROR_TYPE:
+          try {
+            errorType = ErrorType.valueOf(input.readString());
+          } catch (IllegalArgumentException e) {
+            errorType = ErrorType.UnknownError;
+          }
+          break;
+        case ERROR_CODE:
+          errorCode = input.readInt32();
+          break;
+        default:
+          input.skipField(tag);
+      }
+    }
+    return new SenseiError(message, errorType, errorCode);
+  }
+
+  private static void writeValue(ProtoWriter out, int field, Object value) throws IOException {
+    int start = out.beginMessage(field);
+    if (value instanceof String) {
+      out.writeString(VALUE_STRING, (String) value);
+    } else if (value instanceof Integer) {
+      out.writeSInt32(VALUE_INT, (Integer) value);
+    } else if (value instanceof Long) {
+      out.writeSInt64(VALUE_LONG, (Long) value);
+    } else if (value instanceof Float) {
+      out.writeFloat(VALUE_FLOAT, (Float) value);
+    } else if (value instanceof Double) {
+      out.writeDouble(VALUE_DOUBLE, (Double) value);
+    } else if (value instanceof Boolean) {
+      out.writeBool(VALUE_BOOL, (Boolean) value);
+    } else if (value instanceof long[]) {
+      int arrayStart = out.beginMessage(VALUE_LONG_ARRAY);
+      for (long element : (long[]) value) {
+        out.writeSInt64NoTag(element);
+      }
+      out.endMessage(arrayStart);
+    } else if (value != null) {
+      out.writeBytes(VALUE_JAVA, javaSerialize(value));
+    }
+    out.endMessage(start);
+  }
+
+  /**
+   * @return the value or null, if the Value message is empty
+   */
+  private static Object readValue(CodedInputStream input) throws IOException {
+    int limit = input.pushLimit(input.readRawVarint32());
+    Object value = null;
+    for (int tag = input.readTag(); tag != 0; tag = input.readTag()) {
+      switch (tag >>> 3) {
+        case VALUE_STRING:
+          value = input.readString();
+          break;
+        case VALUE_INT:
+          value = input.readSInt32();
+          break;
+        case VALUE_LONG:
+          value = input.readSInt64();
+          break;
+        case VALUE_FLOAT:
+          value = input.readFloat();
+          break;
+        case VALUE_DOUBLE:
+          value = input.readDouble();
+          break;
+        case VALUE_BOOL:
+          value = input.readBool();
+          break;
+        case VALUE_LONG_ARRAY: {
+          int arrayLimit = input.pushLimit(input.readRawVarint32());
+          long[] array = new long[4];
+          int size = 0;
+          while (input.getBytesUntilLimit() > 0) {
+            if (size == array.length) {
+              array = Arrays.copyOf(array, size * 2);
+            }
+            array[size++] = input.readSInt64();
+          }
+          input.popLimit(arrayLimit);
+          value = Arrays.copyOf(array, size);
+          break;
+        }
+        case VALUE_JAVA:
+          value = javaDeserialize(input.readBytes().toByteArray());
+          break;
+        default:
+          input.skipField(tag);
+      }
+    }
+    input.popLimit(limit);
+    return value;
+  }
+
+  static byte[] javaSerialize(Object object) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ObjectOutputStream outputStream = new ObjectOutputStream(bytes);
+    outputStream.writeObject(object);
+    outputStream.close();
+    return bytes.toByteArray();
+  }
+
+  static Object javaDeserialize(byte[] bytes) throws IOException {
+    ObjectInputStream inputStream = new ObjectInputStream(new ByteArrayInputStream(bytes));
+    try {
+      return inputStream.readObject();
+    } catch (ClassNotFoundException e) {
+      throw new IOException(e.getMessage());
+    } finally {
+      inputStream.close();
+    }
+  }
+}
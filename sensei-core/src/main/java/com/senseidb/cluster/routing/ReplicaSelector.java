@@ -0,0 +1,356 @@
+package com.senseidb.cluster.routing;
+
+import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import com.linkedin.norbert.javacompat.cluster.Node;
+
+/**
+ * Latency aware replica selection for the broker. Keeps the exponentially weighted moving average of the response time and
+ * the number of the outstanding requests per node, and picks the replica of each partition with the power of two choices:
+ * the cheaper of two random replicas, where the cost is the average latency multiplied by the outstanding requests.
+ * A node that was already picked for one partition is reused for the other partitions it serves, so that the broker sends one
+ * request per node, as the norbert load balancer does.
+ * <br>
+ * It also provides the delay of the hedged requests: the configured percentile of the recent response times, so that only
+ * the slowest requests are duplicated to the second replica.
+ */
+public class ReplicaSelector
+{
+  public static final double DEFAULT_HEDGE_PERCENTILE = 0.95;
+  public static final long DEFAULT_MIN_HEDGE_DELAY = 5;
+
+  private static final double EWMA_WEIGHT = 0.2;
+  private static final long MAX_PENALTY_NANOS = TimeUnit.SECONDS.toNanos(10);
+  private static final long COST_FLOOR_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+  private static final int LATENCY_WINDOW = 1024;
+  private static final int PERCENTILE_REFRESH = 64;
+
+  private final boolean _hedging;
+  private final double _hedgePercentile;
+  private final long _minHedgeDelayNanos;
+  private final Random _rand = new Random();
+  private final Map<Integer, NodeStats> _stats = new ConcurrentHashMap<Integer, NodeStats>();
+  private volatile Int2ObjectMap<Node[]> _replicas = new Int2ObjectOpenHashMap<Node[]>();
+  private volatile int[] _partitions = new int[0];
+
+  private final long[] _latencies = new long[LATENCY_WINDOW];
+  private int _latencyCount = 0;
+  private volatile long _hedgeDelayNanos;
+
+  private static final class NodeStats
+  {
+    private double ewmaNanos = 0;
+    private int outstanding = 0;
+  }
+
+  /**
+   * @param hedging whether the broker should send the hedged requests
+   * @param hedgePercentile the percentile of the recent response times, after which the request is hedged
+   * @param minHedgeDelayMillis the lower bound of the hedge delay, that also applies before there are enough response times
+   */
+  public ReplicaSelector(boolean hedging, double hedgePercentile, long minHedgeDelayMillis)
+  {
+    if (hedgePercentile <= 0 || hedgePercentile > 1)
+    {
+      throw new IllegalArgumentException("The hedge percentile should be in (0, 1]: " + hedgePercentile);
+    }
+    _hedging = hedging;
+    _hedgePercentile = hedgePercentile;
+    _minHedgeDelayNanos = TimeUnit.MILLISECONDS.toNanos(minHedgeDelayMillis);
+    _hedgeDelayNanos = _minHedgeDelayNanos;
+  }
+
+  public boolean isHedging()
+  {
+    return _hedging;
+  }
+
+  /**
+   * Updates the replicas of each partition, called when the cluster changes.
+   */
+  public void setNodes(Set<Node> nodes)
+  {
+    Map<Integer, List<Node>> replicaLists = new HashMap<Integer, List<Node>>();
+    Set<Integer> nodeIds = new HashSet<Integer>();
+    for (Node node : nodes)
+    {
+      nodeIds.add(node.getId());
+      if (!_stats.containsKey(node.getId()))
+      {
+        _stats.put(node.getId(), new NodeStats());
+      }
+      for (Integer partition : node.getPartitionIds())
+      {
+        List<Node> replicaList = replicaLists.get(partition);
+        if (replicaList == null)
+        {
+          replicaList = new ArrayList<Node>();
+          replicaLists.put(partition, replicaList);
+        }
+        replicaList.add(node);
+      }
+    }
+    _stats.keySet().retainAll(nodeIds);
+
+    Int2ObjectMap<Node[]> replicas = new Int2ObjectOpenHashMap<Node[]>(replicaLists.size());
+    int[] partitions = new int[replicaLists.size()];
+    int i = 0;
+    for (Map.Entry<Integer, List<Node>> entry : replicaLists.entrySet())
+    {
+      replicas.put(entry.getKey().intValue(), entry.getValue().toArray(new Node[entry.getValue().size()]));
+      partitions[i++] = entry.getKey();
+    }
+    Arrays.sort(partitions);
+    _replicas = replicas;
+    _partitions = partitions;
+  }
+
+  public boolean hasPartitions()
+  {
+    return _partitions.length > 0;
+  }
+
+  /**
+   * @return the nodes to send the request to, with the partitions each of them should search. Every partition of the cluster
+   *         is covered by exactly one node
+   */
+  public Map<Node, Set<Integer>> route()
+  {
+    return route(_partitions);
+  }
+
+  /**
+   * @return the nodes to send the request for some of the partitions to, the partitions no node serves are left out
+   */
+  public Map<Node, Set<Integer>> route(int[] partitions)
+  {
+    Int2ObjectMap<Node[]> replicas = _replicas;
+    Map<Node, Set<Integer>> route = new LinkedHashMap<Node, Set<Integer>>();
+    if (partitions.length == 0)
+    {
+      return route;
+    }
+    // start from a random partition, so that the first picks don't always decide the routing of the same partitions
+    int offset = _rand.nextInt(partitions.length);
+    for (int i = 0; i < partitions.length; i++)
+    {
+      int partition = partitions[(offset + i) % partitions.length];
+      Node[] candidates = replicas.get(partition);
+      if (candidates == null)
+      {
+        continue;
+      }
+      Node chosen = null;
+      for (Node candidate : candidates)
+      {
+        if (route.containsKey(candidate))
+        {
+          chosen = candidate;
+          break;
+        }
+      }
+      if (chosen == null)
+      {
+        chosen = pickOfTwo(candidates);
+        route.put(chosen, new HashSet<Integer>());
+      }
+      route.get(chosen).add(partition);
+    }
+    return route;
+  }
+
+  private Node pickOfTwo(Node[] candidates)
+  {
+    if (candidates.length == 1)
+    {
+      return candidates[0];
+    }
+    int first = _rand.nextInt(candidates.length);
+    int second = _rand.nextInt(candidates.length - 1);
+    if (second >= first)
+    {
+      second++;
+    }
+    return cost(candidates[second]) < cost(candidates[first]) ? candidates[second] : candidates[first];
+  }
+
+  /**
+   * @return the cheapest node other than the primary, that serves all the partitions, or null if there is no such node
+   */
+  public Node getHedgeNode(Node primary, Set<Integer> partitions)
+  {
+    if (partitions.isEmpty())
+    {
+      return null;
+    }
+    Node[] candidates = _replicas.get(partitions.iterator().next().intValue());
+    if (candidates == null)
+    {
+      return null;
+    }
+    Node best = null;
+    double bestCost = Double.MAX_VALUE;
+    for (Node candidate : candidates)
+    {
+      if (candidate.getId() == primary.getId() || !candidate.getPartitionIds().containsAll(partitions))
+      {
+        continue;
+      }
+      double cost = cost(candidate);
+      if (cost < bestCost)
+      {
+        best = candidate;
+        bestCost = cost;
+      }
+    }
+    return best;
+  }
+
+  private double cost(Node node)
+  {
+    NodeStats stats = _stats.get(node.getId());
+    if (stats == null)
+    {
+      return COST_FLOOR_NANOS;
+    }
+    synchronized (stats)
+    {
+      return (stats.ewmaNanos + COST_FLOOR_NANOS) * (stats.outstanding + 1);
+    }
+  }
+
+  /**
+   * Called before the request is sent to the node.
+   * @return the start time to pass to {@link #complete(Node, long, boolean)} or {@link #abandon(Node, long)}
+   */
+  public long start(Node node)
+  {
+    NodeStats stats = _stats.get(node.getId());
+    if (stats != null)
+    {
+      synchronized (stats)
+      {
+        stats.outstanding++;
+      }
+    }
+    return System.nanoTime();
+  }
+
+  /**
+   * Called when the node has answered. A failure doubles the average latency of the node, so that it is avoided until it answers
+   * again.
+   */
+  public void complete(Node node, long startNanos, boolean success)
+  {
+    long latency = System.nanoTime() - startNanos;
+    NodeStats stats = _stats.get(node.getId());
+    if (stats != null)
+    {
+      synchronized (stats)
+      {
+        stats.outstanding--;
+        if (success)
+        {
+          stats.ewmaNanos = stats.ewmaNanos == 0 ? latency : stats.ewmaNanos + EWMA_WEIGHT * (latency - stats.ewmaNanos);
+        }
+        else
+        {
+          stats.ewmaNanos = Math.min(MAX_PENALTY_NANOS, Math.max(latency, 2 * stats.ewmaNanos));
+        }
+      }
+    }
+    if (success)
+    {
+      addLatency(latency);
+    }
+  }
+
+  /**
+   * Called when the broker stops waiting for the node, because the other replica has answered first or the request timed out.
+   * The time waited so far is the lower bound of the node latency, so it still counts to the average.
+   */
+  public void abandon(Node node, long startNanos)
+  {
+    long latency = System.nanoTime() - startNanos;
+    NodeStats stats = _stats.get(node.getId());
+    if (stats != null)
+    {
+      synchronized (stats)
+      {
+        stats.outstanding--;
+        if (latency > stats.ewmaNanos)
+        {
+          stats.ewmaNanos += EWMA_WEIGHT * (latency - stats.ewmaNanos);
+        }
+      }
+    }
+  }
+
+  /**
+   * @return how long to wait for the replica before sending the hedged request, in nanoseconds
+   */
+  public long getHedgeDelayNanos()
+  {
+    return _hedgeDelayNanos;
+  }
+
+  private synchronized void addLatency(long latency)
+  {
+    _latencies[_latencyCount % LATENCY_WINDOW] = latency;
+    _latencyCount++;
+    if (_latencyCount % PERCENTILE_REFRESH == 0)
+    {
+      int size = Math.min(_latencyCount, LATENCY_WINDOW);
+      long[] sorted = Arrays.copyOf(_latencies, size);
+      Arrays.sort(sorted);
+      int index = Math.min(size - 1, (int) Math.ceil(_hedgePercentile * size) - 1);
+      _hedgeDelayNanos = Math.max(_minHedgeDelayNanos, sorted[Math.max(0, index)]);
+      if (_latencyCount == LATENCY_WINDOW * PERCENTILE_REFRESH)
+      {
+        _latencyCount = LATENCY_WINDOW;
+      }
+    }
+  }
+
+  /**
+   * @return the average latency of the node in milliseconds, or 0 if the node hasn't answered yet
+   */
+  public double getAverageLatency(Node node)
+  {
+    NodeStats stats = _stats.get(node.getId());
+    if (stats == null)
+    {
+      return 0;
+    }
+    synchronized (stats)
+    {
+      return stats.ewmaNanos / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+  }
+
+  public int getOutstanding(Node node)
+  {
+    NodeStats stats = _stats.get(node.getId());
+    if (stats == null)
+    {
+      return 0;
+    }
+    synchronized (stats)
+    {
+      return stats.outstanding;
+    }
+  }
+}
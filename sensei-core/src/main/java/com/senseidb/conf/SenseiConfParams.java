@@ -44,6 +44,7 @@ public interface SenseiConfParams {
   public static final String SENSEI_SHARDING_STRATEGY = "sensei.sharding.strategy";
 	public static final String SENSEI_INDEX_MANAGER = "sensei.index.manager";
 	public static final String SENSEI_INDEX_MANAGER_FILTER = "sensei.index.manager.filter";
+	public static final String SENSEI_INDEX_MANAGER_DEFAULT_MAX_PARTITION_ID = "sensei.index.manager.default.maxpartition.id";
 
 	public static final String SENSEI_GATEWAY = "sensei.gateway";
 
@@ -68,6 +69,15 @@ public interface SenseiConfParams {
 	public static final String SERVER_BROKER_MAXWAIT = "sensei.broker.maxWaittime";
 	public static final String SERVER_BROKER_TIMEOUT = "sensei.broker.timeout";
   public static final String ALLOW_PARTIAL_MERGE = "sensei.broker.allowPartialMerge";
+	public static final String SERVER_BROKER_CACHE_MAX_BYTES = "sensei.broker.cache.maxBytes";
+	public static final String SERVER_BROKER_CACHE_TTL = "sensei.broker.cache.ttl";
+	public static final String SERVER_BROKER_CACHE_MAX_STALENESS = "sensei.broker.cache.maxStaleness";
+	public static final String SERVER_BROKER_SERIALIZER = "sensei.broker.serializer";
+	public static final String SERVER_BROKER_ROUTING = "sensei.broker.routing";
+	public static final String SERVER_BROKER_HEDGE = "sensei.broker.hedge.enabled";
+	public static final String SERVER_BROKER_HEDGE_PERCENTILE = "sensei.broker.hedge.percentile";
+	public static final String SERVER_BROKER_HEDGE_MIN_DELAY = "sensei.broker.hedge.minDelay";
+	public static final String SERVER_BROKER_UID_ROUTING_FIELD = "sensei.broker.uidRouting.field";
 
 
 	public static final String SENSEI_BROKER_POLL_INTERVAL = "sensei.broker.pollInterval";
@@ -78,6 +88,14 @@ public interface SenseiConfParams {
 
 	public static final String SENSEI_INDEX_PRUNER = "sensei.index.pruner";
 
+	public static final String SENSEI_SEARCH_SCHEDULER = "sensei.search.scheduler";
+	public static final String SENSEI_SEARCH_THREAD_POOL_SIZE = "sensei.search.threadPoolSize";
+	public static final String SENSEI_SEARCH_QUEUE_SIZE = "sensei.search.queueSize";
+	public static final String SENSEI_SEARCH_SEGMENT_PARALLELISM = "sensei.search.segmentParallelism";
+	public static final String SENSEI_SEARCH_SEGMENT_PARALLEL_MIN_DOCS = "sensei.search.segmentParallelMinDocs";
+	public static final String SENSEI_SEARCH_FILTER_CACHE_MAX_BYTES = "sensei.search.filterCache.maxBytes";
+	public static final String SENSEI_SEARCH_EARLY_TERMINATION = "sensei.search.earlyTermination";
+
 	public static final String SENSEI_ZOIE_RETENTION_DAYS = "sensei.indexing.retention.days";
   public static final String SENSEI_ZOIE_RETENTION_CLASS = "sensei.indexing.retention";
 
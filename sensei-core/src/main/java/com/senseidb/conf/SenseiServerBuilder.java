@@ -79,13 +79,16 @@ import com.senseidb.search.node.SenseiIndexReaderDecorator;
 import com.senseidb.search.node.SenseiIndexingManager;
 import com.senseidb.search.node.SenseiPairFactory;
 import com.senseidb.search.node.SenseiQueryBuilderFactory;
+import com.senseidb.search.node.SenseiSearchScheduler;
 import com.senseidb.search.node.SenseiServer;
 import com.senseidb.search.node.SenseiZoieFactory;
 import com.senseidb.search.node.SenseiZoieSystemFactory;
+import com.senseidb.search.node.impl.BoundedSearchScheduler;
 import com.senseidb.search.node.impl.DefaultJsonQueryBuilderFactory;
 import com.senseidb.search.plugin.PluggableSearchEngineManager;
 import com.senseidb.search.query.RetentionFilterFactory;
 import com.senseidb.search.query.TimeRetentionFilter;
+import com.senseidb.search.query.filters.SegmentFilterCache;
 import com.senseidb.search.relevance.CustomRelevanceFunction.CustomRelevanceFunctionFactory;
 import com.senseidb.search.relevance.ExternalRelevanceDataStorage;
 import com.senseidb.search.relevance.ExternalRelevanceDataStorage.RelevanceObjPlugin;
@@ -498,6 +501,19 @@ public class SenseiServerBuilder implements SenseiConfParams{
     if (indexPruner != null){
       senseiCore.setIndexPruner(indexPruner);
     }
+    SenseiSearchScheduler searchScheduler = pluginRegistry.getBeanByFullPrefix(SENSEI_SEARCH_SCHEDULER, SenseiSearchScheduler.class);
+    if (searchScheduler == null){
+      searchScheduler = new BoundedSearchScheduler(_senseiConf.getInt(SENSEI_SEARCH_THREAD_POOL_SIZE, BoundedSearchScheduler.DEFAULT_POOL_SIZE),
+                                                   _senseiConf.getInt(SENSEI_SEARCH_QUEUE_SIZE, BoundedSearchScheduler.DEFAULT_QUEUE_SIZE));
+    }
+    senseiCore.setSearchScheduler(searchScheduler);
+    senseiCore.setSegmentParallelism(_senseiConf.getInt(SENSEI_SEARCH_SEGMENT_PARALLELISM, 1));
+    senseiCore.setSegmentParallelMinDocs(_senseiConf.getInt(SENSEI_SEARCH_SEGMENT_PARALLEL_MIN_DOCS, SenseiCore.DEFAULT_SEGMENT_PARALLEL_MIN_DOCS));
+    senseiCore.setEarlyTermination(_senseiConf.getBoolean(SENSEI_SEARCH_EARLY_TERMINATION, false));
+    long filterCacheMaxBytes = _senseiConf.getLong(SENSEI_SEARCH_FILTER_CACHE_MAX_BYTES, 0L);
+    if (filterCacheMaxBytes > 0) {
+      SegmentFilterCache.getInstance().setMaxBytes(filterCacheMaxBytes);
+    }
     if (pluggableSearchEngineManager != null) {
       senseiCore.setPluggableSearchEngineManager(pluggableSearchEngineManager);     
     }
@@ -6,5 +6,13 @@ public interface HttpDataProviderAdminMBean extends DataProviderAdminMBean {
 
 	public long getHttpGetLatency();
 	public long getResponseParseLatency();
+	/**
+	 * @return the number of the events the prefetch thread has buffered ahead of the indexing
+	 */
+	public int getBufferedEvents();
+	/**
+	 * @return the number of the events the prefetch buffer can hold, 0 if the batches are not prefetched
+	 */
+	public int getBufferCapacity();
 
 }
@@ -2,8 +2,14 @@ package com.senseidb.dataprovider.http;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.io.IOUtils;
 import org.apache.http.Header;
@@ -35,6 +41,16 @@ import org.apache.log4j.Logger;
 import proj.zoie.api.DataConsumer.DataEvent;
 import proj.zoie.impl.indexing.StreamDataProvider;
 
+/**
+ * Reads the batches of the events from a http endpoint, asking each batch from the version of the last event of the previous one.
+ * <br>
+ * By default the next batch is fetched when the indexing has taken all the events of the current one. With
+ * {@link #setPrefetchBatches(int)} a prefetch thread fetches the batches ahead of the indexing into a buffer of up to that many
+ * batches: the next request is sent as soon as the previous response is read, and the events of the response are buffered
+ * while it is parsed, so the indexing starts with the first event of the batch instead of waiting for the whole response.
+ * That needs {@link #parse(InputStream)} to read the events as they are asked for, such as with a {@link StreamingEventIterator}.
+ * The gateways set the number of the batches with <code>sensei.gateway.http.prefetchBatches</code>.
+ */
 public abstract class HttpStreamDataProvider<D> extends StreamDataProvider<D> implements HttpDataProviderAdminMBean{
 
 	private static final Logger logger = Logger.getLogger(HttpStreamDataProvider.class);
@@ -46,6 +62,7 @@ public abstract class HttpStreamDataProvider<D> extends StreamDataProvider<D> im
 	  
 	public static final int DEFAULT_TIMEOUT_MS = 10000;
 	public static final int DEFAULT_RETRYTIME_MS = 5000;
+	public static final int DEFAULT_PREFETCH_BATCHES = 0;
 	
 	public static final String DEFAULT_OFFSET_PARAM = "offset";
 	public static final String DFEAULT_DATA_PARAM = "data";
@@ -62,6 +79,67 @@ public abstract class HttpStreamDataProvider<D> extends StreamDataProvider<D> im
 	private volatile long _httpGetLatency;
 	private volatile long _responseParseLatency;
 	
+	private int _prefetchBatches;
+	private volatile BlockingQueue<BufferedEvent<D>> _buffer;
+	private Thread _prefetchThread;
+	// the offset the prefetch thread fetches from, and the number of the resets, guarded by this
+	private String _fetchOffset;
+	private volatile int _epoch;
+	
+	/**
+	 * An event buffered by the prefetch thread, with the epoch of the offset it was fetched from, so the events fetched before
+	 * the reset are dropped
+	 */
+	private static final class BufferedEvent<D>{
+	  private final DataEvent<D> event;
+	  private final int epoch;
+	  
+	  private BufferedEvent(DataEvent<D> event, int epoch){
+	    this.event = event;
+	    this.epoch = epoch;
+	  }
+	}
+	
+	
+	/**
+	 * Reads the events of the response one at a time, as they are asked for, so that with the prefetching the parse of the
+	 * response overlaps with the indexing of its first events
+	 */
+	protected static abstract class StreamingEventIterator<D> implements Iterator<DataEvent<D>>{
+	  private DataEvent<D> _next = null;
+	  private boolean _done = false;
+	  
+	  /**
+	   * @return the next event of the response, or null at its end
+	   */
+	  protected abstract DataEvent<D> readNext() throws Exception;
+	  
+	  public boolean hasNext(){
+	    if (_next == null && !_done){
+	      try{
+	        _next = readNext();
+	      }
+	      catch(Exception e){
+	        throw new RuntimeException(e.getMessage(),e);
+	      }
+	      _done = _next == null;
+	    }
+	    return _next != null;
+	  }
+	  
+	  public DataEvent<D> next(){
+	    if (!hasNext()){
+	      throw new NoSuchElementException();
+	    }
+	    DataEvent<D> next = _next;
+	    _next = null;
+	    return next;
+	  }
+	  
+	  public void remove(){
+	    throw new UnsupportedOperationException();
+	  }
+	}
 	
 	public HttpStreamDataProvider(Comparator<String> versionComparator, String baseUrl,String pw,int fetchSize,String startingOffset,boolean disableHttps){
     super(versionComparator);
@@ -129,6 +207,7 @@ public abstract class HttpStreamDataProvider<D> extends StreamDataProvider<D> im
 	    });
 	  
 	  _retryTime = DEFAULT_RETRYTIME_MS;   // default retry after 5 seconds
+	  _prefetchBatches = DEFAULT_PREFETCH_BATCHES;
 	}
 	
 	public void setRetryTime(int retryTime){
@@ -139,6 +218,18 @@ public abstract class HttpStreamDataProvider<D> extends StreamDataProvider<D> im
 		return _retryTime;
 	}
 	
+	/**
+	 * @param prefetchBatches the number of the batches to fetch ahead of the indexing, 0 to fetch the batches on demand.
+	 *        Takes effect when the provider is started
+	 */
+	public void setPrefetchBatches(int prefetchBatches){
+		_prefetchBatches = Math.max(0, prefetchBatches);
+	}
+	
+	public int getPrefetchBatches(){
+		return _prefetchBatches;
+	}
+	
 	@Override
 	public void setStartingOffset(String initialOffset){
 	  _initialOffset = initialOffset;
@@ -146,12 +237,13 @@ public abstract class HttpStreamDataProvider<D> extends StreamDataProvider<D> im
 	
 	protected abstract String buildGetString(String offset);
 	
+	/**
+	 * Parses the response. The stream stays open until the prefetch thread has taken all the events of the iterator, so with
+	 * the prefetching the iterator may parse the events as they are asked for.
+	 */
 	protected abstract  Iterator<DataEvent<D>> parse(InputStream is) throws Exception;
 
-	private Iterator<DataEvent<D>> fetchBatch() throws HttpException{
-	  InputStream stream = null;
-	  try{
-		HttpGet httpget = new HttpGet(buildGetString(_offset));
+	private HttpResponse executeGet(HttpGet httpget) throws IOException, HttpException{
 		long getStart = System.currentTimeMillis();
 	    HttpResponse response = _httpclient.execute(httpget);
 	    long getEnd = System.currentTimeMillis();
@@ -170,15 +262,28 @@ public abstract class HttpStreamDataProvider<D> extends StreamDataProvider<D> im
           }
           throw new HttpException(status.getReasonPhrase());
         }
+        return response;
+	}
+
+	private Iterator<DataEvent<D>> fetchBatch() throws HttpException{
+	  InputStream stream = null;
+	  try{
+		HttpGet httpget = new HttpGet(buildGetString(_offset));
+	    HttpResponse response = executeGet(httpget);
         
         try{
-          stream = entity.getContent();
+          stream = response.getEntity().getContent();
           
           long parseStart = System.currentTimeMillis();
           Iterator<DataEvent<D>> iter =  parse(stream);
+          // the stream is closed once the batch is fetched, so the events of a streaming iterator are read now
+          List<DataEvent<D>> events = new ArrayList<DataEvent<D>>(Math.max(1, _fetchSize));
+          while (iter != null && iter.hasNext()){
+            events.add(iter.next());
+          }
           long parseEnd = System.currentTimeMillis();
           _responseParseLatency = parseEnd - parseStart;
-          return iter;
+          return events.iterator();
         }
         catch(Exception e){
           logger.error(e.getMessage(),e);
@@ -196,11 +301,143 @@ public abstract class HttpStreamDataProvider<D> extends StreamDataProvider<D> im
 	  }
 	}
 	
+	/**
+	 * Fetches the batch and buffers its events as they are parsed, moving the fetch offset on with each buffered event, so a
+	 * failed response is asked again from its first event, that is not buffered yet
+	 * @return whether the batch had any events
+	 */
+	private boolean prefetchBatch(String offset, int epoch) throws HttpException, InterruptedException{
+	  InputStream stream = null;
+	  HttpGet httpget = new HttpGet(buildGetString(offset));
+	  try{
+	    HttpResponse response = executeGet(httpget);
+	    stream = response.getEntity().getContent();
+	    
+	    long parseLatency = 0L;
+	    long parseStart = System.currentTimeMillis();
+	    Iterator<DataEvent<D>> iter = parse(stream);
+	    boolean hasData = false;
+	    while (iter != null && iter.hasNext()){
+	      DataEvent<D> data = iter.next();
+	      parseLatency += System.currentTimeMillis() - parseStart;
+	      if (data != null){
+	        hasData = true;
+	        if (!bufferEvent(new BufferedEvent<D>(data, epoch))){
+	          // stopped or reset, the rest of the response is not needed
+	          httpget.abort();
+	          return true;
+	        }
+	      }
+	      parseStart = System.currentTimeMillis();
+	    }
+	    _responseParseLatency = parseLatency + System.currentTimeMillis() - parseStart;
+	    return hasData;
+	  }
+	  catch(InterruptedException e){
+	    httpget.abort();
+	    throw e;
+	  }
+	  catch(HttpException e){
+	    throw e;
+	  }
+	  catch(Exception e){
+	    httpget.abort();
+	    throw new HttpException(e.getMessage(),e);
+	  }
+	  finally{
+	    if (stream != null){
+	      IOUtils.closeQuietly(stream);
+	    }
+	  }
+	}
+	
+	/**
+	 * Waits for the space in the buffer, unless the provider is stopped or reset meanwhile
+	 */
+	private boolean bufferEvent(BufferedEvent<D> buffered) throws InterruptedException{
+	  while (!_stopped && buffered.epoch == _epoch){
+	    if (_buffer.offer(buffered, 100, TimeUnit.MILLISECONDS)){
+	      synchronized(this){
+	        if (buffered.epoch == _epoch){
+	          _fetchOffset = buffered.event.getVersion();
+	        }
+	      }
+	      return true;
+	    }
+	  }
+	  return false;
+	}
+	
+	private void prefetch(){
+	  while (!_stopped){
+	    String offset;
+	    int epoch;
+	    synchronized(this){
+	      offset = _fetchOffset;
+	      epoch = _epoch;
+	    }
+	    try{
+	      if (!prefetchBatch(offset, epoch)){
+	        if (logger.isDebugEnabled()){
+	          logger.debug("no more data");
+	        }
+	        synchronized(this){
+	          if (!_stopped && epoch == _epoch){
+	            this.wait(_retryTime);
+	          }
+	        }
+	      }
+	    }
+	    catch(InterruptedException e){
+	      break;
+	    }
+	    catch(HttpException e){
+	      if (_stopped){
+	        break;
+	      }
+	      logger.error(e.getMessage(),e);
+	      logger.error("retrying in "+_retryTime+"ms");
+	      try{
+	        synchronized(this){
+	          this.wait(_retryTime);
+	        }
+	      }
+	      catch(InterruptedException e1){
+	        break;
+	      }
+	    }
+	  }
+	}
+	
+	private DataEvent<D> nextBuffered(BlockingQueue<BufferedEvent<D>> buffer){
+	  while (!_stopped){
+	    BufferedEvent<D> buffered;
+	    try{
+	      buffered = buffer.poll(_retryTime, TimeUnit.MILLISECONDS);
+	    }
+	    catch(InterruptedException e){
+	      return null;
+	    }
+	    if (buffered == null){
+	      return null;
+	    }
+	    if (buffered.epoch == _epoch){
+	      _offset = buffered.event.getVersion();
+	      return buffered.event;
+	    }
+	  }
+	  return null;
+	}
+	
 	@Override
 	public DataEvent<D> next() {
 	  if (_stopped){
 		  return null;
 	  }
+	  BlockingQueue<BufferedEvent<D>> buffer = _buffer;
+	  if (buffer != null){
+	    return nextBuffered(buffer);
+	  }
 	  if (_currentDataIter==null || !_currentDataIter.hasNext()){
 		while(true && !_stopped){
 		  try{
@@ -251,7 +488,16 @@ public abstract class HttpStreamDataProvider<D> extends StreamDataProvider<D> im
 	@Override
 	public void reset() {
 	  if (_initialOffset!=null){
+	    synchronized(this){
 		  _offset = _initialOffset;
+		  _fetchOffset = _initialOffset;
+		  _epoch++;
+		  this.notifyAll();
+	    }
+	    BlockingQueue<BufferedEvent<D>> buffer = _buffer;
+	    if (buffer != null){
+	      buffer.clear();
+	    }
 	  }
 	}
 	
@@ -267,10 +513,39 @@ public abstract class HttpStreamDataProvider<D> extends StreamDataProvider<D> im
 		return _responseParseLatency;
 	}
 
+	@Override
+	public int getBufferedEvents() {
+		BlockingQueue<BufferedEvent<D>> buffer = _buffer;
+		return buffer == null ? 0 : buffer.size();
+	}
+
+	@Override
+	public int getBufferCapacity() {
+		BlockingQueue<BufferedEvent<D>> buffer = _buffer;
+		return buffer == null ? 0 : buffer.size() + buffer.remainingCapacity();
+	}
+
 	@Override
 	public void start() {
 		super.start();
 		_stopped=false;
+		if (_prefetchBatches > 0){
+		  synchronized(this){
+		    _fetchOffset = _offset;
+		  }
+		  _buffer = new ArrayBlockingQueue<BufferedEvent<D>>(_prefetchBatches * Math.max(1, _fetchSize));
+		  _prefetchThread = new Thread(new Runnable(){
+		    public void run(){
+		      prefetch();
+		    }
+		  }, "http-prefetch");
+		  _prefetchThread.setDaemon(true);
+		  _prefetchThread.start();
+		  logger.info("prefetching up to "+_prefetchBatches+" batches of "+_fetchSize+" events");
+		}
+		else{
+		  _buffer = null;
+		}
 	}
 
 	@Override
@@ -279,6 +554,10 @@ public abstract class HttpStreamDataProvider<D> extends StreamDataProvider<D> im
 		  _stopped = true;
 		  this.notifyAll();
 		}
+		if (_prefetchThread != null){
+		  _prefetchThread.interrupt();
+		  _prefetchThread = null;
+		}
 		try{
 		  super.stop();
 		}
@@ -9,6 +9,7 @@ import proj.zoie.impl.indexing.StreamDataProvider;
 import proj.zoie.impl.indexing.ZoieConfig;
 
 import com.senseidb.conf.SenseiSchema;
+import com.senseidb.dataprovider.http.HttpStreamDataProvider;
 import com.senseidb.indexing.DataSourceFilter;
 import com.senseidb.indexing.ShardingStrategy;
 import com.senseidb.plugin.AbstractSenseiPlugin;
@@ -17,6 +18,11 @@ import com.senseidb.plugin.SenseiPluginRegistry;
 public abstract class SenseiGateway<V> extends AbstractSenseiPlugin {
 
   public static Comparator<String> DEFAULT_VERSION_COMPARATOR = ZoieConfig.DEFAULT_VERSION_COMPARATOR;
+  /**
+   * The number of the batches, that the http data providers fetch ahead of the indexing
+   * @see HttpStreamDataProvider#setPrefetchBatches(int)
+   */
+  public static final String HTTP_PREFETCH_BATCHES = "http.prefetchBatches";
 
   final public DataSourceFilter<V> getDataSourceFilter(SenseiSchema senseiSchema, SenseiPluginRegistry pluginRegistry) {
     DataSourceFilter<V> dataSourceFilter = pluginRegistry.getBeanByFullPrefix("sensei.gateway.filter",
@@ -32,7 +38,14 @@ public abstract class SenseiGateway<V> extends AbstractSenseiPlugin {
   final public StreamDataProvider<JSONObject> buildDataProvider(SenseiSchema senseiSchema, String oldSinceKey,
       SenseiPluginRegistry pluginRegistry, ShardingStrategy shardingStrategy, Set<Integer> partitions) throws Exception {
     DataSourceFilter<V> filter = getDataSourceFilter(senseiSchema, pluginRegistry);
-    return buildDataProvider(filter, oldSinceKey, shardingStrategy, partitions);
+    StreamDataProvider<JSONObject> dataProvider = buildDataProvider(filter, oldSinceKey, shardingStrategy, partitions);
+    if (dataProvider instanceof HttpStreamDataProvider) {
+      String prefetchBatches = config.get(HTTP_PREFETCH_BATCHES);
+      if (prefetchBatches != null && prefetchBatches.trim().length() > 0) {
+        ((HttpStreamDataProvider<?>) dataProvider).setPrefetchBatches(Integer.parseInt(prefetchBatches.trim()));
+      }
+    }
+    return dataProvider;
   }
 
   abstract public StreamDataProvider<JSONObject> buildDataProvider(DataSourceFilter<V> dataFilter, String oldSinceKey,
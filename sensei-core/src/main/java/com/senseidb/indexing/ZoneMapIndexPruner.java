@@ -0,0 +1,438 @@
+package com.senseidb.indexing;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Logger;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermEnum;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.browseengine.bobo.api.BoboIndexReader;
+import com.browseengine.bobo.api.BrowseSelection;
+import com.browseengine.bobo.api.BrowseSelection.ValueOperation;
+import com.browseengine.bobo.api.FacetSpec;
+import com.browseengine.bobo.facets.FacetHandler;
+import com.browseengine.bobo.facets.data.FacetDataCache;
+import com.browseengine.bobo.facets.filter.FacetRangeFilter;
+import com.browseengine.bobo.facets.impl.MultiValueFacetHandler;
+import com.browseengine.bobo.facets.impl.RangeFacetHandler;
+import com.browseengine.bobo.facets.impl.SimpleFacetHandler;
+import com.senseidb.indexing.activity.facet.ActivityRangeFacetHandler;
+import com.senseidb.metrics.MetricsConstants;
+import com.senseidb.plugin.SenseiPlugin;
+import com.senseidb.plugin.SenseiPluginRegistry;
+import com.senseidb.search.query.QueryConstructor;
+import com.senseidb.search.query.filters.AndFilterConstructor;
+import com.senseidb.search.query.filters.BooleanFilterConstructor;
+import com.senseidb.search.query.filters.FilterConstructor;
+import com.senseidb.search.query.filters.OrFilterConstructor;
+import com.senseidb.search.query.filters.RangeFilterConstructor;
+import com.senseidb.search.query.filters.TermFilterConstructor;
+import com.senseidb.search.query.filters.TermsFilterConstructor;
+import com.senseidb.search.req.SenseiQuery;
+import com.senseidb.search.req.SenseiRequest;
+import com.senseidb.util.BloomFilter;
+import com.senseidb.util.JSONUtil.FastJSONObject;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.MetricName;
+
+/**
+ * Skips the segments, that can't have a hit of the request, by checking its selections and the term, terms and range filters of
+ * its filter tree against the values of the segment. The sorted values of the facet data caches of a segment already are its
+ * exact min/max and value set, the fields without a facet handler can be given bloom filters over their terms, that are built
+ * the first time a segment is checked and kept for its index core.
+ *
+ * <pre>
+ * sensei.index.pruner.class=com.senseidb.indexing.ZoneMapIndexPruner
+ * sensei.index.pruner.bloomFields=member_id,company_id
+ * sensei.index.pruner.bloomFalsePositiveRate=0.01
+ * </pre>
+ */
+public class ZoneMapIndexPruner implements SenseiIndexPruner, SenseiPlugin {
+
+  private static final Logger logger = Logger.getLogger(ZoneMapIndexPruner.class);
+
+  public static final String BLOOM_FIELDS = "bloomFields";
+  public static final String BLOOM_FALSE_POSITIVE_RATE = "bloomFalsePositiveRate";
+  public static final double DEFAULT_BLOOM_FALSE_POSITIVE_RATE = 0.01;
+
+  private static Counter processedReadersCount;
+  private static Counter filteredReadersCount;
+  static{
+    MetricName processedReadersMetric = new MetricName(MetricsConstants.Domain, "zoneMapIndexPruner","processedReaderCount");
+    processedReadersCount = Metrics.newCounter(processedReadersMetric);
+    MetricName filteredReadersMetric = new MetricName(MetricsConstants.Domain,"zoneMapIndexPruner","filteredReaderCount");
+    filteredReadersCount = Metrics.newCounter(filteredReadersMetric);
+  }
+
+  private Set<String> bloomFields = Collections.emptySet();
+  private double bloomFalsePositiveRate = DEFAULT_BLOOM_FALSE_POSITIVE_RATE;
+  // the bloom filters of a segment by its core cache key, shared by all the readers of the segment
+  private final Map<Object, Map<String, BloomFilter>> bloomFilters =
+      Collections.synchronizedMap(new WeakHashMap<Object, Map<String, BloomFilter>>());
+
+  private IndexReaderSelector defaultReaderSelector = new IndexReaderSelector() {
+    @Override
+    public boolean isSelected(BoboIndexReader reader) throws IOException {
+      return true;
+    }
+  };
+
+  @Override
+  public IndexReaderSelector getReaderSelector(SenseiRequest req) {
+    final List<BrowseSelection> selections = getPrunableSelections(req);
+    final JSONObject filter = getFilter(req.getQuery());
+    if (selections.isEmpty() && filter == null) {
+      return defaultReaderSelector;
+    }
+    return new IndexReaderSelector() {
+      @Override
+      public boolean isSelected(BoboIndexReader reader) throws IOException {
+        processedReadersCount.inc();
+        for (BrowseSelection selection : selections) {
+          if (!canMatch(reader, selection)) {
+            filteredReadersCount.inc();
+            return false;
+          }
+        }
+        if (filter != null && !canMatch(reader, filter)) {
+          filteredReadersCount.inc();
+          return false;
+        }
+        return true;
+      }
+    };
+  }
+
+  @Override
+  public void sort(List<BoboIndexReader> readers) {
+    // do nothing
+  }
+
+  /**
+   * @return the selections, which facets are not expanded. The facet counts of an expanded selection include the documents,
+   * that don't match it, so the segments without a match still count
+   */
+  static List<BrowseSelection> getPrunableSelections(SenseiRequest req) {
+    BrowseSelection[] selections = req.getSelections();
+    if (selections == null || selections.length == 0) {
+      return Collections.emptyList();
+    }
+    List<BrowseSelection> ret = new ArrayList<BrowseSelection>(selections.length);
+    for (BrowseSelection selection : selections) {
+      FacetSpec facetSpec = req.getFacetSpec(selection.getFieldName());
+      if (facetSpec == null || !facetSpec.isExpandSelection()) {
+        ret.add(selection);
+      }
+    }
+    return ret;
+  }
+
+  static JSONObject getFilter(SenseiQuery query) {
+    if (query == null) {
+      return null;
+    }
+    try {
+      return new FastJSONObject(new String(query.toBytes(), SenseiQuery.utf8Charset)).optJSONObject(QueryConstructor.FILTER_PARAM);
+    } catch (JSONException e) {
+      logger.debug("the query is not json, the filter is not used for pruning: " + query);
+      return null;
+    }
+  }
+
+  boolean canMatch(BoboIndexReader reader, BrowseSelection selection) throws IOException {
+    String[] values = selection.getValues();
+    if (values == null || values.length == 0) {
+      return true;
+    }
+    boolean isAnd = selection.getSelectionOperation() == ValueOperation.ValueOperationAnd;
+    FacetHandler<?> handler = reader.getFacetHandler(selection.getFieldName());
+    if (handler instanceof RangeFacetHandler) {
+      for (String value : values) {
+        boolean canMatch = canMatchRange(reader, selection.getFieldName(), value);
+        if (canMatch != isAnd) {
+          return canMatch;
+        }
+      }
+      return isAnd;
+    }
+    if (handler instanceof SimpleFacetHandler || handler instanceof MultiValueFacetHandler) {
+      return canMatchValues(reader, selection.getFieldName(), values, isAnd);
+    }
+    return true;
+  }
+
+  /**
+   * @return false if no document of the segment surely matches the filter
+   */
+  boolean canMatch(BoboIndexReader reader, JSONObject filter) throws IOException {
+    Iterator<?> keys = filter.keys();
+    if (!keys.hasNext()) {
+      return true;
+    }
+    try {
+      String type = (String) keys.next();
+      Object body = filter.get(type);
+      if (AndFilterConstructor.FILTER_TYPE.equals(type)) {
+        return canMatchAll(reader, (JSONArray) body);
+      }
+      if (OrFilterConstructor.FILTER_TYPE.equals(type)) {
+        return canMatchAny(reader, (JSONArray) body);
+      }
+      if (BooleanFilterConstructor.FILTER_TYPE.equals(type)) {
+        JSONObject bool = (JSONObject) body;
+        Object must = bool.opt(FilterConstructor.MUST_PARAM);
+        if (must instanceof JSONObject && !canMatch(reader, (JSONObject) must)) {
+          return false;
+        }
+        if (must instanceof JSONArray && !canMatchAll(reader, (JSONArray) must)) {
+          return false;
+        }
+        JSONArray should = bool.optJSONArray(FilterConstructor.SHOULD_PARAM);
+        return should == null || canMatchAny(reader, should);
+      }
+      if (TermFilterConstructor.FILTER_TYPE.equals(type)) {
+        String field = getField((JSONObject) body);
+        if (field == null) {
+          return true;
+        }
+        Object value = ((JSONObject) body).get(field);
+        String text = value instanceof JSONObject ? ((JSONObject) value).getString(FilterConstructor.VALUE_PARAM) : String.valueOf(value);
+        return canMatchValues(reader, field, new String[] { text }, false);
+      }
+      if (TermsFilterConstructor.FILTER_TYPE.equals(type)) {
+        String field = getField((JSONObject) body);
+        if (field == null) {
+          return true;
+        }
+        Object value = ((JSONObject) body).get(field);
+        if (value instanceof JSONArray) {
+          return canMatchValues(reader, field, getStrings((JSONArray) value), false);
+        }
+        JSONArray values = ((JSONObject) value).optJSONArray(FilterConstructor.VALUES_PARAM);
+        if (values == null || values.length() == 0) {
+          return true;
+        }
+        String op = ((JSONObject) value).optString(FilterConstructor.OPERATOR_PARAM, FilterConstructor.OR_PARAM);
+        return canMatchValues(reader, field, getStrings(values), !FilterConstructor.OR_PARAM.equals(op));
+      }
+      if (RangeFilterConstructor.FILTER_TYPE.equals(type)) {
+        String field = getField((JSONObject) body);
+        if (field == null) {
+          return true;
+        }
+        JSONObject range = ((JSONObject) body).getJSONObject(field);
+        if (range.optBoolean(FilterConstructor.NOOPTIMIZE_PARAM, false)) {
+          return true;
+        }
+        return canMatchRange(reader, field, RangeFilterConstructor.getRangeString(range));
+      }
+      return true;
+    } catch (JSONException e) {
+      // a malformed filter fails when it is built for the search
+      return true;
+    } catch (ClassCastException e) {
+      return true;
+    }
+  }
+
+  private boolean canMatchAll(BoboIndexReader reader, JSONArray filters) throws IOException, JSONException {
+    for (int i = 0; i < filters.length(); ++i) {
+      if (!canMatch(reader, filters.getJSONObject(i))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private boolean canMatchAny(BoboIndexReader reader, JSONArray filters) throws IOException, JSONException {
+    for (int i = 0; i < filters.length(); ++i) {
+      if (canMatch(reader, filters.getJSONObject(i))) {
+        return true;
+      }
+    }
+    return filters.length() == 0;
+  }
+
+  private static String getField(JSONObject body) {
+    for (Iterator<?> iter = body.keys(); iter.hasNext();) {
+      String key = (String) iter.next();
+      if (!FilterConstructor.NOOPTIMIZE_PARAM.equals(key)) {
+        return key;
+      }
+    }
+    return null;
+  }
+
+  private static String[] getStrings(JSONArray array) throws JSONException {
+    String[] strings = new String[array.length()];
+    for (int i = 0; i < strings.length; ++i) {
+      strings[i] = array.getString(i);
+    }
+    return strings;
+  }
+
+  private boolean canMatchValues(BoboIndexReader reader, String field, String[] values, boolean isAnd) throws IOException {
+    FacetHandler<?> handler = reader.getFacetHandler(field);
+    if (handler != null) {
+      // the values of the other facet handlers, such as path or range ones, don't match their terms
+      if (!(handler instanceof SimpleFacetHandler) && !(handler instanceof MultiValueFacetHandler)) {
+        return true;
+      }
+      Object data = reader.getFacetData(field);
+      if (!(data instanceof FacetDataCache)) {
+        return true;
+      }
+      FacetDataCache dataCache = (FacetDataCache) data;
+      for (String value : values) {
+        boolean canMatch;
+        try {
+          int index = dataCache.valArray.indexOf(value);
+          canMatch = index >= 0 && dataCache.freqs[index] > 0;
+        } catch (RuntimeException e) {
+          // such as a value, that is not a number, of a numeric facet
+          canMatch = true;
+        }
+        if (canMatch != isAnd) {
+          return canMatch;
+        }
+      }
+      return isAnd;
+    }
+    BloomFilter bloomFilter = getBloomFilter(reader, field);
+    if (bloomFilter == null) {
+      return true;
+    }
+    for (String value : values) {
+      boolean canMatch = bloomFilter.mightContain(value);
+      if (canMatch != isAnd) {
+        return canMatch;
+      }
+    }
+    return isAnd;
+  }
+
+  private boolean canMatchRange(BoboIndexReader reader, String field, String rangeString) {
+    FacetHandler<?> handler = reader.getFacetHandler(field);
+    if (handler == null || handler instanceof ActivityRangeFacetHandler) {
+      return true;
+    }
+    Object data = reader.getFacetData(field);
+    if (!(data instanceof FacetDataCache)) {
+      return true;
+    }
+    FacetDataCache dataCache = (FacetDataCache) data;
+    int[] range;
+    try {
+      range = FacetRangeFilter.parse(dataCache, rangeString);
+    } catch (RuntimeException e) {
+      return true;
+    }
+    if (range == null) {
+      return true;
+    }
+    for (int i = Math.max(range[0], 0); i <= range[1] && i < dataCache.freqs.length; ++i) {
+      if (dataCache.freqs[i] > 0) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private BloomFilter getBloomFilter(BoboIndexReader reader, String field) throws IOException {
+    if (!bloomFields.contains(field)) {
+      return null;
+    }
+    Object core = reader.getCoreCacheKey();
+    Map<String, BloomFilter> segmentFilters;
+    synchronized (bloomFilters) {
+      segmentFilters = bloomFilters.get(core);
+      if (segmentFilters == null) {
+        segmentFilters = new ConcurrentHashMap<String, BloomFilter>();
+        bloomFilters.put(core, segmentFilters);
+      }
+    }
+    BloomFilter bloomFilter = segmentFilters.get(field);
+    if (bloomFilter == null) {
+      bloomFilter = buildBloomFilter(reader, field, bloomFalsePositiveRate);
+      segmentFilters.put(field, bloomFilter);
+      if (logger.isDebugEnabled()) {
+        logger.debug("built the bloom filter of " + field + " for a segment of " + reader.maxDoc() + " docs: "
+            + bloomFilter.getSizeInBytes() + " bytes");
+      }
+    }
+    return bloomFilter;
+  }
+
+  static BloomFilter buildBloomFilter(IndexReader reader, String field, double falsePositiveRate) throws IOException {
+    int count = 0;
+    TermEnum terms = reader.terms(new Term(field, ""));
+    try {
+      do {
+        Term term = terms.term();
+        if (term == null || !field.equals(term.field())) {
+          break;
+        }
+        ++count;
+      } while (terms.next());
+    } finally {
+      terms.close();
+    }
+
+    BloomFilter bloomFilter = new BloomFilter(count, falsePositiveRate);
+    terms = reader.terms(new Term(field, ""));
+    try {
+      do {
+        Term term = terms.term();
+        if (term == null || !field.equals(term.field())) {
+          break;
+        }
+        bloomFilter.add(term.text());
+      } while (terms.next());
+    } finally {
+      terms.close();
+    }
+    return bloomFilter;
+  }
+
+  @Override
+  public void init(Map<String, String> config, SenseiPluginRegistry pluginRegistry) {
+    String fields = config.get(BLOOM_FIELDS);
+    if (fields != null && fields.trim().length() > 0) {
+      Set<String> set = new HashSet<String>();
+      for (String field : fields.split(",")) {
+        if (field.trim().length() > 0) {
+          set.add(field.trim());
+        }
+      }
+      bloomFields = set;
+    }
+    String rate = config.get(BLOOM_FALSE_POSITIVE_RATE);
+    if (rate != null && rate.trim().length() > 0) {
+      bloomFalsePositiveRate = Double.parseDouble(rate.trim());
+    }
+  }
+
+  @Override
+  public void start() {
+  }
+
+  @Override
+  public void stop() {
+    bloomFilters.clear();
+  }
+
+}
@@ -9,11 +9,17 @@ public class ActivityConfig  {
   private int flushBufferMaxDelayInSeconds = 15;
   private int purgeJobFrequencyInSeconds = 0;
   private int undeletableBufferSize = 500;
+  private boolean memoryMapped = false;
+  private boolean packedTimeHits = false;
+  private int updateThreads = 1;
   public  ActivityConfig(SenseiPluginRegistry pluginRegistry) {
     flushBufferSize = getInt(pluginRegistry.getConfiguration(), "flushBufferSize", 50000);
     flushBufferMaxDelayInSeconds = getInt(pluginRegistry.getConfiguration(), "flushBufferMaxDelayInSeconds", 15);
     purgeJobFrequencyInSeconds = getInt(pluginRegistry.getConfiguration(), "purgeJobFrequencyInMinutes", 0);
     undeletableBufferSize = getInt(pluginRegistry.getConfiguration(), "undeletableBufferSize", 500);
+    memoryMapped = getBoolean(pluginRegistry.getConfiguration(), "memoryMapped", false);
+    packedTimeHits = getBoolean(pluginRegistry.getConfiguration(), "packedTimeHits", false);
+    updateThreads = getInt(pluginRegistry.getConfiguration(), "updateThreads", 1);
     
   }
   public ActivityConfig() {
@@ -22,6 +28,10 @@ public class ActivityConfig  {
     String compoundKey = "sensei.activity.config." + key;
     return configuration.getInt(compoundKey, defaultValue);
   }
+  private static boolean getBoolean(Configuration configuration, String key, boolean defaultValue) {
+    String compoundKey = "sensei.activity.config." + key;
+    return configuration.getBoolean(compoundKey, defaultValue);
+  }
  
   public int getFlushBufferSize() {
     return flushBufferSize;
@@ -35,5 +45,32 @@ public class ActivityConfig  {
   public int getUndeletableBufferSize() {
     return undeletableBufferSize;
   }
+  /**
+   * If true the primitive activity values are read and written directly in the memory mapped activity files, instead of being loaded into heap arrays
+   */
+  public boolean isMemoryMapped() {
+    return memoryMapped;
+  }
+  public void setMemoryMapped(boolean memoryMapped) {
+    this.memoryMapped = memoryMapped;
+  }
+  /**
+   * If true the time hits of the time aggregated activities are kept in the packed primitive arrays of {@link com.senseidb.indexing.activity.time.PackedTimeHits}
+   */
+  public boolean isPackedTimeHits() {
+    return packedTimeHits;
+  }
+  public void setPackedTimeHits(boolean packedTimeHits) {
+    this.packedTimeHits = packedTimeHits;
+  }
+  /**
+   * The number of threads, that apply a batch of activity updates in {@link CompositeActivityValues#update(long[], String, java.util.List)}
+   */
+  public int getUpdateThreads() {
+    return updateThreads;
+  }
+  public void setUpdateThreads(int updateThreads) {
+    this.updateThreads = updateThreads;
+  }
   
 }
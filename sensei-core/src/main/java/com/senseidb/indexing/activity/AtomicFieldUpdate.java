@@ -8,7 +8,7 @@ public abstract class AtomicFieldUpdate {
   public int index;   
   public abstract int getFieldSizeInBytes();
   public abstract void update(MappedByteBuffer mappedByteBuffer, int offset);
-  public abstract void update(RandomAccessFile storedFile, int offset);
+  public abstract void update(RandomAccessFile storedFile, long offset);
   
   public static class IntFieldUpdate extends AtomicFieldUpdate {
     public int value;
@@ -22,7 +22,7 @@ public abstract class AtomicFieldUpdate {
     }
 
     @Override
-    public void update(RandomAccessFile storedFile, int offset) {
+    public void update(RandomAccessFile storedFile, long offset) {
       try {
         storedFile.seek(offset);
         storedFile.writeInt(value);
@@ -43,7 +43,7 @@ public abstract class AtomicFieldUpdate {
       }
 
       @Override
-      public void update(RandomAccessFile storedFile, int offset) {
+      public void update(RandomAccessFile storedFile, long offset) {
         try {
           storedFile.seek(offset);
           storedFile.writeLong(value);
@@ -82,7 +82,7 @@ public abstract class AtomicFieldUpdate {
     }
 
     @Override
-    public void update(RandomAccessFile storedFile, int offset) {
+    public void update(RandomAccessFile storedFile, long offset) {
       try {
         storedFile.seek(offset);
         storedFile.writeFloat(value);
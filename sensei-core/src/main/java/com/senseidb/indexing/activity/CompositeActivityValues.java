@@ -6,6 +6,7 @@ import it.unimi.dsi.fastutil.longs.Long2IntMap;
 import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
@@ -13,9 +14,13 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
@@ -43,12 +48,18 @@ import com.yammer.metrics.core.MetricName;
  * to keep track of uid to array index mapping, persisted and in memory
  * versions. The the document gets into the system, the class will find/create
  * uid to index mapping, and change the activity values for the activity fields
- * found in the document
+ * found in the document. <br>
+ * The updates of the existing documents hold the read lock of the globalLock and the lock of the uid stripe, so the documents
+ * are updated in parallel and don't block the readers. Adding and deleting documents changes the uid to index mapping and might grow the columns,
+ * so it holds the write lock. <br>
+ * An update holds the read lock of the versionedUpdateLock from the first value it applies until the version is advanced,
+ * the flush takes the write lock before swapping the batches, so the persisted values always match the persisted version
  * 
  */
 public class CompositeActivityValues {
 
   private static final int DEFAULT_INITIAL_CAPACITY = 5000;
+  private static final int UID_LOCK_STRIPES = 1024;
   private final static Logger logger = Logger.getLogger(CompositeActivityValues.class);
   protected Comparator<String> versionComparator;
 
@@ -65,6 +76,11 @@ public class CompositeActivityValues {
   protected RecentlyAddedUids recentlyAddedUids;
   protected AtomicInteger indexSize;
   protected volatile Metadata metadata;
+  protected ExecutorService updateExecutor;
+  private final Object[] uidLocks = new Object[UID_LOCK_STRIPES];
+  private final Object versionLock = new Object();
+  private final ReadWriteLock versionedUpdateLock = new ReentrantReadWriteLock();
+  private final AtomicBoolean flushRequested = new AtomicBoolean(false);
 
   private volatile boolean closed;
   private ActivityConfig activityConfig;
@@ -85,7 +101,9 @@ public class CompositeActivityValues {
   }
 
   CompositeActivityValues() {
-
+    for (int i = 0; i < UID_LOCK_STRIPES; i++) {
+      uidLocks[i] = new Object();
+    }
   }
 
   public void init() {
@@ -98,8 +116,10 @@ public class CompositeActivityValues {
   }
 
   public void updateVersion(String version) {
-    if (versionComparator.compare(lastVersion, version) < 0) {
-      lastVersion = version;
+    synchronized (versionLock) {
+      if (versionComparator.compare(lastVersion, version) < 0) {
+        lastVersion = version;
+      }
     }
   }
 
@@ -112,16 +132,113 @@ public class CompositeActivityValues {
       return -1;
     }
     if (map.isEmpty()) {
-      lastVersion = version;
+      updateVersion(version);
       return -1;
     }
-    int index = -1;
+    int index;
+    versionedUpdateLock.readLock().lock();
+    try {
+      index = updateDocument(uid, map);
+      updateVersion(version);
+    } finally {
+      versionedUpdateLock.readLock().unlock();
+    }
+    flushIfRequested();
+    return index;
+  }
 
+  /**
+   * Updates the activities of several documents, that came with the same version. The documents are split by the uid lock stripes
+   * between the {@link ActivityConfig#getUpdateThreads()} threads, so the updates of the same uid are applied in the order of the batch.
+   * The method is thread safe, so the batches might be also applied from several consumer threads
+   * @param uids
+   * @param version
+   * @param maps the activity values of every uid
+   * @return the array indexes of the documents, -1 if the document wasn't updated
+   */
+  public int[] update(final long[] uids, String version, final List<Map<String, Object>> maps) {
+    final int[] ret = new int[uids.length];
+    Arrays.fill(ret, -1);
+    if (valuesMap.isEmpty()) {
+      return ret;
+    }
+    if (versionComparator.compare(lastVersion, version) > 0) {
+      versionRejectionCounter.inc();
+      return ret;
+    }
+    final int partitions = updateExecutor != null ? activityConfig.getUpdateThreads() : 1;
+    //a flush in the middle of the batch would persist a part of it with the previous version
+    versionedUpdateLock.readLock().lock();
+    try {
+      if (partitions == 1 || uids.length < partitions) {
+        updatePartition(uids, maps, ret, 1, 0);
+      } else {
+        List<Future<?>> futures = new ArrayList<Future<?>>(partitions);
+        for (int i = 0; i < partitions; i++) {
+          final int partition = i;
+          futures.add(updateExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+              updatePartition(uids, maps, ret, partitions, partition);
+            }
+          }));
+        }
+        for (Future<?> future : futures) {
+          try {
+            future.get();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+          } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+          }
+        }
+      }
+      updateVersion(version);
+    } finally {
+      versionedUpdateLock.readLock().unlock();
+    }
+    flushIfRequested();
+    return ret;
+  }
+
+  private void updatePartition(long[] uids, List<Map<String, Object>> maps, int[] indexes, int partitions, int partition) {
+    for (int i = 0; i < uids.length; i++) {
+      Map<String, Object> map = maps.get(i);
+      if (map == null || map.isEmpty() || getUidStripe(uids[i]) % partitions != partition) {
+        continue;
+      }
+      indexes[i] = updateDocument(uids[i], map);
+    }
+  }
+
+  private static int getUidStripe(long uid) {
+    return ((int) (uid ^ (uid >>> 32)) * 0x9E3779B9) >>> 22;
+  }
+
+  /**
+   * The existing documents are updated under the read lock, the lock of the uid stripe makes the "+n" updates of the same document atomic.
+   * The columns don't grow while the read lock is held, as only the new documents might need more capacity
+   */
+  private int updateDocument(long uid, Map<String, Object> map) {
+    totalUpdatesCounter.inc();
+    Lock readLock = globalLock.readLock();
+    readLock.lock();
+    try {
+      if (uidToArrayIndex.containsKey(uid)) {
+        int index = uidToArrayIndex.get(uid);
+        synchronized (uidLocks[getUidStripe(uid)]) {
+          requestFlush(updateActivities(map, index));
+        }
+        return index;
+      }
+    } finally {
+      readLock.unlock();
+    }
     Lock writeLock = globalLock.writeLock();
-    boolean needToFlush = false;
+    writeLock.lock();
     try {
-      writeLock.lock();
-      totalUpdatesCounter.inc();
+      int index;
       if (uidToArrayIndex.containsKey(uid)) {
         index = uidToArrayIndex.get(uid);
       } else {
@@ -135,18 +252,25 @@ public class CompositeActivityValues {
         }
         uidToArrayIndex.put(uid, index);
         recentlyAddedUids.add(uid);
-        needToFlush = updateBatch.addFieldUpdate(new Update(index, uid));
+        requestFlush(updateBatch.addFieldUpdate(new Update(index, uid)));
       }
-      boolean currentUpdate = updateActivities(map, index);
-      needToFlush = needToFlush || currentUpdate;
-      lastVersion = version;
+      requestFlush(updateActivities(map, index));
+      return index;
     } finally {
       writeLock.unlock();
     }
+  }
+
+  private void requestFlush(boolean needToFlush) {
     if (needToFlush) {
+      flushRequested.set(true);
+    }
+  }
+
+  private void flushIfRequested() {
+    if (flushRequested.compareAndSet(true, false)) {
       flush();
     }
-    return index;
   }
 
   public ActivityPrimitiveValues getActivityValues(String fieldName) {
@@ -281,6 +405,24 @@ public class CompositeActivityValues {
     if (closed || activityStorage == null) {
       return;
     }
+    // the updates in progress should advance the version before the batches are swapped
+    Lock versionedUpdateWriteLock = versionedUpdateLock.writeLock();
+    versionedUpdateWriteLock.lock();
+    try {
+      // no update should be in progress while the batches are swapped
+      Lock writeLock = globalLock.writeLock();
+      writeLock.lock();
+      try {
+        prepareFlush();
+      } finally {
+        writeLock.unlock();
+      }
+    } finally {
+      versionedUpdateWriteLock.unlock();
+    }
+  }
+
+  private void prepareFlush() {
     final boolean flushDeletesNeeded = pendingDeletes.updates.size() > 0;
     final UpdateBatch<Update> batchToDelete = (flushDeletesNeeded) ? pendingDeletes : null;
     if (flushDeletesNeeded) {
@@ -343,6 +485,9 @@ public class CompositeActivityValues {
 
   public void close() {
     closed = true;
+    if (updateExecutor != null) {
+      updateExecutor.shutdown();
+    }
     executor.shutdown();
     try {
       executor.awaitTermination(2, TimeUnit.SECONDS);
@@ -447,6 +592,9 @@ public class CompositeActivityValues {
     ret.updateBatch = new UpdateBatch<Update>(ret.activityConfig);
     ret.pendingDeletes = new UpdateBatch<Update>(ret.activityConfig);
     ret.recentlyAddedUids = new RecentlyAddedUids(ret.activityConfig.getUndeletableBufferSize());
+    if (ret.activityConfig.getUpdateThreads() > 1) {
+      ret.updateExecutor = Executors.newFixedThreadPool(ret.activityConfig.getUpdateThreads());
+    }
 
     int count = 0;
     if (ret.metadata != null) {
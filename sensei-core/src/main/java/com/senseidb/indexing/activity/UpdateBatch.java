@@ -20,7 +20,7 @@ public class UpdateBatch<T> {
     batchSize = activityConfig.getFlushBufferSize();
     delay = activityConfig.getFlushBufferMaxDelayInSeconds() * 1000;
   }
-  public boolean addFieldUpdate(T fieldUpdate) {
+  public synchronized boolean addFieldUpdate(T fieldUpdate) {
     updates.add(fieldUpdate);
     if (flushNeeded()) {
       return true;
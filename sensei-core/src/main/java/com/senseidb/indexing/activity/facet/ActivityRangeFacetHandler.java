@@ -82,10 +82,10 @@ public class ActivityRangeFacetHandler extends FacetHandler<int[]> {
         if (value == null || value.isEmpty()) {
           return  EmptyDocIdSet.getInstance();
         }
-        final int[] intArray = activityValues instanceof ActivityIntValues ? ((ActivityIntValues) activityValues).getFieldValues() : null;
-        final float[] floatArray = activityValues instanceof ActivityFloatValues ? ((ActivityFloatValues) activityValues).getFieldValues() : null;
-        final long[] longArray = activityValues instanceof ActivityLongValues ? ((ActivityLongValues) activityValues).getFieldValues() : null;
-        if (longArray == null) {
+        final ActivityIntValues intValues = activityValues instanceof ActivityIntValues ? (ActivityIntValues) activityValues : null;
+        final ActivityFloatValues floatValues = activityValues instanceof ActivityFloatValues ? (ActivityFloatValues) activityValues : null;
+        final ActivityLongValues longValues = activityValues instanceof ActivityLongValues ? (ActivityLongValues) activityValues : null;
+        if (longValues == null) {
             int[] range = parseRaw(value);
             final int startValue = range[0];
             final int endValue = range[1];
@@ -95,26 +95,26 @@ public class ActivityRangeFacetHandler extends FacetHandler<int[]> {
             return new RandomAccessDocIdSet() {          
                 @Override
                 public DocIdSetIterator iterator() throws IOException {
-                    if (intArray != null) {
-                      return new ActivityRangeIntFilterIterator(intArray, indexes, startValue, endValue);           
+                    if (intValues != null) {
+                      return new ActivityRangeIntFilterIterator(intValues, indexes, startValue, endValue);           
                     } else {
-                      return new ActivityRangeFloatFilterIterator(floatArray, indexes, startValue, endValue); 
+                      return new ActivityRangeFloatFilterIterator(floatValues, indexes, startValue, endValue); 
                     }
                 }
                 @Override
                 public boolean get(int docId) {           
                   if (indexes[docId] == -1) return false;
-                  if (intArray != null) {
-                    int val = intArray[indexes[docId]]; 
+                  if (intValues != null) {
+                    int val = intValues.getIntValue(indexes[docId]); 
                     return val >= startValue && val < endValue && val != Integer.MIN_VALUE;
                   }
-                  float val = floatArray[indexes[docId]]; 
+                  float val = floatValues.getFloatValue(indexes[docId]); 
                   return val >= startValue && val < endValue && val != Integer.MIN_VALUE;      
                  
                 }
               };
         } else {
-            final long[] longRange = longArray != null ?  parseRawLong(value) : null;
+            final long[] longRange = parseRawLong(value);
             final long startValue = longRange[0];
             final long endValue = longRange[1];
             if (startValue >= endValue) {
@@ -123,13 +123,13 @@ public class ActivityRangeFacetHandler extends FacetHandler<int[]> {
         return new RandomAccessDocIdSet() {          
           @Override
           public DocIdSetIterator iterator() throws IOException {
-                  return new ActivityRangeLongFilterIterator(longArray, indexes, startValue, endValue);  
+                  return new ActivityRangeLongFilterIterator(longValues, indexes, startValue, endValue);  
           }
           
           @Override
           public boolean get(int docId) {           
             if (indexes[docId] == -1) return false;
-                long val = longArray[indexes[docId]]; 
+                long val = longValues.getLongValue(indexes[docId]); 
                 return val >= startValue && val < endValue && val != Long.MIN_VALUE;
           }
         };
@@ -154,21 +154,21 @@ public class ActivityRangeFacetHandler extends FacetHandler<int[]> {
     if (id < 0 || id >= facetData.length) {
       return Integer.MIN_VALUE;
     }
-    return facetData[id] != -1 ? ((ActivityIntValues)activityValues).fieldValues[facetData[id]] : Integer.MIN_VALUE;
+    return facetData[id] != -1 ? ((ActivityIntValues)activityValues).getIntValue(facetData[id]) : Integer.MIN_VALUE;
   }
   public long getLongActivityValue(int[] facetData, int id) {
 
       if (id < 0 || id >= facetData.length) {
         return Long.MIN_VALUE;
       }
-      return facetData[id] != -1 ? ((ActivityLongValues)activityValues).fieldValues[facetData[id]] : Long.MIN_VALUE;
+      return facetData[id] != -1 ? ((ActivityLongValues)activityValues).getLongValue(facetData[id]) : Long.MIN_VALUE;
     }
   public float getFloatActivityValue(int[] facetData, int id) {
     if (id < 0 || id >= facetData.length) {
       return Integer.MIN_VALUE;
     }
 
-    return facetData[id] != -1 ? ((ActivityFloatValues)activityValues).fieldValues[facetData[id]] : Float.MIN_VALUE;
+    return facetData[id] != -1 ? ((ActivityFloatValues)activityValues).getFloatValue(facetData[id]) : Float.MIN_VALUE;
   }
   @Override
   public String[] getFieldValues(BoboIndexReader reader, int id) {   
@@ -183,11 +183,11 @@ public class ActivityRangeFacetHandler extends FacetHandler<int[]> {
 
   @Override
   public DocComparatorSource getDocComparatorSource() {
-    final int[] intArray = activityValues instanceof ActivityIntValues ? ((ActivityIntValues) activityValues).getFieldValues() : null;
-    final float[] floatArray = activityValues instanceof ActivityFloatValues ? ((ActivityFloatValues) activityValues).getFieldValues() : null;
-    final long[] longArray = activityValues instanceof ActivityLongValues ? ((ActivityLongValues) activityValues).getFieldValues() : null;
+    final ActivityIntValues intValues = activityValues instanceof ActivityIntValues ? (ActivityIntValues) activityValues : null;
+    final ActivityFloatValues floatValues = activityValues instanceof ActivityFloatValues ? (ActivityFloatValues) activityValues : null;
+    final ActivityLongValues longValues = activityValues instanceof ActivityLongValues ? (ActivityLongValues) activityValues : null;
     
-    if (intArray != null)
+    if (intValues != null)
     return new DocComparatorSource() {
       @Override
       public DocComparator getComparator(IndexReader reader, int docbase)
@@ -196,19 +196,19 @@ public class ActivityRangeFacetHandler extends FacetHandler<int[]> {
         return new DocComparator() {
           @Override
           public Comparable<Integer> value(ScoreDoc doc) {           
-              return indexes[doc.doc] != -1 ? intArray[indexes[doc.doc]] : 0;           
+              return indexes[doc.doc] != -1 ? intValues.getIntValue(indexes[doc.doc]) : 0;           
           }
 
           @Override
           public int compare(ScoreDoc doc1, ScoreDoc doc2) {  
-            int val1 = indexes[doc1.doc] != -1 ? intArray[indexes[doc1.doc]] : 0; 
-            int val2 = indexes[doc2.doc] != -1 ? intArray[indexes[doc2.doc]] : 0;            
+            int val1 = indexes[doc1.doc] != -1 ? intValues.getIntValue(indexes[doc1.doc]) : 0; 
+            int val2 = indexes[doc2.doc] != -1 ? intValues.getIntValue(indexes[doc2.doc]) : 0;            
             return (val1<val2 ? -1 : (val1==val2 ? 0 : 1));
           }
         };
       }
     };
-    if (longArray != null)
+    if (longValues != null)
         return new DocComparatorSource() {
         @Override
         public DocComparator getComparator(IndexReader reader, int docbase)
@@ -217,13 +217,13 @@ public class ActivityRangeFacetHandler extends FacetHandler<int[]> {
           return new DocComparator() {
             @Override
             public Comparable<Long> value(ScoreDoc doc) {           
-                return indexes[doc.doc] != -1 ? longArray[indexes[doc.doc]] : 0;           
+                return indexes[doc.doc] != -1 ? longValues.getLongValue(indexes[doc.doc]) : 0;           
             }
 
             @Override
             public int compare(ScoreDoc doc1, ScoreDoc doc2) {  
-              long val1 = indexes[doc1.doc] != -1 ? longArray[indexes[doc1.doc]] : 0; 
-              long val2 = indexes[doc2.doc] != -1 ? longArray[indexes[doc2.doc]] : 0;            
+              long val1 = indexes[doc1.doc] != -1 ? longValues.getLongValue(indexes[doc1.doc]) : 0; 
+              long val2 = indexes[doc2.doc] != -1 ? longValues.getLongValue(indexes[doc2.doc]) : 0;            
               return (val1<val2 ? -1 : (val1==val2 ? 0 : 1));
             }
           };
@@ -238,13 +238,13 @@ public class ActivityRangeFacetHandler extends FacetHandler<int[]> {
         return new DocComparator() {
           @Override
           public Comparable<Float> value(ScoreDoc doc) {           
-              return indexes[doc.doc] != -1 ? floatArray[indexes[doc.doc]] : 0;           
+              return indexes[doc.doc] != -1 ? floatValues.getFloatValue(indexes[doc.doc]) : 0;           
           }
 
           @Override
           public int compare(ScoreDoc doc1, ScoreDoc doc2) {  
-            float val1 = indexes[doc1.doc] != -1 ? floatArray[indexes[doc1.doc]] : 0; 
-            float val2 = indexes[doc2.doc] != -1 ? floatArray[indexes[doc2.doc]] : 0;            
+            float val1 = indexes[doc1.doc] != -1 ? floatValues.getFloatValue(indexes[doc1.doc]) : 0; 
+            float val2 = indexes[doc2.doc] != -1 ? floatValues.getFloatValue(indexes[doc2.doc]) : 0;            
             return (val1<val2 ? -1 : (val1==val2 ? 0 : 1));
           }
         };
@@ -4,6 +4,8 @@ import java.io.IOException;
 
 import org.apache.lucene.search.DocIdSetIterator;
 
+import com.senseidb.indexing.activity.primitives.ActivityFloatValues;
+
 /**
  * Performs range iteration over activity fields
  * @author vzhabiuk
@@ -11,13 +13,13 @@ import org.apache.lucene.search.DocIdSetIterator;
  */
 public class ActivityRangeFloatFilterIterator extends DocIdSetIterator {
   private int _doc;
-  protected final float[] fieldValues;
+  protected final ActivityFloatValues fieldValues;
   private final int start;
   private final int end;
   private final int arrLength;
   private int[] indexes;
 
-  public ActivityRangeFloatFilterIterator(float[] fieldValues, int[] indexes,
+  public ActivityRangeFloatFilterIterator(ActivityFloatValues fieldValues, int[] indexes,
       int start, int end) {
     this.fieldValues = fieldValues;
     this.start = start;
@@ -36,7 +38,7 @@ public class ActivityRangeFloatFilterIterator extends DocIdSetIterator {
      if (indexes[_doc] == -1) {
        continue;
      }
-     float value = fieldValues[indexes[_doc]];      
+     float value = fieldValues.getFloatValue(indexes[_doc]);      
      if (value >= start && value < end && value != Float.MIN_VALUE) {
        return _doc;
      }
@@ -4,6 +4,8 @@ import java.io.IOException;
 
 import org.apache.lucene.search.DocIdSetIterator;
 
+import com.senseidb.indexing.activity.primitives.ActivityLongValues;
+
 /**
  * Performs range iteration over activity fields
  * @author vzhabiuk
@@ -11,13 +13,13 @@ import org.apache.lucene.search.DocIdSetIterator;
  */
 public class ActivityRangeLongFilterIterator extends DocIdSetIterator {
   private int _doc;
-  protected final long[] fieldValues;
+  protected final ActivityLongValues fieldValues;
   private final long start;
   private final long end;
   private final int arrLength;
   private int[] indexes;
 
-  public ActivityRangeLongFilterIterator(long[] fieldValues, int[] indexes,
+  public ActivityRangeLongFilterIterator(ActivityLongValues fieldValues, int[] indexes,
           long start, long end) {
     this.fieldValues = fieldValues;
     this.start = start;
@@ -36,7 +38,7 @@ public class ActivityRangeLongFilterIterator extends DocIdSetIterator {
      if (indexes[_doc] == -1) {
        continue;
      }
-     long value = fieldValues[indexes[_doc]];      
+     long value = fieldValues.getLongValue(indexes[_doc]);      
      if (value >= start && value < end && value != Long.MIN_VALUE) {
        return _doc;
      }
@@ -21,7 +21,7 @@ public float[] fieldValues;
     if (fieldValues[index] == Float.MIN_VALUE) {
       fieldValues[index] = 0;
     }
-    setValue(fieldValues, value, index);
+    fieldValues[index] = applyValue(fieldValues[index], value);
     return updateBatch.addFieldUpdate(AtomicFieldUpdate.valueOf(index, fieldValues[index]));
   }
 
@@ -51,27 +51,27 @@ public float[] fieldValues;
 
   /**
    * value might be int or long or String. +n, -n  operations are supported
-   * @param fieldValues
+   * @param currentValue
    * @param value
-   * @param index
+   * @return the new value
    */
-  private static void setValue(float[] fieldValues, Object value, int index) {
+  static float applyValue(float currentValue, Object value) {
     if (value == null) {
-      return;
+      return currentValue;
     }
      if (value instanceof Number) {
-      fieldValues[index] = ((Number) value).floatValue();
+      return ((Number) value).floatValue();
     } else if (value instanceof String) {
       String valStr = (String) value;
       if (valStr.isEmpty()) {
-        return;
+        return currentValue;
       }
       if (valStr.startsWith("+")) {
-        fieldValues[index] = fieldValues[index] + Float.parseFloat(valStr.substring(1));
+        return currentValue + Float.parseFloat(valStr.substring(1));
       } else if (valStr.startsWith("-")) {
-        fieldValues[index] = fieldValues[index] + Float.parseFloat(valStr);
+        return currentValue + Float.parseFloat(valStr);
       } else {
-        fieldValues[index] = Float.parseFloat(valStr);
+        return Float.parseFloat(valStr);
       }
     } else {
       throw new UnsupportedOperationException(
@@ -26,7 +26,7 @@ public class ActivityIntValues extends ActivityPrimitiveValues  {
     if (fieldValues[index] == Integer.MIN_VALUE) {
       fieldValues[index] = 0;
     }
-    setValue(fieldValues, value, index);
+    fieldValues[index] = applyValue(fieldValues[index], value);
     return updateBatch.addFieldUpdate(AtomicFieldUpdate.valueOf(index, fieldValues[index]));
   }
 
@@ -56,29 +56,29 @@ public class ActivityIntValues extends ActivityPrimitiveValues  {
 
   /**
    * value might be int or long or String. +n, -n  operations are supported
-   * @param fieldValues
+   * @param currentValue
    * @param value
-   * @param index
+   * @return the new value
    */
-  private static void setValue(int[] fieldValues, Object value, int index) {
+  static int applyValue(int currentValue, Object value) {
     if (value == null) {
-      return;
+      return currentValue;
     }
     if (value instanceof Integer) {
-      fieldValues[index] = (Integer) value;
+      return (Integer) value;
     } else if (value instanceof Long) {
-      fieldValues[index] = ((Long) value).intValue();
+      return ((Long) value).intValue();
     } else if (value instanceof String) {
       String valStr = (String) value;
       if (valStr.isEmpty()) {
-        return;
+        return currentValue;
       }
       if (valStr.startsWith("+")) {
-        fieldValues[index] = fieldValues[index] + Integer.parseInt(valStr.substring(1));
+        return currentValue + Integer.parseInt(valStr.substring(1));
       } else if (valStr.startsWith("-")) {
-        fieldValues[index] = fieldValues[index] + Integer.parseInt(valStr);
+        return currentValue + Integer.parseInt(valStr);
       } else {
-        fieldValues[index] = Integer.parseInt(valStr);
+        return Integer.parseInt(valStr);
       }
     } else {
       throw new UnsupportedOperationException(
@@ -21,7 +21,7 @@ public class ActivityLongValues extends ActivityPrimitiveValues {
       if (fieldValues[index] == Long.MIN_VALUE) {
         fieldValues[index] = 0;
       }
-      setValue(fieldValues, value, index);
+      fieldValues[index] = applyValue(fieldValues[index], value);
       return updateBatch.addFieldUpdate(AtomicFieldUpdate.valueOf(index, fieldValues[index]));
     }
 
@@ -51,27 +51,27 @@ public class ActivityLongValues extends ActivityPrimitiveValues {
 
     /**
      * value might be int or long or String. +n, -n  operations are supported
-     * @param fieldValues
+     * @param currentValue
      * @param value
-     * @param index
+     * @return the new value
      */
-    private static void setValue(long[] fieldValues, Object value, int index) {
+    static long applyValue(long currentValue, Object value) {
       if (value == null) {
-        return;
+        return currentValue;
       }
        if (value instanceof Number) {
-        fieldValues[index] = ((Number) value).longValue();
+        return ((Number) value).longValue();
       } else if (value instanceof String) {
         String valStr = (String) value;
         if (valStr.isEmpty()) {
-          return;
+          return currentValue;
         }
         if (valStr.startsWith("+")) {
-          fieldValues[index] = fieldValues[index] + Long.parseLong(valStr.substring(1));
+          return currentValue + Long.parseLong(valStr.substring(1));
         } else if (valStr.startsWith("-")) {
-          fieldValues[index] = fieldValues[index] + Long.parseLong(valStr);
+          return currentValue + Long.parseLong(valStr);
         } else {
-          fieldValues[index] = Long.parseLong(valStr);
+          return Long.parseLong(valStr);
         }
       } else {
         throw new UnsupportedOperationException(
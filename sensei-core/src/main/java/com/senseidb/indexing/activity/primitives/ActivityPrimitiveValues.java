@@ -2,6 +2,10 @@ package com.senseidb.indexing.activity.primitives;
 
 import java.io.RandomAccessFile;
 import java.nio.MappedByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import org.apache.log4j.Logger;
 
@@ -21,6 +25,8 @@ public abstract class ActivityPrimitiveValues implements ActivityValues {
   protected ActivityPrimitivesStorage activityFieldStore;
 
   protected volatile UpdateBatch<AtomicFieldUpdate> updateBatch;
+  //the batches returned by prepareFlush, that are not yet written to the file
+  private final Queue<UpdateBatch<AtomicFieldUpdate>> unflushedBatches = new ConcurrentLinkedQueue<UpdateBatch<AtomicFieldUpdate>>();
   private ActivityConfig activityConfig;
 
 
@@ -46,7 +52,7 @@ public abstract class ActivityPrimitiveValues implements ActivityValues {
       throw new IllegalStateException("The activityFile is closed");
     }
     final UpdateBatch<AtomicFieldUpdate> oldBatch = updateBatch;
-
+    unflushedBatches.add(oldBatch);
     updateBatch = new UpdateBatch<AtomicFieldUpdate>(activityConfig);
 
     return new Runnable() {
@@ -56,13 +62,37 @@ public abstract class ActivityPrimitiveValues implements ActivityValues {
             throw new IllegalStateException("The activityFile is closed");
           }
           activityFieldStore.flush(oldBatch.getUpdates());
+          unflushedBatches.remove(oldBatch);
+          afterFlush(oldBatch.getUpdates());
         } catch (Exception ex) {
+          unflushedBatches.remove(oldBatch);
           logger.error("Failure to store the field values to file" + oldBatch.getUpdates(), ex);
         }
       }
     };
   }
 
+  /**
+   * Is called by the flush runnable, after the updates have been written to the file
+   */
+  protected void afterFlush(List<AtomicFieldUpdate> flushedUpdates) {
+  }
+
+  /**
+   * @return the updates, that are not yet written to the file, in the order they were made.
+   * The caller should block the writers
+   */
+  List<AtomicFieldUpdate> getUnflushedUpdates() {
+    //the current batch is read first, so that a batch concurrently moved to the unflushed ones is seen at least once
+    UpdateBatch<AtomicFieldUpdate> currentBatch = updateBatch;
+    List<AtomicFieldUpdate> ret = new ArrayList<AtomicFieldUpdate>();
+    for (UpdateBatch<AtomicFieldUpdate> batch : unflushedBatches) {
+      ret.addAll(batch.getUpdates());
+    }
+    ret.addAll(currentBatch.getUpdates());
+    return ret;
+  }
+
   @Override
   public void close() {
     if (activityFieldStore != null) {
@@ -89,16 +119,17 @@ public abstract class ActivityPrimitiveValues implements ActivityValues {
 
   public static ActivityPrimitiveValues createActivityPrimitiveValues(ActivityPersistenceFactory activityPersistenceFactory, Class<?> type,
       String fieldName, int count) {
+    ActivityPrimitivesStorage primitivesStorage = activityPersistenceFactory.getActivivityPrimitivesStorage(fieldName);
+    boolean memoryMapped = primitivesStorage != null && activityPersistenceFactory.getActivityConfig().isMemoryMapped();
     ActivityPrimitiveValues values = null;
     if (type == int.class) {
-      values = new ActivityIntValues();
+      values = memoryMapped ? new MappedActivityIntValues() : new ActivityIntValues();
     } else if (type == float.class || type == double.class) {
-      values = new ActivityFloatValues();
+      values = memoryMapped ? new MappedActivityFloatValues() : new ActivityFloatValues();
     } else if (type == long.class) {
-        values = new ActivityLongValues();
+        values = memoryMapped ? new MappedActivityLongValues() : new ActivityLongValues();
       } else
       throw new UnsupportedOperationException("Class " + type + " is not supported");
-    ActivityPrimitivesStorage primitivesStorage = activityPersistenceFactory.getActivivityPrimitivesStorage(fieldName);
     values.fieldName = fieldName;
 
     values.activityConfig = activityPersistenceFactory.getActivityConfig();
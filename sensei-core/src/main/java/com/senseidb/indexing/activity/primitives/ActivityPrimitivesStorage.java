@@ -56,7 +56,7 @@ public class ActivityPrimitivesStorage {
       storedFile = new RandomAccessFile(file, "rw");
       fileLength = storedFile.length();
       if (activateMemoryMappedBuffers) {
-        buffer = storedFile.getChannel().map(MapMode.READ_WRITE, 0, file.length());     
+        buffer = storedFile.getChannel().map(MapMode.READ_WRITE, 0, Math.min(fileLength, Integer.MAX_VALUE));
       } 
     } catch (IOException e) {
       logger.error(e.getMessage(), e);
@@ -68,11 +68,12 @@ public class ActivityPrimitivesStorage {
     Assert.state(storedFile != null, "The FileStorage is not initialized");    
     try {
       for (AtomicFieldUpdate update : updates) {       
-         ensureCapacity((update.index + 1) * update.getFieldSizeInBytes());        
-         if (activateMemoryMappedBuffers) {
-           update.update(buffer, update.index * update.getFieldSizeInBytes());          
+         long offset = (long) update.index * update.getFieldSizeInBytes();
+         ensureCapacity(offset + update.getFieldSizeInBytes());
+         if (activateMemoryMappedBuffers && offset + update.getFieldSizeInBytes() <= buffer.capacity()) {
+           update.update(buffer, (int) offset);
          } else {  
-           update.update(storedFile, update.index * update.getFieldSizeInBytes());
+           update.update(storedFile, offset);
          }
       }
       if (activateMemoryMappedBuffers) {
@@ -84,7 +85,7 @@ public class ActivityPrimitivesStorage {
       throw new RuntimeException(e);
     }
   }
-  private void ensureCapacity(int i) {
+  private void ensureCapacity(long i) {
     try {
       if (fileLength > i + 100) {
         return;
@@ -97,12 +98,33 @@ public class ActivityPrimitivesStorage {
       }
       storedFile.setLength(fileLength);
       if (activateMemoryMappedBuffers) {
-        buffer = storedFile.getChannel().map(MapMode.READ_WRITE, 0, fileLength);
+        buffer = storedFile.getChannel().map(MapMode.READ_WRITE, 0, Math.min(fileLength, Integer.MAX_VALUE));
       }
     } catch (Exception e) {
       throw new RuntimeException(e);
     }
   }
+
+  /**
+   * Maps a region of the file in the copy on write mode, the file is extended if it's shorter than the region.
+   * Writes to the returned buffer never reach the file, only the flushed updates do. The copied pages are kept until the buffer is unmapped,
+   * that's why the {@link MappedValuesBuffer} maps the flushed regions again
+   */
+  synchronized MappedByteBuffer mapPrivate(long position, int size) {
+    Assert.state(storedFile != null, "The FileStorage is not initialized");
+    try {
+      if (fileLength < position + size) {
+        fileLength = position + size;
+        storedFile.setLength(fileLength);
+        if (activateMemoryMappedBuffers) {
+          buffer = storedFile.getChannel().map(MapMode.READ_WRITE, 0, Math.min(fileLength, Integer.MAX_VALUE));
+        }
+      }
+      return storedFile.getChannel().map(MapMode.PRIVATE, position, size);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
   public synchronized void close() {
     try {
       if (activateMemoryMappedBuffers) {
@@ -129,10 +151,10 @@ public class ActivityPrimitivesStorage {
               return activityPrimitiveValues;
             }
             activityPrimitiveValues.init((int) (count * INIT_GROWTH_RATIO));
-            if (fileLength < count * activityPrimitiveValues.getFieldSizeInBytes()) {
+            if (fileLength < (long) count * activityPrimitiveValues.getFieldSizeInBytes()) {
               logger.warn("The  activityIndex is corrupted. The file "+ fieldName +" contains " + (fileLength / activityPrimitiveValues.getFieldSizeInBytes()) + " records, while metadata has a bigger number " + count);
               logger.warn("adding extra space");
-              ensureCapacity(count * activityPrimitiveValues.getFieldSizeInBytes());
+              ensureCapacity((long) count * activityPrimitiveValues.getFieldSizeInBytes());
             }
             if (activateMemoryMappedBuffers) {
               activityPrimitiveValues.initFieldValues(count, buffer);
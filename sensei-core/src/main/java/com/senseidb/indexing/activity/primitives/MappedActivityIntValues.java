@@ -0,0 +1,87 @@
+package com.senseidb.indexing.activity.primitives;
+
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+
+import com.senseidb.indexing.activity.AtomicFieldUpdate;
+
+/**
+ * Keeps the int values in the memory mapped activity file instead of the heap array. The startup doesn't copy the values,
+ * the pages are loaded by the OS when they are accessed. {@link #getFieldValues()} returns null, the values should be accessed via {@link #getIntValue(int)}
+ *
+ */
+public class MappedActivityIntValues extends ActivityIntValues {
+  private MappedValuesBuffer values;
+
+  protected MappedActivityIntValues() {
+  }
+
+  @Override
+  public void init(int capacity) {
+    values = new MappedValuesBuffer(activityFieldStore);
+    values.ensureCapacity((long) capacity * 4);
+  }
+
+  @Override
+  public boolean update(int index, Object value) {
+    Lock lock = values.getUpdateLock();
+    lock.lock();
+    try {
+      long offset = (long) index * 4;
+      values.ensureCapacity(offset + 4);
+      int currentValue = values.getInt(offset);
+      if (currentValue == Integer.MIN_VALUE) {
+        currentValue = 0;
+      }
+      int newValue = applyValue(currentValue, value);
+      values.putInt(offset, newValue);
+      return updateBatch.addFieldUpdate(AtomicFieldUpdate.valueOf(index, newValue));
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public int getIntValue(int index) {
+    return values.getInt((long) index * 4);
+  }
+
+  @Override
+  public void setFieldValues(int[] fieldValues) {
+    throw new UnsupportedOperationException("The values are memory mapped");
+  }
+
+  @Override
+  public void initFieldValues(int count, MappedByteBuffer buffer) {
+    values.ensureCapacity((long) count * 4);
+  }
+
+  @Override
+  public void initFieldValues(int count, RandomAccessFile storedFile) {
+    values.ensureCapacity((long) count * 4);
+  }
+
+  @Override
+  public void delete(int index) {
+    Lock lock = values.getUpdateLock();
+    lock.lock();
+    try {
+      values.putInt((long) index * 4, Integer.MIN_VALUE);
+      updateBatch.addFieldUpdate(AtomicFieldUpdate.valueOf(index, Integer.MIN_VALUE));
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  protected void afterFlush(List<AtomicFieldUpdate> flushedUpdates) {
+    values.remap(flushedUpdates, this);
+  }
+
+  @Override
+  public Number getValue(int index) {
+    return getIntValue(index);
+  }
+}
@@ -0,0 +1,87 @@
+package com.senseidb.indexing.activity.primitives;
+
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+
+import com.senseidb.indexing.activity.AtomicFieldUpdate;
+
+/**
+ * Keeps the long values in the memory mapped activity file instead of the heap array. The startup doesn't copy the values,
+ * the pages are loaded by the OS when they are accessed. {@link #getFieldValues()} returns null, the values should be accessed via {@link #getLongValue(int)}
+ *
+ */
+public class MappedActivityLongValues extends ActivityLongValues {
+  private MappedValuesBuffer values;
+
+  protected MappedActivityLongValues() {
+  }
+
+  @Override
+  public void init(int capacity) {
+    values = new MappedValuesBuffer(activityFieldStore);
+    values.ensureCapacity((long) capacity * 8);
+  }
+
+  @Override
+  public boolean update(int index, Object value) {
+    Lock lock = values.getUpdateLock();
+    lock.lock();
+    try {
+      long offset = (long) index * 8;
+      values.ensureCapacity(offset + 8);
+      long currentValue = values.getLong(offset);
+      if (currentValue == Long.MIN_VALUE) {
+        currentValue = 0;
+      }
+      long newValue = applyValue(currentValue, value);
+      values.putLong(offset, newValue);
+      return updateBatch.addFieldUpdate(AtomicFieldUpdate.valueOf(index, newValue));
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public long getLongValue(int index) {
+    return values.getLong((long) index * 8);
+  }
+
+  @Override
+  public void setFieldValues(long[] fieldValues) {
+    throw new UnsupportedOperationException("The values are memory mapped");
+  }
+
+  @Override
+  public void initFieldValues(int count, MappedByteBuffer buffer) {
+    values.ensureCapacity((long) count * 8);
+  }
+
+  @Override
+  public void initFieldValues(int count, RandomAccessFile storedFile) {
+    values.ensureCapacity((long) count * 8);
+  }
+
+  @Override
+  public void delete(int index) {
+    Lock lock = values.getUpdateLock();
+    lock.lock();
+    try {
+      values.putLong((long) index * 8, Long.MIN_VALUE);
+      updateBatch.addFieldUpdate(AtomicFieldUpdate.valueOf(index, Long.MIN_VALUE));
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  protected void afterFlush(List<AtomicFieldUpdate> flushedUpdates) {
+    values.remap(flushedUpdates, this);
+  }
+
+  @Override
+  public Number getValue(int index) {
+    return getLongValue(index);
+  }
+}
@@ -0,0 +1,153 @@
+package com.senseidb.indexing.activity.primitives;
+
+import java.lang.reflect.Method;
+import java.nio.MappedByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.log4j.Logger;
+
+import com.senseidb.indexing.activity.AtomicFieldUpdate;
+
+/**
+ * Copy on write mappings of the file of an {@link ActivityPrimitivesStorage}, split into fixed size chunks, so that
+ * more than 2GB of values can be addressed. The values are written to the private pages, the file itself is only updated by the
+ * flush of the update batches. That way after a restart the file contains exactly the values of the persisted version.
+ * <br>
+ * The private pages of a chunk are only released when the chunk is unmapped, so after each flush the chunks touched by the flushed
+ * updates are mapped again from the file by {@link #remap(List, ActivityPrimitiveValues)}. The reads don't take any lock, so the old mappings
+ * are unmapped by the next remap, when no read can still be using them
+ *
+ */
+class MappedValuesBuffer {
+  private static final Logger logger = Logger.getLogger(MappedValuesBuffer.class);
+  public static final int CHUNK_SHIFT = 26;
+  public static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+  private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+  private final ActivityPrimitivesStorage storage;
+  private volatile MappedByteBuffer[] chunks = new MappedByteBuffer[0];
+  // the chunks replaced by the last remap
+  private List<MappedByteBuffer> retiredChunks = new ArrayList<MappedByteBuffer>();
+  private final ReadWriteLock remapLock = new ReentrantReadWriteLock();
+
+  public MappedValuesBuffer(ActivityPrimitivesStorage storage) {
+    this.storage = storage;
+  }
+
+  /**
+   * Maps the chunks needed to address the given number of bytes. The chunks that are already mapped are kept as is
+   */
+  public synchronized void ensureCapacity(long bytes) {
+    int chunkCount = (int) ((bytes + CHUNK_MASK) >>> CHUNK_SHIFT);
+    if (chunkCount <= chunks.length) {
+      return;
+    }
+    MappedByteBuffer[] newChunks = Arrays.copyOf(chunks, chunkCount);
+    for (int i = chunks.length; i < chunkCount; i++) {
+      newChunks[i] = storage.mapPrivate((long) i << CHUNK_SHIFT, CHUNK_SIZE);
+    }
+    chunks = newChunks;
+  }
+
+  /**
+   * The lock, that should be held while a value is written and its update is added to the update batch,
+   * so that {@link #remap(List, ActivityPrimitiveValues)} never runs in between
+   */
+  public Lock getUpdateLock() {
+    return remapLock.readLock();
+  }
+
+  /**
+   * Maps again the chunks touched by the flushed updates, the updates that are not yet in the file are applied to the new mappings.
+   * Blocks the writers, that hold the {@link #getUpdateLock()}, for the duration of the remap
+   * @param flushedUpdates the updates that have just been written to the file
+   * @param owner the values backed by this buffer, its unflushed updates are read after the writers are blocked
+   */
+  public void remap(List<AtomicFieldUpdate> flushedUpdates, ActivityPrimitiveValues owner) {
+    remapLock.writeLock().lock();
+    try {
+      synchronized (this) {
+        boolean[] touched = new boolean[chunks.length];
+        for (AtomicFieldUpdate update : flushedUpdates) {
+          int chunk = (int) (((long) update.index * update.getFieldSizeInBytes()) >>> CHUNK_SHIFT);
+          if (chunk < touched.length) {
+            touched[chunk] = true;
+          }
+        }
+        for (MappedByteBuffer retiredChunk : retiredChunks) {
+          unmap(retiredChunk);
+        }
+        retiredChunks = new ArrayList<MappedByteBuffer>();
+        MappedByteBuffer[] newChunks = chunks.clone();
+        for (int i = 0; i < newChunks.length; i++) {
+          if (touched[i]) {
+            retiredChunks.add(newChunks[i]);
+            newChunks[i] = storage.mapPrivate((long) i << CHUNK_SHIFT, CHUNK_SIZE);
+          }
+        }
+        for (AtomicFieldUpdate update : owner.getUnflushedUpdates()) {
+          long offset = (long) update.index * update.getFieldSizeInBytes();
+          int chunk = (int) (offset >>> CHUNK_SHIFT);
+          if (chunk < touched.length && touched[chunk]) {
+            update.update(newChunks[chunk], (int) (offset & CHUNK_MASK));
+          }
+        }
+        chunks = newChunks;
+      }
+    } finally {
+      remapLock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Releases the mapping and its private pages right away, instead of when the buffer is garbage collected. Falls back to the
+   * garbage collection if the JVM doesn't expose the cleaner of the buffer
+   */
+  private static void unmap(MappedByteBuffer buffer) {
+    try {
+      Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+      cleanerMethod.setAccessible(true);
+      Object cleaner = cleanerMethod.invoke(buffer);
+      if (cleaner != null) {
+        Method cleanMethod = cleaner.getClass().getMethod("clean");
+        cleanMethod.setAccessible(true);
+        cleanMethod.invoke(cleaner);
+      }
+    } catch (Exception e) {
+      logger.warn("Couldn't unmap the activity chunk, it's released when it's garbage collected: " + e.getMessage());
+    }
+  }
+
+  public long capacity() {
+    return (long) chunks.length << CHUNK_SHIFT;
+  }
+
+  public int getInt(long offset) {
+    return chunks[(int) (offset >>> CHUNK_SHIFT)].getInt((int) (offset & CHUNK_MASK));
+  }
+
+  public void putInt(long offset, int value) {
+    chunks[(int) (offset >>> CHUNK_SHIFT)].putInt((int) (offset & CHUNK_MASK), value);
+  }
+
+  public long getLong(long offset) {
+    return chunks[(int) (offset >>> CHUNK_SHIFT)].getLong((int) (offset & CHUNK_MASK));
+  }
+
+  public void putLong(long offset, long value) {
+    chunks[(int) (offset >>> CHUNK_SHIFT)].putLong((int) (offset & CHUNK_MASK), value);
+  }
+
+  public float getFloat(long offset) {
+    return chunks[(int) (offset >>> CHUNK_SHIFT)].getFloat((int) (offset & CHUNK_MASK));
+  }
+
+  public void putFloat(long offset, float value) {
+    chunks[(int) (offset >>> CHUNK_SHIFT)].putFloat((int) (offset & CHUNK_MASK), value);
+  }
+}
@@ -69,46 +69,41 @@ public class AggregatesUpdateJob implements Runnable {
       return;
     }
     currentCount = 0;;
+    TimeHits timeHits = timeAggregatedActivityValues.timeActivities;
+    int[] updateTempValues = new int[timeAggregatedActivityValues.intActivityValues.length];
     for (int i = 0; i <= timeAggregatedActivityValues.maxIndex; i++) {
-      synchronized (timeAggregatedActivityValues.timeActivities.getLock(i)) {
-        if (!timeAggregatedActivityValues.timeActivities.isSet(i)) {
+      synchronized (timeHits.getLock(i)) {
+        if (!timeHits.isSet(i)) {
           continue;
         }
-        IntContainer activities = timeAggregatedActivityValues.timeActivities.getActivities(i);
-        IntContainer times = timeAggregatedActivityValues.timeActivities.getTimes(i);
-        int[] updateTempValues = new int[timeAggregatedActivityValues.intActivityValues.length];
-        updateActivityValues(timeAggregatedActivityValues.intActivityValues, activities, times, currentTime, i, updateTempValues);        
+        updateActivityValues(timeAggregatedActivityValues.intActivityValues, timeHits, currentTime, i, updateTempValues);        
       }      
     }    
     aggregatesMetadata.updateTime(currentTime);
     logger.info("Finished the AggregatesUpdateJob. Updated " + currentCount + " records");
   }
  
-  private final void updateActivityValues(IntValueHolder[] intActivityValues, IntContainer activities, IntContainer times, int currentTime, int index, int[] updateTempValues) {       
+  private final void updateActivityValues(IntValueHolder[] intActivityValues, TimeHits timeHits, int currentTime, int index, int[] updateTempValues) {       
     int minimumAggregateIndex = 0;
-    for (int activityIndex = 0; activityIndex < activities.getSize(); activityIndex++) { 
+    int size = timeHits.size(index);
+    for (int activityIndex = 0; activityIndex < size; activityIndex++) { 
       //the activity is current. As they are sorted in the ascending order, we can stop now
-      if (times.size() != activities.size()) {
-        throw new IllegalStateException("activities.size = " + activities.getSize() + ", times.size() = " + times.size());
-      }
-      if (times.size() == 0) {
-        continue;
-      }
-      if (currentTime - times.get(activityIndex) < intActivityValues[intActivityValues.length - 1].timeInMinutes) {
+      int time = timeHits.getTime(index, activityIndex);
+      if (currentTime - time < intActivityValues[intActivityValues.length - 1].timeInMinutes) {
         break;
       }
       for (int aggregateIndex = intActivityValues.length - 1; aggregateIndex >= minimumAggregateIndex; aggregateIndex--) {
         IntValueHolder intValueHolder = intActivityValues[aggregateIndex];        
-        int currentElapsedTime = currentTime - times.get(activityIndex);
+        int currentElapsedTime = currentTime - time;
         //activity is current 
         if (currentElapsedTime < intValueHolder.timeInMinutes) {
           minimumAggregateIndex = aggregateIndex + 1;
           break;
         }
-        int previousElapsedTime = aggregatesMetadata.getLastUpdatedTime() - times.get(activityIndex);
+        int previousElapsedTime = aggregatesMetadata.getLastUpdatedTime() - time;
         //activity is not current against the current time, but was current for the previous run
         if (currentElapsedTime >= intValueHolder.timeInMinutes && previousElapsedTime < intValueHolder.timeInMinutes) {
-          int activityValue = activities.get(activityIndex); 
+          int activityValue = timeHits.getActivity(index, activityIndex); 
           if (activityValue != 0) {
             updateTempValues[aggregateIndex] += activityValue;
             currentCount++;
@@ -119,7 +114,7 @@ public class AggregatesUpdateJob implements Runnable {
     for (int i = 0; i < updateTempValues.length; i++) {
       int updateValue = updateTempValues[i];
       if (updateValue != 0) {
-        synchronized (intActivityValues[i].activityIntValues.getFieldValues()) {
+        synchronized (intActivityValues[i].activityIntValues) {
          intActivityValues[i].activityIntValues.update(index, updateValue > 0 ? String.valueOf(-updateValue) : "+" + String.valueOf(updateValue));
        }
        updateTempValues[i] = 0;
@@ -127,16 +122,16 @@ public class AggregatesUpdateJob implements Runnable {
     }
     //remove outdated activities
     while (true) {
-      if (times.size() == 0) {
+      if (timeHits.size(index) == 0) {
         break;
       }
-      int time = times.peekFirst();
+      int time = timeHits.getTime(index, 0);
       int elapsedTime = currentTime - time;
       if (elapsedTime >= intActivityValues[0].timeInMinutes) {
-        times.removeFirst();
-        activities.removeFirst();
-        if (times.size() == 0) {
-          timeAggregatedActivityValues.timeActivities.reset(index);
+        timeHits.removeFirst(index);
+        if (timeHits.size(index) == 0) {
+          timeHits.reset(index);
+          break;
         }
       } else {
         break;
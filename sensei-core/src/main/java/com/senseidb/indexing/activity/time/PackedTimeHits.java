@@ -0,0 +1,305 @@
+package com.senseidb.indexing.activity.time;
+
+import java.util.Arrays;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+
+/**
+ * Keeps the time hits of all the documents in a few large primitive arrays instead of two {@link IntContainer}s per document.
+ * Every document owns a ring of inlineSlots (time, activity) entries in the shared times and activities arrays.
+ * When a document gets more entries, they are moved to a ring of its own in the overflow pool, which doubles when it's full.
+ * The document moves back to the shared arrays once most of its entries expired. <br>
+ * The rings are guarded by striped locks, so that there is no lock object per document. <br>
+ * The per document arrays are split into fixed size pages, growing only adds pages, so the entries are never copied
+ * and the writers holding the striped locks don't race with {@link #ensureCapacity(int)}
+ *
+ */
+public class PackedTimeHits implements TimeHits {
+  public static final int DEFAULT_INLINE_SLOTS = 4;
+  private static final int LOCK_STRIPES = 1024;
+  private static final int NOT_SET = -1;
+  private static final int PAGE_SHIFT = 14;
+  private static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+  private static final int PAGE_MASK = PAGE_SIZE - 1;
+
+  private final int inlineSlots;
+  private final int slotMask;
+  private final int slotShift;
+  private final Object[] locks = new Object[LOCK_STRIPES];
+
+  // the pages of PAGE_SIZE * inlineSlots entries
+  private volatile int[][] times = new int[0][];
+  private volatile int[][] activities = new int[0][];
+  // the ring start for inline documents, -(overflowSlot + 1) for the documents in the overflow pool
+  private volatile int[][] heads = new int[0][];
+  // the number of entries, NOT_SET if the document doesn't have time hits. Is grown last, so it defines the capacity
+  private volatile int[][] sizes = new int[0][];
+
+  // the overflow ring of a document is {head, time0, activity0, time1, activity1, ...}
+  private volatile int[][] overflowPool = new int[16][];
+  private final IntArrayList freeOverflowSlots = new IntArrayList();
+  private int overflowPoolSize = 0;
+
+  public PackedTimeHits(int capacity) {
+    this(capacity, DEFAULT_INLINE_SLOTS);
+  }
+
+  /**
+   * @param capacity
+   * @param inlineSlots the number of entries kept for every document in the shared arrays, should be a power of two
+   */
+  public PackedTimeHits(int capacity, int inlineSlots) {
+    if (inlineSlots <= 0 || Integer.bitCount(inlineSlots) != 1) {
+      throw new IllegalArgumentException("The number of inline slots should be a power of two - " + inlineSlots);
+    }
+    this.inlineSlots = inlineSlots;
+    this.slotMask = inlineSlots - 1;
+    this.slotShift = Integer.numberOfTrailingZeros(inlineSlots);
+    for (int i = 0; i < LOCK_STRIPES; i++) {
+      locks[i] = new Object();
+    }
+    allocate(capacity);
+  }
+
+  private synchronized void allocate(int capacity) {
+    int pageCount = (capacity + PAGE_MASK) >>> PAGE_SHIFT;
+    int oldPageCount = sizes.length;
+    if (pageCount <= oldPageCount) {
+      return;
+    }
+    int[][] newTimes = Arrays.copyOf(times, pageCount);
+    int[][] newActivities = Arrays.copyOf(activities, pageCount);
+    int[][] newHeads = Arrays.copyOf(heads, pageCount);
+    int[][] newSizes = Arrays.copyOf(sizes, pageCount);
+    for (int i = oldPageCount; i < pageCount; i++) {
+      newTimes[i] = new int[PAGE_SIZE << slotShift];
+      newActivities[i] = new int[PAGE_SIZE << slotShift];
+      newHeads[i] = new int[PAGE_SIZE];
+      newSizes[i] = new int[PAGE_SIZE];
+      Arrays.fill(newSizes[i], NOT_SET);
+    }
+    times = newTimes;
+    activities = newActivities;
+    heads = newHeads;
+    sizes = newSizes;
+  }
+
+  public void ensureCapacity(int currentArraySize) {
+    if (getCapacity() - currentArraySize < 2) {
+      allocate(currentArraySize + 2);
+    }
+  }
+
+  public Object getLock(int index) {
+    return locks[index & (LOCK_STRIPES - 1)];
+  }
+
+  public int getCapacity() {
+    return sizes.length << PAGE_SHIFT;
+  }
+
+  public boolean isSet(int index) {
+    return index < getCapacity() && getSize(index) != NOT_SET;
+  }
+
+  public void reset(int index) {
+    if (getCapacity() <= index) {
+      return;
+    }
+    int head = getHead(index);
+    if (head < 0) {
+      freeOverflowRing(-head - 1);
+    }
+    setHead(index, 0);
+    setSize(index, NOT_SET);
+  }
+
+  /**
+   * The capacity is ignored, the document starts in the shared arrays and is moved to the overflow pool only if needed
+   */
+  public void init(int index, int capacity) {
+    ensureCapacity(index);
+    reset(index);
+    setSize(index, 0);
+  }
+
+  public int size(int index) {
+    return getSize(index);
+  }
+
+  private int getSize(int index) {
+    return sizes[index >>> PAGE_SHIFT][index & PAGE_MASK];
+  }
+
+  private void setSize(int index, int size) {
+    sizes[index >>> PAGE_SHIFT][index & PAGE_MASK] = size;
+  }
+
+  private int getHead(int index) {
+    return heads[index >>> PAGE_SHIFT][index & PAGE_MASK];
+  }
+
+  private void setHead(int index, int head) {
+    heads[index >>> PAGE_SHIFT][index & PAGE_MASK] = head;
+  }
+
+  /**
+   * @return the position of the first inline slot of the document in its page of times and activities
+   */
+  private int inlineBase(int index) {
+    return (index & PAGE_MASK) << slotShift;
+  }
+
+  public int getTime(int index, int position) {
+    int head = getHead(index);
+    if (head >= 0) {
+      return times[index >>> PAGE_SHIFT][inlineBase(index) + ((head + position) & slotMask)];
+    }
+    int[] ring = overflowPool[-head - 1];
+    return ring[1 + (((ring[0] + position) % ringCapacity(ring)) << 1)];
+  }
+
+  public int getActivity(int index, int position) {
+    int head = getHead(index);
+    if (head >= 0) {
+      return activities[index >>> PAGE_SHIFT][inlineBase(index) + ((head + position) & slotMask)];
+    }
+    int[] ring = overflowPool[-head - 1];
+    return ring[2 + (((ring[0] + position) % ringCapacity(ring)) << 1)];
+  }
+
+  public void add(int index, int time, int activity) {
+    if (getSize(index) == NOT_SET) {
+      setSize(index, 0);
+      setHead(index, 0);
+    }
+    int size = getSize(index);
+    int head = getHead(index);
+    if (head >= 0) {
+      int[] pageTimes = times[index >>> PAGE_SHIFT];
+      int[] pageActivities = activities[index >>> PAGE_SHIFT];
+      int base = inlineBase(index);
+      if (size > 0) {
+        int last = base + ((head + size - 1) & slotMask);
+        if (pageTimes[last] == time) {
+          pageActivities[last] += activity;
+          return;
+        }
+      }
+      if (size < inlineSlots) {
+        int position = base + ((head + size) & slotMask);
+        pageTimes[position] = time;
+        pageActivities[position] = activity;
+        setSize(index, size + 1);
+        return;
+      }
+      moveToOverflow(index, size * 2);
+      head = getHead(index);
+    }
+    int slot = -head - 1;
+    int[] ring = overflowPool[slot];
+    int capacity = ringCapacity(ring);
+    if (size > 0) {
+      int last = 1 + (((ring[0] + size - 1) % capacity) << 1);
+      if (ring[last] == time) {
+        ring[last + 1] += activity;
+        return;
+      }
+    }
+    if (size == capacity) {
+      ring = growOverflowRing(slot, ring, size);
+      capacity = ringCapacity(ring);
+    }
+    int position = 1 + (((ring[0] + size) % capacity) << 1);
+    ring[position] = time;
+    ring[position + 1] = activity;
+    setSize(index, size + 1);
+  }
+
+  public void removeFirst(int index) {
+    int size = getSize(index);
+    if (size <= 0) {
+      throw new IllegalStateException("The collection is empty");
+    }
+    int head = getHead(index);
+    if (head >= 0) {
+      setHead(index, (head + 1) & slotMask);
+      setSize(index, size - 1);
+      return;
+    }
+    int slot = -head - 1;
+    int[] ring = overflowPool[slot];
+    ring[0] = (ring[0] + 1) % ringCapacity(ring);
+    setSize(index, size - 1);
+    if (size - 1 <= inlineSlots / 2) {
+      moveToInline(index, slot, ring, size - 1);
+    }
+  }
+
+  private static int ringCapacity(int[] ring) {
+    return (ring.length - 1) >> 1;
+  }
+
+  private void moveToOverflow(int index, int capacity) {
+    int size = getSize(index);
+    int slot = allocateOverflowRing(capacity);
+    int[] ring = overflowPool[slot];
+    for (int i = 0; i < size; i++) {
+      ring[1 + (i << 1)] = getTime(index, i);
+      ring[2 + (i << 1)] = getActivity(index, i);
+    }
+    setHead(index, -(slot + 1));
+  }
+
+  private void moveToInline(int index, int slot, int[] ring, int size) {
+    int[] pageTimes = times[index >>> PAGE_SHIFT];
+    int[] pageActivities = activities[index >>> PAGE_SHIFT];
+    int base = inlineBase(index);
+    int capacity = ringCapacity(ring);
+    for (int i = 0; i < size; i++) {
+      int position = 1 + (((ring[0] + i) % capacity) << 1);
+      pageTimes[base + i] = ring[position];
+      pageActivities[base + i] = ring[position + 1];
+    }
+    setHead(index, 0);
+    freeOverflowRing(slot);
+  }
+
+  private synchronized int[] growOverflowRing(int slot, int[] ring, int size) {
+    int capacity = ringCapacity(ring);
+    int[] newRing = new int[1 + (capacity << 2)];
+    for (int i = 0; i < size; i++) {
+      int position = 1 + (((ring[0] + i) % capacity) << 1);
+      newRing[1 + (i << 1)] = ring[position];
+      newRing[2 + (i << 1)] = ring[position + 1];
+    }
+    overflowPool[slot] = newRing;
+    return newRing;
+  }
+
+  private synchronized int allocateOverflowRing(int capacity) {
+    int slot;
+    if (!freeOverflowSlots.isEmpty()) {
+      slot = freeOverflowSlots.removeInt(freeOverflowSlots.size() - 1);
+    } else {
+      if (overflowPoolSize == overflowPool.length) {
+        overflowPool = Arrays.copyOf(overflowPool, overflowPool.length * 2);
+      }
+      slot = overflowPoolSize++;
+    }
+    overflowPool[slot] = new int[1 + (capacity << 1)];
+    return slot;
+  }
+
+  private synchronized void freeOverflowRing(int slot) {
+    overflowPool[slot] = null;
+    freeOverflowSlots.add(slot);
+  }
+
+  /**
+   * @return the number of documents, which entries are kept in the overflow pool
+   */
+  public synchronized int getOverflowCount() {
+    return overflowPoolSize - freeOverflowSlots.size();
+  }
+}
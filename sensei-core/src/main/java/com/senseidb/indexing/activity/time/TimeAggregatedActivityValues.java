@@ -32,18 +32,20 @@ import com.senseidb.indexing.activity.ActivityValues;
  * Basically this class is a composite, containing intActivityValue for each aggregate period specified in the config plus a default non time trimmed  values
  * Each of  underlying activityIntValues will be persisting themselves to the disk.<br>
  * When the TimeAggregatedActivityValues is constructed from file, it will init all the aggregated activity int values from the disk. 
- * And it will try to estimate timeHits - {@link TimeHitsHolder}
+ * And it will try to estimate timeHits - {@link TimeHits}. The time hits are kept either in the {@link TimeHitsHolder} or,
+ * if sensei.activity.config.packedTimeHits is set, in the {@link PackedTimeHits}
  *
  */
 public class TimeAggregatedActivityValues implements ActivityValues {  
 	protected final String fieldName;
 	protected Map<String, ActivityIntValues> valuesMap = new HashMap<String, ActivityIntValues>();
 	protected IntValueHolder[] intActivityValues;
-	protected TimeHitsHolder timeActivities;
+	protected TimeHits timeActivities;
 	public volatile int maxIndex;
   private AggregatesMetadata aggregatesMetadata;
   private AggregatesUpdateJob aggregatesUpdateJob;  
   protected ActivityIntValues defaultIntValues;
+  private final boolean packedTimeHits;
   
   private TimeAggregatedActivityValues(String fieldName, List<String> times, int count,  ActivityPersistenceFactory activityPersistenceFactory) {
 		this.fieldName = fieldName;
@@ -60,9 +62,9 @@ public class TimeAggregatedActivityValues implements ActivityValues {
 		Arrays.sort(intActivityValues);
 		maxIndex = count;
 		aggregatesMetadata = activityPersistenceFactory.createAggregatesMetadata(fieldName);
-		
+		packedTimeHits = activityPersistenceFactory.getActivityConfig().isPackedTimeHits();
 	}
-	protected synchronized static void initTimeHits(TimeHitsHolder timeActivities, IntValueHolder[] intActivityValues, int count, int lastUpdatedTime) {
+	protected synchronized static void initTimeHits(TimeHits timeActivities, IntValueHolder[] intActivityValues, int count, int lastUpdatedTime) {
     for (int index = 0; index < count; index++) {
       int activitiesCount = 0;
       for (int j = 0; j < intActivityValues.length; j++) {
@@ -77,8 +79,7 @@ public class TimeAggregatedActivityValues implements ActivityValues {
         continue;
       }
       int length = Math.min(activitiesCount, intActivityValues[0].timeInMinutes);
-      IntContainer times = new IntContainer(length);
-      IntContainer activities = new IntContainer(length);
+      timeActivities.init(index, length);
       for (int j = 0; j < intActivityValues.length - 1; j++) {
         int value = intActivityValues[j].activityIntValues.getIntValue(index);
         int time = intActivityValues[j].timeInMinutes;
@@ -87,20 +88,17 @@ public class TimeAggregatedActivityValues implements ActivityValues {
           break;
         }
         activitiesCount += value;
-        fillTimeHits(times, activities, value - intActivityValues[j + 1].activityIntValues.getIntValue(index), lastUpdatedTime - time + 1, time - intActivityValues[j + 1].timeInMinutes);
+        fillTimeHits(timeActivities, index, value - intActivityValues[j + 1].activityIntValues.getIntValue(index), lastUpdatedTime - time + 1, time - intActivityValues[j + 1].timeInMinutes);
       }
-      fillTimeHits(times, activities, intActivityValues[intActivityValues.length - 1].activityIntValues.getIntValue(index), lastUpdatedTime - intActivityValues[intActivityValues.length - 1].timeInMinutes + 1, intActivityValues[intActivityValues.length - 1].timeInMinutes);
-      timeActivities.activities[index] = activities;
-      timeActivities.times[index] = times;
+      fillTimeHits(timeActivities, index, intActivityValues[intActivityValues.length - 1].activityIntValues.getIntValue(index), lastUpdatedTime - intActivityValues[intActivityValues.length - 1].timeInMinutes + 1, intActivityValues[intActivityValues.length - 1].timeInMinutes);
     }
     
   }
   
-  private static void fillTimeHits(IntContainer times, IntContainer activities, int activityCount, int startTime, int periodInMinutes) {
+  private static void fillTimeHits(TimeHits timeActivities, int index, int activityCount, int startTime, int periodInMinutes) {
     int length = java.lang.Math.min(periodInMinutes, activityCount);
     if (length == 1) {
-      activities.add(activityCount);
-      times.add(startTime + periodInMinutes / 2);
+      timeActivities.add(index, startTime + periodInMinutes / 2, activityCount);
     } else if (length > 1) {
       int activityIncrement = activityCount / length;
       int timeIncrement = periodInMinutes / length;
@@ -108,11 +106,10 @@ public class TimeAggregatedActivityValues implements ActivityValues {
       int timeOffset = startTime;
       for (int i = 0; i < length; i++) {
         if (i == 0) {
-          activities.add(activityIncrementDelta + activityIncrement);
+          timeActivities.add(index, timeOffset, activityIncrementDelta + activityIncrement);
         } else {
-          activities.add(activityIncrement);
+          timeActivities.add(index, timeOffset, activityIncrement);
         }
-        times.add(timeOffset);
         timeOffset += timeIncrement;
       }
     }
@@ -133,7 +130,7 @@ public class TimeAggregatedActivityValues implements ActivityValues {
 	}
 	@Override
 	public void init(int capacity) {
-		timeActivities = new TimeHitsHolder(capacity);
+		timeActivities = packedTimeHits ? new PackedTimeHits(capacity) : new TimeHitsHolder(capacity);
 		initTimeHits(timeActivities, intActivityValues, capacity, aggregatesMetadata.getLastUpdatedTime());
 		aggregatesUpdateJob = new AggregatesUpdateJob(this, aggregatesMetadata);
 		aggregatesUpdateJob.start();
@@ -153,16 +150,7 @@ public class TimeAggregatedActivityValues implements ActivityValues {
 		}
 		timeActivities.ensureCapacity(index);
 		synchronized (timeActivities.getLock(index)) {
-			if (!timeActivities.isSet(index)) {
-				timeActivities.setActivities(index, new IntContainer(1));
-				timeActivities.setTime(index, new IntContainer(1));
-			}		
-			if (timeActivities.getTimes(index).getSize() > 0 && timeActivities.getTimes(index).peekLast() == currentTime) {
-			  timeActivities.getActivities(index).add(timeActivities.getActivities(index).removeLast() + valueInt);
-			} else {
-			  timeActivities.getTimes(index).add(currentTime);
-			  timeActivities.getActivities(index).add(valueInt);
-			}
+			timeActivities.add(index, currentTime, valueInt);
 		}
 		for (IntValueHolder intValueHolder : intActivityValues) {			
 			  synchronized (intValueHolder.activityIntValues) {
@@ -270,7 +258,7 @@ public class TimeAggregatedActivityValues implements ActivityValues {
 	 * update.time < Clock.getCurrentTimeInMinutes - longestTimeAgregate;
 	 *}</pre>
 	 */
-	public static class TimeHitsHolder {
+	public static class TimeHitsHolder implements TimeHits {
 		private IntContainer[] times;
 		private IntContainer[] activities;
 		public TimeHitsHolder(int capacity) {
@@ -304,6 +292,34 @@ public class TimeAggregatedActivityValues implements ActivityValues {
 		public Object getLock(int index) {
 			return activities[index] != null ? activities[index] : this;
 		}
+		public void init(int index, int capacity) {
+		  setActivities(index, new IntContainer(capacity));
+		  setTime(index, new IntContainer(capacity));
+		}
+		public int size(int index) {
+		  return times[index].getSize();
+		}
+		public int getTime(int index, int position) {
+		  return times[index].get(position);
+		}
+		public int getActivity(int index, int position) {
+		  return activities[index].get(position);
+		}
+		public void add(int index, int time, int activity) {
+		  if (!isSet(index)) {
+		    init(index, 1);
+		  }
+		  if (times[index].getSize() > 0 && times[index].peekLast() == time) {
+		    activities[index].add(activities[index].removeLast() + activity);
+		  } else {
+		    times[index].add(time);
+		    activities[index].add(activity);
+		  }
+		}
+		public void removeFirst(int index) {
+		  times[index].removeFirst();
+		  activities[index].removeFirst();
+		}
 		public void ensureCapacity(int currentArraySize) {
 		    if (times.length == 0) {
 		    	times = new IntContainer[50000];
@@ -327,7 +343,7 @@ public class TimeAggregatedActivityValues implements ActivityValues {
   public Map<String, ActivityIntValues> getValuesMap() {
     return valuesMap;
   }
-  public TimeHitsHolder getTimeActivities() {
+  public TimeHits getTimeActivities() {
     return timeActivities;
   }
   public static TimeAggregatedActivityValues createTimeAggregatedValues(String fieldName, List<String> times, int count, ActivityPersistenceFactory activityPersistenceFactory) {
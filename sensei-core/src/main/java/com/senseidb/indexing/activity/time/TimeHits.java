@@ -0,0 +1,26 @@
+package com.senseidb.indexing.activity.time;
+
+/**
+ * Keeps the times and the activity counts of the recent updates of every document, in the ascending order of time.
+ * The entries of a document should be accessed while holding the lock returned by {@link #getLock(int)}
+ * @see TimeAggregatedActivityValues.TimeHitsHolder
+ * @see PackedTimeHits
+ */
+public interface TimeHits {
+  public void ensureCapacity(int index);
+  public Object getLock(int index);
+  public boolean isSet(int index);
+  public void reset(int index);
+  /**
+   * Marks the document as having time hits, the capacity is a hint of the number of entries that will be added
+   */
+  public void init(int index, int capacity);
+  public int size(int index);
+  public int getTime(int index, int position);
+  public int getActivity(int index, int position);
+  /**
+   * Adds the activity to the last entry if it has the same time, otherwise appends a new entry
+   */
+  public void add(int index, int time, int activity);
+  public void removeFirst(int index);
+}
@@ -1,19 +1,17 @@
 package com.senseidb.search.facet;
 
-import it.unimi.dsi.fastutil.ints.IntArrayList;
-import it.unimi.dsi.fastutil.longs.LongIterator;
 import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
 import it.unimi.dsi.fastutil.longs.LongSet;
 
 import java.io.IOException;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.Properties;
 
 import org.apache.log4j.Logger;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.search.DocIdSetIterator;
 import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.util.OpenBitSet;
 
 import proj.zoie.api.DocIDMapper;
 import proj.zoie.api.ZoieIndexReader;
@@ -31,7 +29,6 @@ import com.browseengine.bobo.facets.filter.RandomAccessFilter;
 import com.browseengine.bobo.facets.filter.RandomAccessNotFilter;
 import com.browseengine.bobo.sort.DocComparator;
 import com.browseengine.bobo.sort.DocComparatorSource;
-import com.kamikaze.docidset.impl.IntArrayDocIdSet;
 
 public class UIDFacetHandler extends FacetHandler<long[]> {
   private static Logger logger = Logger.getLogger(UIDFacetHandler.class);
@@ -101,8 +98,86 @@ public class UIDFacetHandler extends FacetHandler<long[]> {
     };
   }
   
+  /**
+   * The documents of a sorted array of docids, iterated directly, with the binary search for the random access.
+   */
+  static class SortedDocIdSet extends RandomAccessDocIdSet{
+    private final int[] _docids;
+    private final int _count;
+
+    SortedDocIdSet(int[] docids, int count){
+      _docids = docids;
+      _count = count;
+    }
+
+    @Override
+    public boolean get(int docid) {
+      return Arrays.binarySearch(_docids, 0, _count, docid) >= 0;
+    }
+
+    @Override
+    public DocIdSetIterator iterator() throws IOException {
+      return new DocIdSetIterator() {
+        private int _idx = -1;
+        private int _doc = -1;
+
+        @Override
+        public int docID() {
+          return _doc;
+        }
+
+        @Override
+        public int nextDoc() throws IOException {
+          if (++_idx < _count){
+            return _doc = _docids[_idx];
+          }
+          _idx = _count;
+          return _doc = DocIdSetIterator.NO_MORE_DOCS;
+        }
+
+        @Override
+        public int advance(int target) throws IOException {
+          if (_idx + 1 >= _count){
+            _idx = _count;
+            return _doc = DocIdSetIterator.NO_MORE_DOCS;
+          }
+          int idx = Arrays.binarySearch(_docids, _idx + 1, _count, target);
+          _idx = (idx < 0 ? -idx - 1 : idx) - 1;
+          return nextDoc();
+        }
+      };
+    }
+  }
+
+  /**
+   * Removes the deleted docids from the sorted docids, both arrays are sorted, so each search in the deleted docids
+   * starts where the previous one stopped.
+   * @return the number of the docids left at the start of the array
+   */
+  static int removeDeleted(int[] docids, int count, int[] delDocIds){
+    if (delDocIds == null || delDocIds.length == 0){
+      return count;
+    }
+    int left = 0;
+    int delIdx = 0;
+    for (int i = 0; i < count; ++i){
+      int docid = docids[i];
+      if (delIdx < delDocIds.length){
+        int idx = Arrays.binarySearch(delDocIds, delIdx, delDocIds.length, docid);
+        if (idx >= 0){
+          delIdx = idx + 1;
+          continue;
+        }
+        delIdx = -idx - 1;
+      }
+      docids[left++] = docid;
+    }
+    return left;
+  }
+
   private RandomAccessFilter buildRandomAccessFilter(final LongSet valSet) throws IOException {
-        return new RandomAccessFilter() {
+    final long[] uids = valSet.toLongArray();
+    return new RandomAccessFilter() {
       
       /**
        * 
@@ -115,46 +190,40 @@ public class UIDFacetHandler extends FacetHandler<long[]> {
         ZoieSegmentReader<?> zoieReader = (ZoieSegmentReader<?>)(reader.getInnerReader());
         DocIDMapper<?> docidMapper = zoieReader.getDocIDMaper();
         
-        final IntArrayList docidList = new IntArrayList(valSet.size());
-        
-        LongIterator iter = valSet.iterator();
-        
-        while(iter.hasNext()){
-          int docid = docidMapper.getDocID(iter.nextLong());
+        // the uids are resolved once per segment, the docids are then iterated directly
+        int[] docids = new int[uids.length];
+        int count = 0;
+        for (long uid : uids){
+          int docid = docidMapper.getDocID(uid);
           if (docid!=DocIDMapper.NOT_FOUND){
-            docidList.add(docid);
+            docids[count++] = docid;
           }
         }
+        if (count==0) return EmptyDocIdSet.getInstance();
+        Arrays.sort(docids, 0, count);
+        count = removeDeleted(docids, count, zoieReader.getDelDocIds());
         
-        if (docidList.size()==0) return EmptyDocIdSet.getInstance();
-        int[] delDocIds = zoieReader.getDelDocIds();
-        if (docidList.size()==1) {
-          int docId = docidList.getInt(0);
-          if (delDocIds == null || delDocIds.length ==0 || Arrays.binarySearch(delDocIds, docId) < 0) {
-            return new SingleDocRandmAccessDocIdSet(docidList.getInt(0));
-          } else {
-            return EmptyDocIdSet.getInstance();
-          }         
-        }        
-        Collections.sort(docidList);        
-        final IntArrayDocIdSet intArraySet = new IntArrayDocIdSet(docidList.size());
-        boolean deletesPresent = delDocIds != null && delDocIds.length > 0;       
-        for (int docid : docidList){
-          if (!deletesPresent  || Arrays.binarySearch(delDocIds,docid) < 0) {
-            intArraySet.addDoc(docid);            
-          } 
-        }        
-        return new RandomAccessDocIdSet(){
-          @Override
-          public boolean get(int docid) {
-            return docidList.contains(docid);
+        if (count==0) return EmptyDocIdSet.getInstance();
+        if (count==1) return new SingleDocRandmAccessDocIdSet(docids[0]);
+        if (count > (reader.maxDoc() >>> 5)){
+          // dense enough for a bit set to be smaller than the array
+          final OpenBitSet bitSet = new OpenBitSet(reader.maxDoc());
+          for (int i = 0; i < count; ++i){
+            bitSet.fastSet(docids[i]);
           }
+          return new RandomAccessDocIdSet(){
+            @Override
+            public boolean get(int docid) {
+              return bitSet.get(docid);
+            }
 
-          @Override
-          public DocIdSetIterator iterator() throws IOException {
-            return intArraySet.iterator();
-          }          
-        };        
+            @Override
+            public DocIdSetIterator iterator() throws IOException {
+              return bitSet.iterator();
+            }
+          };
+        }
+        return new SortedDocIdSet(docids, count);
       }
     };
   }
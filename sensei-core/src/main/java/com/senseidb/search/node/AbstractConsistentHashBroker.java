@@ -12,13 +12,19 @@ import it.unimi.dsi.fastutil.ints.IntSet;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.LockSupport;
 
 import org.apache.commons.lang.RandomStringUtils;
 import org.apache.commons.lang.StringUtils;
@@ -28,6 +34,7 @@ import com.linkedin.norbert.NorbertException;
 import com.linkedin.norbert.javacompat.cluster.Node;
 import com.linkedin.norbert.javacompat.network.PartitionedNetworkClient;
 import com.linkedin.norbert.network.Serializer;
+import com.senseidb.cluster.routing.ReplicaSelector;
 import com.senseidb.cluster.routing.RoutingInfo;
 import com.senseidb.metrics.MetricsConstants;
 import com.senseidb.search.req.AbstractSenseiRequest;
@@ -53,6 +60,9 @@ public abstract class AbstractConsistentHashBroker<REQUEST extends AbstractSense
 
   protected long _timeout = 8000;
   protected final Serializer<REQUEST, RESULT> _serializer;
+  protected volatile ReplicaSelector _replicaSelector = null;
+
+  private static final CompletionWatcher HedgeWatcher = new CompletionWatcher();
 
   private static Timer ScatterTimer = null;
   private static Timer GatherTimer = null;
@@ -60,6 +70,10 @@ public abstract class AbstractConsistentHashBroker<REQUEST extends AbstractSense
   private static Meter SearchCounter = null;
   private static Meter ErrorMeter = null;
   private static Meter EmptyMeter = null;
+  private static Meter HedgeMeter = null;
+  private static Meter HedgeWinMeter = null;
+  private static Meter HedgeLossMeter = null;
+  private static Meter ReplicaErrorMeter = null;
   
   static{
 	  // register metrics monitoring for timers
@@ -81,6 +95,18 @@ public abstract class AbstractConsistentHashBroker<REQUEST extends AbstractSense
 	    
 	    MetricName emptyMetricName = new MetricName(MetricsConstants.Domain,"meter","empty-meter","broker");
 	    EmptyMeter = Metrics.newMeter(emptyMetricName, "null-hits", TimeUnit.SECONDS);
+
+	    MetricName hedgeMetricName = new MetricName(MetricsConstants.Domain,"meter","hedge-meter","broker");
+	    HedgeMeter = Metrics.newMeter(hedgeMetricName, "hedged-requests", TimeUnit.SECONDS);
+
+	    MetricName hedgeWinMetricName = new MetricName(MetricsConstants.Domain,"meter","hedge-win-meter","broker");
+	    HedgeWinMeter = Metrics.newMeter(hedgeWinMetricName, "hedge-wins", TimeUnit.SECONDS);
+
+	    MetricName hedgeLossMetricName = new MetricName(MetricsConstants.Domain,"meter","hedge-loss-meter","broker");
+	    HedgeLossMeter = Metrics.newMeter(hedgeLossMetricName, "hedge-losses", TimeUnit.SECONDS);
+
+	    MetricName replicaErrorMetricName = new MetricName(MetricsConstants.Domain,"meter","replica-error-meter","broker");
+	    ReplicaErrorMeter = Metrics.newMeter(replicaErrorMetricName, "errors", TimeUnit.SECONDS);
 	  }
 	  catch(Exception e){
 		logger.error(e.getMessage(),e);
@@ -154,6 +180,34 @@ public abstract class AbstractConsistentHashBroker<REQUEST extends AbstractSense
     }
   }
 
+  /**
+   * Searches only some of the partitions, through the replicas picked by the replica selector, for the requests, that
+   * can't match any document of the other partitions.
+   */
+  public RESULT browse(final REQUEST req, final int[] partitions, final ReplicaSelector replicaSelector) throws SenseiException
+  {
+    SearchCounter.mark();
+    try
+    {
+      return TotalTimer.time(new Callable<RESULT>(){
+        @Override
+        public RESULT call() throws Exception {
+          return doBrowse(req, new Callable<List<RESULT>>() {
+            @Override
+            public List<RESULT> call() throws Exception {
+              return doSelectedCall(req, replicaSelector, replicaSelector.route(partitions));
+            }
+          });
+        }
+      });
+    }
+    catch (Exception e)
+    {
+      ErrorMeter.mark();
+      throw new SenseiException(e.getMessage(), e);
+    }
+  }
+
   /**
    * Merge results on the client/broker side. It likely works differently from
    * the one in the search node.
@@ -177,18 +231,26 @@ public abstract class AbstractConsistentHashBroker<REQUEST extends AbstractSense
   }
 
   protected RESULT doBrowse(PartitionedNetworkClient<String> networkClient, final REQUEST req, IntSet partitions)
+  {
+    return doBrowse(req, new Callable<List<RESULT>>() {
+      @Override
+      public List<RESULT> call() throws Exception {
+        return doCall(req);
+      }
+    });
+  }
+
+  /**
+   * @param scatter sends the request to the nodes and gathers their results
+   */
+  protected RESULT doBrowse(final REQUEST req, Callable<List<RESULT>> scatter)
   {
     final long time = System.currentTimeMillis();
 
     final List<RESULT> resultList = new ArrayList<RESULT>();
    
     try {
-      resultList.addAll(ScatterTimer.time(new Callable<List<RESULT>>() {
-        @Override
-        public List<RESULT> call() throws Exception {
-          return doCall(req);
-        }
-      }));
+      resultList.addAll(ScatterTimer.time(scatter));
     } catch (Exception e) {
       ErrorMeter.mark();
       RESULT emptyResult = getEmptyResultInstance();
@@ -229,19 +291,16 @@ public abstract class AbstractConsistentHashBroker<REQUEST extends AbstractSense
   }
 
   protected List<RESULT> doCall(final REQUEST req) throws ExecutionException {
+    ReplicaSelector replicaSelector = _replicaSelector;
+    if (replicaSelector != null && req.getRouteParam() == null && replicaSelector.hasPartitions()) {
+      return doSelectedCall(req, replicaSelector);
+    }
     List<RESULT> resultList = new ArrayList<RESULT>();
     ResponseIterator<RESULT> responseIterator =
         buildIterator(_networkClient.sendRequestToOneReplica(getRouteParam(req), new RequestBuilder<Integer, REQUEST>() {
-          private int count = 0;
           @Override
           public REQUEST apply(Node node, Set<Integer> nodePartitions) {
-            // TODO: Cloning is yucky per http://www.artima.com/intv/bloch13.html
-            REQUEST clone = (REQUEST) (((SenseiRequest) req).clone());
-            
-            clone.setPartitions(nodePartitions);
-
-            REQUEST customizedRequest = customizeRequest(clone);
-            return customizedRequest;
+            return buildNodeRequest(req, nodePartitions);
           }
         }, _serializer));
 
@@ -253,7 +312,351 @@ public abstract class AbstractConsistentHashBroker<REQUEST extends AbstractSense
 
     return resultList;
   }
-  
+
+  protected REQUEST buildNodeRequest(REQUEST req, Set<Integer> nodePartitions) {
+    // TODO: Cloning is yucky per http://www.artima.com/intv/bloch13.html
+    REQUEST clone = (REQUEST) (((SenseiRequest) req).clone());
+
+    clone.setPartitions(nodePartitions);
+    // let the node stop searching once this broker stops waiting for it
+    long timeout = ((SenseiRequest) clone).getTimeout();
+    if (timeout <= 0 || timeout > _timeout) {
+      ((SenseiRequest) clone).setTimeout(_timeout);
+    }
+
+    REQUEST customizedRequest = customizeRequest(clone);
+    return customizedRequest;
+  }
+
+  /**
+   * Sends the request to the replicas picked by the replica selector. While the broker waits, the requests that take longer
+   * than the hedge delay, or fail, are duplicated to the other replica of the same partitions, and the first response wins.
+   * The request with the route parameter still goes through the consistent hash routing of norbert.
+   */
+  protected List<RESULT> doSelectedCall(REQUEST req, ReplicaSelector replicaSelector) throws ExecutionException {
+    return doSelectedCall(req, replicaSelector, replicaSelector.route());
+  }
+
+  /**
+   * @param route the nodes to send the request to, with the partitions each of them should search
+   */
+  protected List<RESULT> doSelectedCall(REQUEST req, ReplicaSelector replicaSelector, Map<Node, Set<Integer>> route)
+      throws ExecutionException {
+    List<ReplicaCall> pending = new ArrayList<ReplicaCall>(route.size());
+    List<RESULT> resultList = new ArrayList<RESULT>(route.size());
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(_timeout);
+    long hedgeDelay = replicaSelector.isHedging() ? replicaSelector.getHedgeDelayNanos() : Long.MAX_VALUE;
+    // the calls, one of the attempts of which has completed
+    BlockingQueue<ReplicaCall> completions = replicaSelector.isHedging() ? new LinkedBlockingQueue<ReplicaCall>() : null;
+    try {
+      for (Map.Entry<Node, Set<Integer>> entry : route.entrySet()) {
+        ReplicaCall call = new ReplicaCall(req, entry.getKey(), entry.getValue(), completions, deadline);
+        pending.add(call);
+        call.sendPrimary(replicaSelector);
+      }
+      while (!pending.isEmpty()) {
+        long now = System.nanoTime();
+        long wakeup = deadline;
+        for (Iterator<ReplicaCall> iterator = pending.iterator(); iterator.hasNext();) {
+          ReplicaCall call = iterator.next();
+          if (call.poll(replicaSelector)) {
+            iterator.remove();
+            resultList.add(call.result);
+            continue;
+          }
+          if (call.primary == null && call.hedge == null) {
+            // both replicas failed, or the only one failed and there is no other replica to retry
+            iterator.remove();
+            if (!allowPartialMerge()) {
+              throw new ExecutionException(call.error);
+            }
+            logger.error("Failed to get the result for partitions " + call.partitions, call.error);
+            continue;
+          }
+          if (!call.hedged && replicaSelector.isHedging()) {
+            long hedgeTime = call.primary.startNanos + hedgeDelay;
+            if (hedgeTime <= now) {
+              call.sendHedge(replicaSelector);
+            } else {
+              wakeup = Math.min(wakeup, hedgeTime);
+            }
+          }
+        }
+        if (pending.isEmpty()) {
+          break;
+        }
+        now = System.nanoTime();
+        if (now >= deadline) {
+          if (!allowPartialMerge()) {
+            throw new ExecutionException(new TimeoutException("Timed out waiting for partitions " + pending.get(0).partitions));
+          }
+          logger.error(String.format("Timed out waiting for %d nodes", pending.size()));
+          break;
+        }
+        if (completions != null) {
+          try {
+            if (completions.poll(wakeup - now, TimeUnit.NANOSECONDS) != null) {
+              // the completed attempts are done before they are queued, so the next pass sees the ones cleared here
+              completions.clear();
+            }
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ExecutionException(e);
+          }
+        } else {
+          try {
+            pending.get(0).primary.future.get(wakeup - now, TimeUnit.NANOSECONDS);
+          } catch (TimeoutException e) {
+            // time to hedge one of the requests
+          } catch (ExecutionException e) {
+            // handled by the poll
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ExecutionException(e);
+          }
+        }
+      }
+    } finally {
+      for (ReplicaCall call : pending) {
+        call.abandon(replicaSelector);
+      }
+    }
+
+    logger.debug(String.format("There are %d responses", resultList.size()));
+
+    return resultList;
+  }
+
+  private ReplicaAttempt send(ReplicaSelector replicaSelector, Node node, REQUEST request) {
+    long start = replicaSelector.start(node);
+    try {
+      return new ReplicaAttempt(node, start, _networkClient.sendRequestToNode(request, node, _serializer));
+    } catch (RuntimeException e) {
+      replicaSelector.complete(node, start, false);
+      throw e;
+    }
+  }
+
+  private final class ReplicaAttempt {
+    private final Node node;
+    private final long startNanos;
+    private final Future<RESULT> future;
+    private Watch watch;
+
+    private ReplicaAttempt(Node node, long startNanos, Future<RESULT> future) {
+      this.node = node;
+      this.startNanos = startNanos;
+      this.future = future;
+    }
+
+    /**
+     * Queues the call once the attempt completes, or the deadline passes
+     */
+    private void notifyCompletion(final ReplicaCall call, final BlockingQueue<ReplicaCall> completions, long deadline) {
+      watch = new Watch(future, deadline, new Runnable() {
+        @Override
+        public void run() {
+          completions.offer(call);
+        }
+      });
+      HedgeWatcher.watch(watch);
+    }
+
+    private void stopNotifying() {
+      if (watch != null) {
+        watch.cancelled = true;
+      }
+    }
+  }
+
+  private static final class Watch {
+    private final Future<?> future;
+    private final long deadline;
+    private final Runnable onCompletion;
+    private volatile boolean cancelled;
+
+    private Watch(Future<?> future, long deadline, Runnable onCompletion) {
+      this.future = future;
+      this.deadline = deadline;
+      this.onCompletion = onCompletion;
+    }
+  }
+
+  /**
+   * The norbert futures can't notify, so a single thread checks the attempts of the hedged requests of all the brokers, and
+   * wakes up the broker thread of each attempt that completes, or reaches its deadline. The thread sleeps while there is no
+   * hedged request.
+   */
+  private static final class CompletionWatcher implements Runnable {
+    private static final long CHECK_INTERVAL_NANOS = TimeUnit.MICROSECONDS.toNanos(200);
+
+    private final ConcurrentLinkedQueue<Watch> _watches = new ConcurrentLinkedQueue<Watch>();
+
+    private CompletionWatcher() {
+      Thread thread = new Thread(this, "sensei-broker-hedge-watcher");
+      thread.setDaemon(true);
+      thread.start();
+    }
+
+    private void watch(Watch watch) {
+      _watches.add(watch);
+      synchronized (this) {
+        notify();
+      }
+    }
+
+    @Override
+    public void run() {
+      while (true) {
+        try {
+          long now = System.nanoTime();
+          for (Iterator<Watch> iterator = _watches.iterator(); iterator.hasNext();) {
+            Watch watch = iterator.next();
+            if (watch.cancelled) {
+              iterator.remove();
+            } else if (watch.future.isDone() || now >= watch.deadline) {
+              iterator.remove();
+              watch.onCompletion.run();
+            }
+          }
+          synchronized (this) {
+            while (_watches.isEmpty()) {
+              wait();
+            }
+          }
+          LockSupport.parkNanos(CHECK_INTERVAL_NANOS);
+        } catch (InterruptedException e) {
+          // keep watching, the brokers share this thread
+        } catch (RuntimeException e) {
+          logger.error(e.getMessage(), e);
+        }
+      }
+    }
+  }
+
+  /**
+   * The request for the partitions of one node, with the primary and the hedged attempts.
+   */
+  private final class ReplicaCall {
+    private final Node primaryNode;
+    private final Set<Integer> partitions;
+    private final REQUEST request;
+    private final BlockingQueue<ReplicaCall> completions;
+    private final long deadline;
+    private ReplicaAttempt primary;
+    private ReplicaAttempt hedge;
+    private boolean hedged;
+    private RESULT result;
+    private Throwable error;
+
+    /**
+     * @param completions the queue to put the call in when one of its attempts completes, null to not watch them
+     */
+    private ReplicaCall(REQUEST req, Node primaryNode, Set<Integer> partitions, BlockingQueue<ReplicaCall> completions, long deadline) {
+      this.primaryNode = primaryNode;
+      this.partitions = partitions;
+      this.request = buildNodeRequest(req, partitions);
+      this.completions = completions;
+      this.deadline = deadline;
+    }
+
+    private ReplicaAttempt watch(ReplicaAttempt attempt) {
+      if (completions != null) {
+        attempt.notifyCompletion(this, completions, deadline);
+      }
+      return attempt;
+    }
+
+    private void drop(ReplicaSelector replicaSelector, ReplicaAttempt attempt) {
+      attempt.stopNotifying();
+      replicaSelector.abandon(attempt.node, attempt.startNanos);
+    }
+
+    /**
+     * @return true if one of the attempts has answered
+     */
+    private boolean poll(ReplicaSelector replicaSelector) {
+      if (primary != null && primary.future.isDone()) {
+        if (take(replicaSelector, primary)) {
+          if (hedge != null) {
+            HedgeLossMeter.mark();
+            drop(replicaSelector, hedge);
+            hedge = null;
+          }
+          return true;
+        }
+        primary = null;
+      }
+      if (hedge != null && hedge.future.isDone()) {
+        if (take(replicaSelector, hedge)) {
+          HedgeWinMeter.mark();
+          if (primary != null) {
+            drop(replicaSelector, primary);
+            primary = null;
+          }
+          return true;
+        }
+        hedge = null;
+      }
+      if (primary == null && hedge == null && !hedged && replicaSelector.isHedging()) {
+        // retry the failed request on the other replica right away
+        sendHedge(replicaSelector);
+      }
+      return false;
+    }
+
+    private boolean take(ReplicaSelector replicaSelector, ReplicaAttempt attempt) {
+      try {
+        result = attempt.future.get();
+        replicaSelector.complete(attempt.node, attempt.startNanos, true);
+        return true;
+      } catch (Exception e) {
+        replicaSelector.complete(attempt.node, attempt.startNanos, false);
+        ReplicaErrorMeter.mark();
+        error = e instanceof ExecutionException && e.getCause() != null ? e.getCause() : e;
+        logger.warn("Replica " + attempt.node.getId() + " failed for partitions " + partitions + ": " + error.getMessage());
+        return false;
+      }
+    }
+
+    private void sendPrimary(ReplicaSelector replicaSelector) {
+      try {
+        primary = watch(send(replicaSelector, primaryNode, request));
+      } catch (RuntimeException e) {
+        ReplicaErrorMeter.mark();
+        error = e;
+        logger.warn("Failed to send the request to " + primaryNode.getId(), e);
+      }
+    }
+
+    private void sendHedge(ReplicaSelector replicaSelector) {
+      hedged = true;
+      Node node = replicaSelector.getHedgeNode(primaryNode, partitions);
+      if (node == null) {
+        return;
+      }
+      HedgeMeter.mark();
+      try {
+        hedge = watch(send(replicaSelector, node, request));
+      } catch (RuntimeException e) {
+        ReplicaErrorMeter.mark();
+        error = e;
+        logger.warn("Failed to send the hedged request to " + node.getId(), e);
+      }
+    }
+
+    private void abandon(ReplicaSelector replicaSelector) {
+      if (primary != null) {
+        drop(replicaSelector, primary);
+        primary = null;
+      }
+      if (hedge != null) {
+        drop(replicaSelector, hedge);
+        hedge = null;
+      }
+    }
+  }
+
   protected ResponseIterator<RESULT> buildIterator(ResponseIterator<RESULT> responseIterator) {
     TimeoutIterator<RESULT> timeoutIterator = new TimeoutIterator<RESULT>(responseIterator, _timeout);
     if(allowPartialMerge()) {
@@ -273,6 +676,28 @@ public abstract class AbstractConsistentHashBroker<REQUEST extends AbstractSense
     return _timeout;
   }
 
+  public ReplicaSelector getReplicaSelector() {
+    return _replicaSelector;
+  }
+
+  /**
+   * @param replicaSelector the latency aware routing of the requests without the route parameter, or null to route all the
+   *          requests with the norbert load balancer
+   */
+  public void setReplicaSelector(ReplicaSelector replicaSelector) {
+    _replicaSelector = replicaSelector;
+  }
+
+  /**
+   * Passes the cluster nodes to the replica selector, should be called by the subclasses when the cluster changes
+   */
+  protected void updateReplicaSelector(Set<Node> nodes) {
+    ReplicaSelector replicaSelector = _replicaSelector;
+    if (replicaSelector != null) {
+      replicaSelector.setNodes(nodes);
+    }
+  }
+
   public void setTimeout(long timeout) {
     this._timeout = timeout;
   }
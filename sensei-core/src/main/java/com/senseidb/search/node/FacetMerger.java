@@ -0,0 +1,293 @@
+package com.senseidb.search.node;
+
+import it.unimi.dsi.fastutil.objects.Object2IntMap;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+
+import com.browseengine.bobo.api.BrowseFacet;
+import com.browseengine.bobo.api.FacetAccessible;
+import com.browseengine.bobo.api.FacetSpec;
+import com.browseengine.bobo.api.FacetSpec.FacetSortSpec;
+
+/**
+ * Merges the facet counts of one facet over partition results. Counts are summed into an
+ * open hash map of primitive ints, and when the facet spec has a max count only the top values
+ * are selected with a bounded heap instead of sorting every value. {@link BrowseFacet}s are only
+ * created for the values that are returned, unless the facet is ordered by a custom comparator.
+ */
+public class FacetMerger
+{
+  private static final int ORDER_HITS_DESC = 0;
+  private static final int ORDER_VALUE_ASC = 1;
+  private static final int ORDER_CUSTOM = 2;
+
+  private final Object2IntOpenHashMap<String> _counts = new Object2IntOpenHashMap<String>();
+  private final String[] _selected;
+
+  /**
+   * @param selected values selected on this facet, they are returned whatever their count
+   */
+  public FacetMerger(String[] selected)
+  {
+    _counts.defaultReturnValue(0);
+    _selected = (selected == null || selected.length == 0) ? null : selected;
+  }
+
+  /**
+   * Adds the counts of the facet of one partition. The facet accessible is closed.
+   */
+  public void add(FacetAccessible facetAccessible)
+  {
+    Set<String> missing = null;
+    if (_selected != null)
+    {
+      missing = new HashSet<String>(Arrays.asList(_selected));
+    }
+    for (BrowseFacet facet : facetAccessible.getFacets())
+    {
+      if (facet == null) continue;
+      String val = facet.getValue();
+      _counts.put(val, _counts.getInt(val) + facet.getFacetValueHitCount());
+      if (missing != null)
+      {
+        missing.remove(val);
+      }
+    }
+    if (missing != null && !missing.isEmpty())
+    {
+      // selected values may have been cut off by the max count of the partition
+      for (String val : missing)
+      {
+        BrowseFacet facet = facetAccessible.getFacet(val);
+        if (facet != null)
+        {
+          _counts.put(val, _counts.getInt(val) + facet.getFacetValueHitCount());
+        }
+      }
+    }
+    facetAccessible.close();
+  }
+
+  /**
+   * @return the merged facets ordered by the facet spec, limited to its max count plus the selected values
+   */
+  public BrowseFacet[] getFacets(FacetSpec fspec)
+  {
+    int size = _counts.size();
+    String[] values = new String[size];
+    int[] hits = new int[size];
+    int i = 0;
+    for (Iterator<Object2IntMap.Entry<String>> iter = _counts.object2IntEntrySet().iterator(); iter.hasNext(); ++i)
+    {
+      Object2IntMap.Entry<String> entry = iter.next();
+      values[i] = entry.getKey();
+      hits[i] = entry.getIntValue();
+    }
+
+    int numToShow = size;
+    if (fspec != null && fspec.getMaxCount() > 0)
+    {
+      numToShow = Math.min(fspec.getMaxCount(), size);
+    }
+
+    Selector selector = new Selector(fspec, values, hits);
+    int[] top = selector.select(numToShow);
+
+    BrowseFacet[] extra = null;
+    int extraCount = 0;
+    if (_selected != null && numToShow < size)
+    {
+      Set<String> shown = new HashSet<String>(top.length * 2);
+      for (int doc : top)
+      {
+        shown.add(values[doc]);
+      }
+      extra = new BrowseFacet[_selected.length];
+      for (String val : _selected)
+      {
+        if (_counts.containsKey(val) && shown.add(val))
+        {
+          extra[extraCount++] = new BrowseFacet(val, _counts.getInt(val));
+        }
+      }
+    }
+
+    BrowseFacet[] facets = new BrowseFacet[top.length + extraCount];
+    for (i = 0; i < top.length; ++i)
+    {
+      facets[i] = selector.getFacet(top[i]);
+    }
+    if (extraCount > 0)
+    {
+      System.arraycopy(extra, 0, facets, top.length, extraCount);
+      Arrays.sort(facets, selector.getComparator());
+    }
+    return facets;
+  }
+
+  /**
+   * Bounded selection over the indexes of the merged values, comparing counts and values directly
+   * for the built in facet orders.
+   */
+  private static final class Selector
+  {
+    private final int _order;
+    private final String[] _values;
+    private final int[] _hits;
+    private final Comparator<BrowseFacet> _comparator;
+    private final BrowseFacet[] _facets;
+
+    Selector(FacetSpec fspec, String[] values, int[] hits)
+    {
+      _values = values;
+      _hits = hits;
+      if (fspec == null || fspec.getOrderBy() == FacetSortSpec.OrderHitsDesc)
+      {
+        _order = ORDER_HITS_DESC;
+        _comparator = null;
+        _facets = null;
+      }
+      else if (fspec.getOrderBy() == FacetSortSpec.OrderValueAsc)
+      {
+        _order = ORDER_VALUE_ASC;
+        _comparator = null;
+        _facets = null;
+      }
+      else
+      {
+        _order = ORDER_CUSTOM;
+        _comparator = fspec.getCustomComparatorFactory().newComparator();
+        _facets = new BrowseFacet[values.length];
+        for (int i = 0; i < values.length; ++i)
+        {
+          _facets[i] = new BrowseFacet(values[i], hits[i]);
+        }
+      }
+    }
+
+    BrowseFacet getFacet(int index)
+    {
+      return _facets != null ? _facets[index] : new BrowseFacet(_values[index], _hits[index]);
+    }
+
+    Comparator<BrowseFacet> getComparator()
+    {
+      if (_comparator != null)
+      {
+        return _comparator;
+      }
+      return new Comparator<BrowseFacet>()
+      {
+        public int compare(BrowseFacet f1, BrowseFacet f2)
+        {
+          return Selector.this.compare(f1.getValue(), f1.getFacetValueHitCount(), f2.getValue(), f2.getFacetValueHitCount());
+        }
+      };
+    }
+
+    private int compare(String value1, int hits1, String value2, int hits2)
+    {
+      if (_order == ORDER_HITS_DESC)
+      {
+        int val = hits2 - hits1;
+        return val != 0 ? val : value1.compareTo(value2);
+      }
+      int ret = value1.compareTo(value2);
+      if (value1.startsWith("-") && value2.startsWith("-"))
+      {
+        ret *= -1;
+      }
+      return ret;
+    }
+
+    private int compare(int a, int b)
+    {
+      if (_order == ORDER_CUSTOM)
+      {
+        return _comparator.compare(_facets[a], _facets[b]);
+      }
+      return compare(_values[a], _hits[a], _values[b], _hits[b]);
+    }
+
+    /**
+     * @return the indexes of the first n values in order
+     */
+    int[] select(int n)
+    {
+      // max heap on the order, its top is the last value selected so far
+      int[] heap = new int[n];
+      int heapSize = 0;
+      if (n > 0)
+      {
+        for (int i = 0; i < _values.length; ++i)
+        {
+          if (heapSize < n)
+          {
+            heap[heapSize] = i;
+            siftUp(heap, heapSize++);
+          }
+          else if (compare(i, heap[0]) < 0)
+          {
+            heap[0] = i;
+            siftDown(heap, heapSize, 0);
+          }
+        }
+      }
+      int[] top = new int[heapSize];
+      while (heapSize > 0)
+      {
+        top[heapSize - 1] = heap[0];
+        heap[0] = heap[--heapSize];
+        siftDown(heap, heapSize, 0);
+      }
+      return top;
+    }
+
+    private void siftUp(int[] heap, int index)
+    {
+      int node = heap[index];
+      while (index > 0)
+      {
+        int parent = (index - 1) >>> 1;
+        if (compare(heap[parent], node) >= 0)
+        {
+          break;
+        }
+        heap[index] = heap[parent];
+        index = parent;
+      }
+      heap[index] = node;
+    }
+
+    private void siftDown(int[] heap, int heapSize, int index)
+    {
+      if (heapSize == 0)
+      {
+        return;
+      }
+      int node = heap[index];
+      int half = heapSize >>> 1;
+      while (index < half)
+      {
+        int child = (index << 1) + 1;
+        int right = child + 1;
+        if (right < heapSize && compare(heap[right], heap[child]) > 0)
+        {
+          child = right;
+        }
+        if (compare(heap[child], node) <= 0)
+        {
+          break;
+        }
+        heap[index] = heap[child];
+        index = child;
+      }
+      heap[index] = node;
+    }
+  }
+}
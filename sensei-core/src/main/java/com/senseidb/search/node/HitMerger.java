@@ -0,0 +1,245 @@
+package com.senseidb.search.node;
+
+import java.util.Collection;
+
+import org.apache.lucene.search.SortField;
+
+import com.senseidb.search.req.SenseiHit;
+import com.senseidb.search.req.SenseiResult;
+
+/**
+ * Bounded k-way heap merge of the sorted hit arrays of partition results, used for requests
+ * without group by. Hits are ordered exactly as by the hit comparator in {@link ResultMerger},
+ * but the sort keys of the head of every partition are cached in primitive arrays, no iterators
+ * or lists are built, and the merge stops once offset+count hits have been taken.
+ */
+public class HitMerger
+{
+  private static final int SORT_SCORE = 0;
+  private static final int SORT_DOC = 1;
+  private static final int SORT_FIELD = 2;
+
+  private final SenseiHit[][] _hits;
+  private final int[] _docBase;
+  private final int[] _pos;
+
+  private final int[] _sortTypes;
+  private final String[] _sortFields;
+  private final int[] _reverse;
+
+  // sort keys of the current head hit of each partition
+  private final float[] _headScores;
+  private final int[] _headDocs;
+  private final String[][] _headValues;
+
+  // min heap of partition indexes, ordered by their head hit
+  private final int[] _heap;
+  private int _heapSize;
+
+  private HitMerger(Collection<SenseiResult> results, SortField[] sort)
+  {
+    int size = results.size();
+    _hits = new SenseiHit[size][];
+    _docBase = new int[size];
+    _pos = new int[size];
+    int totalDocs = 0;
+    int i = 0;
+    for (SenseiResult res : results)
+    {
+      SenseiHit[] hits = res.getSenseiHits();
+      _hits[i] = hits == null ? new SenseiHit[0] : hits;
+      _docBase[i] = totalDocs;
+      totalDocs += res.getTotalDocs();
+      ++i;
+    }
+
+    int sortCount = sort == null ? 0 : sort.length;
+    _sortTypes = new int[sortCount];
+    _sortFields = new String[sortCount];
+    _reverse = new int[sortCount];
+    boolean hasFieldSort = false;
+    for (i = 0; i < sortCount; ++i)
+    {
+      int type = sort[i].getType();
+      if (type == SortField.SCORE)
+      {
+        _sortTypes[i] = SORT_SCORE;
+      }
+      else if (type == SortField.DOC)
+      {
+        _sortTypes[i] = SORT_DOC;
+      }
+      else
+      {
+        _sortTypes[i] = SORT_FIELD;
+        hasFieldSort = true;
+      }
+      _sortFields[i] = sort[i].getField();
+      _reverse[i] = sort[i].getReverse() ? -1 : 1;
+    }
+
+    _headScores = new float[size];
+    _headDocs = new int[size];
+    _headValues = hasFieldSort ? new String[size][sortCount] : null;
+
+    _heap = new int[size];
+    _heapSize = 0;
+    for (i = 0; i < size; ++i)
+    {
+      if (_hits[i].length > 0)
+      {
+        loadHead(i);
+        _heap[_heapSize++] = i;
+      }
+    }
+    for (i = (_heapSize >>> 1) - 1; i >= 0; --i)
+    {
+      siftDown(i);
+    }
+  }
+
+  /**
+   * @return the hits from offset to offset+count of the merged order, with their docids made
+   *         unique across results the same way as {@link ResultMerger#createUniqueDocIds(Collection)}
+   */
+  public static SenseiHit[] merge(Collection<SenseiResult> results, SortField[] sort, int offset, int count)
+  {
+    if (count <= 0 || results.isEmpty())
+    {
+      return new SenseiHit[0];
+    }
+    return new HitMerger(results, sort).merge(offset, count);
+  }
+
+  private SenseiHit[] merge(int offset, int count)
+  {
+    SenseiHit[] merged = new SenseiHit[count];
+    int taken = 0;
+    int skipped = 0;
+    while (_heapSize > 0 && taken < count)
+    {
+      int top = _heap[0];
+      if (skipped < offset)
+      {
+        ++skipped;
+      }
+      else
+      {
+        SenseiHit hit = _hits[top][_pos[top]];
+        hit.setDocid(_headDocs[top]);
+        merged[taken++] = hit;
+      }
+
+      if (++_pos[top] < _hits[top].length)
+      {
+        loadHead(top);
+      }
+      else
+      {
+        _heap[0] = _heap[--_heapSize];
+      }
+      if (_heapSize > 0)
+      {
+        siftDown(0);
+      }
+    }
+    if (taken == count)
+    {
+      return merged;
+    }
+    SenseiHit[] trimmed = new SenseiHit[taken];
+    System.arraycopy(merged, 0, trimmed, 0, taken);
+    return trimmed;
+  }
+
+  private void loadHead(int part)
+  {
+    SenseiHit hit = _hits[part][_pos[part]];
+    _headScores[part] = hit.getScore();
+    _headDocs[part] = hit.getDocid() + _docBase[part];
+    if (_headValues != null)
+    {
+      String[] values = _headValues[part];
+      for (int i = 0; i < _sortTypes.length; ++i)
+      {
+        if (_sortTypes[i] == SORT_FIELD)
+        {
+          values[i] = hit.getField(_sortFields[i]);
+        }
+      }
+    }
+  }
+
+  private void siftDown(int index)
+  {
+    int part = _heap[index];
+    int half = _heapSize >>> 1;
+    while (index < half)
+    {
+      int child = (index << 1) + 1;
+      int right = child + 1;
+      if (right < _heapSize && lessThan(_heap[right], _heap[child]))
+      {
+        child = right;
+      }
+      if (!lessThan(_heap[child], part))
+      {
+        break;
+      }
+      _heap[index] = _heap[child];
+      index = child;
+    }
+    _heap[index] = part;
+  }
+
+  private boolean lessThan(int a, int b)
+  {
+    int cmp = compare(a, b);
+    return cmp < 0 || (cmp == 0 && a < b);
+  }
+
+  private int compare(int a, int b)
+  {
+    for (int i = 0; i < _sortTypes.length; ++i)
+    {
+      switch (_sortTypes[i])
+      {
+      case SORT_SCORE:
+        float score1 = _headScores[a];
+        float score2 = _headScores[b];
+        if (score1 != score2)
+        {
+          return (score1 > score2) ? -_reverse[i] : _reverse[i];
+        }
+        break;
+      case SORT_DOC:
+        return _headDocs[a] - _headDocs[b];
+      default:
+        String value1 = _headValues[a][i];
+        String value2 = _headValues[b][i];
+        if (value1 == null && value2 == null)
+        {
+          break;
+        }
+        if (value1 == null)
+        {
+          return -_reverse[i];
+        }
+        if (value2 == null)
+        {
+          return _reverse[i];
+        }
+        int comp = value1.compareTo(value2);
+        if (value1.startsWith("-") && value2.startsWith("-"))
+        {
+          comp *= -1;
+        }
+        if (comp != 0)
+        {
+          return comp * _reverse[i];
+        }
+      }
+    }
+    return _headDocs[a] - _headDocs[b];
+  }
+}
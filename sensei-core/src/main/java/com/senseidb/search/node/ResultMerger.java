@@ -200,94 +200,29 @@ public class ResultMerger
   private static Map<String, FacetAccessible> mergeFacetContainer(Collection<Map<String, FacetAccessible>> subMaps,
                                                                   SenseiRequest req)
   {
-    Map<String, Map<String, Integer>> counts = new HashMap<String, Map<String, Integer>>();
+    Map<String, FacetMerger> mergers = new HashMap<String, FacetMerger>();
     for (Map<String, FacetAccessible> subMap : subMaps)
     {
       for (Map.Entry<String, FacetAccessible> entry : subMap.entrySet())
       {
         String facetname = entry.getKey();
-        Map<String, Integer> count = counts.get(facetname);
-        if(count == null)
-        {
-          count = new HashMap<String, Integer>();
-          counts.put(facetname, count);
-        }
-        Set<String> values = new HashSet<String>();
-        String[] rawvalues = null;
-        BrowseSelection selection = req.getSelection(facetname);
-        if (selection!=null&&(rawvalues = selection.getValues())!=null)
-        {
-          values.addAll(Arrays.asList(rawvalues));
-        }
-        FacetAccessible facetAccessible = entry.getValue();
-        for(BrowseFacet facet : facetAccessible.getFacets())
-        {
-          if (facet == null) continue;
-          String val = facet.getValue();
-          int oldValue = count.containsKey(val) ? count.get(val) : 0;
-          count.put(val, oldValue + facet.getFacetValueHitCount());
-          values.remove(val);
-        }
-        if (!values.isEmpty())
+        FacetMerger merger = mergers.get(facetname);
+        if (merger == null)
         {
-          for(String val : values)
-          {
-            int oldValue = count.containsKey(val) ? count.get(val) : 0;
-            BrowseFacet facet = facetAccessible.getFacet(val);
-            int delta = 0;
-            if (facet!=null)
-            {
-              delta = facet.getFacetValueHitCount();
-              count.put(val, oldValue + delta);
-            }
-
-          }
+          BrowseSelection selection = req == null ? null : req.getSelection(facetname);
+          merger = new FacetMerger(selection == null ? null : selection.getValues());
+          mergers.put(facetname, merger);
         }
-        facetAccessible.close();
+        merger.add(entry.getValue());
       }
     }
 
     Map<String, FacetAccessible> mergedFacetMap = new HashMap<String, FacetAccessible>();
-    for (Entry<String,Map<String, Integer>> entry : counts.entrySet())
+    for (Entry<String, FacetMerger> entry : mergers.entrySet())
     {
       String facet = entry.getKey();
-      Map<String, Integer> facetValueCounts = entry.getValue();
-      List<BrowseFacet> facets = new ArrayList<BrowseFacet>(facetValueCounts.size());
-      for (Entry<String, Integer> subEntry : facetValueCounts.entrySet())
-      {
-        facets.add(new BrowseFacet(subEntry.getKey(), subEntry.getValue()));
-      }
-      FacetSpec fspec = null;
-      Set<String> values = new HashSet<String>();
-      String[] rawvalues = null;
-      if (req != null)
-      {
-        fspec = req.getFacetSpec(facet);
-        BrowseSelection selection = req.getSelection(facet);
-        if (selection!=null&&(rawvalues = selection.getValues())!=null)
-        {
-          values.addAll(Arrays.asList(rawvalues));
-        }
-      }
-      Comparator<BrowseFacet> facetComp = getComparator(fspec);
-      Collections.sort(facets, facetComp);
-      if (fspec != null)
-      {
-        int maxCount = fspec.getMaxCount();
-        int numToShow = facets.size();
-        if (maxCount > 0)
-        {
-          numToShow = Math.min(maxCount, numToShow);
-        }
-        for(int i = facets.size() - 1; i >= numToShow; i--)
-        {
-          if (!values.contains(facets.get(i).getValue()))
-          {
-            facets.remove(i);
-          }
-        }
-      }
-      MappedFacetAccessible mergedFacetAccessible = new MappedFacetAccessible(facets.toArray(new BrowseFacet[facets.size()]));
+      FacetSpec fspec = req == null ? null : req.getFacetSpec(facet);
+      MappedFacetAccessible mergedFacetAccessible = new MappedFacetAccessible(entry.getValue().getFacets(fspec));
       mergedFacetMap.put(facet, mergedFacetAccessible);
     }
     return mergedFacetMap;
@@ -426,7 +361,7 @@ public class ResultMerger
     }
   }
 
-  private static final class SenseiHitComparator implements Comparator<SenseiHit>
+  static final class SenseiHitComparator implements Comparator<SenseiHit>
   {
     SortField[] _sortFields;
 
@@ -512,7 +447,7 @@ public class ResultMerger
     }
   }
 
-  private static class MappedFacetAccessible implements FacetAccessible, Serializable
+  public static class MappedFacetAccessible implements FacetAccessible, Serializable
   {
 
     /**
@@ -577,6 +512,15 @@ public class ResultMerger
     return numHits;
   }
 
+  public static boolean isNumHitsLowerBound(Collection<SenseiResult> results) {
+    for (SenseiResult res : results) {
+      if (res.isNumHitsLowerBound()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
   public static int getTotalDocs(Collection<SenseiResult> results) {
     int totalDocs = 0;
     for(SenseiResult res : results) {
@@ -670,12 +614,6 @@ public class ResultMerger
     final String parsedQuery = findParsedQuery(results);
     final boolean hasSortCollector = hasSortCollector(results);
 
-    // Assign each hit document a unique "document id"
-    createUniqueDocIds(results);
-
-    // Extract the hits from the results
-    List<Iterator<SenseiHit>> hitLists = flattenHits(results);
-
     List<FacetAccessible>[] groupAccessibles = extractFacetAccessible(results);
 
     // Merge your facets
@@ -701,12 +639,16 @@ public class ResultMerger
     SenseiHit[] hits;
     if (req.getGroupBy() == null || req.getGroupBy().length == 0)
     {
-      List<SenseiHit> mergedList = ListMerger.mergeLists(req.getOffset(), req.getCount(), hitLists
-          .toArray(new Iterator[hitLists.size()]), comparator);
-      hits = mergedList.toArray(new SenseiHit[mergedList.size()]);
+      hits = HitMerger.merge(results, req.getSort(), req.getOffset(), req.getCount());
     }
     else
     {
+      // Assign each hit document a unique "document id"
+      createUniqueDocIds(results);
+
+      // Extract the hits from the results
+      List<Iterator<SenseiHit>> hitLists = flattenHits(results);
+
       int[] rawGroupValueType = new int[req.getGroupBy().length];  // 0: unknown, 1: normal, 2: long[]
 
       PrimitiveLongArrayWrapper primitiveLongArrayWrapperTmp = new PrimitiveLongArrayWrapper(null);
@@ -844,6 +786,7 @@ public class ResultMerger
     SenseiResult merged = new SenseiResult();
     merged.setHits(hits);
     merged.setNumHits(numHits);
+    merged.setNumHitsLowerBound(isNumHitsLowerBound(results));
     merged.setNumGroups(numGroups);
     merged.setTotalDocs(totalDocs);
     merged.addAll(mergedFacetMap);
@@ -863,6 +806,79 @@ public class ResultMerger
     return merged;
   }
 
+  /**
+   * Merges the results of segment slices browsed in parallel into the result of their partition.
+   * Unlike {@link #merge(SenseiRequest, Collection, boolean)} the facets are combined without being
+   * read, so that the partition result can still be merged with the others on the node.
+   * Requests with group by are not sliced and are not supported here.
+   */
+  public static SenseiResult mergeSlices(final SenseiRequest req, List<SenseiResult> results)
+  {
+    long start = System.currentTimeMillis();
+
+    SenseiHit[] hits = HitMerger.merge(results, req.getSort(), req.getOffset(), req.getCount());
+
+    Map<String, List<FacetAccessible>> facetLists = new HashMap<String, List<FacetAccessible>>();
+    for (SenseiResult res : results)
+    {
+      Map<String, FacetAccessible> facetMap = res.getFacetMap();
+      if (facetMap == null) continue;
+      for (Map.Entry<String, FacetAccessible> entry : facetMap.entrySet())
+      {
+        List<FacetAccessible> list = facetLists.get(entry.getKey());
+        if (list == null)
+        {
+          list = new ArrayList<FacetAccessible>(results.size());
+          facetLists.put(entry.getKey(), list);
+        }
+        list.add(entry.getValue());
+      }
+    }
+    Map<String, FacetAccessible> mergedFacetMap = new HashMap<String, FacetAccessible>();
+    for (Entry<String, List<FacetAccessible>> entry : facetLists.entrySet())
+    {
+      List<FacetAccessible> list = entry.getValue();
+      mergedFacetMap.put(entry.getKey(), list.size() == 1 ? list.get(0) : new CombinedFacetAccessible(req.getFacetSpec(entry.getKey()), list));
+    }
+
+    SenseiResult merged = new SenseiResult();
+    merged.setHits(hits);
+    merged.setNumHits(getNumHits(results));
+    merged.setNumHitsLowerBound(isNumHitsLowerBound(results));
+    merged.setNumGroups(getNumGroups(results));
+    merged.setTotalDocs(getTotalDocs(results));
+    merged.addAll(mergedFacetMap);
+    merged.setTid(req.getTid());
+    merged.setParsedQuery(findParsedQuery(results));
+    for (SenseiResult res : results)
+    {
+      merged.getErrors().addAll(res.getErrors());
+      for (String boboError : res.getBoboErrors())
+      {
+        merged.addError(new SenseiError(boboError, ErrorType.BoboExecutionError));
+      }
+    }
+    if (req.getMapReduceFunction() != null)
+    {
+      merged.setMapReduceResult(SenseiReduceFunctionWrapper.combine(req.getMapReduceFunction(), SenseiReduceFunctionWrapper.extractMapReduceResults(results)));
+    }
+    merged.setTime(findLongestTime(results) + System.currentTimeMillis() - start);
+    return merged;
+  }
+
+  /**
+   * Merges the hits of requests without group by through sorted iterators, as done before
+   * {@link HitMerger}. Kept as the baseline for the hit merge benchmark.
+   */
+  public static SenseiHit[] mergeHitsWithListMerger(SenseiRequest req, Collection<SenseiResult> results)
+  {
+    createUniqueDocIds(results);
+    List<Iterator<SenseiHit>> hitLists = flattenHits(results);
+    List<SenseiHit> mergedList = ListMerger.mergeLists(req.getOffset(), req.getCount(), hitLists
+        .toArray(new Iterator[hitLists.size()]), new SenseiHitComparator(req.getSort()));
+    return mergedList.toArray(new SenseiHit[mergedList.size()]);
+  }
+
   private static boolean checkDuplicate(SenseiHit hit,
                                         Set<Object>[] distinctSets,
                                         String[] distinct,
@@ -3,9 +3,14 @@ package com.senseidb.search.node;
 import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
 
 import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 import javax.management.MBeanServer;
 import javax.management.ObjectName;
@@ -13,24 +18,35 @@ import javax.management.ObjectName;
 import org.apache.log4j.Logger;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.search.SortField;
+import org.json.JSONException;
+import org.json.JSONObject;
 
 import proj.zoie.api.indexing.AbstractZoieIndexable;
 
+import com.browseengine.bobo.api.BrowseSelection;
 import com.browseengine.bobo.api.FacetSpec;
+import com.browseengine.bobo.api.BrowseSelection.ValueOperation;
 import com.linkedin.norbert.NorbertException;
 import com.linkedin.norbert.javacompat.cluster.ClusterClient;
 import com.linkedin.norbert.javacompat.cluster.Node;
 import com.linkedin.norbert.javacompat.network.PartitionedNetworkClient;
+import com.linkedin.norbert.network.Serializer;
+import com.senseidb.cluster.routing.ReplicaSelector;
+import com.senseidb.conf.SenseiFacetHandlerBuilder;
 import com.senseidb.conf.SenseiSchema;
 import com.senseidb.indexing.DefaultJsonSchemaInterpreter;
+import com.senseidb.indexing.ShardingStrategy;
+import com.senseidb.search.node.broker.BrokerResultCache;
 import com.senseidb.search.req.ErrorType;
 import com.senseidb.search.req.SenseiError;
 import com.senseidb.search.req.SenseiHit;
 import com.senseidb.search.req.SenseiRequest;
 import com.senseidb.search.req.SenseiResult;
+import com.senseidb.svc.api.SenseiException;
 import com.senseidb.svc.impl.CoreSenseiServiceImpl;
 import com.yammer.metrics.Metrics;
 import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.Meter;
 import com.yammer.metrics.core.MetricName;
 
 
@@ -47,11 +63,26 @@ public class SenseiBroker extends AbstractConsistentHashBroker<SenseiRequest, Se
  
   private final boolean allowPartialMerge;
   private final ClusterClient clusterClient;
+  private volatile BrokerResultCache resultCache = null;
+  // orders the index versions of the nodes, null to leave the version out of the merged results
+  private volatile Comparator<String> versionComparator = null;
   private static Counter numberOfNodesInTheCluster = Metrics.newCounter(new MetricName(SenseiBroker.class, "numberOfNodesInTheCluster"));
+  private static Meter uidRoutedRequests = Metrics.newMeter(new MetricName(SenseiBroker.class, "uidRoutedRequests"), "requests", TimeUnit.SECONDS);
+  private volatile UidRouting uidRouting = null;
+  // picks the replicas for the uid lookups, when the broker routes the other requests with the consistent hash
+  private final ReplicaSelector uidReplicaSelector = new ReplicaSelector(false, ReplicaSelector.DEFAULT_HEDGE_PERCENTILE, 0);
   
   public SenseiBroker(PartitionedNetworkClient<String> networkClient, ClusterClient clusterClient, boolean allowPartialMerge)
       throws NorbertException {
-    super(networkClient, CoreSenseiServiceImpl.JAVA_SERIALIZER);
+    this(networkClient, clusterClient, allowPartialMerge, CoreSenseiServiceImpl.JAVA_SERIALIZER);
+  }
+
+  /**
+   * @param serializer one of the serializers, that the nodes register their handlers with
+   */
+  public SenseiBroker(PartitionedNetworkClient<String> networkClient, ClusterClient clusterClient, boolean allowPartialMerge,
+      Serializer<SenseiRequest, SenseiResult> serializer) throws NorbertException {
+    super(networkClient, serializer);
     this.clusterClient = clusterClient;
     this.allowPartialMerge = allowPartialMerge;
     clusterClient.addListener(this);
@@ -122,10 +153,227 @@ public class SenseiBroker extends AbstractConsistentHashBroker<SenseiRequest, Se
     }
   }
 
+  public BrokerResultCache getResultCache()
+  {
+    return resultCache;
+  }
+
+  /**
+   * @param resultCache cache of merged results, null to always go to the nodes
+   */
+  public void setResultCache(BrokerResultCache resultCache)
+  {
+    this.resultCache = resultCache;
+  }
+
+  /**
+   * @param versionComparator the version comparator of the gateway, that orders the index versions reported by the nodes
+   */
+  public void setVersionComparator(Comparator<String> versionComparator)
+  {
+    this.versionComparator = versionComparator;
+  }
+
+  /**
+   * The partition of a uid, as the sharding strategy of the indexing computes it for a document with only the uid field.
+   */
+  private static final class UidRouting
+  {
+    private final ShardingStrategy shardingStrategy;
+    private final String uidField;
+    private final int maxShardId;
+
+    private UidRouting(ShardingStrategy shardingStrategy, String uidField, int maxShardId)
+    {
+      this.shardingStrategy = shardingStrategy;
+      this.uidField = uidField;
+      this.maxShardId = maxShardId;
+    }
+
+    private int getPartition(long uid) throws JSONException
+    {
+      JSONObject dataObj = new JSONObject();
+      dataObj.put(uidField, String.valueOf(uid));
+      return shardingStrategy.caculateShard(maxShardId, dataObj);
+    }
+  }
+
+  /**
+   * Lets the broker send the uid lookups only to the partitions of the uids, and each node only the uids of its own
+   * partitions. The sharding strategy must place the documents by their uid.
+   * @param shardingStrategy the sharding strategy of the indexing, null to search all the partitions for the uids
+   * @param uidField the uid field of the schema
+   * @param maxShardId the number of the partitions, the max partition id plus one
+   */
+  public void setUidRouting(ShardingStrategy shardingStrategy, String uidField, int maxShardId)
+  {
+    if (shardingStrategy == null)
+    {
+      uidRouting = null;
+      return;
+    }
+    if (maxShardId <= 0)
+    {
+      throw new IllegalArgumentException("The number of the partitions should be positive: " + maxShardId);
+    }
+    // the cluster may have connected before the routing was set
+    if (clusterClient.isConnected())
+    {
+      uidReplicaSelector.setNodes(clusterClient.getNodes());
+    }
+    uidRouting = new UidRouting(shardingStrategy, uidField, maxShardId);
+  }
+
+  /**
+   * @return the request for the stored values of the documents of the uids
+   */
+  public static SenseiRequest buildUidRequest(long[] uids)
+  {
+    SenseiRequest req = new SenseiRequest();
+    req.setFetchStoredValue(true);
+    req.setCount(uids.length);
+    String[] vals = new String[uids.length];
+    for (int i = 0; i < uids.length; ++i)
+    {
+      vals[i] = String.valueOf(uids[i]);
+    }
+    BrowseSelection sel = new BrowseSelection(SenseiFacetHandlerBuilder.UID_FACET_NAME);
+    sel.setValues(vals);
+    req.addSelection(sel);
+    return req;
+  }
+
+  /**
+   * Fetches the documents of the uids. With the uid routing, only the partitions the uids belong to are searched, otherwise
+   * the request goes to all of them.
+   */
+  public SenseiResult getByUids(long[] uids) throws SenseiException
+  {
+    if (uids.length == 0)
+      return getEmptyResultInstance();
+    SenseiRequest req = buildUidRequest(uids);
+    UidRouting routing = uidRouting;
+    ReplicaSelector replicaSelector = getReplicaSelector();
+    if (replicaSelector == null || !replicaSelector.hasPartitions())
+      replicaSelector = uidReplicaSelector;
+    if (routing == null || !replicaSelector.hasPartitions())
+      return browse(req);
+
+    int[] partitions = new int[uids.length];
+    try
+    {
+      for (int i = 0; i < uids.length; ++i)
+      {
+        partitions[i] = routing.getPartition(uids[i]);
+      }
+    }
+    catch (JSONException e)
+    {
+      throw new SenseiException(e.getMessage(), e);
+    }
+    Arrays.sort(partitions);
+    int count = 0;
+    for (int i = 0; i < partitions.length; ++i)
+    {
+      if (count == 0 || partitions[count - 1] != partitions[i])
+        partitions[count++] = partitions[i];
+    }
+    uidRoutedRequests.mark();
+    return browse(req, Arrays.copyOf(partitions, count), replicaSelector);
+  }
+
+  /**
+   * With the uid routing, the uid selection of the request for a node keeps only the uids of the partitions of the node.
+   */
+  @Override
+  protected SenseiRequest buildNodeRequest(SenseiRequest req, Set<Integer> nodePartitions)
+  {
+    SenseiRequest nodeRequest = super.buildNodeRequest(req, nodePartitions);
+    UidRouting routing = uidRouting;
+    BrowseSelection sel = nodeRequest.getSelection(SenseiFacetHandlerBuilder.UID_FACET_NAME);
+    // the uids of an AND selection are left alone, the filter matches nothing unless there is exactly one
+    if (routing == null || sel == null || sel.getSelectionOperation() != ValueOperation.ValueOperationOr
+        || sel.getValues() == null || sel.getValues().length <= 1)
+      return nodeRequest;
+
+    String[] values = sel.getValues();
+    List<String> nodeValues = new ArrayList<String>(values.length);
+    for (String value : values)
+    {
+      try
+      {
+        if (!nodePartitions.contains(routing.getPartition(Long.parseLong(value))))
+          continue;
+      }
+      catch (Exception e)
+      {
+        // the node reports the invalid uid
+      }
+      nodeValues.add(value);
+    }
+    if (nodeValues.size() == values.length)
+      return nodeRequest;
+    if (nodeValues.isEmpty())
+    {
+      // a selection without values would match every document, keep one, that the node doesn't have
+      nodeValues.add(values[0]);
+    }
+    // the clone shares the selections with the original request
+    BrowseSelection nodeSel = new BrowseSelection(sel.getFieldName());
+    nodeSel.setValues(nodeValues.toArray(new String[nodeValues.size()]));
+    nodeSel.setNotValues(sel.getNotValues());
+    nodeSel.setSelectionOperation(sel.getSelectionOperation());
+    nodeSel.getSelectionProperties().putAll(sel.getSelectionProperties());
+    nodeRequest.addSelection(nodeSel);
+    return nodeRequest;
+  }
+
+  @Override
+  public SenseiResult browse(SenseiRequest req) throws SenseiException
+  {
+    BrokerResultCache cache = resultCache;
+    if (cache == null)
+      return super.browse(req);
+
+    String key;
+    try
+    {
+      key = BrokerResultCache.getCacheKey(req);
+    }
+    catch (Exception e)
+    {
+      logger.warn("request can not be cached: " + e.getMessage());
+      return super.browse(req);
+    }
+    long start = System.currentTimeMillis();
+    SenseiResult res = cache.get(key);
+    if (res != null)
+    {
+      // the cached result is shared by the requests, that hit it
+      return BrokerResultCache.copyOf(res, req.getTid(), System.currentTimeMillis() - start);
+    }
+    res = super.browse(req);
+    cache.put(key, res);
+    return res;
+  }
+
   @Override
   public SenseiResult mergeResults(SenseiRequest request, List<SenseiResult> resultList)
   {
     SenseiResult res = ResultMerger.merge(request, resultList, false);
+
+    Comparator<String> comparator = versionComparator;
+    if (comparator != null)
+    {
+      String version = null;
+      for (SenseiResult nodeResult : resultList)
+      {
+        String nodeVersion = nodeResult.getIndexVersion();
+        if (nodeVersion != null && (version == null || comparator.compare(version, nodeVersion) < 0))
+          version = nodeVersion;
+      }
+      res.setIndexVersion(version);
+    }
     
     if (request.isFetchStoredFields() || request.isFetchStoredValue())
       recoverSrcData(res, res.getSenseiHits(), request.isFetchStoredFields());
@@ -203,6 +451,8 @@ public class SenseiBroker extends AbstractConsistentHashBroker<SenseiRequest, Se
   {
 //    _loadBalancer = _loadBalancerFactory.newLoadBalancer(nodes);
     _partitions = getPartitions(nodes);
+    updateReplicaSelector(nodes);
+    uidReplicaSelector.setNodes(nodes);
     numberOfNodesInTheCluster.clear();
     numberOfNodesInTheCluster.inc(getNumberOfNodes());
     logger.info("handleClusterConnected(): Received the list of nodes from norbert " + nodes.toString());
@@ -213,6 +463,8 @@ public class SenseiBroker extends AbstractConsistentHashBroker<SenseiRequest, Se
   {
     logger.info("handleClusterDisconnected() called");
     _partitions = new IntOpenHashSet();
+    updateReplicaSelector(Collections.<Node>emptySet());
+    uidReplicaSelector.setNodes(Collections.<Node>emptySet());
   }
 
   public void handleClusterNodesChanged(Set<Node> nodes)
@@ -220,6 +472,8 @@ public class SenseiBroker extends AbstractConsistentHashBroker<SenseiRequest, Se
 
 //    _loadBalancer = _loadBalancerFactory.newLoadBalancer(nodes);
     _partitions = getPartitions(nodes);
+    updateReplicaSelector(nodes);
+    uidReplicaSelector.setNodes(nodes);
     numberOfNodesInTheCluster.clear();
     numberOfNodesInTheCluster.inc(getNumberOfNodes());
     logger.info("handleClusterNodesChanged(): Received the list of nodes from norbert " + nodes.toString());
@@ -227,6 +481,17 @@ public class SenseiBroker extends AbstractConsistentHashBroker<SenseiRequest, Se
 
   }
 
+  @Override
+  public void setReplicaSelector(ReplicaSelector replicaSelector)
+  {
+    // the cluster may have connected before the selector was set
+    if (replicaSelector != null && clusterClient.isConnected())
+    {
+      replicaSelector.setNodes(clusterClient.getNodes());
+    }
+    super.setReplicaSelector(replicaSelector);
+  }
+
   @Override
   public void handleClusterShutdown()
   {
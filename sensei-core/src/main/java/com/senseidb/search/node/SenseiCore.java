@@ -21,6 +21,7 @@ import com.senseidb.indexing.SenseiIndexPruner;
 import com.senseidb.indexing.SenseiIndexPruner.DefaultSenseiIndexPruner;
 import com.senseidb.indexing.activity.CompositeActivityManager;
 import com.senseidb.jmx.JmxUtil;
+import com.senseidb.search.node.impl.BoundedSearchScheduler;
 import com.senseidb.search.plugin.PluggableSearchEngineManager;
 import com.senseidb.search.req.SenseiSystemInfo;
 
@@ -39,6 +40,13 @@ public class SenseiCore{
   private SenseiSystemInfo _senseiSystemInfo;
   private volatile boolean _started;
   private SenseiIndexPruner _pruner;
+  private SenseiSearchScheduler _searchScheduler;
+  private SenseiSearchScheduler _segmentSearchScheduler;
+  private int _segmentParallelism = 1;
+  private int _segmentParallelMinDocs = DEFAULT_SEGMENT_PARALLEL_MIN_DOCS;
+  private boolean _earlyTermination = false;
+
+  public static final int DEFAULT_SEGMENT_PARALLEL_MIN_DOCS = 1000000;
 
   private PluggableSearchEngineManager pluggableSearchEngineManager;
 
@@ -69,6 +77,55 @@ public class SenseiCore{
 	  return _pruner == null ? new DefaultSenseiIndexPruner() : _pruner;
   }
   
+  public synchronized void setSearchScheduler(SenseiSearchScheduler searchScheduler){
+    _searchScheduler = searchScheduler;
+  }
+
+  public synchronized SenseiSearchScheduler getSearchScheduler(){
+    if (_searchScheduler == null){
+      _searchScheduler = new BoundedSearchScheduler();
+    }
+    return _searchScheduler;
+  }
+  
+  /**
+   * Segment slices run on their own pool, partition searches waiting on them would otherwise starve it.
+   */
+  public synchronized SenseiSearchScheduler getSegmentSearchScheduler(){
+    if (_segmentSearchScheduler == null){
+      _segmentSearchScheduler = new BoundedSearchScheduler("segment-searcher", "segment", BoundedSearchScheduler.DEFAULT_POOL_SIZE, BoundedSearchScheduler.DEFAULT_QUEUE_SIZE);
+    }
+    return _segmentSearchScheduler;
+  }
+
+  public void setSegmentParallelism(int segmentParallelism){
+    _segmentParallelism = segmentParallelism;
+  }
+
+  public int getSegmentParallelism(){
+    return _segmentParallelism;
+  }
+
+  public void setSegmentParallelMinDocs(int segmentParallelMinDocs){
+    _segmentParallelMinDocs = segmentParallelMinDocs;
+  }
+
+  public int getSegmentParallelMinDocs(){
+    return _segmentParallelMinDocs;
+  }
+
+  /**
+   * Lets the sorted searches without facets stop visiting the segments of a partition once none of the rest can have a top hit,
+   * their number of hits is then only a lower bound.
+   */
+  public void setEarlyTermination(boolean earlyTermination){
+    _earlyTermination = earlyTermination;
+  }
+
+  public boolean isEarlyTermination(){
+    return _earlyTermination;
+  }
+  
   public int getNodeId(){
     return _id;
   }
@@ -120,13 +177,7 @@ public class SenseiCore{
     }
 
     Date lastModified = new Date(0L);
-    String version = null;
-    for(Zoie<BoboIndexReader,?> zoieSystem : zoieSystems)
-    {
-      if (version == null || _zoieFactory.getVersionComparator().compare(version, zoieSystem.getVersion()) < 0)
-        version = zoieSystem.getVersion();
-      
-    }
+    String version = getIndexVersion();
 /*
     for (ObjectName name : _registeredMBeans) {
       try
@@ -150,6 +201,20 @@ public class SenseiCore{
     return _senseiSystemInfo;
   }
 
+  /**
+   * @return the highest index version over the partitions of this node, null if none is known yet
+   */
+  public String getIndexVersion()
+  {
+    String version = null;
+    for(Zoie<BoboIndexReader,?> zoieSystem : zoieSystems)
+    {
+      if (version == null || _zoieFactory.getVersionComparator().compare(version, zoieSystem.getVersion()) < 0)
+        version = zoieSystem.getVersion();
+    }
+    return version;
+  }
+
   public void setSystemInfo(SenseiSystemInfo senseiSystemInfo)
   {
     _senseiSystemInfo = senseiSystemInfo;
@@ -212,6 +277,12 @@ public class SenseiCore{
       zoieSystem.shutdown();
     }
     zoieSystems.clear();
+    if (_searchScheduler != null){
+      _searchScheduler.shutdown();
+    }
+    if (_segmentSearchScheduler != null){
+      _segmentSearchScheduler.shutdown();
+    }
     _started =false;
   }
 
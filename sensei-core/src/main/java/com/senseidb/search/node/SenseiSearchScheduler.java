@@ -0,0 +1,22 @@
+package com.senseidb.search.node;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Schedules partition searches of a node onto worker threads.
+ * Implementations are expected to be bounded and to shed load, rather than queue work
+ * for callers that have already given up.
+ */
+public interface SenseiSearchScheduler
+{
+  /**
+   * @param task the partition search
+   * @param deadline absolute time in milliseconds after which the result is of no use, 0 or less for none
+   * @throws RejectedExecutionException if the task can not be admitted or its deadline can no longer be met
+   */
+  <T> Future<T> submit(Callable<T> task, long deadline) throws RejectedExecutionException;
+
+  void shutdown();
+}
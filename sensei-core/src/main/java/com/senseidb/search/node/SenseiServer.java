@@ -174,6 +174,7 @@ public class SenseiServer {
     
     _networkServer.registerHandler(senseiMsgHandler, CoreSenseiServiceImpl.JAVA_SERIALIZER);
     _networkServer.registerHandler(senseiSysMsgHandler, SysSenseiCoreServiceImpl.JAVA_SERIALIZER);
+    _networkServer.registerHandler(senseiMsgHandler, CoreSenseiServiceImpl.BINARY_SERIALIZER);
 
     if (_externalSvc!=null){
       for (AbstractSenseiCoreService svc : _externalSvc){
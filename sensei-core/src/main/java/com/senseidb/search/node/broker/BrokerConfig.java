@@ -7,11 +7,16 @@ import org.apache.commons.configuration.Configuration;
 import com.linkedin.norbert.javacompat.cluster.ZooKeeperClusterClient;
 import com.linkedin.norbert.javacompat.network.NetworkClientConfig;
 import com.linkedin.norbert.javacompat.network.PartitionedLoadBalancerFactory;
+import com.linkedin.norbert.network.Serializer;
 import com.senseidb.cluster.client.SenseiNetworkClient;
+import com.senseidb.cluster.routing.ReplicaSelector;
 import com.senseidb.conf.SenseiConfParams;
+import com.senseidb.indexing.ShardingStrategy;
 import com.senseidb.search.node.SenseiBroker;
 import com.senseidb.search.node.SenseiSysBroker;
 import com.senseidb.search.req.SenseiRequest;
+import com.senseidb.search.req.SenseiResult;
+import com.senseidb.svc.impl.CoreSenseiServiceImpl;
 import com.senseidb.servlet.SenseiConfigServletContextListener;
 import com.senseidb.svc.api.SenseiException;
 
@@ -33,6 +38,17 @@ public class BrokerConfig {
   private SenseiBroker senseiBroker;
   private SenseiSysBroker senseiSysBroker;
   private long brokerTimeout;
+  protected long cacheMaxBytes;
+  protected long cacheTtl;
+  protected long cacheMaxStaleness;
+  protected String serializer;
+  protected String routing;
+  protected boolean hedge;
+  protected double hedgePercentile;
+  protected long hedgeMinDelay;
+  protected String uidRoutingField;
+  protected int maxPartitionId;
+  protected ShardingStrategy shardingStrategy;
 
   
   public BrokerConfig(Configuration senseiConf, PartitionedLoadBalancerFactory<String> loadBalancerFactory) {
@@ -50,6 +66,23 @@ public class BrokerConfig {
     staleRequestCleanupFrequencyMins = senseiConf.getInt(SenseiConfigServletContextListener.SENSEI_CONF_NC_STALE_CLEANUP_FREQ_MINS, 10);
     allowPartialMerge = senseiConf.getBoolean(SenseiConfParams.ALLOW_PARTIAL_MERGE, true); 
     brokerTimeout = senseiConf.getLong(SenseiConfParams.SERVER_BROKER_TIMEOUT, 8000); 
+    cacheMaxBytes = senseiConf.getLong(SenseiConfParams.SERVER_BROKER_CACHE_MAX_BYTES, 0L);
+    cacheTtl = senseiConf.getLong(SenseiConfParams.SERVER_BROKER_CACHE_TTL, BrokerResultCache.DEFAULT_TTL);
+    cacheMaxStaleness = senseiConf.getLong(SenseiConfParams.SERVER_BROKER_CACHE_MAX_STALENESS, BrokerResultCache.DEFAULT_MAX_STALENESS);
+    serializer = senseiConf.getString(SenseiConfParams.SERVER_BROKER_SERIALIZER, "java");
+    routing = senseiConf.getString(SenseiConfParams.SERVER_BROKER_ROUTING, "consistentHash");
+    hedge = senseiConf.getBoolean(SenseiConfParams.SERVER_BROKER_HEDGE, false);
+    hedgePercentile = senseiConf.getDouble(SenseiConfParams.SERVER_BROKER_HEDGE_PERCENTILE, ReplicaSelector.DEFAULT_HEDGE_PERCENTILE);
+    hedgeMinDelay = senseiConf.getLong(SenseiConfParams.SERVER_BROKER_HEDGE_MIN_DELAY, ReplicaSelector.DEFAULT_MIN_HEDGE_DELAY);
+    uidRoutingField = senseiConf.getString(SenseiConfParams.SERVER_BROKER_UID_ROUTING_FIELD, null);
+    if (uidRoutingField != null) {
+      // the uids are routed by the number of the partitions, so a wrong default would send the lookups to the wrong nodes
+      if (!senseiConf.containsKey(SenseiConfParams.SENSEI_INDEX_MANAGER_DEFAULT_MAX_PARTITION_ID)) {
+        throw new IllegalArgumentException(SenseiConfParams.SERVER_BROKER_UID_ROUTING_FIELD + " needs "
+            + SenseiConfParams.SENSEI_INDEX_MANAGER_DEFAULT_MAX_PARTITION_ID + ", the max partition id of the cluster");
+      }
+      maxPartitionId = senseiConf.getInt(SenseiConfParams.SENSEI_INDEX_MANAGER_DEFAULT_MAX_PARTITION_ID);
+    }
   }
 
   public void init() {
@@ -67,11 +100,48 @@ public class BrokerConfig {
     clusterClient.awaitConnectionUninterruptibly();
   }
 
-  public SenseiBroker buildSenseiBroker() {   
-    senseiBroker = new SenseiBroker(networkClient, clusterClient, allowPartialMerge);
+  public SenseiBroker buildSenseiBroker() {
+    return buildSenseiBroker(null);
+  }
+
+  /**
+   * @param versionComparator the version comparator of the gateway, null if the index versions of the nodes can't be
+   *          compared, the merged results then carry no version and the cache entries only expire with their ttl
+   */
+  public SenseiBroker buildSenseiBroker(Comparator<String> versionComparator) {   
+    senseiBroker = new SenseiBroker(networkClient, clusterClient, allowPartialMerge, getSerializer(serializer));
     senseiBroker.setTimeout(brokerTimeout);
+    senseiBroker.setVersionComparator(versionComparator);
+    if (cacheMaxBytes > 0) {
+      senseiBroker.setResultCache(new BrokerResultCache(cacheMaxBytes, cacheTtl, cacheMaxStaleness, versionComparator));
+    }
+    if ("latencyAware".equals(routing)) {
+      senseiBroker.setReplicaSelector(new ReplicaSelector(hedge, hedgePercentile, hedgeMinDelay));
+    } else if (!"consistentHash".equals(routing)) {
+      throw new IllegalArgumentException("Unknown broker routing " + routing + ", expected consistentHash or latencyAware");
+    }
+    if (uidRoutingField != null) {
+      ShardingStrategy strategy = shardingStrategy;
+      if (strategy == null) {
+        strategy = new ShardingStrategy.FieldModShardingStrategy(uidRoutingField);
+      }
+      senseiBroker.setUidRouting(strategy, uidRoutingField, maxPartitionId + 1);
+    }
     return senseiBroker;
   }
+  /**
+   * @param name "java" or "binary". The nodes accept both, so the brokers can be switched one by one
+   */
+  public static Serializer<SenseiRequest, SenseiResult> getSerializer(String name) {
+    if ("java".equals(name)) {
+      return CoreSenseiServiceImpl.JAVA_SERIALIZER;
+    }
+    if ("binary".equals(name)) {
+      return CoreSenseiServiceImpl.BINARY_SERIALIZER;
+    }
+    throw new IllegalArgumentException("Unknown broker serializer " + name + ", expected java or binary");
+  }
+
   public SenseiSysBroker buildSysSenseiBroker(Comparator<String> versionComparator) {   
      senseiSysBroker = new SenseiSysBroker(networkClient, clusterClient, versionComparator, allowPartialMerge);
     return senseiSysBroker;
@@ -137,6 +207,41 @@ public class BrokerConfig {
     this.allowPartialMerge = allowPartialMerge;
   }
 
+  public void setCacheMaxBytes(long cacheMaxBytes) {
+    this.cacheMaxBytes = cacheMaxBytes;
+  }
+
+  public void setCacheTtl(long cacheTtl) {
+    this.cacheTtl = cacheTtl;
+  }
+
+  public void setCacheMaxStaleness(long cacheMaxStaleness) {
+    this.cacheMaxStaleness = cacheMaxStaleness;
+  }
+
+  public void setRouting(String routing) {
+    this.routing = routing;
+  }
+
+  public void setHedge(boolean hedge) {
+    this.hedge = hedge;
+  }
+
+  public void setUidRoutingField(String uidRoutingField) {
+    this.uidRoutingField = uidRoutingField;
+  }
+
+  public void setMaxPartitionId(int maxPartitionId) {
+    this.maxPartitionId = maxPartitionId;
+  }
+
+  /**
+   * @param shardingStrategy the sharding strategy of the indexing, the uid routing defaults to the uid modulo the number of the partitions
+   */
+  public void setShardingStrategy(ShardingStrategy shardingStrategy) {
+    this.shardingStrategy = shardingStrategy;
+  }
+
 
   
 }
@@ -0,0 +1,513 @@
+package com.senseidb.search.node.broker;
+
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.apache.lucene.search.SortField;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import com.browseengine.bobo.api.BrowseFacet;
+import com.browseengine.bobo.api.BrowseSelection;
+import com.browseengine.bobo.api.FacetAccessible;
+import com.browseengine.bobo.api.FacetSpec;
+import com.browseengine.bobo.facets.FacetHandlerInitializerParam;
+import com.senseidb.metrics.MetricsConstants;
+import com.senseidb.search.req.SenseiHit;
+import com.senseidb.search.req.SenseiRequest;
+import com.senseidb.search.req.SenseiResult;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.Meter;
+import com.yammer.metrics.core.MetricName;
+
+/**
+ * Caches merged results on the broker, keyed on a normalized form of the request so that the same
+ * query sent with its selections, facets or parameters in a different order maps to the same entry.
+ * Entries are evicted least recently used first once the estimated size of the cached results goes
+ * over the byte budget, and expire after a time to live.
+ * <p>
+ * Nodes report the index version a result was served from. Once a newer version has been seen for
+ * longer than the max staleness, entries of older versions are no longer served. As new versions are
+ * only learned from results that missed the cache, the time to live is what bounds the age of an
+ * entry of a query that keeps hitting.
+ */
+public class BrokerResultCache
+{
+  private static final Logger logger = Logger.getLogger(BrokerResultCache.class);
+
+  public static final long DEFAULT_TTL = 10000L;
+  public static final long DEFAULT_MAX_STALENESS = 1000L;
+
+  private static final Meter HitMeter = Metrics.newMeter(new MetricName(MetricsConstants.Domain,"meter","cache-hit","broker"),"hits",TimeUnit.SECONDS);
+  private static final Meter MissMeter = Metrics.newMeter(new MetricName(MetricsConstants.Domain,"meter","cache-miss","broker"),"misses",TimeUnit.SECONDS);
+  private static final Meter EvictionMeter = Metrics.newMeter(new MetricName(MetricsConstants.Domain,"meter","cache-eviction","broker"),"evictions",TimeUnit.SECONDS);
+  private static final Counter SizeCounter = Metrics.newCounter(new MetricName(MetricsConstants.Domain,"counter","cache-bytes","broker"));
+
+  private static final class Entry
+  {
+    final SenseiResult result;
+    final String version;
+    final long expiresAt;
+    final long size;
+
+    Entry(SenseiResult result, String version, long expiresAt, long size)
+    {
+      this.result = result;
+      this.version = version;
+      this.expiresAt = expiresAt;
+      this.size = size;
+    }
+  }
+
+  private final long _maxBytes;
+  private final long _ttl;
+  private final long _maxStaleness;
+  private final Comparator<String> _versionComparator;
+
+  private final LinkedHashMap<String, Entry> _entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+  private long _bytes = 0L;
+
+  // newest index version reported by the nodes, and when it was first seen
+  private String _latestVersion = null;
+  private long _latestVersionSince = 0L;
+
+  /**
+   * @param maxBytes budget for the estimated size of the cached results
+   * @param ttl time in milliseconds an entry is served for
+   * @param maxStaleness time in milliseconds an entry is still served for after a newer index version shows up
+   * @param versionComparator orders the index versions reported by the nodes, null to expire the entries only with the ttl
+   */
+  public BrokerResultCache(long maxBytes, long ttl, long maxStaleness, Comparator<String> versionComparator)
+  {
+    _maxBytes = maxBytes;
+    _ttl = ttl;
+    _maxStaleness = maxStaleness;
+    _versionComparator = versionComparator;
+    logger.info("broker result cache of " + maxBytes + " bytes, ttl: " + ttl + "ms, max staleness: " + maxStaleness + "ms");
+  }
+
+  public long getMaxBytes()
+  {
+    return _maxBytes;
+  }
+
+  public synchronized long getBytes()
+  {
+    return _bytes;
+  }
+
+  public synchronized int size()
+  {
+    return _entries.size();
+  }
+
+  /**
+   * @return the cached result for the key, null if there is none that is still fresh
+   */
+  public SenseiResult get(String key)
+  {
+    long now = System.currentTimeMillis();
+    synchronized (this)
+    {
+      Entry entry = _entries.get(key);
+      if (entry != null)
+      {
+        if (now < entry.expiresAt && !isStale(entry, now))
+        {
+          HitMeter.mark();
+          return entry.result;
+        }
+        remove(key);
+      }
+    }
+    MissMeter.mark();
+    return null;
+  }
+
+  /**
+   * Caches a result merged from the nodes. Results carrying errors are not cached.
+   */
+  public void put(String key, SenseiResult result)
+  {
+    if (result == null || !result.getErrors().isEmpty())
+    {
+      return;
+    }
+    long now = System.currentTimeMillis();
+    long size = estimateSize(result);
+    synchronized (this)
+    {
+      updateVersion(result.getIndexVersion(), now);
+      if (size > _maxBytes || isStale(result.getIndexVersion(), now))
+      {
+        return;
+      }
+      remove(key);
+      _entries.put(key, new Entry(result, result.getIndexVersion(), now + _ttl, size));
+      _bytes += size;
+      SizeCounter.inc(size);
+
+      Iterator<Map.Entry<String, Entry>> iter = _entries.entrySet().iterator();
+      while (_bytes > _maxBytes && iter.hasNext())
+      {
+        Entry eldest = iter.next().getValue();
+        iter.remove();
+        _bytes -= eldest.size;
+        SizeCounter.dec(eldest.size);
+        EvictionMeter.mark();
+      }
+    }
+  }
+
+  public synchronized void clear()
+  {
+    SizeCounter.dec(_bytes);
+    _entries.clear();
+    _bytes = 0L;
+  }
+
+  private void remove(String key)
+  {
+    Entry entry = _entries.remove(key);
+    if (entry != null)
+    {
+      _bytes -= entry.size;
+      SizeCounter.dec(entry.size);
+    }
+  }
+
+  private void updateVersion(String version, long now)
+  {
+    if (version == null || _versionComparator == null)
+    {
+      return;
+    }
+    if (_latestVersion == null || _versionComparator.compare(_latestVersion, version) < 0)
+    {
+      _latestVersion = version;
+      _latestVersionSince = now;
+    }
+  }
+
+  private boolean isStale(Entry entry, long now)
+  {
+    return isStale(entry.version, now);
+  }
+
+  private boolean isStale(String version, long now)
+  {
+    if (_latestVersion == null || _latestVersion.equals(version))
+    {
+      return false;
+    }
+    if (version != null && _versionComparator.compare(version, _latestVersion) >= 0)
+    {
+      return false;
+    }
+    return now - _latestVersionSince > _maxStaleness;
+  }
+
+  /**
+   * @return a shallow copy of a cached result for a request, with the tid of the request and the time of the lookup
+   */
+  public static SenseiResult copyOf(SenseiResult result, long tid, long time)
+  {
+    SenseiResult copy = new SenseiResult();
+    copy.setHits(result.getSenseiHits());
+    copy.setNumHits(result.getNumHits());
+    copy.setNumHitsLowerBound(result.isNumHitsLowerBound());
+    copy.setNumGroups(result.getNumGroups());
+    copy.setTotalDocs(result.getTotalDocs());
+    if (result.getFacetMap() != null)
+    {
+      copy.addAll(result.getFacetMap());
+    }
+    copy.setMapReduceResult(result.getMapReduceResult());
+    copy.setParsedQuery(result.getParsedQuery());
+    copy.setIndexVersion(result.getIndexVersion());
+    copy.getErrors().addAll(result.getErrors());
+    copy.setTid(tid);
+    copy.setTime(time);
+    return copy;
+  }
+
+  /**
+   * Rough size in bytes of a result held in memory, counting its hits and facets.
+   */
+  static long estimateSize(SenseiResult result)
+  {
+    long size = 256;
+    SenseiHit[] hits = result.getSenseiHits();
+    for (SenseiHit hit : hits)
+    {
+      size += estimateSize(hit);
+    }
+    Map<String, FacetAccessible> facetMap = result.getFacetMap();
+    if (facetMap != null)
+    {
+      for (Map.Entry<String, FacetAccessible> entry : facetMap.entrySet())
+      {
+        size += 64 + 2 * entry.getKey().length();
+        for (BrowseFacet facet : entry.getValue().getFacets())
+        {
+          if (facet != null && facet.getValue() != null)
+          {
+            size += 48 + 2 * facet.getValue().length();
+          }
+        }
+      }
+    }
+    return size;
+  }
+
+  private static long estimateSize(SenseiHit hit)
+  {
+    long size = 128;
+    Map<String, String[]> fields = hit.getFieldValues();
+    if (fields != null)
+    {
+      for (Map.Entry<String, String[]> entry : fields.entrySet())
+      {
+        size += 48 + 2 * entry.getKey().length();
+        String[] values = entry.getValue();
+        if (values != null)
+        {
+          for (String value : values)
+          {
+            size += 40 + (value == null ? 0 : 2 * value.length());
+          }
+        }
+      }
+    }
+    if (hit.getSrcData() != null)
+    {
+      size += 2 * hit.getSrcData().length();
+    }
+    if (hit.getStoredValue() != null)
+    {
+      size += hit.getStoredValue().length;
+    }
+    SenseiHit[] groupHits = hit.getSenseiGroupHits();
+    if (groupHits != null)
+    {
+      for (SenseiHit groupHit : groupHits)
+      {
+        size += estimateSize(groupHit);
+      }
+    }
+    return size;
+  }
+
+  /**
+   * Builds the cache key of a request. Everything that changes the merged result is part of the
+   * key; maps, sets and selection values are written in sorted order and the query json with its
+   * keys sorted. Transaction id, timeout, routing and parallelism hints are left out.
+   */
+  public static String getCacheKey(SenseiRequest req) throws Exception
+  {
+    StringBuilder buf = new StringBuilder(256);
+    buf.append("q=");
+    if (req.getQuery() != null)
+    {
+      String query = req.getQuery().toString();
+      try
+      {
+        appendJson(buf, new JSONObject(query));
+      }
+      catch (Exception e)
+      {
+        buf.append(query);
+      }
+    }
+
+    buf.append(";s=");
+    TreeMap<String, BrowseSelection> selections = new TreeMap<String, BrowseSelection>();
+    for (BrowseSelection sel : req.getSelections())
+    {
+      selections.put(sel.getFieldName(), sel);
+    }
+    for (BrowseSelection sel : selections.values())
+    {
+      buf.append(sel.getFieldName()).append('(');
+      buf.append(sel.getSelectionOperation()).append(',');
+      appendSorted(buf, sel.getValues());
+      buf.append(',');
+      appendSorted(buf, sel.getNotValues());
+      buf.append(',').append(new TreeMap<String, String>(sel.getSelectionProperties()));
+      buf.append(')');
+    }
+
+    buf.append(";f=");
+    for (Map.Entry<String, FacetSpec> entry : new TreeMap<String, FacetSpec>(req.getFacetSpecs()).entrySet())
+    {
+      FacetSpec spec = entry.getValue();
+      buf.append(entry.getKey()).append('(');
+      if (spec != null)
+      {
+        buf.append(spec.getOrderBy()).append(',').append(spec.getMaxCount()).append(',');
+        buf.append(spec.getMinHitCount()).append(',').append(spec.isExpandSelection());
+        if (spec.getCustomComparatorFactory() != null)
+        {
+          buf.append(',').append(spec.getCustomComparatorFactory().getClass().getName());
+        }
+      }
+      buf.append(')');
+    }
+
+    buf.append(";i=");
+    for (Map.Entry<String, FacetHandlerInitializerParam> entry : new TreeMap<String, FacetHandlerInitializerParam>(req.getFacetHandlerInitParamMap()).entrySet())
+    {
+      buf.append(entry.getKey()).append('(');
+      appendInitParam(buf, entry.getValue());
+      buf.append(')');
+    }
+
+    buf.append(";o=");
+    for (SortField sort : req.getSort())
+    {
+      buf.append(sort.getField()).append(',').append(sort.getType()).append(',').append(sort.getReverse()).append(' ');
+    }
+
+    buf.append(";p=").append(req.getOffset()).append(',').append(req.getCount());
+    buf.append(";g=");
+    appendArray(buf, req.getGroupBy());
+    buf.append(',').append(req.getMaxPerGroup());
+    buf.append(";d=");
+    appendArray(buf, req.getDistinct());
+    buf.append(";x=").append(req.isFetchStoredFields()).append(',').append(req.isFetchStoredValue());
+    buf.append(',').append(req.isShowExplanation());
+    buf.append(";l=");
+    if (req.getSelectList() != null)
+    {
+      buf.append(new TreeSet<String>(req.getSelectList()));
+    }
+    buf.append(";t=");
+    if (req.getTermVectorsToFetch() != null)
+    {
+      buf.append(new TreeSet<String>(req.getTermVectorsToFetch()));
+    }
+    buf.append(";n=");
+    if (req.getPartitions() != null)
+    {
+      buf.append(new TreeSet<Integer>(req.getPartitions()));
+    }
+
+    buf.append(";m=");
+    if (req.getMapReduceFunction() != null)
+    {
+      // map reduce functions keep their parameters in their fields, they are told apart by their serialized form
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      ObjectOutputStream out = new ObjectOutputStream(bytes);
+      out.writeObject(req.getMapReduceFunction());
+      out.close();
+      byte[] digest = MessageDigest.getInstance("MD5").digest(bytes.toByteArray());
+      buf.append(req.getMapReduceFunction().getClass().getName()).append('@');
+      for (byte b : digest)
+      {
+        buf.append(Integer.toHexString((b & 0xff) | 0x100).substring(1));
+      }
+    }
+    return buf.toString();
+  }
+
+  private static void appendArray(StringBuilder buf, String[] values)
+  {
+    if (values != null)
+    {
+      buf.append(Arrays.toString(values));
+    }
+  }
+
+  private static void appendSorted(StringBuilder buf, String[] values)
+  {
+    if (values != null)
+    {
+      String[] sorted = values.clone();
+      Arrays.sort(sorted);
+      buf.append(Arrays.toString(sorted));
+    }
+  }
+
+  private static void appendInitParam(StringBuilder buf, FacetHandlerInitializerParam param)
+  {
+    for (String name : new TreeSet<String>(param.getBooleanParamNames()))
+    {
+      buf.append(name).append("=b").append(Arrays.toString(param.getBooleanParam(name))).append(' ');
+    }
+    for (String name : new TreeSet<String>(param.getIntParamNames()))
+    {
+      buf.append(name).append("=i").append(Arrays.toString(param.getIntParam(name))).append(' ');
+    }
+    for (String name : new TreeSet<String>(param.getLongParamNames()))
+    {
+      buf.append(name).append("=l").append(Arrays.toString(param.getLongParam(name))).append(' ');
+    }
+    for (String name : new TreeSet<String>(param.getDoubleParamNames()))
+    {
+      buf.append(name).append("=d").append(Arrays.toString(param.getDoubleParam(name))).append(' ');
+    }
+    for (String name : new TreeSet<String>(param.getStringParamNames()))
+    {
+      buf.append(name).append("=s").append(param.getStringParam(name)).append(' ');
+    }
+    for (String name : new TreeSet<String>(param.getByteArrayParamNames()))
+    {
+      buf.append(name).append("=a").append(Arrays.toString(param.getByteArrayParam(name))).append(' ');
+    }
+  }
+
+  private static void appendJson(StringBuilder buf, Object value) throws Exception
+  {
+    if (value instanceof JSONObject)
+    {
+      JSONObject obj = (JSONObject) value;
+      List<String> keys = new ArrayList<String>();
+      for (Iterator<String> iter = obj.keys(); iter.hasNext();)
+      {
+        keys.add(iter.next());
+      }
+      Collections.sort(keys);
+      buf.append('{');
+      for (String key : keys)
+      {
+        buf.append(JSONObject.quote(key)).append(':');
+        appendJson(buf, obj.get(key));
+        buf.append(',');
+      }
+      buf.append('}');
+    }
+    else if (value instanceof JSONArray)
+    {
+      JSONArray array = (JSONArray) value;
+      buf.append('[');
+      for (int i = 0; i < array.length(); ++i)
+      {
+        appendJson(buf, array.get(i));
+        buf.append(',');
+      }
+      buf.append(']');
+    }
+    else if (value instanceof String)
+    {
+      buf.append(JSONObject.quote((String) value));
+    }
+    else
+    {
+      buf.append(value);
+    }
+  }
+}
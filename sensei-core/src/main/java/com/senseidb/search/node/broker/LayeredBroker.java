@@ -1,28 +1,85 @@
 package com.senseidb.search.node.broker;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.log4j.Logger;
+import org.apache.lucene.util.NamedThreadFactory;
 
 import com.linkedin.norbert.javacompat.network.PartitionedLoadBalancerFactory;
 import com.senseidb.cluster.routing.SenseiPartitionedLoadBalancerFactory;
 import com.senseidb.conf.SenseiConfParams;
+import com.senseidb.metrics.MetricsConstants;
 import com.senseidb.plugin.SenseiPlugin;
 import com.senseidb.plugin.SenseiPluginRegistry;
 import com.senseidb.search.node.Broker;
 import com.senseidb.search.node.ResultMerger;
-import com.senseidb.search.node.SenseiBroker;
+import com.senseidb.search.req.ErrorType;
+import com.senseidb.search.req.SenseiError;
+import com.senseidb.search.req.SenseiHit;
 import com.senseidb.search.req.SenseiRequest;
 import com.senseidb.search.req.SenseiResult;
 import com.senseidb.svc.api.SenseiException;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Meter;
+import com.yammer.metrics.core.MetricName;
 
+/**
+ * Queries several clusters and merges their results. When the cluster priorities are equal, all the pruned clusters are
+ * queried concurrently. Otherwise the clusters are queried one after another, until the requested hits are collected, and the
+ * next cluster is started speculatively, when the current one usually doesn't fill the page.
+ * Both paths share one deadline, and skip the clusters that failed or timed out, unless the partial merge is disabled.
+ */
 public class LayeredBroker implements SenseiPlugin, Broker<SenseiRequest, SenseiResult> {
+  private final static Logger logger = Logger.getLogger(LayeredBroker.class);
   private static final String CLUSTERS = "clusters";
+  private static final String TIMEOUT = "timeout";
+  private static final String ALLOW_PARTIAL_MERGE = "allowPartialMerge";
+  private static final String SPECULATIVE_FILL_RATE = "speculativeFillRate";
+  public static final double DEFAULT_SPECULATIVE_FILL_RATE = 0.5;
+  private static final double FILL_RATE_WEIGHT = 0.1;
+
+  private static Meter SpeculativeMeter = Metrics.newMeter(new MetricName(MetricsConstants.Domain, "meter", "speculative-meter", "layered-broker"), "speculative-requests", TimeUnit.SECONDS);
+  private static Meter SpeculativeCancelMeter = Metrics.newMeter(new MetricName(MetricsConstants.Domain, "meter", "speculative-cancel-meter", "layered-broker"), "cancelled-requests", TimeUnit.SECONDS);
+  private static Meter ClusterErrorMeter = Metrics.newMeter(new MetricName(MetricsConstants.Domain, "meter", "cluster-error-meter", "layered-broker"), "errors", TimeUnit.SECONDS);
+
   private List<String> clusters = new ArrayList<String>();
   private Map<String, CompoundBrokerConfig> clusterBrokerConfig = new HashMap<String, CompoundBrokerConfig>() ;
-  private Map<String, SenseiBroker> brokers = new HashMap<String, SenseiBroker>() ;
+  private Map<String, Broker<SenseiRequest, SenseiResult>> brokers = new HashMap<String, Broker<SenseiRequest, SenseiResult>>() ;
   private LayeredClusterPruner federatedPruner;
+  private long timeout = 8000;
+  private boolean allowPartialMerge = true;
+  private double speculativeFillRate = DEFAULT_SPECULATIVE_FILL_RATE;
+  /** The moving average of how often each cluster fills the requested page on its own */
+  private final Map<String, double[]> fillRates = new ConcurrentHashMap<String, double[]>();
+  private ExecutorService executor;
+
+  public LayeredBroker() {
+  }
+
+  LayeredBroker(List<String> clusters, Map<String, ? extends Broker<SenseiRequest, SenseiResult>> brokers, LayeredClusterPruner federatedPruner,
+      long timeout, boolean allowPartialMerge, double speculativeFillRate) {
+    this.clusters = clusters;
+    this.brokers.putAll(brokers);
+    this.federatedPruner = federatedPruner;
+    this.timeout = timeout;
+    this.allowPartialMerge = allowPartialMerge;
+    this.speculativeFillRate = speculativeFillRate;
+    executor = Executors.newCachedThreadPool(new NamedThreadFactory("layered-broker"));
+  }
+
   @Override
   public void init(Map<String, String> config, SenseiPluginRegistry pluginRegistry) {
     String clustersConfig = config.get(CLUSTERS);
@@ -37,15 +94,20 @@ public class LayeredBroker implements SenseiPlugin, Broker<SenseiRequest, Sensei
     if (routerFactory == null) {
       routerFactory = new SenseiPartitionedLoadBalancerFactory(50);
     }
+    timeout = config.containsKey(TIMEOUT) ? Long.parseLong(config.get(TIMEOUT)) : pluginRegistry.getConfiguration().getLong(SenseiConfParams.SERVER_BROKER_TIMEOUT, timeout);
+    allowPartialMerge = config.containsKey(ALLOW_PARTIAL_MERGE) ? Boolean.parseBoolean(config.get(ALLOW_PARTIAL_MERGE)) : pluginRegistry.getConfiguration().getBoolean(SenseiConfParams.ALLOW_PARTIAL_MERGE, true);
+    if (config.containsKey(SPECULATIVE_FILL_RATE)) {
+      speculativeFillRate = Double.parseDouble(config.get(SPECULATIVE_FILL_RATE));
+    }
     for (String cluster : clustersConfig.split(",")) {
       String trimmed = cluster.trim();
       if (trimmed.length() > 0) {
         clusters.add(trimmed);
         clusterBrokerConfig.put(trimmed, new CompoundBrokerConfig(pluginRegistry.getConfiguration(), routerFactory, config, trimmed));
       }
-    }    
+    }
   }
-  
+
   @Override
   public void start() {
     for (String cluster : clusters) {
@@ -53,20 +115,23 @@ public class LayeredBroker implements SenseiPlugin, Broker<SenseiRequest, Sensei
       brokerConfig.init();
       brokers.put(cluster, brokerConfig.buildSenseiBroker());
     }
-    
+    executor = Executors.newCachedThreadPool(new NamedThreadFactory("layered-broker"));
   }
 
   @Override
   public void stop() {
+    if (executor != null) {
+      executor.shutdownNow();
+    }
     for (CompoundBrokerConfig brokerConfig : clusterBrokerConfig.values()) {
       brokerConfig.getSenseiBroker().shutdown();
       brokerConfig.getNetworkClient().shutdown();
       brokerConfig.getClusterClient().shutdown();
     }
   }
-  
+
   public void warmUp() {
-    for (SenseiBroker broker : brokers.values()) {
+    for (Broker<SenseiRequest, SenseiResult> broker : brokers.values()) {
       try {
         broker.browse(new SenseiRequest());
       } catch (SenseiException e) {
@@ -76,23 +141,87 @@ public class LayeredBroker implements SenseiPlugin, Broker<SenseiRequest, Sensei
   }
   public SenseiResult browse(final SenseiRequest req) throws SenseiException {
     List<String> prunedClusters = federatedPruner.pruneClusters(req, clusters);
-    int count = req.getCount();
-    int offset = req.getOffset();
-    if (count == 0) {
+    if (req.getCount() == 0) {
       return new SenseiResult();
     }
-    
-    List<SenseiResult> results = new ArrayList<SenseiResult>();
+    long deadline = System.currentTimeMillis() + timeout;
+    List<SenseiError> errors = new ArrayList<SenseiError>();
+    List<SenseiResult> results;
     if (!federatedPruner.clusterPrioritiesEqual(req)) {
-      for (String cluster : prunedClusters) {
-        if (count <= 0) {
-          break;
+      results = browsePrioritized(req, prunedClusters, deadline, errors);
+    } else {
+      results = browseAll(req, prunedClusters, deadline, errors);
+    }
+    SenseiResult res = ResultMerger.merge(req, results, false);
+    for (SenseiError error : errors) {
+      res.addError(error);
+    }
+    return res;
+  }
+
+  /**
+   * Scatters the request to all the clusters. The first cluster is queried by the calling thread.
+   */
+  private List<SenseiResult> browseAll(SenseiRequest req, List<String> prunedClusters, long deadline, List<SenseiError> errors) throws SenseiException {
+    List<SenseiResult> results = new ArrayList<SenseiResult>(prunedClusters.size());
+    if (prunedClusters.isEmpty()) {
+      return results;
+    }
+    List<Future<SenseiResult>> futures = new ArrayList<Future<SenseiResult>>(prunedClusters.size());
+    try {
+      futures.add(null);
+      for (int i = 1; i < prunedClusters.size(); i++) {
+        futures.add(submit(prunedClusters.get(i), req.clone(), false));
+      }
+      futures.set(0, submit(prunedClusters.get(0), req.clone(), true));
+      for (int i = 0; i < prunedClusters.size(); i++) {
+        SenseiResult currentResult = await(prunedClusters.get(i), futures.get(i), deadline, errors);
+        if (currentResult != null) {
+          results.add(currentResult);
+        }
+      }
+    } finally {
+      for (Future<SenseiResult> future : futures) {
+        if (future != null) {
+          future.cancel(true);
+        }
+      }
+    }
+    return results;
+  }
+
+  /**
+   * Queries the clusters in the priority order, until the requested page is filled. If the current cluster fills the page less
+   * often than the speculative fill rate, the next cluster is queried at the same time, for all the hits it might need to
+   * contribute, and the hits it actually has to contribute are cut out once the current cluster answers. The speculative
+   * request is cancelled, if the current cluster fills the page.
+   */
+  private List<SenseiResult> browsePrioritized(SenseiRequest req, List<String> prunedClusters, long deadline, List<SenseiError> errors) throws SenseiException {
+    int count = req.getCount();
+    int offset = req.getOffset();
+    List<SenseiResult> results = new ArrayList<SenseiResult>();
+    Future<SenseiResult> current = null;
+    try {
+      for (int i = 0; i < prunedClusters.size() && count > 0; i++) {
+        String cluster = prunedClusters.get(i);
+        Future<SenseiResult> next = null;
+        if (i + 1 < prunedClusters.size() && getFillRate(cluster) < speculativeFillRate) {
+          // the next cluster is needed at most for the rest of this page
+          next = submit(prunedClusters.get(i + 1), pageRequest(req, 0, offset + count), false);
+          SpeculativeMeter.mark();
+        }
+        boolean speculative = current != null;
+        Future<SenseiResult> future = speculative ? current : submit(cluster, pageRequest(req, offset, count), true);
+        current = next;
+        SenseiResult currentResult = await(cluster, future, deadline, errors);
+        if (currentResult == null) {
+          continue;
+        }
+        if (speculative) {
+          cutPage(currentResult, offset, count);
         }
-        SenseiRequest request = req.clone();
-        request.setCount(count);
-        request.setOffset(offset);
-        SenseiResult currentResult = brokers.get(cluster).browse(request);
         int numHits = currentResult.getNumHits();
+        updateFillRate(cluster, numHits - offset >= count);
         if (offset >= numHits) {
           offset -= numHits;
           continue;
@@ -103,16 +232,94 @@ public class LayeredBroker implements SenseiPlugin, Broker<SenseiRequest, Sensei
           results.add(currentResult);
         }
       }
-    } else {
-      for (String cluster : prunedClusters) {       
-        SenseiRequest request = req.clone();       
-        SenseiResult currentResult = brokers.get(cluster).browse(request);      
-        results.add(currentResult);
+    } finally {
+      if (current != null && current.cancel(true)) {
+        SpeculativeCancelMeter.mark();
       }
     }
-    SenseiResult res = ResultMerger.merge(req, results, false); 
-    return res;
+    return results;
+  }
+
+  private static SenseiRequest pageRequest(SenseiRequest req, int offset, int count) {
+    SenseiRequest request = req.clone();
+    request.setCount(count);
+    request.setOffset(offset);
+    return request;
+  }
+
+  /**
+   * Leaves the hits of the given page in the result of the speculative request, that started from the first hit
+   */
+  private static void cutPage(SenseiResult result, int offset, int count) {
+    SenseiHit[] hits = result.getSenseiHits();
+    if (hits == null || (offset == 0 && hits.length <= count)) {
+      return;
+    }
+    int from = Math.min(offset, hits.length);
+    result.setHits(Arrays.copyOfRange(hits, from, Math.min(hits.length, offset + count)));
+  }
+
+  /**
+   * @param inline if true the request is executed by the calling thread, otherwise it's submitted to the executor
+   */
+  private Future<SenseiResult> submit(String cluster, final SenseiRequest request, boolean inline) {
+    final Broker<SenseiRequest, SenseiResult> broker = brokers.get(cluster);
+    Callable<SenseiResult> call = new Callable<SenseiResult>() {
+      @Override
+      public SenseiResult call() throws Exception {
+        return broker.browse(request);
+      }
+    };
+    if (!inline && executor != null) {
+      return executor.submit(call);
+    }
+    FutureTask<SenseiResult> task = new FutureTask<SenseiResult>(call);
+    task.run();
+    return task;
+  }
+
+  /**
+   * @return the result of the cluster, or null if it failed or timed out and the partial merge is allowed
+   */
+  private SenseiResult await(String cluster, Future<SenseiResult> future, long deadline, List<SenseiError> errors) throws SenseiException {
+    try {
+      return future.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+    } catch (TimeoutException e) {
+      future.cancel(true);
+      ClusterErrorMeter.mark();
+      if (!allowPartialMerge) {
+        throw new SenseiException("Timed out waiting for the cluster " + cluster);
+      }
+      logger.error("Timed out waiting for the cluster " + cluster);
+      errors.add(new SenseiError("Timed out waiting for the cluster " + cluster, ErrorType.BrokerTimeout));
+      return null;
+    } catch (ExecutionException e) {
+      ClusterErrorMeter.mark();
+      Throwable cause = e.getCause() != null ? e.getCause() : e;
+      if (!allowPartialMerge) {
+        throw new SenseiException(cause.getMessage(), cause);
+      }
+      logger.error("Failed to query the cluster " + cluster, cause);
+      errors.add(new SenseiError("Failed to query the cluster " + cluster + ": " + cause.getMessage(), ErrorType.BrokerGatherError));
+      return null;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new SenseiException("Interrupted waiting for the cluster " + cluster, e);
+    }
+  }
+
+  private double getFillRate(String cluster) {
+    double[] fillRate = fillRates.get(cluster);
+    return fillRate == null ? 1 : fillRate[0];
+  }
+
+  private void updateFillRate(String cluster, boolean filled) {
+    double[] fillRate = fillRates.get(cluster);
+    if (fillRate == null) {
+      fillRate = new double[] {1};
+      fillRates.put(cluster, fillRate);
+    }
+    // the races only lose some updates of the moving average
+    fillRate[0] += FILL_RATE_WEIGHT * ((filled ? 1 : 0) - fillRate[0]);
   }
-  
-  
 }
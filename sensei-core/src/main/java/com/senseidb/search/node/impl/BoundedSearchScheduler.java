@@ -0,0 +1,165 @@
+package com.senseidb.search.node.impl;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.apache.lucene.util.NamedThreadFactory;
+
+import com.senseidb.metrics.MetricsConstants;
+import com.senseidb.search.node.SenseiSearchScheduler;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Histogram;
+import com.yammer.metrics.core.Meter;
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.Timer;
+
+/**
+ * Fixed size worker pool in front of a bounded queue. A task is refused at submission when the
+ * queue is full or when the expected queue wait would already exceed its deadline, and is dropped
+ * when it reaches a worker after its deadline has passed.
+ */
+public class BoundedSearchScheduler implements SenseiSearchScheduler
+{
+  private static final Logger logger = Logger.getLogger(BoundedSearchScheduler.class);
+
+  public static final int DEFAULT_POOL_SIZE = Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+  public static final int DEFAULT_QUEUE_SIZE = 1000;
+
+  private final int _poolSize;
+  private final ArrayBlockingQueue<Runnable> _queue;
+  private final ThreadPoolExecutor _executor;
+
+  private final Timer _queueWaitTimer;
+  private final Histogram _queueDepth;
+  private final Meter _rejectedMeter;
+  private final Meter _expiredMeter;
+
+  // bits of the moving average of the time a task spends on a worker, used to estimate queue wait
+  private final AtomicLong _avgServiceTime = new AtomicLong(Double.doubleToLongBits(0.0));
+
+  public BoundedSearchScheduler()
+  {
+    this(DEFAULT_POOL_SIZE, DEFAULT_QUEUE_SIZE);
+  }
+
+  public BoundedSearchScheduler(int poolSize, int queueSize)
+  {
+    this("parallel-searcher", "node", poolSize, queueSize);
+  }
+
+  /**
+   * @param metricScope scope of the queue metrics, "node" for the partition searches
+   */
+  public BoundedSearchScheduler(String threadName, String metricScope, int poolSize, int queueSize)
+  {
+    _poolSize = poolSize > 0 ? poolSize : DEFAULT_POOL_SIZE;
+    _queue = new ArrayBlockingQueue<Runnable>(queueSize > 0 ? queueSize : DEFAULT_QUEUE_SIZE);
+    _executor = new ThreadPoolExecutor(_poolSize, _poolSize, 60, TimeUnit.SECONDS, _queue,
+                                       new NamedThreadFactory(threadName),
+                                       new ThreadPoolExecutor.AbortPolicy());
+
+    // metrics are scoped by pool so that several schedulers on a node can be told apart
+    _queueWaitTimer = Metrics.newTimer(new MetricName(MetricsConstants.Domain,"timer","queue-wait-time",metricScope),TimeUnit.MILLISECONDS,TimeUnit.SECONDS);
+    _queueDepth = Metrics.newHistogram(new MetricName(MetricsConstants.Domain,"histogram","queue-depth",metricScope),false);
+    _rejectedMeter = Metrics.newMeter(new MetricName(MetricsConstants.Domain,"meter","search-rejected",metricScope),"rejections",TimeUnit.SECONDS);
+    _expiredMeter = Metrics.newMeter(new MetricName(MetricsConstants.Domain,"meter","search-expired",metricScope),"expirations",TimeUnit.SECONDS);
+    logger.info(threadName + " scheduler started with " + _poolSize + " workers and a queue of " + _queue.remainingCapacity());
+  }
+
+  public int getPoolSize()
+  {
+    return _poolSize;
+  }
+
+  public int getQueueDepth()
+  {
+    return _queue.size();
+  }
+
+  /**
+   * Expected time in milliseconds a newly submitted task waits before a worker picks it up.
+   */
+  public long getEstimatedQueueWait()
+  {
+    int queued = _queue.size();
+    int busy = _executor.getActiveCount();
+    if (queued == 0 && busy < _poolSize)
+      return 0L;
+    return (long)(Double.longBitsToDouble(_avgServiceTime.get()) * (queued + 1) / _poolSize);
+  }
+
+  @Override
+  public <T> Future<T> submit(final Callable<T> task, final long deadline) throws RejectedExecutionException
+  {
+    int depth = _queue.size();
+    _queueDepth.update(depth);
+    if (deadline > 0)
+    {
+      long now = System.currentTimeMillis();
+      if (now + getEstimatedQueueWait() >= deadline)
+      {
+        _rejectedMeter.mark();
+        throw new RejectedExecutionException("deadline can not be met, queue depth: " + depth);
+      }
+    }
+
+    final long enqueued = System.currentTimeMillis();
+    try
+    {
+      return _executor.submit(new Callable<T>()
+      {
+        @Override
+        public T call() throws Exception
+        {
+          long start = System.currentTimeMillis();
+          _queueWaitTimer.update(start - enqueued, TimeUnit.MILLISECONDS);
+          if (deadline > 0 && start >= deadline)
+          {
+            _expiredMeter.mark();
+            throw new TimeoutException("search expired after waiting " + (start - enqueued) + "ms in queue");
+          }
+          try
+          {
+            return task.call();
+          }
+          finally
+          {
+            updateAvgServiceTime(System.currentTimeMillis() - start);
+          }
+        }
+      });
+    }
+    catch (RejectedExecutionException e)
+    {
+      _rejectedMeter.mark();
+      throw e;
+    }
+  }
+
+  /**
+   * Adds the time of a finished task to the moving average, the workers finishing at once don't lose each other's updates
+   */
+  private void updateAvgServiceTime(long took)
+  {
+    while (true)
+    {
+      long current = _avgServiceTime.get();
+      double updated = Double.longBitsToDouble(current) * 0.9 + took * 0.1;
+      if (_avgServiceTime.compareAndSet(current, Double.doubleToLongBits(updated)))
+        return;
+    }
+  }
+
+  @Override
+  public void shutdown()
+  {
+    _executor.shutdownNow();
+  }
+}
@@ -0,0 +1,284 @@
+package com.senseidb.search.query;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Scorer;
+
+/**
+ * Wraps the query of a partition search so that collection stops shortly after the
+ * request is cancelled or its deadline has passed, instead of running to completion
+ * for a caller that has already given up.
+ */
+public class CancellableQuery extends AbstractScoreAdjuster
+{
+  private static final long serialVersionUID = 1L;
+
+  /**
+   * Number of documents a scorer visits between two checks of the token.
+   */
+  public static final int CHECK_INTERVAL = 1024;
+
+  public static class CancellationToken
+  {
+    private final long _deadline;
+    private volatile boolean _cancelled = false;
+    private final AtomicLong _docsScanned = new AtomicLong(0L);
+
+    /**
+     * @param deadline absolute time in milliseconds after which the search is considered cancelled, 0 or less for none
+     */
+    public CancellationToken(long deadline)
+    {
+      _deadline = deadline;
+    }
+
+    public long getDeadline()
+    {
+      return _deadline;
+    }
+
+    public void cancel()
+    {
+      _cancelled = true;
+    }
+
+    public boolean isCancelled()
+    {
+      return _cancelled || (_deadline > 0 && System.currentTimeMillis() >= _deadline);
+    }
+
+    public long getDocsScanned()
+    {
+      return _docsScanned.get();
+    }
+
+    void checkCancelled(int scanned)
+    {
+      long total = _docsScanned.addAndGet(scanned);
+      if (isCancelled())
+      {
+        _cancelled = true;
+        throw new SearchCancelledException(total);
+      }
+    }
+  }
+
+  public static class SearchCancelledException extends RuntimeException
+  {
+    private static final long serialVersionUID = 1L;
+
+    private final long _docsScanned;
+
+    public SearchCancelledException(long docsScanned)
+    {
+      super("search cancelled after scanning " + docsScanned + " docs");
+      _docsScanned = docsScanned;
+    }
+
+    public long getDocsScanned()
+    {
+      return _docsScanned;
+    }
+  }
+
+  private static class CancellableScorer extends Scorer
+  {
+    private final Scorer _innerScorer;
+    private final CancellationToken _token;
+    private int _scanned = 0;
+
+    CancellableScorer(Scorer innerScorer, CancellationToken token)
+    {
+      super(innerScorer.getSimilarity());
+      _innerScorer = innerScorer;
+      _token = token;
+    }
+
+    private void visited()
+    {
+      if (++_scanned == CHECK_INTERVAL)
+      {
+        _token.checkCancelled(_scanned);
+        _scanned = 0;
+      }
+    }
+
+    @Override
+    public float score() throws IOException
+    {
+      return _innerScorer.score();
+    }
+
+    @Override
+    public int advance(int target) throws IOException
+    {
+      visited();
+      return _innerScorer.advance(target);
+    }
+
+    @Override
+    public int docID()
+    {
+      return _innerScorer.docID();
+    }
+
+    @Override
+    public int nextDoc() throws IOException
+    {
+      visited();
+      return _innerScorer.nextDoc();
+    }
+  }
+
+  private static class CancellableIterator extends DocIdSetIterator
+  {
+    private final DocIdSetIterator _innerIterator;
+    private final CancellationToken _token;
+    private int _scanned = 0;
+
+    CancellableIterator(DocIdSetIterator innerIterator, CancellationToken token)
+    {
+      _innerIterator = innerIterator;
+      _token = token;
+    }
+
+    private void visited()
+    {
+      if (++_scanned == CHECK_INTERVAL)
+      {
+        _token.checkCancelled(_scanned);
+        _scanned = 0;
+      }
+    }
+
+    @Override
+    public int docID()
+    {
+      return _innerIterator.docID();
+    }
+
+    @Override
+    public int nextDoc() throws IOException
+    {
+      visited();
+      return _innerIterator.nextDoc();
+    }
+
+    @Override
+    public int advance(int target) throws IOException
+    {
+      visited();
+      return _innerIterator.advance(target);
+    }
+  }
+
+  private static class AllDocsIterator extends DocIdSetIterator
+  {
+    private final int _maxDoc;
+    private int _doc = -1;
+
+    AllDocsIterator(int maxDoc)
+    {
+      _maxDoc = maxDoc;
+    }
+
+    @Override
+    public int docID()
+    {
+      return _doc;
+    }
+
+    @Override
+    public int nextDoc() throws IOException
+    {
+      return advance(_doc + 1);
+    }
+
+    @Override
+    public int advance(int target) throws IOException
+    {
+      _doc = target < _maxDoc ? target : NO_MORE_DOCS;
+      return _doc;
+    }
+  }
+
+  /**
+   * Checks the token while the filter drives the collection of a request without a query, which is left for Bobo to match
+   * all the documents with, so that it keeps sorting the hits by document and doesn't score them.
+   */
+  public static class CancellableFilter extends Filter
+  {
+    private static final long serialVersionUID = 1L;
+
+    private final Filter _filter;
+    private final CancellationToken _token;
+
+    /**
+     * @param filter filter of the request, null to let every document through
+     */
+    public CancellableFilter(Filter filter, CancellationToken token)
+    {
+      _filter = filter;
+      _token = token;
+    }
+
+    @Override
+    public DocIdSet getDocIdSet(final IndexReader reader) throws IOException
+    {
+      final DocIdSet innerSet = _filter == null ? null : _filter.getDocIdSet(reader);
+      if (_filter != null && innerSet == null)
+        return null;
+      if (_token.isCancelled())
+        _token.checkCancelled(0);
+      return new DocIdSet()
+      {
+        @Override
+        public DocIdSetIterator iterator() throws IOException
+        {
+          DocIdSetIterator innerIterator = innerSet == null ? new AllDocsIterator(reader.maxDoc()) : innerSet.iterator();
+          return innerIterator == null ? null : new CancellableIterator(innerIterator, _token);
+        }
+      };
+    }
+  }
+
+  private final CancellationToken _token;
+
+  public CancellableQuery(Query query, CancellationToken token)
+  {
+    super(query);
+    _token = token;
+  }
+
+  public CancellationToken getToken()
+  {
+    return _token;
+  }
+
+  @Override
+  protected Scorer createScorer(Scorer innerScorer, IndexReader reader, boolean scoreDocsInOrder, boolean topScorer) throws IOException
+  {
+    if (innerScorer == null)
+      return null;
+    if (_token.isCancelled())
+      _token.checkCancelled(0);
+    return new CancellableScorer(innerScorer, _token);
+  }
+
+  @Override
+  public Query rewrite(IndexReader reader) throws IOException
+  {
+    Query rewritten = _query.rewrite(reader);
+    if (rewritten == _query)
+      return this;
+    CancellableQuery query = new CancellableQuery(rewritten, _token);
+    query.setBoost(getBoost());
+    return query;
+  }
+}
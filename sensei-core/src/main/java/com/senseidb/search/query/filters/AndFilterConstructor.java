@@ -7,8 +7,6 @@ import org.apache.lucene.queryParser.QueryParser;
 import org.apache.lucene.search.Filter;
 import org.json.JSONArray;
 
-import com.browseengine.bobo.facets.filter.AndFilter;
-
 
 public class AndFilterConstructor extends FilterConstructor {
   public static final String FILTER_TYPE = "and";
@@ -40,10 +38,10 @@ public class AndFilterConstructor extends FilterConstructor {
     List<Filter> filters = new ArrayList<Filter>(filterArray.length());
     for (int i=0; i<filterArray.length(); ++i)
     {
-      Filter filter = FilterConstructor.constructFilter(filterArray.getJSONObject(i), _qparser);
+      Filter filter = FilterConstructor.constructClauseFilter(filterArray.getJSONObject(i), _qparser);
       if (filter != null)
         filters.add(filter);
     }
-    return new AndFilter(filters);
+    return new PlannedAndFilter(filters);
   }
 }
@@ -8,7 +8,6 @@ import org.apache.lucene.search.Filter;
 import org.json.JSONArray;
 import org.json.JSONObject;
 
-import com.browseengine.bobo.facets.filter.AndFilter;
 import com.browseengine.bobo.facets.filter.NotFilter;
 import com.browseengine.bobo.facets.filter.OrFilter;
 
@@ -55,13 +54,13 @@ public class BooleanFilterConstructor extends FilterConstructor
       {
         for (int i=0; i<((JSONArray)obj).length(); ++i)
         {
-          andFilters.add(FilterConstructor.constructFilter(((JSONArray)obj).getJSONObject(i),
+          andFilters.add(FilterConstructor.constructClauseFilter(((JSONArray)obj).getJSONObject(i),
                                                            _qparser));
         }
       }
       else if (obj instanceof JSONObject)
       {
-        andFilters.add(FilterConstructor.constructFilter((JSONObject)obj, _qparser));
+        andFilters.add(FilterConstructor.constructClauseFilter((JSONObject)obj, _qparser));
       }
     }
     obj = json.opt(MUST_NOT_PARAM);
@@ -72,13 +71,13 @@ public class BooleanFilterConstructor extends FilterConstructor
         for (int i=0; i<((JSONArray)obj).length(); ++i)
         {
           andFilters.add(
-            new NotFilter(FilterConstructor.constructFilter(((JSONArray)obj).getJSONObject(i),
+            new NotFilter(FilterConstructor.constructClauseFilter(((JSONArray)obj).getJSONObject(i),
                                                             _qparser)));
         }
       }
       else if (obj instanceof JSONObject)
       {
-        andFilters.add(new NotFilter(FilterConstructor.constructFilter((JSONObject)obj, _qparser)));
+        andFilters.add(new NotFilter(FilterConstructor.constructClauseFilter((JSONObject)obj, _qparser)));
       }
     }
     JSONArray array = json.optJSONArray(SHOULD_PARAM);
@@ -87,14 +86,14 @@ public class BooleanFilterConstructor extends FilterConstructor
       List<Filter> orFilters = new ArrayList<Filter>(array.length());
       for (int i=0; i<array.length(); ++i)
       {
-        orFilters.add(FilterConstructor.constructFilter(array.getJSONObject(i), _qparser));
+        orFilters.add(FilterConstructor.constructClauseFilter(array.getJSONObject(i), _qparser));
       }
       if (orFilters.size() > 0)
         andFilters.add(new OrFilter(orFilters));
     }
 
     if (andFilters.size() > 0)
-      return new AndFilter(andFilters);
+      return new PlannedAndFilter(andFilters);
     else
       return null;
   }
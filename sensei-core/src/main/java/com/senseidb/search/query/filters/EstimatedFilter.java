@@ -0,0 +1,56 @@
+package com.senseidb.search.query.filters;
+
+import java.io.IOException;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.Filter;
+
+/**
+ * A filter that can tell how many documents of a segment it matches without building its doc id set, so that
+ * {@link PlannedAndFilter} can start the AND from the most selective clause.
+ */
+public abstract class EstimatedFilter extends Filter
+{
+  private static final long serialVersionUID = 1L;
+
+  public static final double UNKNOWN = -1.0;
+
+  private static final double MIN_APPROXIMATE = 0.0001;
+  private static final double MAX_APPROXIMATE = 0.9999;
+
+  /**
+   * @return the fraction of the documents of the segment the filter matches, or {@link #UNKNOWN}. The estimate is an upper
+   *         bound: 0 means that the filter surely matches nothing, and 1 that it surely matches every document
+   */
+  public abstract double estimateSelectivity(IndexReader reader) throws IOException;
+
+  /**
+   * @param count the number of the documents the filter matches at most
+   * @param exact whether the count can't be over the number of the distinct documents, so that the count of all the documents
+   *        means the filter matches them all
+   */
+  public static double fraction(long count, int maxDoc, boolean exact)
+  {
+    if (maxDoc <= 0)
+    {
+      return UNKNOWN;
+    }
+    if (count >= maxDoc)
+    {
+      return exact ? 1.0 : MAX_APPROXIMATE;
+    }
+    return (double) count / maxDoc;
+  }
+
+  /**
+   * Keeps a guess, such as the facet selectivity of bobo, from claiming that the filter matches nothing or everything
+   */
+  public static double approximate(double selectivity)
+  {
+    if (selectivity < 0)
+    {
+      return UNKNOWN;
+    }
+    return Math.max(MIN_APPROXIMATE, Math.min(MAX_APPROXIMATE, selectivity));
+  }
+}
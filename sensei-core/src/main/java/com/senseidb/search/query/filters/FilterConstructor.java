@@ -82,7 +82,24 @@ public abstract class FilterConstructor {
 		return paramMap;
 	}
 
+  /**
+   * Builds the filter of the request, cached per segment by {@link SegmentFilterCache} when the cache is enabled.
+   */
 	public static Filter constructFilter(JSONObject json, QueryParser qparser) throws Exception
+  {
+    return constructFilter(json, qparser, true);
+  }
+
+  /**
+   * Builds a clause of an and, or or bool filter. Only the whole filter of the request is cached, so the clauses are not
+   * materialized and stored again, and the and filters still see the nested ands and the bobo filters they are made of.
+   */
+  static Filter constructClauseFilter(JSONObject json, QueryParser qparser) throws Exception
+  {
+    return constructFilter(json, qparser, false);
+  }
+
+  private static Filter constructFilter(JSONObject json, QueryParser qparser, boolean cache) throws Exception
   {
     if (json == null)
       return null;
@@ -97,7 +114,9 @@ public abstract class FilterConstructor {
     if (filterConstructor == null)
       throw new IllegalArgumentException("Filter type '" + type + "' not supported");
 
-    return filterConstructor.doConstructFilter(json.get(type));
+    Object filterJson = json.get(type);
+    Filter filter = filterConstructor.doConstructFilter(filterJson);
+    return cache ? SegmentFilterCache.getInstance().wrap(filter, type, filterJson) : filter;
   }
 	
 	abstract protected Filter doConstructFilter(Object json/* JSONObject or JSONArray */) throws Exception;
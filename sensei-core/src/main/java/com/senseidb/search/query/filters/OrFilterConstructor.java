@@ -36,7 +36,7 @@ public class OrFilterConstructor extends FilterConstructor {
     List<Filter> filters = new ArrayList<Filter>(filterArray.length());
     for (int i=0; i<filterArray.length(); ++i)
     {
-      Filter filter = FilterConstructor.constructFilter(filterArray.getJSONObject(i), _qparser);
+      Filter filter = FilterConstructor.constructClauseFilter(filterArray.getJSONObject(i), _qparser);
       if (filter != null)
         filters.add(filter);
     }
@@ -0,0 +1,328 @@
+package com.senseidb.search.query.filters;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.util.OpenBitSet;
+
+import com.browseengine.bobo.api.BoboIndexReader;
+import com.browseengine.bobo.docidset.RandomAccessDocIdSet;
+import com.browseengine.bobo.facets.filter.RandomAccessFilter;
+import com.browseengine.bobo.query.MatchAllDocIdSetIterator;
+import com.senseidb.search.facet.attribute.PredicateFacetFilter;
+
+/**
+ * The AND of filters, that is planned per segment: the clauses, that match every document, are dropped, the most selective
+ * clause leads the iteration and the others are advanced to its documents, or checked by random access when their sets
+ * support it. The nested ANDs are flattened, so that their clauses are ordered together.
+ */
+public class PlannedAndFilter extends EstimatedFilter
+{
+  private static final long serialVersionUID = 1L;
+
+  private final List<Filter> _filters;
+
+  public PlannedAndFilter(List<? extends Filter> filters)
+  {
+    _filters = new ArrayList<Filter>(filters.size());
+    for (Filter filter : filters)
+    {
+      // a cached AND is flattened too, its clauses are planned with the others
+      Filter unwrapped = SegmentFilterCache.unwrap(filter);
+      if (unwrapped instanceof PlannedAndFilter)
+      {
+        _filters.addAll(((PlannedAndFilter) unwrapped)._filters);
+      }
+      else if (filter != null)
+      {
+        _filters.add(filter);
+      }
+    }
+  }
+
+  public List<Filter> getFilters()
+  {
+    return Collections.unmodifiableList(_filters);
+  }
+
+  /**
+   * The estimate of a clause, that is an {@link EstimatedFilter}, is trusted to tell whether it matches every document or none,
+   * the facet selectivity of a bobo filter only orders it. The clauses, that can't be estimated, go last.
+   */
+  static double estimate(Filter filter, IndexReader reader) throws IOException
+  {
+    if (filter instanceof EstimatedFilter)
+    {
+      return ((EstimatedFilter) filter).estimateSelectivity(reader);
+    }
+    if (filter instanceof RandomAccessFilter && !(filter instanceof PredicateFacetFilter) && reader instanceof BoboIndexReader)
+    {
+      return approximate(((RandomAccessFilter) filter).getFacetSelectivity((BoboIndexReader) reader));
+    }
+    return UNKNOWN;
+  }
+
+  @Override
+  public double estimateSelectivity(IndexReader reader) throws IOException
+  {
+    // the AND matches at most what its most selective clause does
+    double selectivity = UNKNOWN;
+    boolean matchAll = true;
+    for (Filter filter : _filters)
+    {
+      double estimate = estimate(filter, reader);
+      if (estimate < 1.0)
+      {
+        matchAll = false;
+      }
+      if (estimate >= 0 && (selectivity < 0 || estimate < selectivity))
+      {
+        selectivity = estimate;
+      }
+    }
+    if (matchAll)
+    {
+      return 1.0;
+    }
+    return selectivity >= 1.0 ? approximate(selectivity) : selectivity;
+  }
+
+  @Override
+  public DocIdSet getDocIdSet(final IndexReader reader) throws IOException
+  {
+    List<Clause> clauses = new ArrayList<Clause>(_filters.size());
+    for (int i = 0; i < _filters.size(); ++i)
+    {
+      Filter filter = _filters.get(i);
+      double estimate = estimate(filter, reader);
+      if (estimate >= 1.0)
+      {
+        continue;
+      }
+      if (estimate == 0.0)
+      {
+        return DocIdSet.EMPTY_DOCIDSET;
+      }
+      clauses.add(new Clause(filter, estimate, i));
+    }
+    if (clauses.isEmpty())
+    {
+      return new DocIdSet()
+      {
+        @Override
+        public boolean isCacheable()
+        {
+          return false;
+        }
+
+        @Override
+        public DocIdSetIterator iterator() throws IOException
+        {
+          return new MatchAllDocIdSetIterator(reader);
+        }
+      };
+    }
+    Collections.sort(clauses);
+
+    DocIdSet[] sets = new DocIdSet[clauses.size()];
+    for (int i = 0; i < sets.length; ++i)
+    {
+      sets[i] = clauses.get(i).filter.getDocIdSet(reader);
+      if (sets[i] == null)
+      {
+        return DocIdSet.EMPTY_DOCIDSET;
+      }
+    }
+    if (sets.length == 1)
+    {
+      return sets[0];
+    }
+    return new LeapfrogDocIdSet(sets);
+  }
+
+  @Override
+  public String toString()
+  {
+    return "plannedAnd(" + _filters + ")";
+  }
+
+  private static final class Clause implements Comparable<Clause>
+  {
+    private final Filter filter;
+    private final double estimate;
+    private final int position;
+
+    private Clause(Filter filter, double estimate, int position)
+    {
+      this.filter = filter;
+      this.estimate = estimate;
+      this.position = position;
+    }
+
+    @Override
+    public int compareTo(Clause o)
+    {
+      boolean known = estimate >= 0, otherKnown = o.estimate >= 0;
+      if (known != otherKnown)
+      {
+        return known ? -1 : 1;
+      }
+      if (known && estimate != o.estimate)
+      {
+        return estimate < o.estimate ? -1 : 1;
+      }
+      return position - o.position;
+    }
+  }
+
+  /**
+   * The AND of doc id sets in the order of their selectivity, the first one leads the iteration
+   */
+  static final class LeapfrogDocIdSet extends DocIdSet
+  {
+    private final DocIdSet[] _sets;
+
+    LeapfrogDocIdSet(DocIdSet[] sets)
+    {
+      _sets = sets;
+    }
+
+    @Override
+    public DocIdSetIterator iterator() throws IOException
+    {
+      DocIdSetIterator lead = _sets[0].iterator();
+      if (lead == null)
+      {
+        return DocIdSet.EMPTY_DOCIDSET.iterator();
+      }
+      List<DocIdSetIterator> iterators = new ArrayList<DocIdSetIterator>(_sets.length - 1);
+      List<RandomAccessDocIdSet> randomAccessSets = new ArrayList<RandomAccessDocIdSet>();
+      List<OpenBitSet> bitSets = new ArrayList<OpenBitSet>();
+      for (int i = 1; i < _sets.length; ++i)
+      {
+        DocIdSet set = _sets[i];
+        if (set instanceof RandomAccessDocIdSet)
+        {
+          randomAccessSets.add((RandomAccessDocIdSet) set);
+        }
+        else if (set instanceof OpenBitSet)
+        {
+          bitSets.add((OpenBitSet) set);
+        }
+        else
+        {
+          DocIdSetIterator iterator = set.iterator();
+          if (iterator == null)
+          {
+            return DocIdSet.EMPTY_DOCIDSET.iterator();
+          }
+          iterators.add(iterator);
+        }
+      }
+      return new LeapfrogIterator(lead,
+                                  iterators.toArray(new DocIdSetIterator[iterators.size()]),
+                                  randomAccessSets.toArray(new RandomAccessDocIdSet[randomAccessSets.size()]),
+                                  bitSets.toArray(new OpenBitSet[bitSets.size()]));
+    }
+
+    @Override
+    public boolean isCacheable()
+    {
+      for (DocIdSet set : _sets)
+      {
+        if (!set.isCacheable())
+        {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
+  /**
+   * Advances the other iterators to the document of the lead one, and the lead one to the first document, that they are on
+   * past it, until they agree. The random access sets are only checked for the documents, that all the iterators are on.
+   */
+  static final class LeapfrogIterator extends DocIdSetIterator
+  {
+    private final DocIdSetIterator _lead;
+    private final DocIdSetIterator[] _others;
+    private final RandomAccessDocIdSet[] _randomAccessSets;
+    private final OpenBitSet[] _bitSets;
+    private int _doc = -1;
+
+    LeapfrogIterator(DocIdSetIterator lead,
+                     DocIdSetIterator[] others,
+                     RandomAccessDocIdSet[] randomAccessSets,
+                     OpenBitSet[] bitSets)
+    {
+      _lead = lead;
+      _others = others;
+      _randomAccessSets = randomAccessSets;
+      _bitSets = bitSets;
+    }
+
+    @Override
+    public int docID()
+    {
+      return _doc;
+    }
+
+    @Override
+    public int nextDoc() throws IOException
+    {
+      return _doc = doNext(_lead.nextDoc());
+    }
+
+    @Override
+    public int advance(int target) throws IOException
+    {
+      return _doc = doNext(_lead.advance(target));
+    }
+
+    private int doNext(int target) throws IOException
+    {
+      next:
+      while (target != NO_MORE_DOCS)
+      {
+        for (DocIdSetIterator other : _others)
+        {
+          int doc = other.docID();
+          if (doc < target)
+          {
+            doc = other.advance(target);
+          }
+          if (doc > target)
+          {
+            target = doc == NO_MORE_DOCS ? NO_MORE_DOCS : _lead.advance(doc);
+            continue next;
+          }
+        }
+        for (RandomAccessDocIdSet set : _randomAccessSets)
+        {
+          if (!set.get(target))
+          {
+            target = _lead.nextDoc();
+            continue next;
+          }
+        }
+        for (OpenBitSet set : _bitSets)
+        {
+          if (!set.get(target))
+          {
+            target = _lead.nextDoc();
+            continue next;
+          }
+        }
+        return target;
+      }
+      return NO_MORE_DOCS;
+    }
+  }
+}
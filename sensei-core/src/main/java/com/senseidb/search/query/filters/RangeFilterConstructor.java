@@ -17,6 +17,8 @@ import org.json.JSONObject;
 
 import com.browseengine.bobo.api.BoboIndexReader;
 import com.browseengine.bobo.facets.FacetHandler;
+import com.browseengine.bobo.facets.data.FacetDataCache;
+import com.browseengine.bobo.facets.data.MultiValueFacetDataCache;
 import com.browseengine.bobo.facets.filter.FacetRangeFilter;
 import com.browseengine.bobo.facets.filter.RandomAccessFilter;
 import com.browseengine.bobo.query.MatchAllDocIdSetIterator;
@@ -28,6 +30,85 @@ public class RangeFilterConstructor extends FilterConstructor
 {
   public static final String FILTER_TYPE = "range";
 
+  private static final class RangeBounds
+  {
+    private final String  from, to;
+    private final boolean includeLower, includeUpper;
+
+    private RangeBounds(JSONObject jsonObj)
+    {
+      String gt  = jsonObj.optString(GT_PARAM, null);
+      String gte = jsonObj.optString(GTE_PARAM, null);
+      String lt  = jsonObj.optString(LT_PARAM, null);
+      String lte = jsonObj.optString(LTE_PARAM, null);
+
+      if (gt != null && gt.length() != 0)
+      {
+        from         = gt;
+        includeLower = false;
+      }
+      else if (gte != null && gte.length() != 0)
+      {
+        from         = gte;
+        includeLower = true;
+      }
+      else
+      {
+        from         = jsonObj.optString(FROM_PARAM, null);
+        includeLower = jsonObj.optBoolean(INCLUDE_LOWER_PARAM, true);
+      }
+
+      if (lt != null && lt.length() != 0)
+      {
+        to           = lt;
+        includeUpper = false;
+      }
+      else if (lte != null && lte.length() != 0)
+      {
+        to           = lte;
+        includeUpper = true;
+      }
+      else
+      {
+        to           = jsonObj.optString(TO_PARAM, null);
+        includeUpper = jsonObj.optBoolean(INCLUDE_UPPER_PARAM, true);
+      }
+    }
+
+    private String toRangeString()
+    {
+      StringBuilder sb = new StringBuilder();
+      if (includeLower && from != null && from.length() != 0)
+        sb.append("[");
+      else
+        sb.append("(");
+
+      if (from == null || from.length() == 0)
+        sb.append("*");
+      else
+        sb.append(from);
+      sb.append(" TO ");
+      if (to == null || to.length() == 0)
+        sb.append("*");
+      else
+        sb.append(to);
+
+      if (includeUpper && to != null && to.length() != 0)
+        sb.append("]");
+      else
+        sb.append(")");
+      return sb.toString();
+    }
+  }
+
+  /**
+   * @return the bobo range string, such as "[1995 TO 2000)", of the bounds of a field in a range filter
+   */
+  public static String getRangeString(JSONObject jsonObj)
+  {
+    return new RangeBounds(jsonObj).toRangeString();
+  }
+
   @Override
   protected Filter doConstructFilter(Object obj) throws Exception
   {
@@ -41,54 +122,38 @@ public class RangeFilterConstructor extends FilterConstructor
 
     JSONObject jsonObj = json.getJSONObject(field);
 
-    final String  from, to;
-    final boolean include_lower, include_upper;
+    RangeBounds bounds = new RangeBounds(jsonObj);
+    final String  from = bounds.from, to = bounds.to;
+    final boolean include_lower = bounds.includeLower, include_upper = bounds.includeUpper;
     final boolean noOptimize = jsonObj.optBoolean(NOOPTIMIZE_PARAM, false);
-    final String type;
-    final String dateFormat;
-    
-    String gt  = jsonObj.optString(GT_PARAM, null);
-    String gte = jsonObj.optString(GTE_PARAM, null);
-    String lt  = jsonObj.optString(LT_PARAM, null);
-    String lte = jsonObj.optString(LTE_PARAM, null);
-    
-    type = jsonObj.optString(RANGE_FIELD_TYPE, null);
-    dateFormat = jsonObj.optString(RANGE_DATE_FORMAT, null);
-    
-    if (gt != null && gt.length() != 0)
-    {
-      from          = gt;
-      include_lower = false;
-    }
-    else if (gte != null && gte.length() != 0)
-    {
-      from          = gte;
-      include_lower = true;
-    }
-    else
-    {
-      from          = jsonObj.optString(FROM_PARAM, null);
-      include_lower = jsonObj.optBoolean(INCLUDE_LOWER_PARAM, true);
-    }
+    final String type = jsonObj.optString(RANGE_FIELD_TYPE, null);
+    final String dateFormat = jsonObj.optString(RANGE_DATE_FORMAT, null);
+    final String rangeString = bounds.toRangeString();
 
-    if (lt != null && lt.length() != 0)
-    {
-      to = lt;
-      include_upper = false;
-    }
-    else if (lte != null && lte.length() != 0)
-    {
-      to = lte;
-      include_upper = true;
-    }
-    else
+    return new EstimatedFilter()
     {
-      to            = jsonObj.optString(TO_PARAM, null);
-      include_upper = jsonObj.optBoolean(INCLUDE_UPPER_PARAM, true);
-    }
+      @Override
+      public double estimateSelectivity(IndexReader reader) throws IOException
+      {
+        if (!(reader instanceof BoboIndexReader))
+          return UNKNOWN;
+        BoboIndexReader boboReader = (BoboIndexReader)reader;
+        FacetHandler facetHandler = boboReader.getFacetHandler(field);
+        if (facetHandler == null || noOptimize || facetHandler instanceof ActivityRangeFacetHandler)
+          return UNKNOWN;
+        Object data = facetHandler.getFacetData(boboReader);
+        if (!(data instanceof FacetDataCache))
+          return UNKNOWN;
+        FacetDataCache dataCache = (FacetDataCache)data;
+        int[] range = FacetRangeFilter.parse(dataCache, rangeString);
+        if (range == null)
+          return UNKNOWN;
+        long count = 0;
+        for (int i = Math.max(range[0], 0); i <= range[1] && i < dataCache.freqs.length; ++i)
+          count += dataCache.freqs[i];
+        return fraction(count, boboReader.maxDoc(), !(dataCache instanceof MultiValueFacetDataCache));
+      }
 
-    return new Filter()
-    {
       @Override
       public DocIdSet getDocIdSet(final IndexReader reader) throws IOException
       {
@@ -101,31 +166,11 @@ public class RangeFilterConstructor extends FilterConstructor
             FacetHandler facetHandler = boboReader.getFacetHandler(field);
             if (facetHandler != null)
             {
-              StringBuilder sb = new StringBuilder();
-              if (include_lower && from != null && from.length() != 0)
-                sb.append("[");
-              else
-                sb.append("(");
-
-              if (from == null || from.length() == 0)
-                sb.append("*");
-              else
-                sb.append(from);
-              sb.append(" TO ");
-              if (to == null || to.length() == 0)
-                sb.append("*");
-              else
-                sb.append(to);
-
-              if (include_upper && to != null && to.length() != 0)
-                sb.append("]");
-              else
-                sb.append(")");
               RandomAccessFilter filter = null;;
               if (facetHandler instanceof ActivityRangeFacetHandler) {
-            	  filter = ((ActivityRangeFacetHandler) facetHandler).buildRandomAccessFilter(sb.toString(), null);
+            	  filter = ((ActivityRangeFacetHandler) facetHandler).buildRandomAccessFilter(rangeString, null);
               } else {
-            	  filter = new FacetRangeFilter(facetHandler, sb.toString());
+            	  filter = new FacetRangeFilter(facetHandler, rangeString);
               }
               return filter.getDocIdSet(reader);
             }
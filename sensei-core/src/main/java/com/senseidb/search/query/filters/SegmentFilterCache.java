@@ -0,0 +1,559 @@
+package com.senseidb.search.query.filters;
+
+import java.io.IOException;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.search.FilteredDocIdSet;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.OpenBitSet;
+import org.apache.lucene.util.OpenBitSetDISI;
+import org.apache.lucene.util.SortedVIntList;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import proj.zoie.api.ZoieSegmentReader;
+
+import com.browseengine.bobo.api.BoboIndexReader;
+import com.senseidb.indexing.activity.facet.ActivityRangeFacetHandler;
+import com.senseidb.metrics.MetricsConstants;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.Meter;
+import com.yammer.metrics.core.MetricName;
+
+/**
+ * Caches the doc id sets of the filters built by {@link FilterConstructor} per index segment, so the filters that the requests
+ * keep sending are not evaluated again for every query. The entries are keyed on the core of the segment and a normalized form
+ * of the filter json, with the keys of the json objects sorted.
+ * <p>
+ * Only the segments on disk are cached: their documents don't change, the deletes are applied when the cached set is read. The
+ * RAM segments of the real time indexing are replaced too often to be worth it. The filters on the activity fields, that are
+ * updated in place, and on the runtime facets, that depend on the request, are not cached either. Entries are evicted least
+ * recently used first once their size goes over the byte budget, and dropped when the segment core is collected.
+ */
+public class SegmentFilterCache
+{
+  private static final Logger logger = Logger.getLogger(SegmentFilterCache.class);
+
+  private static final Meter HitMeter = Metrics.newMeter(new MetricName(MetricsConstants.Domain,"meter","cache-hit","filter"),"hits",TimeUnit.SECONDS);
+  private static final Meter MissMeter = Metrics.newMeter(new MetricName(MetricsConstants.Domain,"meter","cache-miss","filter"),"misses",TimeUnit.SECONDS);
+  private static final Meter EvictionMeter = Metrics.newMeter(new MetricName(MetricsConstants.Domain,"meter","cache-eviction","filter"),"evictions",TimeUnit.SECONDS);
+  private static final Counter SizeCounter = Metrics.newCounter(new MetricName(MetricsConstants.Domain,"counter","cache-bytes","filter"));
+
+  private static final SegmentFilterCache INSTANCE = new SegmentFilterCache(0L);
+
+  private static final Set<String> FIELD_FILTER_TYPES = new HashSet<String>();
+
+  static
+  {
+    FIELD_FILTER_TYPES.add(TermFilterConstructor.FILTER_TYPE);
+    FIELD_FILTER_TYPES.add(TermsFilterConstructor.FILTER_TYPE);
+    FIELD_FILTER_TYPES.add(RangeFilterConstructor.FILTER_TYPE);
+    FIELD_FILTER_TYPES.add(PathFilterConstructor.FILTER_TYPE);
+    FIELD_FILTER_TYPES.add(FacetSelectionFilterConstructor.FILTER_TYPE);
+  }
+
+  private static final long ENTRY_OVERHEAD = 128;
+
+  /**
+   * The entry key, that doesn't keep the segment core from being collected
+   */
+  private static final class CacheKey
+  {
+    private final CoreReference core;
+    private final int coreHash;
+    private final String filterKey;
+
+    private CacheKey(CoreReference core, String filterKey)
+    {
+      this.core = core;
+      this.coreHash = System.identityHashCode(core.get());
+      this.filterKey = filterKey;
+    }
+
+    @Override
+    public int hashCode()
+    {
+      return 31 * coreHash + filterKey.hashCode();
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+      if (this == o)
+      {
+        return true;
+      }
+      if (!(o instanceof CacheKey))
+      {
+        return false;
+      }
+      CacheKey other = (CacheKey) o;
+      Object core = this.core.get();
+      return core != null && core == other.core.get() && filterKey.equals(other.filterKey);
+    }
+  }
+
+  private static final class CoreReference extends WeakReference<Object>
+  {
+    private CacheKey key;
+
+    private CoreReference(Object core, ReferenceQueue<Object> queue)
+    {
+      super(core, queue);
+    }
+  }
+
+  private static final class Entry
+  {
+    final DocIdSet docIdSet;
+    final long size;
+
+    Entry(DocIdSet docIdSet, long size)
+    {
+      this.docIdSet = docIdSet;
+      this.size = size;
+    }
+  }
+
+  private volatile long _maxBytes;
+  private final LinkedHashMap<CacheKey, Entry> _entries = new LinkedHashMap<CacheKey, Entry>(16, 0.75f, true);
+  private final ReferenceQueue<Object> _collectedCores = new ReferenceQueue<Object>();
+  private long _bytes = 0L;
+
+  /**
+   * @param maxBytes budget for the size of the cached doc id sets, 0 disables the cache
+   */
+  public SegmentFilterCache(long maxBytes)
+  {
+    _maxBytes = maxBytes;
+  }
+
+  /**
+   * @return the cache used by {@link FilterConstructor}
+   */
+  public static SegmentFilterCache getInstance()
+  {
+    return INSTANCE;
+  }
+
+  public void setMaxBytes(long maxBytes)
+  {
+    _maxBytes = maxBytes;
+    synchronized (this)
+    {
+      evict();
+    }
+    logger.info("segment filter cache of " + maxBytes + " bytes");
+  }
+
+  public long getMaxBytes()
+  {
+    return _maxBytes;
+  }
+
+  public boolean isEnabled()
+  {
+    return _maxBytes > 0;
+  }
+
+  public synchronized long getBytes()
+  {
+    return _bytes;
+  }
+
+  public synchronized int size()
+  {
+    expungeCollectedCores();
+    return _entries.size();
+  }
+
+  /**
+   * @return the cached doc id set of the filter on the segment, null if there is none
+   */
+  public DocIdSet get(Object core, String filterKey)
+  {
+    CacheKey key = new CacheKey(new CoreReference(core, null), filterKey);
+    Entry entry;
+    synchronized (this)
+    {
+      expungeCollectedCores();
+      entry = _entries.get(key);
+    }
+    if (entry == null)
+    {
+      MissMeter.mark();
+      return null;
+    }
+    HitMeter.mark();
+    return entry.docIdSet;
+  }
+
+  public void put(Object core, String filterKey, DocIdSet docIdSet, long size)
+  {
+    size += ENTRY_OVERHEAD + 2 * filterKey.length();
+    synchronized (this)
+    {
+      expungeCollectedCores();
+      if (size > _maxBytes)
+      {
+        return;
+      }
+      CoreReference ref = new CoreReference(core, _collectedCores);
+      CacheKey key = new CacheKey(ref, filterKey);
+      ref.key = key;
+      remove(key);
+      _entries.put(key, new Entry(docIdSet, size));
+      _bytes += size;
+      SizeCounter.inc(size);
+      evict();
+    }
+  }
+
+  public synchronized void clear()
+  {
+    SizeCounter.dec(_bytes);
+    _entries.clear();
+    _bytes = 0L;
+  }
+
+  private void evict()
+  {
+    Iterator<Map.Entry<CacheKey, Entry>> iter = _entries.entrySet().iterator();
+    while (_bytes > _maxBytes && iter.hasNext())
+    {
+      Entry eldest = iter.next().getValue();
+      iter.remove();
+      _bytes -= eldest.size;
+      SizeCounter.dec(eldest.size);
+      EvictionMeter.mark();
+    }
+  }
+
+  private void remove(CacheKey key)
+  {
+    Entry entry = _entries.remove(key);
+    if (entry != null)
+    {
+      _bytes -= entry.size;
+      SizeCounter.dec(entry.size);
+    }
+  }
+
+  /**
+   * Drops the entries of the segments that have been merged away and collected
+   */
+  private void expungeCollectedCores()
+  {
+    Reference<?> ref;
+    while ((ref = _collectedCores.poll()) != null)
+    {
+      // the key of a collected core only equals itself, and keeps its hash code
+      remove(((CoreReference) ref).key);
+    }
+  }
+
+  /**
+   * @return the filter wrapped by the cache, or the filter itself if it is not cached
+   */
+  static Filter unwrap(Filter filter)
+  {
+    return filter instanceof CachingFilter ? ((CachingFilter) filter)._filter : filter;
+  }
+
+  /**
+   * Wraps the filter to be cached, if the filter type and the fields it reads allow it.
+   * @param type the filter type
+   * @param json the filter json under the type
+   */
+  public Filter wrap(Filter filter, String type, Object json) throws Exception
+  {
+    if (filter == null || !isEnabled())
+    {
+      return filter;
+    }
+    Set<String> fields = getCacheableFields(type, json);
+    if (fields == null)
+    {
+      return filter;
+    }
+    return new CachingFilter(filter, getFilterKey(type, json), fields);
+  }
+
+  /**
+   * @return the fields the filter reads, or null if the filter is not cacheable
+   */
+  static Set<String> getCacheableFields(String type, Object json) throws Exception
+  {
+    Set<String> fields = new HashSet<String>();
+    return addCacheableFields(type, json, fields) ? fields : null;
+  }
+
+  private static boolean addCacheableFields(String type, Object json, Set<String> fields) throws Exception
+  {
+    if (FIELD_FILTER_TYPES.contains(type))
+    {
+      if (!(json instanceof JSONObject))
+      {
+        return false;
+      }
+      for (Iterator<String> iter = ((JSONObject) json).keys(); iter.hasNext();)
+      {
+        String field = iter.next();
+        if (!field.startsWith("_"))
+        {
+          fields.add(field);
+        }
+      }
+      return true;
+    }
+    if (NullFilterConstructor.FILTER_TYPE.equals(type))
+    {
+      fields.add(json instanceof String ? (String) json : ((JSONObject) json).getString("field"));
+      return true;
+    }
+    if (AndFilterConstructor.FILTER_TYPE.equals(type) || OrFilterConstructor.FILTER_TYPE.equals(type))
+    {
+      return json instanceof JSONArray && addCacheableFields((JSONArray) json, fields);
+    }
+    if (BooleanFilterConstructor.FILTER_TYPE.equals(type))
+    {
+      if (!(json instanceof JSONObject))
+      {
+        return false;
+      }
+      for (Iterator<String> iter = ((JSONObject) json).keys(); iter.hasNext();)
+      {
+        Object clause = ((JSONObject) json).get(iter.next());
+        if (clause instanceof JSONArray)
+        {
+          if (!addCacheableFields((JSONArray) clause, fields))
+          {
+            return false;
+          }
+        }
+        else if (!(clause instanceof JSONObject) || !addCacheableFields((JSONObject) clause, fields))
+        {
+          return false;
+        }
+      }
+      return true;
+    }
+    // the queries, the custom filters and the uid filters are left alone
+    return false;
+  }
+
+  private static boolean addCacheableFields(JSONArray filters, Set<String> fields) throws Exception
+  {
+    for (int i = 0; i < filters.length(); ++i)
+    {
+      Object filter = filters.get(i);
+      if (!(filter instanceof JSONObject) || !addCacheableFields((JSONObject) filter, fields))
+      {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static boolean addCacheableFields(JSONObject filter, Set<String> fields) throws Exception
+  {
+    Iterator<String> iter = filter.keys();
+    if (!iter.hasNext())
+    {
+      return false;
+    }
+    String type = iter.next();
+    return addCacheableFields(type, filter.get(type), fields);
+  }
+
+  /**
+   * @return the filter json with the keys of its objects sorted, so the same filter sent in a different order maps to the same
+   *         entry
+   */
+  static String getFilterKey(String type, Object json) throws Exception
+  {
+    StringBuilder buf = new StringBuilder(128);
+    buf.append(JSONObject.quote(type)).append(':');
+    appendJson(buf, json);
+    return buf.toString();
+  }
+
+  private static void appendJson(StringBuilder buf, Object value) throws Exception
+  {
+    if (value instanceof JSONObject)
+    {
+      JSONObject obj = (JSONObject) value;
+      List<String> keys = new ArrayList<String>();
+      for (Iterator<String> iter = obj.keys(); iter.hasNext();)
+      {
+        keys.add(iter.next());
+      }
+      Collections.sort(keys);
+      buf.append('{');
+      for (String key : keys)
+      {
+        buf.append(JSONObject.quote(key)).append(':');
+        appendJson(buf, obj.get(key));
+        buf.append(',');
+      }
+      buf.append('}');
+    }
+    else if (value instanceof JSONArray)
+    {
+      JSONArray array = (JSONArray) value;
+      buf.append('[');
+      for (int i = 0; i < array.length(); ++i)
+      {
+        appendJson(buf, array.get(i));
+        buf.append(',');
+      }
+      buf.append(']');
+    }
+    else if (value instanceof String)
+    {
+      buf.append(JSONObject.quote((String) value));
+    }
+    else
+    {
+      buf.append(value);
+    }
+  }
+
+  /**
+   * Copies the doc id set into a bit set, or into a compressed list of the doc ids if the set is sparse
+   * @return the set, and its size in bytes in the first element of the array
+   */
+  static DocIdSet toCacheable(DocIdSet docIdSet, int maxDoc, long[] size) throws IOException
+  {
+    DocIdSetIterator iter = docIdSet == null ? null : docIdSet.iterator();
+    if (iter == null)
+    {
+      size[0] = 0;
+      return DocIdSet.EMPTY_DOCIDSET;
+    }
+    OpenBitSet bits = new OpenBitSetDISI(iter, maxDoc);
+    long bitSetSize = 8L * bits.getNumWords();
+    long cardinality = bits.cardinality();
+    // the doc ids take a byte or two each in the compressed list, against a bit each for the whole segment in the bit set
+    if (cardinality * 16 < maxDoc)
+    {
+      SortedVIntList list = new SortedVIntList(bits);
+      size[0] = list.getByteSize();
+      return list;
+    }
+    size[0] = bitSetSize;
+    return bits;
+  }
+
+  /**
+   * The segment is cached if it's a zoie segment on disk
+   */
+  private static boolean isCacheableSegment(BoboIndexReader reader)
+  {
+    IndexReader inner = reader.getInnerReader();
+    if (!(inner instanceof ZoieSegmentReader))
+    {
+      return false;
+    }
+    Directory dir = inner.directory();
+    return dir != null && !(dir instanceof RAMDirectory);
+  }
+
+  private final class CachingFilter extends EstimatedFilter
+  {
+    private static final long serialVersionUID = 1L;
+
+    private final Filter _filter;
+    private final String _filterKey;
+    private final Set<String> _fields;
+
+    private CachingFilter(Filter filter, String filterKey, Set<String> fields)
+    {
+      _filter = filter;
+      _filterKey = filterKey;
+      _fields = fields;
+    }
+
+    private boolean isCacheable(IndexReader reader)
+    {
+      if (!isEnabled() || !(reader instanceof BoboIndexReader))
+      {
+        return false;
+      }
+      BoboIndexReader boboReader = (BoboIndexReader) reader;
+      if (!isCacheableSegment(boboReader))
+      {
+        return false;
+      }
+      for (String field : _fields)
+      {
+        if (boboReader.getFacetHandler(field) instanceof ActivityRangeFacetHandler
+            || (boboReader.getRuntimeFacetHandlerMap() != null && boboReader.getRuntimeFacetHandlerMap().containsKey(field)))
+        {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    @Override
+    public double estimateSelectivity(IndexReader reader) throws IOException
+    {
+      return PlannedAndFilter.estimate(_filter, reader);
+    }
+
+    @Override
+    public DocIdSet getDocIdSet(final IndexReader reader) throws IOException
+    {
+      if (!isCacheable(reader))
+      {
+        return _filter.getDocIdSet(reader);
+      }
+      Object core = reader.getCoreCacheKey();
+      DocIdSet docIdSet = get(core, _filterKey);
+      if (docIdSet == null)
+      {
+        long[] size = new long[1];
+        docIdSet = toCacheable(_filter.getDocIdSet(reader), reader.maxDoc(), size);
+        put(core, _filterKey, docIdSet, size[0]);
+      }
+      if (!reader.hasDeletions())
+      {
+        return docIdSet;
+      }
+      // the set is shared by the readers of the segment core, the deletes of this one are applied on the fly
+      return new FilteredDocIdSet(docIdSet)
+      {
+        @Override
+        protected boolean match(int docid)
+        {
+          return !reader.isDeleted(docid);
+        }
+      };
+    }
+
+    @Override
+    public String toString()
+    {
+      return "cached(" + _filter + ")";
+    }
+  }
+}
@@ -16,14 +16,17 @@ import com.browseengine.bobo.api.BrowseSelection;
 import com.browseengine.bobo.api.BrowseSelection.ValueOperation;
 import com.browseengine.bobo.facets.FacetHandler;
 import com.browseengine.bobo.facets.data.FacetDataCache;
+import com.browseengine.bobo.facets.data.MultiValueFacetDataCache;
 import com.browseengine.bobo.facets.data.TermValueList;
 import com.browseengine.bobo.facets.filter.EmptyFilter;
+import com.browseengine.bobo.facets.impl.MultiValueFacetHandler;
+import com.browseengine.bobo.facets.impl.SimpleFacetHandler;
 import com.browseengine.bobo.query.MatchAllDocIdSetIterator;
 import com.kamikaze.docidset.impl.AndDocIdSet;
 import com.kamikaze.docidset.impl.NotDocIdSet;
 import com.kamikaze.docidset.impl.OrDocIdSet;
 
-public class SenseiTermFilter extends Filter {
+public class SenseiTermFilter extends EstimatedFilter {
 
   /**
    * 
@@ -125,6 +128,46 @@ public class SenseiTermFilter extends Filter {
     }
   }
 
+  @Override
+  public double estimateSelectivity(IndexReader reader) throws IOException {
+    if (_vals.length == 0 || !(reader instanceof BoboIndexReader)){
+      return UNKNOWN;
+    }
+    BoboIndexReader boboReader = (BoboIndexReader)reader;
+    if (boboReader.getRuntimeFacetHandlerFactoryMap().containsKey(_name)){
+      return UNKNOWN;
+    }
+    int maxDoc = boboReader.maxDoc();
+    FacetHandler facetHandler = (FacetHandler)boboReader.getFacetHandler(_name);
+    long count = _isAnd ? Long.MAX_VALUE : 0L;
+    // the counts of the values of a document of a multi value facet add up to more than one
+    boolean exact = !_isAnd && _vals.length == 1 && _not.length == 0;
+    if (facetHandler != null){
+      // the selections of the other handlers, such as path or range ones, match more than the documents of the value
+      if (!(facetHandler instanceof SimpleFacetHandler) && !(facetHandler instanceof MultiValueFacetHandler)){
+        return UNKNOWN;
+      }
+      Object obj = facetHandler.getFacetData(boboReader);
+      if (!(obj instanceof FacetDataCache)){
+        return UNKNOWN;
+      }
+      FacetDataCache facetData = (FacetDataCache)obj;
+      exact = _not.length == 0 && (exact || (!_isAnd && !(facetData instanceof MultiValueFacetDataCache)));
+      for (String val : _vals){
+        int idx = facetData.valArray.indexOf(val);
+        int freq = idx >= 0 ? facetData.freqs[idx] : 0;
+        count = _isAnd ? Math.min(count, freq) : count + freq;
+      }
+    }
+    else{
+      for (String val : _vals){
+        int freq = boboReader.docFreq(new Term(_name, val));
+        count = _isAnd ? Math.min(count, freq) : count + freq;
+      }
+    }
+    return fraction(count, maxDoc, exact);
+  }
+
   @Override
   public DocIdSet getDocIdSet(IndexReader reader) throws IOException {
     if (reader instanceof BoboIndexReader){
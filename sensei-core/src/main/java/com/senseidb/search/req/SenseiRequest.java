@@ -58,6 +58,8 @@ private long   tid           =          -1;
   private transient Set<String> _selectSet;
   private SenseiMapReduce mapReduceFunction;
   private List<SenseiError> errors;
+  private long _timeout;
+  private int _segmentParallelism;
   
   public SenseiRequest(){
     _facetInitParamMap = new HashMap<String,FacetHandlerInitializerParam>();
@@ -76,6 +78,8 @@ private long   tid           =          -1;
     _termVectorsToFetch = null;
     _selectList = null;
     _selectSet = null;
+    _timeout = 0L;
+    _segmentParallelism = 0;
   }
 
   public Set<String> getTermVectorsToFetch(){
@@ -120,6 +124,33 @@ private long   tid           =          -1;
     return _partitions;
   }
 
+  /**
+   * @return time in milliseconds after which the caller gives up on this request, 0 if not set
+   */
+  public long getTimeout()
+  {
+    return _timeout;
+  }
+
+  public void setTimeout(long timeout)
+  {
+    _timeout = timeout;
+  }
+
+  /**
+   * @return number of slices the segments of a partition are browsed in concurrently,
+   *         1 to browse them sequentially, 0 to use the node setting
+   */
+  public int getSegmentParallelism()
+  {
+    return _segmentParallelism;
+  }
+
+  public void setSegmentParallelism(int segmentParallelism)
+  {
+    _segmentParallelism = segmentParallelism;
+  }
+
   public void setRouteParam(String routeParam)
   {
     _routeParam = routeParam;
@@ -536,6 +567,8 @@ private long   tid           =          -1;
       clone.setSelectList(new ArrayList<String>(this.getSelectList()));
     }
     clone.setMapReduceFunction(this.getMapReduceFunction());
+    clone.setTimeout(this.getTimeout());
+    clone.setSegmentParallelism(this.getSegmentParallelism());
 
     return clone;
   }
@@ -23,6 +23,10 @@ public class SenseiResult extends BrowseResult implements AbstractSenseiResult
 
   private String _parsedQuery = null;
 
+  private String _indexVersion = null;
+
+  private boolean _numHitsLowerBound = false;
+
   private List<SenseiError> errors;
  
   public SenseiHit[] getSenseiHits()
@@ -45,6 +49,32 @@ public class SenseiResult extends BrowseResult implements AbstractSenseiResult
     return _parsedQuery;
   }
 
+  /**
+   * @return the highest index version of the nodes that served this result, null if not reported
+   */
+  public String getIndexVersion()
+  {
+    return _indexVersion;
+  }
+
+  public void setIndexVersion(String indexVersion)
+  {
+    _indexVersion = indexVersion;
+  }
+
+  /**
+   * @return whether the search stopped before it visited every segment, so that the number of hits only counts the visited ones
+   */
+  public boolean isNumHitsLowerBound()
+  {
+    return _numHitsLowerBound;
+  }
+
+  public void setNumHitsLowerBound(boolean numHitsLowerBound)
+  {
+    _numHitsLowerBound = numHitsLowerBound;
+  }
+
   @Override
   public boolean equals(Object o) {
     if (!(o instanceof SenseiResult)) return false;
@@ -28,13 +28,12 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import com.browseengine.bobo.api.BrowseSelection;
 import com.linkedin.norbert.javacompat.cluster.ClusterClient;
 import com.linkedin.norbert.javacompat.network.NetworkClientConfig;
 import com.senseidb.bql.parsers.BQLCompiler;
 import com.senseidb.cluster.client.SenseiNetworkClient;
 import com.senseidb.conf.SenseiConfParams;
-import com.senseidb.conf.SenseiFacetHandlerBuilder;
+import com.senseidb.indexing.ShardingStrategy;
 import com.senseidb.search.node.Broker;
 import com.senseidb.search.node.SenseiBroker;
 import com.senseidb.search.node.SenseiSysBroker;
@@ -97,7 +96,8 @@ public abstract class AbstractSenseiClientServlet extends ZookeeperConfigurableS
     super.init(config);
     BrokerConfig brokerConfig = new BrokerConfig(senseiConf, loadBalancerFactory);
     brokerConfig.init();
-    _senseiBroker = brokerConfig.buildSenseiBroker();
+    brokerConfig.setShardingStrategy(pluginRegistry.getBeanByFullPrefix(SenseiConfParams.SENSEI_SHARDING_STRATEGY, ShardingStrategy.class));
+    _senseiBroker = brokerConfig.buildSenseiBroker(versionComparator);
     _senseiSysBroker = brokerConfig.buildSysSenseiBroker(versionComparator);
     _networkClient = brokerConfig.getNetworkClient();
     _clusterClient = brokerConfig.getClusterClient();
@@ -486,7 +486,6 @@ public abstract class AbstractSenseiClientServlet extends ZookeeperConfigurableS
     int numHits = 0, totalDocs = 0;
     String query = null;
 
-    SenseiRequest senseiReq = null;
     try
     {
       JSONArray ids = null;
@@ -505,20 +504,17 @@ public abstract class AbstractSenseiClientServlet extends ZookeeperConfigurableS
       query = "get=" + String.valueOf(ids);
 
       String[] vals = RequestConverter2.getStrings(ids);
+      SenseiResult res = null;
       if (vals != null && vals.length != 0)
       {
-        senseiReq = new SenseiRequest();
-        senseiReq.setFetchStoredValue(true);
-        senseiReq.setCount(vals.length);
-        BrowseSelection sel = new BrowseSelection(SenseiFacetHandlerBuilder.UID_FACET_NAME);
-        sel.setValues(vals);
-        senseiReq.addSelection(sel);
+        long[] uids = new long[vals.length];
+        for (int i = 0; i < vals.length; ++i)
+        {
+          uids[i] = Long.parseLong(vals[i]);
+        }
+        res = _senseiBroker.getByUids(uids);
       }
 
-      SenseiResult res = null;
-      if (senseiReq != null)
-        res =_senseiBroker.browse(senseiReq);
-
       if (res != null)
       {
         numHits = res.getNumHits();
@@ -53,6 +53,7 @@ import static com.senseidb.servlet.SenseiSearchServletParams.PARAM_RESULT_HIT_TE
 import static com.senseidb.servlet.SenseiSearchServletParams.PARAM_RESULT_HIT_UID;
 import static com.senseidb.servlet.SenseiSearchServletParams.PARAM_RESULT_NUMGROUPS;
 import static com.senseidb.servlet.SenseiSearchServletParams.PARAM_RESULT_NUMHITS;
+import static com.senseidb.servlet.SenseiSearchServletParams.PARAM_RESULT_NUMHITS_LOWER_BOUND;
 import static com.senseidb.servlet.SenseiSearchServletParams.PARAM_RESULT_PARSEDQUERY;
 import static com.senseidb.servlet.SenseiSearchServletParams.PARAM_RESULT_SELECT_LIST;
 import static com.senseidb.servlet.SenseiSearchServletParams.PARAM_RESULT_TID;
@@ -461,6 +462,8 @@ public class DefaultSenseiJSONServlet extends AbstractSenseiRestServlet
     jsonObj.put(PARAM_RESULT_TID, res.getTid());
     jsonObj.put(PARAM_RESULT_TOTALDOCS, res.getTotalDocs());
     jsonObj.put(PARAM_RESULT_NUMHITS, res.getNumHits());
+    if (res.isNumHitsLowerBound())
+      jsonObj.put(PARAM_RESULT_NUMHITS_LOWER_BOUND, true);
     jsonObj.put(PARAM_RESULT_NUMGROUPS, res.getNumGroups());
     jsonObj.put(PARAM_RESULT_PARSEDQUERY, res.getParsedQuery());
     addErrors(jsonObj, res);
@@ -66,6 +66,7 @@ public interface SenseiSearchServletParams {
 	public static final String PARAM_RESULT_TOTALDOCS = "totaldocs";
 	public static final String PARAM_RESULT_TOTALGROUPS = "totalgroups";
 	public static final String PARAM_RESULT_NUMHITS = "numhits";
+	public static final String PARAM_RESULT_NUMHITS_LOWER_BOUND = "numhitsLowerBound";
 	public static final String PARAM_RESULT_NUMGROUPS = "numgroups";
 	public static final String PARAM_RESULT_HITS = "hits";
 	public static final String PARAM_RESULT_HIT_UID = "_uid";
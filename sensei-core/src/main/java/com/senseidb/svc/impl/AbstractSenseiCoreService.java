@@ -8,15 +8,16 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.log4j.Logger;
 
-import org.apache.lucene.util.NamedThreadFactory;
 import org.jboss.netty.util.internal.ConcurrentHashMap;
 
 import proj.zoie.api.IndexReaderFactory;
@@ -25,6 +26,8 @@ import proj.zoie.api.ZoieIndexReader;
 import com.browseengine.bobo.api.BoboIndexReader;
 import com.linkedin.norbert.network.Serializer;
 import com.senseidb.metrics.MetricsConstants;
+import com.senseidb.search.query.CancellableQuery.CancellationToken;
+import com.senseidb.search.query.CancellableQuery.SearchCancelledException;
 import com.senseidb.search.node.SenseiCore;
 import com.senseidb.search.node.SenseiQueryBuilderFactory;
 import com.senseidb.search.req.AbstractSenseiRequest;
@@ -44,6 +47,7 @@ public abstract class AbstractSenseiCoreService<Req extends AbstractSenseiReques
   private static Timer SearchTimer = null;
   private static Timer MergeTimer = null;
   private static Meter SearchCounter = null;
+  private static Meter CancelledMeter = null;
 	
   static{
 	  // register jmx monitoring for timers
@@ -60,6 +64,9 @@ public abstract class AbstractSenseiCoreService<Req extends AbstractSenseiReques
 	    MetricName searchCounterMetricName = new MetricName(MetricsConstants.Domain,"meter","search-count","node");
 	    SearchCounter = Metrics.newMeter(searchCounterMetricName, "requets", TimeUnit.SECONDS);
 
+	    MetricName cancelledMetricName = new MetricName(MetricsConstants.Domain,"meter","search-cancelled","node");
+	    CancelledMeter = Metrics.newMeter(cancelledMetricName, "cancellations", TimeUnit.SECONDS);
+
 	  }
 	  catch(Exception e){
 		logger.error(e.getMessage(),e);
@@ -69,9 +76,6 @@ public abstract class AbstractSenseiCoreService<Req extends AbstractSenseiReques
     
   protected final SenseiCore _core;
   
-  private final NamedThreadFactory threadFactory = new NamedThreadFactory("parallel-searcher");
-  private final ExecutorService _executorService = Executors.newCachedThreadPool(threadFactory);
-  
   private final Map<Integer,Timer> partitionTimerMetricMap = new HashMap<Integer,Timer>();
 	
 	public AbstractSenseiCoreService(SenseiCore core){
@@ -111,8 +115,14 @@ public abstract class AbstractSenseiCoreService<Req extends AbstractSenseiReques
 	      if (logger.isDebugEnabled()){
 	        logger.debug("serving partitions: " + partitions.toString());
 	      }
+	      // partition searches still queued or running past this point are abandoned
+	      final long deadline = System.currentTimeMillis() + getTimeout(senseiReq);
+	      final CancellationToken cancellationToken = new CancellationToken(deadline);
 	      //we need to release index readers from all partitions only after the merge step
-	      final Map<IndexReaderFactory<ZoieIndexReader<BoboIndexReader>>, List<ZoieIndexReader<BoboIndexReader>>> indexReaderCache = new ConcurrentHashMap<IndexReaderFactory<ZoieIndexReader<BoboIndexReader>>, List<ZoieIndexReader<BoboIndexReader>>>();
+	      final RequestReaders requestReaders = new RequestReaders();
+	      final Map<IndexReaderFactory<ZoieIndexReader<BoboIndexReader>>, List<ZoieIndexReader<BoboIndexReader>>> indexReaderCache = requestReaders.getIndexReaderCache();
+        // set by a partition search when it starts, or by the request thread to keep it from ever starting
+        AtomicBoolean[] started = new AtomicBoolean[partitions.size()-1];
 	      try {
 	      final ArrayList<Res> resultList = new ArrayList<Res>(partitions.size());
         Future<Res>[] futures = new Future[partitions.size()-1];
@@ -125,29 +135,48 @@ public abstract class AbstractSenseiCoreService<Req extends AbstractSenseiReques
 
           if (i < partitions.size() - 1)  // Search simultaneously.
           {
+            final AtomicBoolean partitionStarted = new AtomicBoolean(false);
+            started[i] = partitionStarted;
+            requestReaders.hold();
             try
             {
-              futures[i] = (Future<Res>)_executorService.submit(new Callable<Res>()
+              futures[i] = _core.getSearchScheduler().submit(new Callable<Res>()
               {
                 public Res call() throws Exception
                 {
-                  Timer timer = getTimer(partition);
-                  
-                  Res res = timer.time(new Callable<Res>(){
+                  if (!partitionStarted.compareAndSet(false, true))
+                  {
+                    // abandoned by the request before it got to run
+                    return null;
+                  }
+                  try
+                  {
+                    Timer timer = getTimer(partition);
+
+                    Res res = timer.time(new Callable<Res>(){
+
+                      @Override
+                      public Res call() throws Exception {
+                        return  handleRequest(senseiReq, readerFactory, _core.getQueryBuilderFactory(), indexReaderCache, cancellationToken);
+                      }
+                    });
 
-                    @Override
-                    public Res call() throws Exception {
-                      return  handleRequest(senseiReq, readerFactory, _core.getQueryBuilderFactory(), indexReaderCache);
-                    }                    
-                  });
-                  
-                  long end = System.currentTimeMillis();
-                  res.setTime(end - start);
-                  logger.info("searching partition: " + partition + " browse took: " + res.getTime());
+                    long end = System.currentTimeMillis();
+                    res.setTime(end - start);
+                    logger.info("searching partition: " + partition + " browse took: " + res.getTime());
 
-                  return res;
+                    return res;
+                  }
+                  finally
+                  {
+                    requestReaders.release();
+                  }
                 }
-              });
+              }, deadline);
+            } catch (RejectedExecutionException e)
+            {
+              senseiReq.addError(new SenseiError("partition " + partition + " rejected: " + e.getMessage(), ErrorType.ExecutionTimeout));
+              logger.warn("searching partition: " + partition + " rejected: " + e.getMessage());
             } catch (Exception e)
             {
               senseiReq.addError(new SenseiError(e.getMessage(), ErrorType.BoboExecutionError));              
@@ -163,7 +192,7 @@ public abstract class AbstractSenseiCoreService<Req extends AbstractSenseiReques
 
                 @Override
                 public Res call() throws Exception {
-                  return  handleRequest(senseiReq, readerFactory, _core.getQueryBuilderFactory(), indexReaderCache);
+                  return  handleRequest(senseiReq, readerFactory, _core.getQueryBuilderFactory(), indexReaderCache, cancellationToken);
                 }                    
               });
               
@@ -184,16 +213,25 @@ public abstract class AbstractSenseiCoreService<Req extends AbstractSenseiReques
 
         for (i=0; i<futures.length; ++i)
         {
+          if (futures[i] == null)
+          {
+            // not admitted, the error has already been recorded
+            resultList.add(getEmptyResultInstance(null));
+            continue;
+          }
           try
           {
-            Res res = futures[i].get(_timeout, TimeUnit.MILLISECONDS);
+            Res res = futures[i].get(Math.max(0L, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
             resultList.add(res);
           }
           catch(Exception e)
           {
 	          
             logger.error(e.getMessage(), e);
-	          if (e instanceof TimeoutException) {
+	          if (e instanceof TimeoutException || (e instanceof ExecutionException && e.getCause() instanceof TimeoutException)) {
+	            // stop the partition searches that are still running, drop the ones still queued
+	            cancellationToken.cancel();
+	            futures[i].cancel(false);
 	            senseiReq.addError(new SenseiError(e.getMessage(), ErrorType.ExecutionTimeout));    
 	          } else {
 	            senseiReq.addError(new SenseiError(e.getMessage(), ErrorType.BoboExecutionError));       
@@ -215,7 +253,13 @@ public abstract class AbstractSenseiCoreService<Req extends AbstractSenseiReques
         	finalResult.addError(new SenseiError(e.getMessage(), ErrorType.MergePartitionError));
           }
 	    } finally {
-	      returnIndexReaders(indexReaderCache);
+	      // a partition search that timed out keeps its readers until it finishes or stops on the cancellation
+	      for (AtomicBoolean partitionStarted : started) {
+	        if (partitionStarted != null && partitionStarted.compareAndSet(false, true)) {
+	          requestReaders.release();
+	        }
+	      }
+	      requestReaders.release();
 	    } 
 	    }
 	    
@@ -240,9 +284,34 @@ public abstract class AbstractSenseiCoreService<Req extends AbstractSenseiReques
     
   }
 
+  /**
+   * Index readers taken by the partition searches of a request. They are returned by the last one to release them, the
+   * request thread or a partition search it has stopped waiting for.
+   */
+  private final class RequestReaders {
+    private final Map<IndexReaderFactory<ZoieIndexReader<BoboIndexReader>>, List<ZoieIndexReader<BoboIndexReader>>> _indexReaderCache = new ConcurrentHashMap<IndexReaderFactory<ZoieIndexReader<BoboIndexReader>>, List<ZoieIndexReader<BoboIndexReader>>>();
+    // the request thread holds the readers from the start
+    private final AtomicInteger _holders = new AtomicInteger(1);
+
+    Map<IndexReaderFactory<ZoieIndexReader<BoboIndexReader>>, List<ZoieIndexReader<BoboIndexReader>>> getIndexReaderCache() {
+      return _indexReaderCache;
+    }
+
+    void hold() {
+      _holders.incrementAndGet();
+    }
+
+    void release() {
+      if (_holders.decrementAndGet() == 0) {
+        returnIndexReaders(_indexReaderCache);
+      }
+    }
+  }
+
   private final Res handleRequest(final Req senseiReq, final IndexReaderFactory<ZoieIndexReader<BoboIndexReader>> readerFactory,
       final SenseiQueryBuilderFactory queryBuilderFactory,
-      Map<IndexReaderFactory<ZoieIndexReader<BoboIndexReader>>, List<ZoieIndexReader<BoboIndexReader>>> indexReadersToCleanUp) throws Exception {
+      Map<IndexReaderFactory<ZoieIndexReader<BoboIndexReader>>, List<ZoieIndexReader<BoboIndexReader>>> indexReadersToCleanUp,
+      final CancellationToken cancellationToken) throws Exception {
     List<ZoieIndexReader<BoboIndexReader>> readerList = null;
     readerList = GetReaderTimer.time(new Callable<List<ZoieIndexReader<BoboIndexReader>>>() {
       public List<ZoieIndexReader<BoboIndexReader>> call() throws Exception {
@@ -260,14 +329,34 @@ public abstract class AbstractSenseiCoreService<Req extends AbstractSenseiReques
     }
     final List<BoboIndexReader> boboReaders = ZoieIndexReader.extractDecoratedReaders(readerList);
 
-    return SearchTimer.time(new Callable<Res>() {
-      public Res call() throws Exception {
-        return handlePartitionedRequest(senseiReq, boboReaders, queryBuilderFactory);
-      }
-    });
+    try {
+      return SearchTimer.time(new Callable<Res>() {
+        public Res call() throws Exception {
+          return handlePartitionedRequest(senseiReq, boboReaders, queryBuilderFactory, cancellationToken);
+        }
+      });
+    } catch (SearchCancelledException e) {
+      CancelledMeter.mark();
+      logger.warn("partition search cancelled, docs scanned: " + e.getDocsScanned());
+      throw e;
+    }
   }
-	
+
+  /**
+   * @return time in milliseconds the node spends on a request before abandoning its partition searches
+   */
+  protected long getTimeout(Req senseiReq) {
+    return _timeout;
+  }
+
 	public abstract Res handlePartitionedRequest(Req r,final List<BoboIndexReader> readerList,SenseiQueryBuilderFactory queryBuilderFactory) throws Exception;
+
+	/**
+	 * Services that can stop a partition search midway should override this and check the token while collecting.
+	 */
+	public Res handlePartitionedRequest(Req r,final List<BoboIndexReader> readerList,SenseiQueryBuilderFactory queryBuilderFactory,CancellationToken cancellationToken) throws Exception {
+	  return handlePartitionedRequest(r, readerList, queryBuilderFactory);
+	}
 	public abstract Res mergePartitionedResults(Req r,List<Res> reqList);
 	public abstract Res getEmptyResultInstance(Throwable error);
 
@@ -2,13 +2,22 @@ package com.senseidb.svc.impl;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import com.sensei.search.req.protobuf.SenseiBinarySerializer;
 import com.sensei.search.req.protobuf.SenseiReqProtoSerializer;
 import org.apache.log4j.Logger;
 import org.apache.lucene.search.Query;
@@ -33,12 +42,16 @@ import com.senseidb.metrics.MetricsConstants;
 import com.senseidb.search.node.ResultMerger;
 import com.senseidb.search.node.SenseiCore;
 import com.senseidb.search.node.SenseiQueryBuilderFactory;
+import com.senseidb.search.node.SenseiSearchScheduler;
+import com.senseidb.search.query.CancellableQuery;
+import com.senseidb.search.query.CancellableQuery.CancellationToken;
 import com.senseidb.search.req.SenseiHit;
 import com.senseidb.search.req.SenseiRequest;
 import com.senseidb.search.req.SenseiResult;
 import com.senseidb.search.req.mapred.impl.SenseiMapFunctionWrapper;
 import com.senseidb.util.RequestConverter;
 import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Meter;
 import com.yammer.metrics.core.MetricName;
 import com.yammer.metrics.core.Timer;
 
@@ -51,9 +64,13 @@ public class CoreSenseiServiceImpl extends AbstractSenseiCoreService<SenseiReque
 	public static final Serializer<SenseiRequest, SenseiResult> PROTO_SERIALIZER =
 			new SenseiReqProtoSerializer();
 
+	public static final Serializer<SenseiRequest, SenseiResult> BINARY_SERIALIZER =
+			new SenseiBinarySerializer();
+
 	private static final Logger logger = Logger.getLogger(CoreSenseiServiceImpl.class);
 	
 	private static Timer timerMetric = null;
+	private static final Meter earlyTerminationMeter = Metrics.newMeter(new MetricName(MetricsConstants.Domain, "meter", "early-termination", "node"), "searches", TimeUnit.SECONDS);
 	static{
 		  // register prune time metric
 		  try{
@@ -178,11 +195,21 @@ public class CoreSenseiServiceImpl extends AbstractSenseiCoreService<SenseiReque
 	    return result;
 	  }
 	
+	@Override
+	protected long getTimeout(SenseiRequest request) {
+	  long timeout = request.getTimeout();
+	  return timeout > 0 && timeout < _timeout ? timeout : _timeout;
+	}
+
 	@Override
 	public SenseiResult handlePartitionedRequest(final SenseiRequest request,
 			List<BoboIndexReader> readerList,SenseiQueryBuilderFactory queryBuilderFactory) throws Exception {
-	    MultiBoboBrowser browser = null;
+	  return handlePartitionedRequest(request, readerList, queryBuilderFactory, null);
+	}
 
+	@Override
+	public SenseiResult handlePartitionedRequest(final SenseiRequest request,
+			List<BoboIndexReader> readerList,SenseiQueryBuilderFactory queryBuilderFactory,CancellationToken cancellationToken) throws Exception {
 	    try
 	    {
           final List<BoboIndexReader> segmentReaders = BoboBrowser.gatherSubReaders(readerList);
@@ -212,15 +239,18 @@ public class CoreSenseiServiceImpl extends AbstractSenseiCoreService<SenseiReque
 
           pruner.sort(validatedSegmentReaders);
 
-	        browser = new MultiBoboBrowser(BoboBrowser.createBrowsables(validatedSegmentReaders));
-	        BrowseRequest breq = RequestConverter.convert(request, queryBuilderFactory);
-	        if (request.getMapReduceFunction() != null) {
-	          SenseiMapFunctionWrapper mapWrapper = new SenseiMapFunctionWrapper(request.getMapReduceFunction(), _core.getSystemInfo().getFacetInfos());	        
-            breq.setMapReduceWrapper(mapWrapper);
-	        }	        
-          SubReaderAccessor<BoboIndexReader> subReaderAccessor =
-              ZoieIndexReader.getSubReaderAccessor(validatedSegmentReaders);
-	        SenseiResult res = browse(request, browser, breq, subReaderAccessor);
+          SortBoundedSegments sortBoundedSegments = _core.isEarlyTermination() ? SortBoundedSegments.build(request, validatedSegmentReaders) : null;
+          int slices = getSegmentSlices(request, validatedSegmentReaders);
+          SenseiResult res;
+          if (sortBoundedSegments != null) {
+            res = browseSortBounded(request, sortBoundedSegments, queryBuilderFactory, cancellationToken);
+          }
+          else if (slices > 1) {
+            res = browseSlices(request, sliceSegments(validatedSegmentReaders, slices), queryBuilderFactory, cancellationToken);
+          }
+          else {
+            res = browseSegments(request, validatedSegmentReaders, queryBuilderFactory, cancellationToken, false);
+          }
 	        int totalDocs = res.getTotalDocs()+skipDocs.get();
 	        res.setTotalDocs(totalDocs);
 	        return res;
@@ -232,6 +262,38 @@ public class CoreSenseiServiceImpl extends AbstractSenseiCoreService<SenseiReque
 	    {
 	      logger.error(e.getMessage(), e);
 	      throw e;
+	    }
+	}
+
+	private SenseiResult browseSegments(SenseiRequest request, List<BoboIndexReader> segmentReaders,
+	    SenseiQueryBuilderFactory queryBuilderFactory, CancellationToken cancellationToken, boolean slice) throws Exception {
+	    MultiBoboBrowser browser = null;
+
+	    try
+	    {
+	        browser = new MultiBoboBrowser(BoboBrowser.createBrowsables(segmentReaders));
+	        BrowseRequest breq = RequestConverter.convert(request, queryBuilderFactory);
+	        if (slice) {
+	          // each slice keeps enough hits for the slice merge to page over them
+	          breq.setOffset(0);
+	          breq.setCount(request.getOffset() + request.getCount());
+	        }
+	        if (cancellationToken != null) {
+	          Query q = breq.getQuery();
+	          if (q != null) {
+	            breq.setQuery(new CancellableQuery(q, cancellationToken));
+	          }
+	          else {
+	            breq.setFilter(new CancellableQuery.CancellableFilter(breq.getFilter(), cancellationToken));
+	          }
+	        }
+	        if (request.getMapReduceFunction() != null) {
+	          SenseiMapFunctionWrapper mapWrapper = new SenseiMapFunctionWrapper(request.getMapReduceFunction(), _core.getSystemInfo().getFacetInfos());	        
+            breq.setMapReduceWrapper(mapWrapper);
+	        }	        
+          SubReaderAccessor<BoboIndexReader> subReaderAccessor =
+              ZoieIndexReader.getSubReaderAccessor(segmentReaders);
+	        return browse(request, browser, breq, subReaderAccessor);
 	    } finally
 	    {
 	      if (browser != null)
@@ -247,12 +309,244 @@ public class CoreSenseiServiceImpl extends AbstractSenseiCoreService<SenseiReque
 	    }
 	}
 
+	/**
+	 * @return number of slices to browse the segments of a partition in, 1 to browse them sequentially
+	 */
+	private int getSegmentSlices(SenseiRequest request, List<BoboIndexReader> segmentReaders) {
+	  int parallelism = request.getSegmentParallelism() > 0 ? request.getSegmentParallelism() : _core.getSegmentParallelism();
+	  if (parallelism <= 1 || segmentReaders.size() <= 1) {
+	    return 1;
+	  }
+	  // group by hits are merged from the sort collector of each partition, which can not be combined across slices
+	  if (request.getGroupBy() != null && request.getGroupBy().length > 0) {
+	    return 1;
+	  }
+	  long numDocs = 0;
+	  for (BoboIndexReader segmentReader : segmentReaders) {
+	    numDocs += segmentReader.maxDoc();
+	  }
+	  if (numDocs < _core.getSegmentParallelMinDocs()) {
+	    return 1;
+	  }
+	  return Math.min(parallelism, segmentReaders.size());
+	}
+
+	/**
+	 * Spreads the segments over the slices by size, keeping their relative order within each slice.
+	 */
+	private static List<List<BoboIndexReader>> sliceSegments(List<BoboIndexReader> segmentReaders, int slices) {
+	  List<BoboIndexReader> bySize = new ArrayList<BoboIndexReader>(segmentReaders);
+	  Collections.sort(bySize, new Comparator<BoboIndexReader>() {
+	    @Override
+	    public int compare(BoboIndexReader r1, BoboIndexReader r2) {
+	      return r2.maxDoc() - r1.maxDoc();
+	    }
+	  });
+	  long[] load = new long[slices];
+	  Map<BoboIndexReader, Integer> assignment = new IdentityHashMap<BoboIndexReader, Integer>();
+	  for (BoboIndexReader segmentReader : bySize) {
+	    int lightest = 0;
+	    for (int i = 1; i < slices; ++i) {
+	      if (load[i] < load[lightest]) {
+	        lightest = i;
+	      }
+	    }
+	    assignment.put(segmentReader, lightest);
+	    load[lightest] += segmentReader.maxDoc();
+	  }
+	  List<List<BoboIndexReader>> sliceList = new ArrayList<List<BoboIndexReader>>(slices);
+	  for (int i = 0; i < slices; ++i) {
+	    sliceList.add(new ArrayList<BoboIndexReader>());
+	  }
+	  for (BoboIndexReader segmentReader : segmentReaders) {
+	    sliceList.get(assignment.get(segmentReader)).add(segmentReader);
+	  }
+	  return sliceList;
+	}
+
+	/**
+	 * Browses a slice of the segments. A result that finishes after the partition search has failed is not taken by anyone,
+	 * so the task closes its sort collector itself.
+	 */
+	private final class SliceTask implements Callable<SenseiResult> {
+	  private final SenseiRequest request;
+	  private final List<BoboIndexReader> slice;
+	  private final SenseiQueryBuilderFactory queryBuilderFactory;
+	  private final CancellationToken cancellationToken;
+	  private Future<SenseiResult> future;
+	  private SenseiResult result;
+	  private boolean taken;
+	  private boolean abandoned;
+
+	  private SliceTask(SenseiRequest request, List<BoboIndexReader> slice, SenseiQueryBuilderFactory queryBuilderFactory,
+	      CancellationToken cancellationToken) {
+	    this.request = request;
+	    this.slice = slice;
+	    this.queryBuilderFactory = queryBuilderFactory;
+	    this.cancellationToken = cancellationToken;
+	  }
+
+	  @Override
+	  public SenseiResult call() throws Exception {
+	    SenseiResult res = browseSegments(request, slice, queryBuilderFactory, cancellationToken, true);
+	    synchronized (this) {
+	      if (!abandoned) {
+	        result = res;
+	        return res;
+	      }
+	    }
+	    closeSortCollector(res);
+	    return null;
+	  }
+
+	  /**
+	   * @return the result of the slice, its sort collector is closed by the caller from now on
+	   */
+	  private synchronized SenseiResult take(SenseiResult res) {
+	    taken = true;
+	    return res;
+	  }
+
+	  /**
+	   * Cancels the slice, and closes the sort collector of its result if it is done but was never taken
+	   */
+	  private void abandon() {
+	    SenseiResult untaken = null;
+	    synchronized (this) {
+	      abandoned = true;
+	      if (result != null && !taken) {
+	        untaken = result;
+	      }
+	    }
+	    if (future != null) {
+	      future.cancel(true);
+	    }
+	    closeSortCollector(untaken);
+	  }
+	}
+
+	private static void closeSortCollector(SenseiResult result) {
+	  if (result != null && result.getSortCollector() != null) {
+	    result.getSortCollector().close();
+	  }
+	}
+
+	private SenseiResult browseSlices(final SenseiRequest request, List<List<BoboIndexReader>> slices,
+	    final SenseiQueryBuilderFactory queryBuilderFactory, final CancellationToken cancellationToken) throws Exception {
+	  SenseiSearchScheduler scheduler = _core.getSegmentSearchScheduler();
+	  long deadline = cancellationToken == null ? 0L : cancellationToken.getDeadline();
+	  List<SliceTask> tasks = new ArrayList<SliceTask>(slices.size());
+	  List<SliceTask> submittedTasks = new ArrayList<SliceTask>(slices.size());
+	  List<SliceTask> inlineTasks = new ArrayList<SliceTask>(slices.size());
+	  List<SenseiResult> sliceResults = new ArrayList<SenseiResult>(slices.size());
+	  boolean merged = false;
+	  try {
+	    for (int i = 0; i < slices.size(); ++i) {
+	      SliceTask task = new SliceTask(request, slices.get(i), queryBuilderFactory, cancellationToken);
+	      tasks.add(task);
+	      // the first slice, and any slice the pool can not take, is browsed on the partition thread
+	      if (i == 0) {
+	        inlineTasks.add(task);
+	        continue;
+	      }
+	      try {
+	        task.future = scheduler.submit(task, deadline);
+	        submittedTasks.add(task);
+	      } catch (RejectedExecutionException e) {
+	        inlineTasks.add(task);
+	      }
+	    }
+	    for (SliceTask task : inlineTasks) {
+	      sliceResults.add(task.take(task.call()));
+	    }
+	    for (SliceTask task : submittedTasks) {
+	      try {
+	        sliceResults.add(task.take(task.future.get()));
+	      } catch (ExecutionException e) {
+	        if (e.getCause() instanceof Exception) {
+	          throw (Exception) e.getCause();
+	        }
+	        throw e;
+	      }
+	    }
+	    SenseiResult res = ResultMerger.mergeSlices(request, sliceResults);
+	    merged = true;
+	    return res;
+	  } finally {
+	    if (!merged) {
+	      // the slices still running are of no use any more
+	      for (SliceTask task : tasks) {
+	        task.abandon();
+	      }
+	    }
+	    for (SenseiResult sliceResult : sliceResults) {
+	      closeSortCollector(sliceResult);
+	    }
+	  }
+	}
+
+	/**
+	 * Browses the segments one by one from the one with the best bound of the primary sort field, until none of the rest
+	 * can have a better hit than the k-th best one found so far. The hits of the skipped segments are not counted.
+	 */
+	private SenseiResult browseSortBounded(SenseiRequest request, final SortBoundedSegments segments,
+	    SenseiQueryBuilderFactory queryBuilderFactory, CancellationToken cancellationToken) throws Exception {
+	  List<BoboIndexReader> readers = segments.getReaders();
+	  int topHits = request.getOffset() + request.getCount();
+	  // the best values of the primary sort field found so far, the worst one on top
+	  PriorityQueue<Comparable<Object>> topValues = new PriorityQueue<Comparable<Object>>(topHits, new Comparator<Comparable<Object>>() {
+	    @Override
+	    public int compare(Comparable<Object> v1, Comparable<Object> v2) {
+	      return segments.compare(v2, v1);
+	    }
+	  });
+	  List<SenseiResult> segmentResults = new ArrayList<SenseiResult>(readers.size());
+	  try {
+	    int visited = 0;
+	    for (; visited < readers.size(); ++visited) {
+	      if (topValues.size() >= topHits && segments.cannotBeat(visited, topValues.peek())) {
+	        break;
+	      }
+	      SenseiResult segmentResult = browseSegments(request, readers.subList(visited, visited + 1), queryBuilderFactory, cancellationToken, true);
+	      segmentResults.add(segmentResult);
+	      // the hits of a single segment browse have the docids of the segment
+	      for (SenseiHit hit : segmentResult.getSenseiHits()) {
+	        topValues.add(segments.getValue(visited, hit.getDocid()));
+	        if (topValues.size() > topHits) {
+	          topValues.poll();
+	        }
+	      }
+	    }
+	    SenseiResult res = ResultMerger.mergeSlices(request, segmentResults);
+	    if (visited < readers.size()) {
+	      int skippedDocs = 0;
+	      for (int i = visited; i < readers.size(); ++i) {
+	        skippedDocs += readers.get(i).numDocs();
+	      }
+	      res.setTotalDocs(res.getTotalDocs() + skippedDocs);
+	      res.setNumHitsLowerBound(true);
+	      earlyTerminationMeter.mark();
+	    }
+	    return res;
+	  } finally {
+	    for (SenseiResult segmentResult : segmentResults) {
+	      SortCollector sortCollector = segmentResult.getSortCollector();
+	      if (sortCollector != null) {
+	        sortCollector.close();
+	      }
+	    }
+	  }
+	}
+
 	@Override
 	public SenseiResult mergePartitionedResults(SenseiRequest r,
 			List<SenseiResult> resultList) {
     try
     {
-      return ResultMerger.merge(r, resultList, true);
+      SenseiResult res = ResultMerger.merge(r, resultList, true);
+      // lets brokers tell how fresh a result is
+      res.setIndexVersion(_core.getIndexVersion());
+      return res;
     }
     finally
     {
@@ -0,0 +1,150 @@
+package com.senseidb.svc.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.lucene.search.SortField;
+
+import com.browseengine.bobo.api.BoboIndexReader;
+import com.browseengine.bobo.api.FacetSpec;
+import com.browseengine.bobo.facets.FacetHandler;
+import com.browseengine.bobo.facets.data.FacetDataCache;
+import com.browseengine.bobo.facets.data.MultiValueFacetDataCache;
+import com.browseengine.bobo.facets.impl.RangeFacetHandler;
+import com.browseengine.bobo.facets.impl.SimpleFacetHandler;
+import com.senseidb.search.req.SenseiRequest;
+
+/**
+ * The segments of a partition in the order of the best value of the primary sort field each can have, so that a sorted
+ * search can stop once none of the rest can have a better hit than the k-th one found so far.
+ */
+final class SortBoundedSegments {
+  private final boolean _reverse;
+  private final List<BoboIndexReader> _readers;
+  private final List<FacetDataCache> _dataCaches;
+  // the best value of each segment, null if it has no documents
+  private final List<Comparable<Object>> _bounds;
+
+  private SortBoundedSegments(boolean reverse, List<BoboIndexReader> readers, List<FacetDataCache> dataCaches,
+      List<Comparable<Object>> bounds) {
+    _reverse = reverse;
+    _readers = readers;
+    _dataCaches = dataCaches;
+    _bounds = bounds;
+  }
+
+  /**
+   * @return the segments in the order of their bounds, or null if the request can't stop early: it has facets, groups,
+   *         distinct values or a map reduce, which need every hit, or it isn't sorted on a single value facet, that has a
+   *         value for every document
+   */
+  @SuppressWarnings("unchecked")
+  static SortBoundedSegments build(SenseiRequest request, List<BoboIndexReader> readers) {
+    if (readers.size() <= 1 || request.getOffset() + request.getCount() <= 0) {
+      return null;
+    }
+    Map<String, FacetSpec> facetSpecs = request.getFacetSpecs();
+    if ((facetSpecs != null && !facetSpecs.isEmpty())
+        || (request.getGroupBy() != null && request.getGroupBy().length > 0)
+        || (request.getDistinct() != null && request.getDistinct().length > 0)
+        || request.getMapReduceFunction() != null) {
+      return null;
+    }
+    SortField[] sort = request.getSort();
+    if (sort == null || sort.length == 0 || sort[0].getField() == null
+        || sort[0].getType() == SortField.SCORE || sort[0].getType() == SortField.DOC) {
+      return null;
+    }
+    String field = sort[0].getField();
+    boolean reverse = sort[0].getReverse();
+
+    final List<Segment> segments = new ArrayList<Segment>(readers.size());
+    for (BoboIndexReader reader : readers) {
+      FacetHandler<?> handler = reader.getFacetHandler(field);
+      if (!(handler instanceof SimpleFacetHandler) && !(handler instanceof RangeFacetHandler)) {
+        return null;
+      }
+      Object data = reader.getFacetData(field);
+      if (!(data instanceof FacetDataCache) || data instanceof MultiValueFacetDataCache) {
+        return null;
+      }
+      FacetDataCache dataCache = (FacetDataCache) data;
+      Comparable<Object> bound = null;
+      if (reader.maxDoc() > 0) {
+        // the documents without a value sort before all the others
+        if (dataCache.freqs[0] > 0 || dataCache.valArray.size() <= 1) {
+          return null;
+        }
+        Object value = dataCache.valArray.getRawValue(reverse ? dataCache.valArray.size() - 1 : 1);
+        if (!(value instanceof Comparable)) {
+          return null;
+        }
+        bound = (Comparable<Object>) value;
+      }
+      segments.add(new Segment(reader, dataCache, bound));
+    }
+
+    final int order = reverse ? -1 : 1;
+    Collections.sort(segments, new Comparator<Segment>() {
+      @Override
+      public int compare(Segment s1, Segment s2) {
+        if (s1.bound == null || s2.bound == null) {
+          return (s1.bound == null ? 1 : 0) - (s2.bound == null ? 1 : 0);
+        }
+        return order * s1.bound.compareTo(s2.bound);
+      }
+    });
+    List<BoboIndexReader> sortedReaders = new ArrayList<BoboIndexReader>(segments.size());
+    List<FacetDataCache> dataCaches = new ArrayList<FacetDataCache>(segments.size());
+    List<Comparable<Object>> bounds = new ArrayList<Comparable<Object>>(segments.size());
+    for (Segment segment : segments) {
+      sortedReaders.add(segment.reader);
+      dataCaches.add(segment.dataCache);
+      bounds.add(segment.bound);
+    }
+    return new SortBoundedSegments(reverse, sortedReaders, dataCaches, bounds);
+  }
+
+  private static final class Segment {
+    private final BoboIndexReader reader;
+    private final FacetDataCache dataCache;
+    private final Comparable<Object> bound;
+
+    private Segment(BoboIndexReader reader, FacetDataCache dataCache, Comparable<Object> bound) {
+      this.reader = reader;
+      this.dataCache = dataCache;
+      this.bound = bound;
+    }
+  }
+
+  List<BoboIndexReader> getReaders() {
+    return _readers;
+  }
+
+  /**
+   * @return the value of the primary sort field of a document of a segment
+   */
+  @SuppressWarnings("unchecked")
+  Comparable<Object> getValue(int segment, int docid) {
+    FacetDataCache dataCache = _dataCaches.get(segment);
+    return (Comparable<Object>) dataCache.valArray.getRawValue(dataCache.orderArray.get(docid));
+  }
+
+  /**
+   * @return a negative number if the first value sorts before the second one
+   */
+  int compare(Comparable<Object> v1, Comparable<Object> v2) {
+    return _reverse ? v2.compareTo(v1) : v1.compareTo(v2);
+  }
+
+  /**
+   * @return whether no document of the segment can sort before a document with the value, ties are not skipped
+   */
+  boolean cannotBeat(int segment, Comparable<Object> value) {
+    Comparable<Object> bound = _bounds.get(segment);
+    return bound == null || compare(bound, value) > 0;
+  }
+}
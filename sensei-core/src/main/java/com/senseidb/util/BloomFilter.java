@@ -0,0 +1,79 @@
+package com.senseidb.util;
+
+/**
+ * A bloom filter of strings over a bit array, that is sized for the expected number of the strings and the false positive
+ * rate. The k bit positions of a string are derived from the two halves of its 64 bit FNV-1a hash.
+ */
+public class BloomFilter
+{
+  private final long[] _bits;
+  private final int _numBits;
+  private final int _numHashes;
+
+  public BloomFilter(int expectedCount, double falsePositiveRate)
+  {
+    if (falsePositiveRate <= 0.0 || falsePositiveRate >= 1.0)
+    {
+      throw new IllegalArgumentException("the false positive rate must be in (0, 1): " + falsePositiveRate);
+    }
+    int count = Math.max(expectedCount, 1);
+    long numBits = (long) Math.ceil(-count * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+    numBits = Math.max(64L, Math.min(numBits, Integer.MAX_VALUE - 63L));
+    _numBits = (int) numBits;
+    _numHashes = Math.max(1, (int) Math.round((double) _numBits / count * Math.log(2)));
+    _bits = new long[(_numBits + 63) >>> 6];
+  }
+
+  private static long hash(String value)
+  {
+    long hash = 0xcbf29ce484222325L;
+    for (int i = 0; i < value.length(); ++i)
+    {
+      char c = value.charAt(i);
+      hash ^= c & 0xff;
+      hash *= 0x100000001b3L;
+      hash ^= c >>> 8;
+      hash *= 0x100000001b3L;
+    }
+    return hash;
+  }
+
+  public void add(String value)
+  {
+    long hash = hash(value);
+    int h1 = (int) hash, h2 = (int) (hash >>> 32);
+    for (int i = 0; i < _numHashes; ++i)
+    {
+      int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % _numBits;
+      _bits[bit >>> 6] |= 1L << bit;
+    }
+  }
+
+  /**
+   * @return false if the value has surely not been added
+   */
+  public boolean mightContain(String value)
+  {
+    long hash = hash(value);
+    int h1 = (int) hash, h2 = (int) (hash >>> 32);
+    for (int i = 0; i < _numHashes; ++i)
+    {
+      int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % _numBits;
+      if ((_bits[bit >>> 6] & (1L << bit)) == 0)
+      {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  public int getNumHashes()
+  {
+    return _numHashes;
+  }
+
+  public long getSizeInBytes()
+  {
+    return _bits.length * 8L;
+  }
+}
@@ -102,6 +102,8 @@ public class RequestConverter2 {
 
   public static final String ROUTEPARAM = "routeParam";
 
+  public static final String SEGMENT_PARALLELISM = "segmentParallelism";
+
   public static final String MAPPINGS = "mappings";
   private static final String MAP_REDUCE = "mapReduce";
   private static final String MAP_REDUCE_FUNCTION = "function";
@@ -437,6 +439,8 @@ public class RequestConverter2 {
 		String routeParam = json.optString(RequestConverter2.ROUTEPARAM,null);
 		req.setRouteParam(routeParam);
 
+		req.setSegmentParallelism(json.optInt(RequestConverter2.SEGMENT_PARALLELISM, 0));
+
 		return req;
 	}
 
@@ -0,0 +1,55 @@
+package com.sensei.search.req.protobuf;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import com.browseengine.bobo.api.BrowseFacet;
+import com.browseengine.bobo.api.FacetAccessible;
+import com.senseidb.search.node.ResultMerger.MappedFacetAccessible;
+import com.senseidb.search.req.SenseiHit;
+import com.senseidb.search.req.SenseiResult;
+
+public class SenseiResultBinaryCodecTest extends TestCase {
+
+  public void testRoundTripKeepsTheNullValues() throws Exception {
+    SenseiHit hit = new SenseiHit();
+    hit.setUID(7L);
+    hit.setDocid(3);
+    Map<String, String[]> fieldValues = new HashMap<String, String[]>();
+    fieldValues.put("color", new String[] { "red", null, "" });
+    fieldValues.put("tags", new String[] { null });
+    hit.setFieldValues(fieldValues);
+
+    SenseiResult result = new SenseiResult();
+    result.setHits(new SenseiHit[] { hit });
+    Map<String, FacetAccessible> facetMap = new HashMap<String, FacetAccessible>();
+    facetMap.put("color", new MappedFacetAccessible(new BrowseFacet[] { new BrowseFacet(null, 5), new BrowseFacet("", 3),
+        new BrowseFacet("red", 2) }));
+    result.addAll(facetMap);
+
+    SenseiResult decoded = SenseiResultBinaryCodec.decode(SenseiResultBinaryCodec.encode(result));
+
+    SenseiHit decodedHit = decoded.getSenseiHits()[0];
+    assertEquals(7L, decodedHit.getUID());
+    String[] color = decodedHit.getFieldValues().get("color");
+    assertEquals(3, color.length);
+    assertEquals("red", color[0]);
+    assertNull(color[1]);
+    assertEquals("", color[2]);
+    String[] tags = decodedHit.getFieldValues().get("tags");
+    assertEquals(1, tags.length);
+    assertNull(tags[0]);
+
+    List<BrowseFacet> facets = decoded.getFacetMap().get("color").getFacets();
+    assertEquals(3, facets.size());
+    assertNull(facets.get(0).getValue());
+    assertEquals(5, facets.get(0).getHitCount());
+    assertEquals("", facets.get(1).getValue());
+    assertEquals(3, facets.get(1).getHitCount());
+    assertEquals("red", facets.get(2).getValue());
+    assertEquals(2, facets.get(2).getHitCount());
+  }
+}
@@ -8,15 +8,28 @@ import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileReader;
 import java.io.FileWriter;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.StringTokenizer;
 
+import org.apache.lucene.search.Explanation;
 import org.json.JSONObject;
 
 import junit.framework.TestCase;
 
 import com.google.protobuf.ByteString;
 import com.google.protobuf.TextFormat.ParseException;
+import com.browseengine.bobo.api.BrowseFacet;
+import com.browseengine.bobo.api.FacetAccessible;
 import com.sensei.search.req.protobuf.ProtoConvertUtil;
+import com.sensei.search.req.protobuf.SenseiBinarySerializer;
+import com.senseidb.search.node.ResultMerger.MappedFacetAccessible;
+import com.senseidb.search.req.ErrorType;
+import com.senseidb.search.req.SenseiError;
+import com.senseidb.search.req.SenseiHit;
+import com.senseidb.search.req.SenseiResult;
+import com.senseidb.svc.impl.CoreSenseiServiceImpl;
 
 /**
  * @author nnarkhed
@@ -185,4 +198,66 @@ public class TestSerialization extends TestCase{
         reader.close();
 	}
 	
+	/**
+	 * This tests the round trip of the result through the schema based binary serializer
+	 */
+	public void testBinaryResultSerialization() {
+		SenseiResult result = new SenseiResult();
+		result.setTid(17);
+		result.setTime(25);
+		result.setNumHits(1000);
+		result.setNumHitsLowerBound(true);
+		result.setTotalDocs(15000);
+		result.setParsedQuery("color:red");
+		result.setIndexVersion("00000042");
+		SenseiHit[] hits = new SenseiHit[3];
+		for (int i = 0; i < hits.length; i++) {
+			SenseiHit hit = new SenseiHit();
+			hit.setUID(i == 0 ? Long.MIN_VALUE : 1000L * i);
+			hit.setDocid(i);
+			hit.setScore(1.5f / (i + 1));
+			hit.setComparable(Long.valueOf(-i));
+			hit.setExplanation(new Explanation(1.0f, "hit " + i));
+			Map<String, String[]> fieldValues = new HashMap<String, String[]>();
+			fieldValues.put("color", new String[] {"red", "blue"});
+			hit.setFieldValues(fieldValues);
+			Map<String, Object[]> rawFieldValues = new HashMap<String, Object[]>();
+			rawFieldValues.put("year", new Object[] {1990 + i, null, 3.5f, new long[] {1L, -1L}});
+			hit.setRawFieldValues(rawFieldValues);
+			hit.setSrcData("{\"id\":" + i + "}");
+			hits[i] = hit;
+		}
+		hits[0].setGroupValue("red");
+		hits[0].setGroupHitsCount(2);
+		hits[0].setGroupHits(new SenseiHit[] {hits[1], hits[2]});
+		result.setHits(hits);
+		Map<String, FacetAccessible> facetMap = new HashMap<String, FacetAccessible>();
+		facetMap.put("color", new MappedFacetAccessible(new BrowseFacet[] {new BrowseFacet("red", 600), new BrowseFacet("blue", 400)}));
+		facetMap.put("empty", new MappedFacetAccessible(new BrowseFacet[0]));
+		result.addAll(facetMap);
+		result.addError(new SenseiError("partition 3 timed out", ErrorType.PartitionCallError));
+
+		SenseiBinarySerializer serializer = new SenseiBinarySerializer();
+		byte[] bytes = serializer.responseToBytes(result);
+		SenseiResult decoded = serializer.responseFromBytes(bytes);
+		assertEquals(result, decoded);
+		assertEquals("00000042", decoded.getIndexVersion());
+		assertTrue(decoded.isNumHitsLowerBound());
+		assertEquals(Long.MIN_VALUE, decoded.getSenseiHits()[0].getUID());
+		assertEquals(Long.valueOf(-2), decoded.getSenseiHits()[2].getComparable());
+		assertEquals("{\"id\":1}", decoded.getSenseiHits()[1].getSrcData());
+		assertTrue(Arrays.equals(new String[] {"red", "blue"}, decoded.getSenseiHits()[2].getFieldValues().get("color")));
+		Object[] year = decoded.getSenseiHits()[1].getRawFieldValues().get("year");
+		assertEquals(1991, year[0]);
+		assertNull(year[1]);
+		assertEquals(3.5f, year[2]);
+		assertTrue(Arrays.equals(new long[] {1L, -1L}, (long[]) year[3]));
+		assertEquals(600, decoded.getFacetMap().get("color").getFacetHitsCount("red"));
+		assertEquals(0, decoded.getFacetMap().get("empty").getFacets().size());
+		assertEquals(1, decoded.getErrors().size());
+		assertEquals(ErrorType.PartitionCallError, decoded.getErrors().get(0).getErrorType());
+		assertEquals(350, decoded.getErrors().get(0).getErrorCode());
+		assertTrue(bytes.length < CoreSenseiServiceImpl.JAVA_SERIALIZER.responseToBytes(result).length);
+	}
+	
 }
@@ -0,0 +1,223 @@
+package com.senseidb.cluster.routing;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import com.linkedin.norbert.javacompat.cluster.Node;
+
+public class ReplicaSelectorTest extends TestCase
+{
+  private static final class MockNode implements Node
+  {
+    private final int id;
+    private final Set<Integer> partitionIds;
+
+    private MockNode(int id, int... partIds)
+    {
+      this.id = id;
+      Set<Integer> set = new HashSet<Integer>();
+      for (int partId : partIds)
+      {
+        set.add(partId);
+      }
+      partitionIds = Collections.unmodifiableSet(set);
+    }
+
+    public int getId()
+    {
+      return id;
+    }
+
+    public String getUrl()
+    {
+      return "localhost:" + (1000 + id);
+    }
+
+    public Set<Integer> getPartitionIds()
+    {
+      return partitionIds;
+    }
+
+    public boolean isAvailable()
+    {
+      return true;
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+      return o instanceof MockNode && ((MockNode) o).id == id;
+    }
+
+    @Override
+    public int hashCode()
+    {
+      return id;
+    }
+
+    @Override
+    public String toString()
+    {
+      return id + ":" + partitionIds;
+    }
+  }
+
+  private static Set<Node> nodes(Node... nodes)
+  {
+    Set<Node> set = new HashSet<Node>();
+    Collections.addAll(set, nodes);
+    return set;
+  }
+
+  public void testRouteCoversAllPartitions()
+  {
+    // two replica groups, each node of a group serves 2 partitions
+    Node a1 = new MockNode(1, 0, 1);
+    Node a2 = new MockNode(2, 2, 3);
+    Node b1 = new MockNode(3, 0, 1);
+    Node b2 = new MockNode(4, 2, 3);
+    ReplicaSelector selector = new ReplicaSelector(false, 0.95, 5);
+    assertFalse(selector.hasPartitions());
+    selector.setNodes(nodes(a1, a2, b1, b2));
+    assertTrue(selector.hasPartitions());
+    for (int i = 0; i < 100; i++)
+    {
+      Map<Node, Set<Integer>> route = selector.route();
+      assertEquals("one request per node", 2, route.size());
+      Set<Integer> covered = new HashSet<Integer>();
+      for (Map.Entry<Node, Set<Integer>> entry : route.entrySet())
+      {
+        assertTrue(entry.getKey().getPartitionIds().containsAll(entry.getValue()));
+        for (Integer partition : entry.getValue())
+        {
+          assertTrue("partition " + partition + " is routed twice", covered.add(partition));
+        }
+      }
+      assertEquals(4, covered.size());
+    }
+  }
+
+  public void testRouteSomePartitions()
+  {
+    Node a1 = new MockNode(1, 0, 1);
+    Node a2 = new MockNode(2, 2, 3);
+    Node b1 = new MockNode(3, 0, 1);
+    ReplicaSelector selector = new ReplicaSelector(false, 0.95, 5);
+    selector.setNodes(nodes(a1, a2, b1));
+    for (int i = 0; i < 100; i++)
+    {
+      // only the partitions asked for, the one no node serves is left out
+      Map<Node, Set<Integer>> route = selector.route(new int[] { 1, 3, 7 });
+      assertEquals(2, route.size());
+      assertEquals(Collections.singleton(3), route.get(a2));
+      Set<Integer> covered = new HashSet<Integer>();
+      for (Set<Integer> partitions : route.values())
+      {
+        covered.addAll(partitions);
+      }
+      assertEquals(new HashSet<Integer>(Arrays.asList(1, 3)), covered);
+    }
+    assertTrue(selector.route(new int[0]).isEmpty());
+  }
+
+  public void testSlowReplicaIsAvoided()
+  {
+    Node fast = new MockNode(1, 0);
+    Node slow = new MockNode(2, 0);
+    ReplicaSelector selector = new ReplicaSelector(false, 0.95, 5);
+    selector.setNodes(nodes(fast, slow));
+    long now = System.nanoTime();
+    for (int i = 0; i < 10; i++)
+    {
+      selector.start(fast);
+      selector.complete(fast, now - 1000000L, true);
+      selector.start(slow);
+      selector.complete(slow, now - 200000000L, true);
+    }
+    assertTrue(selector.getAverageLatency(slow) > selector.getAverageLatency(fast));
+    int slowPicks = 0;
+    for (int i = 0; i < 1000; i++)
+    {
+      if (selector.route().containsKey(slow))
+      {
+        slowPicks++;
+      }
+    }
+    // with two replicas both are always compared, so the slow one is never picked
+    assertEquals(0, slowPicks);
+  }
+
+  public void testOutstandingRequestsCount()
+  {
+    Node first = new MockNode(1, 0);
+    Node second = new MockNode(2, 0);
+    ReplicaSelector selector = new ReplicaSelector(true, 0.95, 5);
+    selector.setNodes(nodes(first, second));
+    long start = selector.start(first);
+    selector.start(first);
+    assertEquals(2, selector.getOutstanding(first));
+    // the idle replica wins while the first one is busy
+    for (int i = 0; i < 100; i++)
+    {
+      assertTrue(selector.route().containsKey(second));
+    }
+    selector.complete(first, start, true);
+    selector.abandon(first, start);
+    assertEquals(0, selector.getOutstanding(first));
+  }
+
+  public void testFailurePenalty()
+  {
+    Node first = new MockNode(1, 0);
+    Node second = new MockNode(2, 0);
+    ReplicaSelector selector = new ReplicaSelector(true, 0.95, 5);
+    selector.setNodes(nodes(first, second));
+    long start = System.nanoTime() - 2000000L;
+    selector.start(first);
+    selector.complete(first, start, true);
+    double latency = selector.getAverageLatency(first);
+    selector.start(first);
+    selector.complete(first, System.nanoTime(), false);
+    assertTrue(selector.getAverageLatency(first) >= 2 * latency);
+  }
+
+  public void testHedgeNode()
+  {
+    Node a = new MockNode(1, 0, 1);
+    Node b = new MockNode(2, 0, 1);
+    Node c = new MockNode(3, 0);
+    ReplicaSelector selector = new ReplicaSelector(true, 0.95, 5);
+    selector.setNodes(nodes(a, b, c));
+    Set<Integer> both = new HashSet<Integer>();
+    both.add(0);
+    both.add(1);
+    assertEquals(b, selector.getHedgeNode(a, both));
+    assertEquals(a, selector.getHedgeNode(b, both));
+    // c doesn't serve partition 1, so it can't take over the request of a
+    selector.setNodes(nodes(a, c));
+    assertNull(selector.getHedgeNode(a, both));
+    assertEquals(a, selector.getHedgeNode(c, Collections.singleton(0)));
+  }
+
+  public void testHedgeDelayPercentile()
+  {
+    Node node = new MockNode(1, 0);
+    ReplicaSelector selector = new ReplicaSelector(true, 0.9, 5);
+    selector.setNodes(nodes(node));
+    assertEquals(5000000L, selector.getHedgeDelayNanos());
+    long now = System.nanoTime();
+    for (int i = 1; i <= 1024; i++)
+    {
+      selector.start(node);
+      // 1ms .. 100ms
+      selector.complete(node, now - (i % 100 + 1) * 1000000L, true);
+    }
+    long delay = selector.getHedgeDelayNanos();
+    assertTrue("delay " + delay, delay >= 85000000L && delay <= 100000000L + 50000000L);
+  }
+}
@@ -0,0 +1,239 @@
+package com.senseidb.dataprovider.http;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import junit.framework.TestCase;
+
+import org.mortbay.jetty.Request;
+import org.mortbay.jetty.Server;
+import org.mortbay.jetty.handler.AbstractHandler;
+
+import proj.zoie.api.DataConsumer;
+import proj.zoie.api.ZoieException;
+import proj.zoie.api.DataConsumer.DataEvent;
+import proj.zoie.impl.indexing.ZoieConfig;
+
+public class HttpStreamDataProviderTest extends TestCase {
+
+  /**
+   * Serves the events with the versions after the offset, one per line
+   */
+  private static class EventsHandler extends AbstractHandler {
+    private final int _eventCount;
+
+    EventsHandler(int eventCount) {
+      _eventCount = eventCount;
+    }
+
+    public void handle(String target, HttpServletRequest request, HttpServletResponse response, int dispatch) throws IOException {
+      int offset = Integer.parseInt(request.getParameter("offset"));
+      int count = Integer.parseInt(request.getParameter("count"));
+      response.setContentType("text/plain");
+      PrintWriter writer = response.getWriter();
+      for (int i = offset + 1; i <= Math.min(_eventCount, offset + count); i++) {
+        writer.println(i);
+      }
+      writer.flush();
+      ((Request) request).setHandled(true);
+    }
+  }
+
+  private static class LineDataProvider extends HttpStreamDataProvider<String> {
+    LineDataProvider(String baseUrl, int fetchSize) {
+      super(ZoieConfig.DEFAULT_VERSION_COMPARATOR, baseUrl, null, fetchSize, "0", true);
+    }
+
+    @Override
+    protected String buildGetString(String offset) {
+      return _baseUrl + "?offset=" + offset + "&count=" + _fetchSize;
+    }
+
+    @Override
+    protected Iterator<DataEvent<String>> parse(InputStream is) throws Exception {
+      final BufferedReader reader = new BufferedReader(new InputStreamReader(is, "UTF-8"));
+      return new StreamingEventIterator<String>() {
+        @Override
+        protected DataEvent<String> readNext() throws Exception {
+          String line = reader.readLine();
+          return line == null ? null : new DataEvent<String>(line, line);
+        }
+      };
+    }
+  }
+
+  /**
+   * Takes the first event the indexing thread reads and holds that thread until released, so the test reads the rest of the
+   * events from the provider itself
+   */
+  private static class HoldingConsumer implements DataConsumer<String> {
+    final List<String> consumed = new ArrayList<String>();
+    final CountDownLatch released = new CountDownLatch(1);
+
+    public void consume(Collection<DataEvent<String>> events) throws ZoieException {
+      if (events == null || events.isEmpty()) {
+        return;
+      }
+      synchronized (consumed) {
+        for (DataEvent<String> event : events) {
+          consumed.add(event.getVersion());
+        }
+      }
+      try {
+        released.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+
+    public String getVersion() {
+      return null;
+    }
+
+    public Comparator<String> getVersionComparator() {
+      return ZoieConfig.DEFAULT_VERSION_COMPARATOR;
+    }
+
+    List<String> getConsumed() {
+      synchronized (consumed) {
+        return new ArrayList<String>(consumed);
+      }
+    }
+  }
+
+  private Server _server;
+  private LineDataProvider _provider;
+  private HoldingConsumer _consumer;
+
+  private void start(int eventCount, int fetchSize, int prefetchBatches, int retryTime) throws Exception {
+    _server = new Server(0);
+    _server.setHandler(new EventsHandler(eventCount));
+    _server.start();
+    int port = _server.getConnectors()[0].getLocalPort();
+
+    _provider = new LineDataProvider("http://localhost:" + port + "/events", fetchSize);
+    _provider.setPrefetchBatches(prefetchBatches);
+    _provider.setRetryTime(retryTime);
+    _provider.setBatchSize(1);
+    _consumer = new HoldingConsumer();
+    _provider.setDataConsumer(_consumer);
+    _provider.start();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    if (_consumer != null) {
+      _consumer.released.countDown();
+    }
+    if (_provider != null) {
+      _provider.stop();
+    }
+    if (_server != null) {
+      _server.stop();
+    }
+    Thread prefetchThread;
+    while ((prefetchThread = findPrefetchThread()) != null) {
+      prefetchThread.join(5000);
+      assertFalse(prefetchThread.isAlive());
+    }
+  }
+
+  private List<String> take(int count) {
+    List<String> events = new ArrayList<String>();
+    long timeout = System.currentTimeMillis() + 10000;
+    while (events.size() < count && System.currentTimeMillis() < timeout) {
+      DataEvent<String> event = _provider.next();
+      if (event != null) {
+        events.add(event.getVersion());
+      }
+    }
+    return events;
+  }
+
+  private static List<String> versions(int from, int to) {
+    List<String> versions = new ArrayList<String>();
+    for (int i = from; i <= to; i++) {
+      versions.add(String.valueOf(i));
+    }
+    return versions;
+  }
+
+  private static Thread findPrefetchThread() {
+    for (Thread thread : Thread.getAllStackTraces().keySet()) {
+      if ("http-prefetch".equals(thread.getName()) && thread.isAlive()) {
+        return thread;
+      }
+    }
+    return null;
+  }
+
+  private void waitForBufferedEvents(int count) throws InterruptedException {
+    long timeout = System.currentTimeMillis() + 10000;
+    while (_provider.getBufferedEvents() < count && System.currentTimeMillis() < timeout) {
+      Thread.sleep(10);
+    }
+    assertEquals(count, _provider.getBufferedEvents());
+  }
+
+  public void test1PrefetchKeepsTheOrder() throws Exception {
+    start(30, 4, 2, 100);
+    assertEquals(8, _provider.getBufferCapacity());
+    long timeout = System.currentTimeMillis() + 10000;
+    while (_consumer.getConsumed().isEmpty() && System.currentTimeMillis() < timeout) {
+      Thread.sleep(10);
+    }
+    assertEquals(versions(1, 1), _consumer.getConsumed());
+
+    assertEquals(versions(2, 30), take(29));
+    assertNull(_provider.next());
+  }
+
+  public void test2ResetDropsTheBufferedEvents() throws Exception {
+    start(100, 4, 2, 100);
+    List<String> events = take(5);
+    assertEquals(5, events.size());
+    // the buffer is full of the events after the ones read, which the reset has to drop
+    waitForBufferedEvents(8);
+
+    _provider.setStartingOffset("50");
+    _provider.reset();
+    assertEquals(versions(51, 60), take(10));
+  }
+
+  public void test3StopInterruptsTheWaitingPrefetch() throws Exception {
+    // no events, the prefetch thread waits for the long retry time
+    start(0, 4, 2, 60000);
+    Thread prefetchThread = findPrefetchThread();
+    assertNotNull(prefetchThread);
+
+    _consumer.released.countDown();
+    _provider.stop();
+    prefetchThread.join(5000);
+    assertFalse(prefetchThread.isAlive());
+  }
+
+  public void test4StopInterruptsTheBlockedPrefetch() throws Exception {
+    // the buffer fills up and the prefetch thread waits for the space in it
+    start(100, 4, 1, 100);
+    waitForBufferedEvents(4);
+    Thread prefetchThread = findPrefetchThread();
+    assertNotNull(prefetchThread);
+
+    _consumer.released.countDown();
+    _provider.stop();
+    prefetchThread.join(5000);
+    assertFalse(prefetchThread.isAlive());
+  }
+}
@@ -0,0 +1,229 @@
+package com.senseidb.indexing;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.Version;
+import org.json.JSONObject;
+
+import com.browseengine.bobo.api.BoboIndexReader;
+import com.browseengine.bobo.api.BrowseSelection;
+import com.browseengine.bobo.api.BrowseSelection.ValueOperation;
+import com.browseengine.bobo.api.FacetSpec;
+import com.browseengine.bobo.facets.FacetHandler;
+import com.browseengine.bobo.facets.data.PredefinedTermListFactory;
+import com.browseengine.bobo.facets.impl.MultiValueFacetHandler;
+import com.browseengine.bobo.facets.impl.RangeFacetHandler;
+import com.browseengine.bobo.facets.impl.SimpleFacetHandler;
+import com.senseidb.search.req.SenseiJSONQuery;
+import com.senseidb.search.req.SenseiRequest;
+import com.senseidb.util.BloomFilter;
+
+public class ZoneMapIndexPrunerTest extends TestCase
+{
+  private BoboIndexReader boboReader;
+  private ZoneMapIndexPruner pruner;
+
+  @Override
+  protected void setUp() throws Exception
+  {
+    // red and blue cars of the years 2000-2009, all tagged "a", the even ones also "b"
+    RAMDirectory directory = new RAMDirectory();
+    IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(Version.LUCENE_35,
+                                                                           new StandardAnalyzer(Version.LUCENE_35)));
+    for (int i = 0; i < 10; ++i)
+    {
+      Document doc = new Document();
+      doc.add(new Field("color", i < 5 ? "red" : "blue", Field.Store.NO, Field.Index.NOT_ANALYZED_NO_NORMS));
+      doc.add(new Field("year", String.format("%05d", 2000 + i), Field.Store.NO, Field.Index.NOT_ANALYZED_NO_NORMS));
+      doc.add(new Field("tag", "a", Field.Store.NO, Field.Index.NOT_ANALYZED_NO_NORMS));
+      if (i % 2 == 0)
+      {
+        doc.add(new Field("tag", "b", Field.Store.NO, Field.Index.NOT_ANALYZED_NO_NORMS));
+      }
+      doc.add(new Field("member_id", String.valueOf(i * 7), Field.Store.NO, Field.Index.NOT_ANALYZED_NO_NORMS));
+      writer.addDocument(doc);
+    }
+    writer.close();
+    List<FacetHandler<?>> facetHandlers = Arrays.<FacetHandler<?>>asList(
+        new SimpleFacetHandler("color"),
+        new MultiValueFacetHandler("tag"),
+        new RangeFacetHandler("year", "year", new PredefinedTermListFactory<Integer>(Integer.class, "00000"), null));
+    boboReader = BoboIndexReader.getInstance(IndexReader.open(directory, true), facetHandlers);
+    pruner = new ZoneMapIndexPruner();
+    pruner.init(Collections.singletonMap(ZoneMapIndexPruner.BLOOM_FIELDS, "member_id"), null);
+  }
+
+  @Override
+  protected void tearDown() throws Exception
+  {
+    boboReader.close();
+  }
+
+  private static BrowseSelection selection(String field, ValueOperation operation, String... values)
+  {
+    BrowseSelection selection = new BrowseSelection(field);
+    for (String value : values)
+    {
+      selection.addValue(value);
+    }
+    selection.setSelectionOperation(operation);
+    return selection;
+  }
+
+  private boolean canMatch(String filter) throws Exception
+  {
+    return pruner.canMatch(boboReader, new JSONObject(filter));
+  }
+
+  public void testSelections() throws Exception
+  {
+    assertTrue(pruner.canMatch(boboReader, selection("color", ValueOperation.ValueOperationOr, "red")));
+    assertFalse(pruner.canMatch(boboReader, selection("color", ValueOperation.ValueOperationOr, "green")));
+    assertTrue(pruner.canMatch(boboReader, selection("color", ValueOperation.ValueOperationOr, "green", "red")));
+    assertFalse(pruner.canMatch(boboReader, selection("color", ValueOperation.ValueOperationAnd, "green", "red")));
+    assertTrue(pruner.canMatch(boboReader, selection("tag", ValueOperation.ValueOperationAnd, "a", "b")));
+    assertFalse(pruner.canMatch(boboReader, selection("tag", ValueOperation.ValueOperationOr, "c")));
+    assertTrue(pruner.canMatch(boboReader, selection("year", ValueOperation.ValueOperationOr, "[2005 TO 2020]")));
+    assertFalse(pruner.canMatch(boboReader, selection("year", ValueOperation.ValueOperationOr, "[2010 TO 2020]")));
+    // no facet handler, no bloom filter
+    assertTrue(pruner.canMatch(boboReader, selection("name", ValueOperation.ValueOperationOr, "green")));
+  }
+
+  public void testExpandedSelectionIsNotPruned() throws Exception
+  {
+    SenseiRequest req = new SenseiRequest();
+    req.addSelection(selection("color", ValueOperation.ValueOperationOr, "green"));
+    assertFalse(pruner.getReaderSelector(req).isSelected(boboReader));
+    FacetSpec facetSpec = new FacetSpec();
+    facetSpec.setExpandSelection(true);
+    req.setFacetSpec("color", facetSpec);
+    assertTrue(ZoneMapIndexPruner.getPrunableSelections(req).isEmpty());
+    assertTrue(pruner.getReaderSelector(req).isSelected(boboReader));
+  }
+
+  public void testTermFilters() throws Exception
+  {
+    assertTrue(canMatch("{\"term\":{\"color\":\"red\"}}"));
+    assertFalse(canMatch("{\"term\":{\"color\":\"green\"}}"));
+    assertFalse(canMatch("{\"term\":{\"color\":{\"value\":\"green\"}}}"));
+    assertTrue(canMatch("{\"term\":{\"member_id\":\"14\"}}"));
+    assertFalse(canMatch("{\"term\":{\"member_id\":\"15\"}}"));
+    // the fields without a facet handler or a bloom filter are never pruned
+    assertTrue(canMatch("{\"term\":{\"name\":\"green\"}}"));
+  }
+
+  public void testTermsFilters() throws Exception
+  {
+    assertTrue(canMatch("{\"terms\":{\"color\":[\"green\",\"red\"]}}"));
+    assertFalse(canMatch("{\"terms\":{\"color\":[\"green\",\"yellow\"]}}"));
+    assertTrue(canMatch("{\"terms\":{\"color\":{\"values\":[\"green\",\"red\"],\"operator\":\"or\"}}}"));
+    assertFalse(canMatch("{\"terms\":{\"color\":{\"values\":[\"green\",\"red\"],\"operator\":\"and\"}}}"));
+    assertTrue(canMatch("{\"terms\":{\"tag\":{\"values\":[\"a\",\"b\"],\"operator\":\"and\"}}}"));
+    assertTrue(canMatch("{\"terms\":{\"color\":{\"values\":[]}}}"));
+  }
+
+  public void testRangeFilters() throws Exception
+  {
+    assertTrue(canMatch("{\"range\":{\"year\":{\"from\":2009,\"to\":2020}}}"));
+    assertFalse(canMatch("{\"range\":{\"year\":{\"from\":2010,\"to\":2020}}}"));
+    assertFalse(canMatch("{\"range\":{\"year\":{\"from\":2009,\"to\":2020,\"include_lower\":false}}}"));
+    // _noOptimize turns off the pruning of the range
+    assertTrue(canMatch("{\"range\":{\"year\":{\"from\":2010,\"to\":2020,\"_noOptimize\":true}}}"));
+  }
+
+  public void testBooleanFilters() throws Exception
+  {
+    String red = "{\"term\":{\"color\":\"red\"}}";
+    String green = "{\"term\":{\"color\":\"green\"}}";
+    String oldYears = "{\"range\":{\"year\":{\"from\":1990,\"to\":1995}}}";
+    assertTrue(canMatch("{\"and\":[" + red + "," + red + "]}"));
+    assertFalse(canMatch("{\"and\":[" + red + "," + green + "]}"));
+    assertTrue(canMatch("{\"or\":[" + green + "," + red + "]}"));
+    assertFalse(canMatch("{\"or\":[" + green + "," + oldYears + "]}"));
+    assertFalse(canMatch("{\"bool\":{\"must\":" + green + "}}"));
+    assertFalse(canMatch("{\"bool\":{\"must\":[" + red + "," + oldYears + "]}}"));
+    assertFalse(canMatch("{\"bool\":{\"must\":" + red + ",\"should\":[" + green + "]}}"));
+    assertTrue(canMatch("{\"bool\":{\"must\":" + red + ",\"should\":[" + green + "," + red + "]}}"));
+    // must_not can't exclude a segment
+    assertTrue(canMatch("{\"bool\":{\"must_not\":" + red + "}}"));
+  }
+
+  public void testBloomFilter() throws Exception
+  {
+    BloomFilter bloomFilter = new BloomFilter(10000, 0.01);
+    for (int i = 0; i < 10000; ++i)
+    {
+      bloomFilter.add("member" + i);
+    }
+    for (int i = 0; i < 10000; ++i)
+    {
+      assertTrue(bloomFilter.mightContain("member" + i));
+    }
+    int falsePositives = 0;
+    for (int i = 10000; i < 20000; ++i)
+    {
+      if (bloomFilter.mightContain("member" + i))
+      {
+        ++falsePositives;
+      }
+    }
+    // 1% expected, with some slack for the hash
+    assertTrue("false positives: " + falsePositives, falsePositives < 300);
+  }
+
+  public void testSegmentBloomFilter() throws Exception
+  {
+    RAMDirectory directory = new RAMDirectory();
+    IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(Version.LUCENE_35,
+                                                                           new StandardAnalyzer(Version.LUCENE_35)));
+    for (int i = 0; i < 100; ++i)
+    {
+      Document doc = new Document();
+      doc.add(new Field("member_id", String.valueOf(i * 7), Field.Store.NO, Field.Index.NOT_ANALYZED_NO_NORMS));
+      doc.add(new Field("name", "name" + i, Field.Store.NO, Field.Index.NOT_ANALYZED_NO_NORMS));
+      writer.addDocument(doc);
+    }
+    writer.close();
+
+    IndexReader reader = IndexReader.open(directory, true);
+    try
+    {
+      BloomFilter bloomFilter = ZoneMapIndexPruner.buildBloomFilter(reader, "member_id", 0.001);
+      for (int i = 0; i < 100; ++i)
+      {
+        assertTrue(bloomFilter.mightContain(String.valueOf(i * 7)));
+      }
+      // the terms of the other fields are not in it
+      assertFalse(bloomFilter.mightContain("name1"));
+
+      BloomFilter missing = ZoneMapIndexPruner.buildBloomFilter(reader, "company_id", 0.001);
+      assertFalse(missing.mightContain("7"));
+    }
+    finally
+    {
+      reader.close();
+    }
+  }
+
+  public void testGetFilter() throws Exception
+  {
+    JSONObject query = new JSONObject("{\"query\":{\"query_string\":{\"query\":\"cool\"}},"
+                                      + "\"filter\":{\"term\":{\"member_id\":\"7\"}}}");
+    JSONObject filter = ZoneMapIndexPruner.getFilter(new SenseiJSONQuery(query));
+    assertNotNull(filter);
+    assertEquals("7", filter.getJSONObject("term").getString("member_id"));
+    assertNull(ZoneMapIndexPruner.getFilter(new SenseiJSONQuery(new JSONObject("{\"query\":{}}"))));
+    assertNull(ZoneMapIndexPruner.getFilter(null));
+  }
+}
@@ -5,9 +5,12 @@ import it.unimi.dsi.fastutil.longs.LongList;
 
 import java.io.File;
 import java.io.RandomAccessFile;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import junit.framework.TestCase;
 
@@ -335,6 +338,65 @@ private float[] getFloatFieldValues(CompositeActivityValues compositeActivityVal
     assertEquals(valueCount, compositeActivityValues.metadata.count);
     compositeActivityValues.close();
   }
+  public void test6ConcurrentBatchUpdates() throws Exception {
+    String indexDirPath = getDirPath() + 6;
+    new File(indexDirPath).mkdirs();
+    ActivityConfig activityConfig = new ActivityConfig();
+    activityConfig.setUpdateThreads(4);
+    compositeActivityValues = CompositeActivityValues.createCompositeValues(ActivityPersistenceFactory.getInstance(indexDirPath, activityConfig), java.util.Arrays.asList(PurgeUnusedActivitiesJobTest.getLikesFieldDefinition()), Collections.EMPTY_LIST, ZoieConfig.DEFAULT_VERSION_COMPARATOR);
+    final int valueCount = 2000;
+    final int batchCount = 50;
+    final long[] uids = new long[valueCount];
+    final List<Map<String, Object>> maps = new ArrayList<Map<String, Object>>(valueCount);
+    for (int i = 0; i < valueCount; i++) {
+      uids[i] = UID_BASE + i % (valueCount / 2);
+      maps.add(toMap(new JSONObject().put("likes", "+1")));
+    }
+    final AtomicBoolean writing = new AtomicBoolean(true);
+    Thread flusher = new Thread() {
+      public void run() {
+        while (writing.get()) {
+          compositeActivityValues.flush();
+        }
+      }
+    };
+    flusher.start();
+    Thread[] writers = new Thread[4];
+    for (int i = 0; i < writers.length; i++) {
+      writers[i] = new Thread() {
+        public void run() {
+          for (int j = 0; j < batchCount; j++) {
+            compositeActivityValues.update(uids, String.format("%08d", 1), maps);
+          }
+        }
+      };
+      writers[i].start();
+    }
+    for (Thread writer : writers) {
+      writer.join();
+    }
+    assertEquals(valueCount / 2, compositeActivityValues.uidToArrayIndex.size());
+    for (int i = 0; i < valueCount / 2; i++) {
+      assertEquals(2 * batchCount * writers.length, compositeActivityValues.getIntValueByUID(UID_BASE + i, "likes"));
+    }
+    compositeActivityValues.flush();
+    compositeActivityValues.syncWithPersistentVersion(String.format("%08d", 1));
+    //every batch adds 2 likes with the next version, the flushes in between should persist the values of the whole batches only
+    int baseValue = 2 * batchCount * writers.length;
+    for (int j = 0; j < batchCount; j++) {
+      compositeActivityValues.update(uids, String.format("%08d", j + 2), maps);
+    }
+    writing.set(false);
+    flusher.join();
+    compositeActivityValues.close();
+
+    compositeActivityValues = CompositeActivityValues.createCompositeValues(ActivityPersistenceFactory.getInstance(indexDirPath, activityConfig), java.util.Arrays.asList(PurgeUnusedActivitiesJobTest.getLikesFieldDefinition()), Collections.EMPTY_LIST, ZoieConfig.DEFAULT_VERSION_COMPARATOR);
+    int persistedBatches = Integer.parseInt(compositeActivityValues.metadata.version) - 1;
+    for (int i = 0; i < valueCount / 2; i++) {
+      assertEquals(baseValue + 2 * persistedBatches, compositeActivityValues.getIntValueByUID(UID_BASE + i, "likes"));
+    }
+    compositeActivityValues.close();
+  }
   public static FieldDefinition getIntFieldDefinition(String name) {
     FieldDefinition fieldDefinition = new FieldDefinition();
     fieldDefinition.name = name;
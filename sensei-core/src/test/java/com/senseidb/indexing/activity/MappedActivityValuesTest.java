@@ -0,0 +1,125 @@
+package com.senseidb.indexing.activity;
+
+import java.io.File;
+
+import junit.framework.TestCase;
+
+import com.senseidb.indexing.activity.facet.ActivityRangeFacetHandler;
+import com.senseidb.indexing.activity.primitives.ActivityFloatValues;
+import com.senseidb.indexing.activity.primitives.ActivityIntValues;
+import com.senseidb.indexing.activity.primitives.ActivityLongValues;
+import com.senseidb.indexing.activity.primitives.ActivityPrimitiveValues;
+import com.senseidb.indexing.activity.primitives.MappedActivityIntValues;
+import com.senseidb.test.SenseiStarter;
+
+public class MappedActivityValuesTest extends TestCase {
+  private File dir;
+  private ActivityConfig activityConfig;
+
+  public void setUp() {
+    SenseiStarter.rmrf(new File("sensei-test"));
+    dir = new File("sensei-test/mappedActivity");
+    dir.mkdirs();
+    activityConfig = new ActivityConfig();
+    activityConfig.setMemoryMapped(true);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    File file = new File("sensei-test");
+    if (file.exists()) {
+      file.deleteOnExit();
+      SenseiStarter.rmrf(file);
+    }
+  }
+
+  private ActivityPrimitiveValues create(Class<?> type, String fieldName, int count) {
+    ActivityPersistenceFactory factory = ActivityPersistenceFactory.getInstance(dir.getAbsolutePath(), activityConfig);
+    return ActivityPrimitiveValues.createActivityPrimitiveValues(factory, type, fieldName, count);
+  }
+
+  public void test1UpdateFlushAndReopen() throws Exception {
+    ActivityIntValues likes = (ActivityIntValues) create(int.class, "likes", 0);
+    assertTrue(likes instanceof MappedActivityIntValues);
+    assertNull(likes.getFieldValues());
+    int valueCount = 100000;
+    for (int i = 0; i < valueCount; i++) {
+      likes.update(i, "+" + i);
+      likes.update(i, "+1");
+    }
+    likes.delete(7);
+    assertEquals(5, likes.getIntValue(4));
+    assertEquals(Integer.MIN_VALUE, likes.getIntValue(7));
+    likes.prepareFlush().run();
+    //is not flushed, so shouldn't be persisted
+    likes.update(4, "+100");
+    assertEquals(105, likes.getIntValue(4));
+    likes.close();
+
+    likes = (ActivityIntValues) create(int.class, "likes", valueCount);
+    assertEquals(5, likes.getIntValue(4));
+    assertEquals(Integer.MIN_VALUE, likes.getIntValue(7));
+    assertEquals(valueCount, likes.getIntValue(valueCount - 1));
+    likes.update(7, "+3");
+    assertEquals(3, likes.getIntValue(7));
+    likes.close();
+  }
+
+  public void test2LongAndFloatValues() throws Exception {
+    ActivityLongValues modifiedDate = (ActivityLongValues) create(long.class, "modifiedDate", 0);
+    ActivityFloatValues reputation = (ActivityFloatValues) create(float.class, "reputation", 0);
+    modifiedDate.update(1000, 10000000000L);
+    reputation.update(1000, "2.5");
+    reputation.update(1000, "+0.5");
+    modifiedDate.prepareFlush().run();
+    reputation.prepareFlush().run();
+    modifiedDate.close();
+    reputation.close();
+
+    modifiedDate = (ActivityLongValues) create(long.class, "modifiedDate", 1001);
+    reputation = (ActivityFloatValues) create(float.class, "reputation", 1001);
+    assertEquals(10000000000L, modifiedDate.getLongValue(1000));
+    assertEquals(3.0f, reputation.getFloatValue(1000));
+    assertEquals(10000000000L, modifiedDate.getValue(1000).longValue());
+    modifiedDate.close();
+    reputation.close();
+  }
+
+  public void test3FacetHandlerReadsMappedValues() throws Exception {
+    ActivityIntValues likes = (ActivityIntValues) create(int.class, "likes", 0);
+    likes.update(2, 10);
+    ActivityRangeFacetHandler facetHandler = new ActivityRangeFacetHandler("likes", "likes", null, likes);
+    int[] facetData = new int[] {-1, 2};
+    assertEquals(Integer.MIN_VALUE, facetHandler.getIntActivityValue(facetData, 0));
+    assertEquals(10, facetHandler.getIntActivityValue(facetData, 1));
+    likes.close();
+  }
+
+  public void test4RemapAfterFlushKeepsPendingUpdates() throws Exception {
+    ActivityIntValues likes = (ActivityIntValues) create(int.class, "likes", 0);
+    for (int i = 0; i < 1000; i++) {
+      likes.update(i, "+1");
+    }
+    Runnable firstFlush = likes.prepareFlush();
+    likes.update(1, "+10");
+    Runnable secondFlush = likes.prepareFlush();
+    likes.update(2, "+100");
+    //the chunk is remapped, the updates of the second batch and the current one are not yet in the file
+    firstFlush.run();
+    assertEquals(1, likes.getIntValue(0));
+    assertEquals(11, likes.getIntValue(1));
+    assertEquals(101, likes.getIntValue(2));
+    secondFlush.run();
+    assertEquals(11, likes.getIntValue(1));
+    assertEquals(101, likes.getIntValue(2));
+    likes.update(2, "+1");
+    assertEquals(102, likes.getIntValue(2));
+    likes.close();
+
+    likes = (ActivityIntValues) create(int.class, "likes", 1000);
+    assertEquals(1, likes.getIntValue(0));
+    assertEquals(11, likes.getIntValue(1));
+    assertEquals(1, likes.getIntValue(2));
+    likes.close();
+  }
+}
@@ -0,0 +1,163 @@
+package com.senseidb.indexing.activity.time;
+
+import java.io.File;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import com.senseidb.indexing.activity.ActivityConfig;
+import com.senseidb.indexing.activity.ActivityPersistenceFactory;
+import com.senseidb.indexing.activity.time.TimeAggregatedActivityValues.TimeHitsHolder;
+import com.senseidb.test.SenseiStarter;
+
+public class PackedTimeHitsTest extends TestCase {
+
+  public void setUp() {
+    SenseiStarter.rmrf(new File("sensei-test"));
+    new File(getDirPath()).mkdirs();
+  }
+
+  public static String getDirPath() {
+    return "sensei-test/activity-packed";
+  }
+
+  public void tearDown() throws Exception {
+    SenseiStarter.rmrf(new File("sensei-test"));
+    Clock.setPredefinedTimeInMinutes(0);
+  }
+
+  public void test1OverflowAndBack() {
+    PackedTimeHits timeHits = new PackedTimeHits(10, 4);
+    assertFalse(timeHits.isSet(3));
+    for (int i = 0; i < 10; i++) {
+      timeHits.add(3, i, 1);
+    }
+    timeHits.add(3, 9, 2);
+    assertEquals(10, timeHits.size(3));
+    assertEquals(1, timeHits.getOverflowCount());
+    assertEquals(0, timeHits.getTime(3, 0));
+    assertEquals(3, timeHits.getActivity(3, 9));
+    for (int i = 0; i < 8; i++) {
+      timeHits.removeFirst(3);
+    }
+    assertEquals(0, timeHits.getOverflowCount());
+    assertEquals(2, timeHits.size(3));
+    assertEquals(8, timeHits.getTime(3, 0));
+    assertEquals(3, timeHits.getActivity(3, 1));
+    timeHits.reset(3);
+    assertFalse(timeHits.isSet(3));
+  }
+
+  public void test2SameAsTimeHitsHolder() {
+    int capacity = 100;
+    PackedTimeHits packed = new PackedTimeHits(capacity, 2);
+    TimeHitsHolder holder = new TimeHitsHolder(capacity);
+    Random random = new Random(0);
+    int[] lastTimes = new int[capacity];
+    for (int step = 0; step < 100000; step++) {
+      int index = random.nextInt(capacity);
+      int operation = random.nextInt(10);
+      if (operation < 6) {
+        int time = lastTimes[index] + random.nextInt(2);
+        lastTimes[index] = time;
+        int activity = random.nextInt(5) + 1;
+        packed.add(index, time, activity);
+        holder.add(index, time, activity);
+      } else if (operation < 9) {
+        if (packed.isSet(index) && packed.size(index) > 0) {
+          packed.removeFirst(index);
+          holder.removeFirst(index);
+        }
+      } else {
+        packed.reset(index);
+        holder.reset(index);
+      }
+      assertEquals(holder.isSet(index), packed.isSet(index));
+      if (holder.isSet(index)) {
+        assertEquals(holder.size(index), packed.size(index));
+        for (int i = 0; i < holder.size(index); i++) {
+          assertEquals(holder.getTime(index, i), packed.getTime(index, i));
+          assertEquals(holder.getActivity(index, i), packed.getActivity(index, i));
+        }
+      }
+    }
+  }
+
+  public void test3AggregatesUpdateJob() {
+    Clock.setPredefinedTimeInMinutes(0);
+    ActivityConfig activityConfig = new ActivityConfig();
+    activityConfig.setPackedTimeHits(true);
+    ActivityPersistenceFactory activityPersistenceFactory = ActivityPersistenceFactory.getInstance(getDirPath(), activityConfig);
+    TimeAggregatedActivityValues timeAggregatedActivityValues = TimeAggregatedActivityValues.createTimeAggregatedValues("likes", java.util.Arrays.asList("10m","5m", "2m"), 0, activityPersistenceFactory);
+    timeAggregatedActivityValues.init(0);
+    assertTrue(timeAggregatedActivityValues.getTimeActivities() instanceof PackedTimeHits);
+    for (int i = 0; i < 11; i++) {
+      Clock.setPredefinedTimeInMinutes(i);
+      timeAggregatedActivityValues.update(0, "1");
+      timeAggregatedActivityValues.update(1, "1");
+    }
+    assertEquals(11, timeAggregatedActivityValues.timeActivities.size(0));
+    assertEquals(11, timeAggregatedActivityValues.valuesMap.get("10m").fieldValues[0]);
+    Clock.setPredefinedTimeInMinutes(10);
+    AggregatesUpdateJob aggregatesUpdateJob = new AggregatesUpdateJob(timeAggregatedActivityValues, activityPersistenceFactory.createAggregatesMetadata("likes"));
+    Clock.setPredefinedTimeInMinutes(11);
+    aggregatesUpdateJob.run();
+    assertEquals(9, timeAggregatedActivityValues.valuesMap.get("10m").fieldValues[0]);
+    assertEquals(4, timeAggregatedActivityValues.valuesMap.get("5m").fieldValues[0]);
+    assertEquals(1, timeAggregatedActivityValues.valuesMap.get("2m").fieldValues[0]);
+    assertEquals(9, timeAggregatedActivityValues.timeActivities.size(0));
+    Clock.setPredefinedTimeInMinutes(25);
+    aggregatesUpdateJob.run();
+    assertEquals(0, timeAggregatedActivityValues.valuesMap.get("10m").fieldValues[0]);
+    assertFalse(timeAggregatedActivityValues.timeActivities.isSet(0));
+    timeAggregatedActivityValues.close();
+  }
+
+  public void test4ConcurrentGrowAndUpdate() throws Exception {
+    final PackedTimeHits timeHits = new PackedTimeHits(10, 2);
+    final int hotDocs = 100;
+    final int updatesPerDoc = 2000;
+    final int growTo = 200000;
+    //keeps updating the first documents, while the other thread grows the arrays
+    Thread updater = new Thread() {
+      public void run() {
+        for (int i = 0; i < updatesPerDoc; i++) {
+          for (int index = 0; index < hotDocs; index++) {
+            synchronized (timeHits.getLock(index)) {
+              timeHits.add(index, i / 500, 1);
+              if (timeHits.size(index) > 2) {
+                timeHits.removeFirst(index);
+              }
+            }
+          }
+        }
+      }
+    };
+    Thread grower = new Thread() {
+      public void run() {
+        for (int index = hotDocs; index < growTo; index++) {
+          timeHits.ensureCapacity(index);
+          synchronized (timeHits.getLock(index)) {
+            timeHits.add(index, 0, 1);
+          }
+        }
+      }
+    };
+    updater.start();
+    grower.start();
+    updater.join();
+    grower.join();
+    assertTrue(timeHits.getCapacity() >= growTo);
+    for (int index = 0; index < hotDocs; index++) {
+      assertEquals(2, timeHits.size(index));
+      assertEquals(2, timeHits.getTime(index, 0));
+      assertEquals(500, timeHits.getActivity(index, 0));
+      assertEquals(3, timeHits.getTime(index, 1));
+      assertEquals(500, timeHits.getActivity(index, 1));
+    }
+    for (int index = hotDocs; index < growTo; index++) {
+      assertEquals(1, timeHits.size(index));
+      assertEquals(1, timeHits.getActivity(index, 0));
+    }
+  }
+}
@@ -6,6 +6,7 @@ import junit.framework.TestCase;
 import scala.actors.threadpool.Arrays;
 
 import com.senseidb.indexing.activity.ActivityPersistenceFactory;
+import com.senseidb.indexing.activity.time.TimeAggregatedActivityValues.TimeHitsHolder;
 import com.senseidb.test.SenseiStarter;
 
 public class TimeAggregatedActivityValuesTest extends TestCase {
@@ -38,8 +39,8 @@ public class TimeAggregatedActivityValuesTest extends TestCase {
       timeAggregatedActivityValues.update(0, "1");
       timeAggregatedActivityValues.update(1, "1");
     }
-    assertTrue(Arrays.toString( timeAggregatedActivityValues.timeActivities.getActivities(0).array), Arrays.equals(new int[] {1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1}, timeAggregatedActivityValues.timeActivities.getActivities(0).array));
-    assertTrue(Arrays.toString( timeAggregatedActivityValues.timeActivities.getTimes(0).array), Arrays.equals(new int[] {0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10}, timeAggregatedActivityValues.timeActivities.getTimes(0).array));   
+    assertTrue(Arrays.toString( ((TimeHitsHolder) timeAggregatedActivityValues.timeActivities).getActivities(0).array), Arrays.equals(new int[] {1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1}, ((TimeHitsHolder) timeAggregatedActivityValues.timeActivities).getActivities(0).array));
+    assertTrue(Arrays.toString( ((TimeHitsHolder) timeAggregatedActivityValues.timeActivities).getTimes(0).array), Arrays.equals(new int[] {0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10}, ((TimeHitsHolder) timeAggregatedActivityValues.timeActivities).getTimes(0).array));   
     assertEquals(timeAggregatedActivityValues.valuesMap.get("10m").fieldValues[0], 11);
     Clock.setPredefinedTimeInMinutes(10);
     AggregatesUpdateJob aggregatesUpdateJob = new AggregatesUpdateJob(timeAggregatedActivityValues, ActivityPersistenceFactory.getInstance(getDirPath()).createAggregatesMetadata("likes"));
@@ -48,13 +49,13 @@ public class TimeAggregatedActivityValuesTest extends TestCase {
     assertEquals(timeAggregatedActivityValues.valuesMap.get("10m").fieldValues[0], 9);
     assertEquals(timeAggregatedActivityValues.valuesMap.get("5m").fieldValues[0], 4);
     assertEquals(timeAggregatedActivityValues.valuesMap.get("2m").fieldValues[0], 1);
-    assertEquals(timeAggregatedActivityValues.timeActivities.getTimes(0).getSize(), 9);
+    assertEquals(((TimeHitsHolder) timeAggregatedActivityValues.timeActivities).getTimes(0).getSize(), 9);
     Clock.setPredefinedTimeInMinutes(12);
     aggregatesUpdateJob.run();
     assertEquals(timeAggregatedActivityValues.valuesMap.get("10m").fieldValues[0], 8);
     assertEquals(timeAggregatedActivityValues.valuesMap.get("5m").fieldValues[0], 3);
     assertEquals(timeAggregatedActivityValues.valuesMap.get("2m").fieldValues[0], 0);
-    assertEquals(timeAggregatedActivityValues.timeActivities.getTimes(0).getSize(), 8);
+    assertEquals(((TimeHitsHolder) timeAggregatedActivityValues.timeActivities).getTimes(0).getSize(), 8);
     Clock.setPredefinedTimeInMinutes(25);
     aggregatesUpdateJob.run();
     assertEquals(timeAggregatedActivityValues.valuesMap.get("10m").fieldValues[0], 0);
@@ -71,8 +72,8 @@ public class TimeAggregatedActivityValuesTest extends TestCase {
       timeAggregatedActivityValues.update(0, "1");
       timeAggregatedActivityValues.update(1, "1");
     }
-    assertTrue(Arrays.toString( timeAggregatedActivityValues.timeActivities.getActivities(0).array), Arrays.equals(new int[] {1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1}, timeAggregatedActivityValues.timeActivities.getActivities(0).array));
-    assertTrue(Arrays.toString( timeAggregatedActivityValues.timeActivities.getTimes(0).array), Arrays.equals(new int[] {0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10}, timeAggregatedActivityValues.timeActivities.getTimes(0).array));   
+    assertTrue(Arrays.toString( ((TimeHitsHolder) timeAggregatedActivityValues.timeActivities).getActivities(0).array), Arrays.equals(new int[] {1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1}, ((TimeHitsHolder) timeAggregatedActivityValues.timeActivities).getActivities(0).array));
+    assertTrue(Arrays.toString( ((TimeHitsHolder) timeAggregatedActivityValues.timeActivities).getTimes(0).array), Arrays.equals(new int[] {0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10}, ((TimeHitsHolder) timeAggregatedActivityValues.timeActivities).getTimes(0).array));   
     assertEquals(timeAggregatedActivityValues.valuesMap.get("10m").fieldValues[0], 11);
     Clock.setPredefinedTimeInMinutes(10);
     AggregatesUpdateJob aggregatesUpdateJob = new AggregatesUpdateJob(timeAggregatedActivityValues, ActivityPersistenceFactory.getInMemoryInstance().createAggregatesMetadata( "likes"));
@@ -81,13 +82,13 @@ public class TimeAggregatedActivityValuesTest extends TestCase {
     assertEquals(timeAggregatedActivityValues.valuesMap.get("10m").fieldValues[0], 9);
     assertEquals(timeAggregatedActivityValues.valuesMap.get("5m").fieldValues[0], 4);
     assertEquals(timeAggregatedActivityValues.valuesMap.get("2m").fieldValues[0], 1);
-    assertEquals(timeAggregatedActivityValues.timeActivities.getTimes(0).getSize(), 9);
+    assertEquals(((TimeHitsHolder) timeAggregatedActivityValues.timeActivities).getTimes(0).getSize(), 9);
     Clock.setPredefinedTimeInMinutes(12);
     aggregatesUpdateJob.run();
     assertEquals(timeAggregatedActivityValues.valuesMap.get("10m").fieldValues[0], 8);
     assertEquals(timeAggregatedActivityValues.valuesMap.get("5m").fieldValues[0], 3);
     assertEquals(timeAggregatedActivityValues.valuesMap.get("2m").fieldValues[0], 0);
-    assertEquals(timeAggregatedActivityValues.timeActivities.getTimes(0).getSize(), 8);
+    assertEquals(((TimeHitsHolder) timeAggregatedActivityValues.timeActivities).getTimes(0).getSize(), 8);
     Clock.setPredefinedTimeInMinutes(25);
     aggregatesUpdateJob.run();
     assertEquals(timeAggregatedActivityValues.valuesMap.get("10m").fieldValues[0], 0);
@@ -0,0 +1,60 @@
+package com.senseidb.search.facet;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.lucene.search.DocIdSetIterator;
+
+public class UIDFacetHandlerTest extends TestCase
+{
+  public void testRemoveDeleted()
+  {
+    int[] docids = new int[] { 1, 4, 5, 9, 12, 20, 0 };
+    int count = UIDFacetHandler.removeDeleted(docids, 6, new int[] { 0, 4, 6, 7, 12, 30 });
+    assertEquals(4, count);
+    assertEquals(Arrays.asList(1, 5, 9, 20), toList(docids, count));
+
+    assertEquals(6, UIDFacetHandler.removeDeleted(new int[] { 1, 4, 5, 9, 12, 20 }, 6, null));
+    assertEquals(0, UIDFacetHandler.removeDeleted(new int[] { 3, 5 }, 2, new int[] { 3, 5 }));
+  }
+
+  public void testSortedDocIdSet() throws Exception
+  {
+    int[] docids = new int[] { 2, 5, 8, 13, 21, -1 };
+    UIDFacetHandler.SortedDocIdSet set = new UIDFacetHandler.SortedDocIdSet(docids, 5);
+    assertTrue(set.get(13));
+    assertFalse(set.get(14));
+    // past the count
+    assertFalse(set.get(-1));
+
+    List<Integer> docs = new ArrayList<Integer>();
+    DocIdSetIterator iter = set.iterator();
+    int doc;
+    while ((doc = iter.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS)
+    {
+      docs.add(doc);
+    }
+    assertEquals(Arrays.asList(2, 5, 8, 13, 21), docs);
+
+    iter = set.iterator();
+    assertEquals(5, iter.advance(3));
+    assertEquals(8, iter.advance(8));
+    assertEquals(13, iter.nextDoc());
+    assertEquals(21, iter.advance(14));
+    assertEquals(DocIdSetIterator.NO_MORE_DOCS, iter.advance(22));
+    assertEquals(DocIdSetIterator.NO_MORE_DOCS, iter.nextDoc());
+  }
+
+  private static List<Integer> toList(int[] docids, int count)
+  {
+    List<Integer> list = new ArrayList<Integer>(count);
+    for (int i = 0; i < count; ++i)
+    {
+      list.add(docids[i]);
+    }
+    return list;
+  }
+}
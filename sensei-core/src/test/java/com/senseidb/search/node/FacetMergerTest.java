@@ -0,0 +1,72 @@
+package com.senseidb.search.node;
+
+import junit.framework.TestCase;
+
+import com.browseengine.bobo.api.BrowseFacet;
+import com.browseengine.bobo.api.FacetSpec;
+import com.browseengine.bobo.api.FacetSpec.FacetSortSpec;
+
+public class FacetMergerTest extends TestCase
+{
+  private static ResultMerger.MappedFacetAccessible facets(Object... valueCounts)
+  {
+    BrowseFacet[] facets = new BrowseFacet[valueCounts.length / 2];
+    for (int i = 0; i < facets.length; ++i)
+    {
+      facets[i] = new BrowseFacet((String) valueCounts[2 * i], (Integer) valueCounts[2 * i + 1]);
+    }
+    return new ResultMerger.MappedFacetAccessible(facets);
+  }
+
+  private static FacetMerger merge(String[] selected)
+  {
+    FacetMerger merger = new FacetMerger(selected);
+    merger.add(facets("red", 5, "blue", 3, "green", 1));
+    merger.add(facets("blue", 4, "white", 2, "black", 2));
+    merger.add(facets("-2", 1, "-10", 1, "green", 1));
+    return merger;
+  }
+
+  private static void assertFacets(BrowseFacet[] facets, Object... valueCounts)
+  {
+    assertEquals(valueCounts.length / 2, facets.length);
+    for (int i = 0; i < facets.length; ++i)
+    {
+      assertEquals(valueCounts[2 * i], facets[i].getValue());
+      assertEquals(valueCounts[2 * i + 1], facets[i].getFacetValueHitCount());
+    }
+  }
+
+  public void testHitsDesc()
+  {
+    FacetSpec fspec = new FacetSpec();
+    fspec.setOrderBy(FacetSortSpec.OrderHitsDesc);
+    fspec.setMaxCount(3);
+    assertFacets(merge(null).getFacets(fspec), "blue", 7, "red", 5, "black", 2);
+
+    fspec.setMaxCount(0);
+    assertFacets(merge(null).getFacets(fspec),
+        "blue", 7, "red", 5, "black", 2, "green", 2, "white", 2, "-10", 1, "-2", 1);
+  }
+
+  public void testValueAsc()
+  {
+    FacetSpec fspec = new FacetSpec();
+    fspec.setOrderBy(FacetSortSpec.OrderValueAsc);
+    fspec.setMaxCount(4);
+    assertFacets(merge(null).getFacets(fspec), "-2", 1, "-10", 1, "black", 2, "blue", 7);
+  }
+
+  public void testSelectedValuesKept()
+  {
+    FacetSpec fspec = new FacetSpec();
+    fspec.setOrderBy(FacetSortSpec.OrderHitsDesc);
+    fspec.setMaxCount(2);
+    assertFacets(merge(new String[] { "-2", "red", "purple" }).getFacets(fspec), "blue", 7, "red", 5, "-2", 1);
+  }
+
+  public void testNoSpec()
+  {
+    assertEquals(7, merge(null).getFacets(null).length);
+  }
+}
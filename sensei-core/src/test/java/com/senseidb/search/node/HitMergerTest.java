@@ -0,0 +1,120 @@
+package com.senseidb.search.node;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.apache.lucene.search.SortField;
+
+import com.senseidb.search.req.SenseiHit;
+import com.senseidb.search.req.SenseiRequest;
+import com.senseidb.search.req.SenseiResult;
+
+public class HitMergerTest extends TestCase
+{
+  private static final Random rand = new Random(17);
+
+  private static List<SenseiResult> buildResults(int partitions, int hitsPerPartition, final SortField[] sort)
+  {
+    List<SenseiResult> results = new ArrayList<SenseiResult>(partitions);
+    for (int p = 0; p < partitions; ++p)
+    {
+      SenseiHit[] hits = new SenseiHit[hitsPerPartition];
+      for (int i = 0; i < hitsPerPartition; ++i)
+      {
+        SenseiHit hit = new SenseiHit();
+        // docids are unique within a partition, as they are for real partition results
+        hit.setDocid(i * 7 + rand.nextInt(7));
+        // few distinct scores and values, so that ties are common
+        hit.setScore(rand.nextInt(10));
+        Map<String, String[]> fields = new HashMap<String, String[]>();
+        if (rand.nextInt(10) > 0)
+          fields.put("color", new String[] { "c" + rand.nextInt(5) });
+        hit.setFieldValues(fields);
+        hits[i] = hit;
+      }
+      Arrays.sort(hits, new ResultMerger.SenseiHitComparator(sort));
+      SenseiResult res = new SenseiResult();
+      res.setHits(hits);
+      res.setTotalDocs(1000);
+      results.add(res);
+    }
+    return results;
+  }
+
+  private static List<SenseiResult> copy(List<SenseiResult> results)
+  {
+    List<SenseiResult> copy = new ArrayList<SenseiResult>(results.size());
+    for (SenseiResult res : results)
+    {
+      SenseiHit[] hits = new SenseiHit[res.getSenseiHits().length];
+      for (int i = 0; i < hits.length; ++i)
+      {
+        SenseiHit hit = new SenseiHit();
+        hit.setDocid(res.getSenseiHits()[i].getDocid());
+        hit.setScore(res.getSenseiHits()[i].getScore());
+        hit.setFieldValues(res.getSenseiHits()[i].getFieldValues());
+        hits[i] = hit;
+      }
+      SenseiResult resCopy = new SenseiResult();
+      resCopy.setHits(hits);
+      resCopy.setTotalDocs(res.getTotalDocs());
+      copy.add(resCopy);
+    }
+    return copy;
+  }
+
+  private static void assertSameMerge(SortField[] sort, int partitions, int hitsPerPartition, int offset, int count)
+  {
+    List<SenseiResult> results = buildResults(partitions, hitsPerPartition, sort);
+    List<SenseiResult> expectedResults = copy(results);
+
+    SenseiRequest req = new SenseiRequest();
+    req.setOffset(offset);
+    req.setCount(count);
+    if (sort != null)
+      req.setSort(sort);
+
+    SenseiHit[] expected = ResultMerger.mergeHitsWithListMerger(req, expectedResults);
+    SenseiHit[] hits = HitMerger.merge(results, sort, offset, count);
+    assertEquals(expected.length, hits.length);
+    for (int i = 0; i < hits.length; ++i)
+    {
+      assertEquals("docid of hit " + i, expected[i].getDocid(), hits[i].getDocid());
+      assertEquals("score of hit " + i, expected[i].getScore(), hits[i].getScore());
+      assertEquals("color of hit " + i, expected[i].getField("color"), hits[i].getField("color"));
+    }
+  }
+
+  public void testScoreSort()
+  {
+    SortField[] sort = new SortField[] { SortField.FIELD_SCORE };
+    assertSameMerge(sort, 8, 20, 0, 10);
+    assertSameMerge(sort, 32, 20, 15, 40);
+  }
+
+  public void testFieldSort()
+  {
+    assertSameMerge(new SortField[] { new SortField("color", SortField.STRING) }, 8, 20, 5, 30);
+    assertSameMerge(new SortField[] { new SortField("color", SortField.STRING, true), SortField.FIELD_SCORE }, 16, 20, 0, 50);
+  }
+
+  public void testDocSort()
+  {
+    assertSameMerge(new SortField[] { SortField.FIELD_DOC }, 8, 20, 3, 25);
+  }
+
+  public void testPastEnd()
+  {
+    SortField[] sort = new SortField[] { SortField.FIELD_SCORE };
+    assertSameMerge(sort, 4, 5, 15, 10);
+    assertSameMerge(sort, 4, 5, 25, 10);
+    assertEquals(0, HitMerger.merge(Collections.<SenseiResult>emptyList(), sort, 0, 10).length);
+  }
+}
@@ -0,0 +1,107 @@
+package com.senseidb.search.node;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import com.browseengine.bobo.api.BrowseSelection;
+import com.browseengine.bobo.api.BrowseSelection.ValueOperation;
+import com.senseidb.conf.SenseiFacetHandlerBuilder;
+import com.senseidb.indexing.ShardingStrategy;
+import com.senseidb.search.req.SenseiHit;
+import com.senseidb.search.req.SenseiRequest;
+import com.senseidb.search.req.SenseiResult;
+import com.senseidb.test.SenseiStarter;
+
+/**
+ * The test cluster has the partitions 0, 1 on the first node and 1, 2 on the second one, the documents are placed by their
+ * uid modulo 3
+ */
+public class SenseiBrokerUidRoutingTest extends TestCase
+{
+  private static SenseiBroker broker;
+  static
+  {
+    SenseiStarter.start("test-conf/node1","test-conf/node2");
+    broker = SenseiStarter.broker;
+  }
+
+  @Override
+  protected void setUp() throws Exception
+  {
+    broker.setUidRouting(new ShardingStrategy.FieldModShardingStrategy("id"), "id", 3);
+  }
+
+  @Override
+  protected void tearDown() throws Exception
+  {
+    broker.setUidRouting(null, "id", 0);
+  }
+
+  private static Set<String> set(String... values)
+  {
+    return new HashSet<String>(Arrays.asList(values));
+  }
+
+  private static Set<Integer> partitions(Integer... partitions)
+  {
+    return new HashSet<Integer>(Arrays.asList(partitions));
+  }
+
+  private static Set<String> uidValues(SenseiRequest req)
+  {
+    return set(req.getSelection(SenseiFacetHandlerBuilder.UID_FACET_NAME).getValues());
+  }
+
+  public void testNodeRequestKeepsTheUidsOfTheNode() throws Exception
+  {
+    SenseiRequest req = SenseiBroker.buildUidRequest(new long[] { 0, 1, 2, 3, 4, 5 });
+    assertEquals(set("0", "3"), uidValues(broker.buildNodeRequest(req, partitions(0))));
+    assertEquals(set("1", "2", "4", "5"), uidValues(broker.buildNodeRequest(req, partitions(1, 2))));
+    assertEquals(set("0", "1", "2", "3", "4", "5"), uidValues(broker.buildNodeRequest(req, partitions(0, 1, 2))));
+    // the selection of the original request is shared by the clones, it keeps all the uids
+    assertEquals(set("0", "1", "2", "3", "4", "5"), uidValues(req));
+  }
+
+  public void testNodeRequestWithoutTheUidsOfTheNode() throws Exception
+  {
+    SenseiRequest req = SenseiBroker.buildUidRequest(new long[] { 0, 3 });
+    // a selection without values would match every document, so one uid is kept
+    assertEquals(set("0"), uidValues(broker.buildNodeRequest(req, partitions(1))));
+  }
+
+  public void testNodeRequestLeavesOtherSelectionsAlone() throws Exception
+  {
+    SenseiRequest req = new SenseiRequest();
+    BrowseSelection sel = new BrowseSelection(SenseiFacetHandlerBuilder.UID_FACET_NAME);
+    sel.setValues(new String[] { "0", "1" });
+    sel.setSelectionOperation(ValueOperation.ValueOperationAnd);
+    req.addSelection(sel);
+    assertEquals(set("0", "1"), uidValues(broker.buildNodeRequest(req, partitions(0))));
+
+    // without the uid routing every node gets all the uids
+    broker.setUidRouting(null, "id", 0);
+    req = SenseiBroker.buildUidRequest(new long[] { 0, 1, 2 });
+    assertEquals(set("0", "1", "2"), uidValues(broker.buildNodeRequest(req, partitions(0))));
+  }
+
+  public void testGetByUids() throws Exception
+  {
+    long[] uids = new long[] { 1, 5, 9, 13, 14000 };
+    SenseiResult res = broker.getByUids(uids);
+    assertEquals(uids.length, res.getNumHits());
+    Set<Long> found = new HashSet<Long>();
+    for (SenseiHit hit : res.getSenseiHits())
+    {
+      found.add(hit.getUID());
+    }
+    assertEquals(new HashSet<Long>(Arrays.asList(1L, 5L, 9L, 13L, 14000L)), found);
+
+    // the same documents without the routing
+    broker.setUidRouting(null, "id", 0);
+    assertEquals(uids.length, broker.getByUids(uids).getNumHits());
+    assertEquals(0, broker.getByUids(new long[0]).getNumHits());
+  }
+}
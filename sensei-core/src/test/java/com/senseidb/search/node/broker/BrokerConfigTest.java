@@ -0,0 +1,33 @@
+package com.senseidb.search.node.broker;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.configuration.BaseConfiguration;
+
+import com.senseidb.conf.SenseiConfParams;
+
+public class BrokerConfigTest extends TestCase
+{
+  public void testUidRoutingRequiresMaxPartitionId()
+  {
+    BaseConfiguration conf = new BaseConfiguration();
+    conf.setProperty(SenseiConfParams.SERVER_BROKER_UID_ROUTING_FIELD, "id");
+    try
+    {
+      new BrokerConfig(conf, null);
+      fail("the uid routing without the max partition id should fail");
+    }
+    catch (IllegalArgumentException e)
+    {
+      assertTrue(e.getMessage().contains(SenseiConfParams.SENSEI_INDEX_MANAGER_DEFAULT_MAX_PARTITION_ID));
+    }
+    conf.setProperty(SenseiConfParams.SENSEI_INDEX_MANAGER_DEFAULT_MAX_PARTITION_ID, "2");
+    assertEquals(2, new BrokerConfig(conf, null).maxPartitionId);
+  }
+
+  public void testMaxPartitionIdIsOnlyNeededForUidRouting()
+  {
+    BrokerConfig brokerConfig = new BrokerConfig(new BaseConfiguration(), null);
+    assertNull(brokerConfig.uidRoutingField);
+  }
+}
@@ -0,0 +1,143 @@
+package com.senseidb.search.node.broker;
+
+import junit.framework.TestCase;
+
+import org.apache.lucene.search.SortField;
+import org.json.JSONObject;
+
+import proj.zoie.impl.indexing.ZoieConfig;
+
+import com.browseengine.bobo.api.BrowseSelection;
+import com.browseengine.bobo.api.FacetSpec;
+import com.senseidb.search.req.ErrorType;
+import com.senseidb.search.req.SenseiError;
+import com.senseidb.search.req.SenseiHit;
+import com.senseidb.search.req.SenseiJSONQuery;
+import com.senseidb.search.req.SenseiRequest;
+import com.senseidb.search.req.SenseiResult;
+
+public class BrokerResultCacheTest extends TestCase
+{
+  private static SenseiRequest buildRequest(boolean reversed) throws Exception
+  {
+    SenseiRequest req = new SenseiRequest();
+    req.setOffset(10);
+    req.setCount(20);
+    BrowseSelection color = new BrowseSelection("color");
+    BrowseSelection category = new BrowseSelection("category");
+    if (reversed)
+    {
+      color.setValues(new String[] { "red", "blue" });
+      req.addSelection(category);
+      req.addSelection(color);
+      req.setQuery(new SenseiJSONQuery(new JSONObject("{\"query\":{\"query_string\":{\"default_field\":\"contents\",\"query\":\"cool\"}}}")));
+    }
+    else
+    {
+      color.setValues(new String[] { "blue", "red" });
+      req.addSelection(color);
+      req.addSelection(category);
+      req.setQuery(new SenseiJSONQuery(new JSONObject("{\"query\":{\"query_string\":{\"query\":\"cool\",\"default_field\":\"contents\"}}}")));
+    }
+    req.setFacetSpec("color", new FacetSpec());
+    req.addSortField(new SortField("price", SortField.STRING, true));
+    return req;
+  }
+
+  private static SenseiResult buildResult(String version)
+  {
+    SenseiResult res = new SenseiResult();
+    res.setHits(new SenseiHit[] { new SenseiHit() });
+    res.setIndexVersion(version);
+    return res;
+  }
+
+  public void testCacheKey() throws Exception
+  {
+    assertEquals(BrokerResultCache.getCacheKey(buildRequest(false)), BrokerResultCache.getCacheKey(buildRequest(true)));
+
+    SenseiRequest req = buildRequest(false);
+    req.setOffset(0);
+    assertFalse(BrokerResultCache.getCacheKey(buildRequest(false)).equals(BrokerResultCache.getCacheKey(req)));
+
+    req = buildRequest(false);
+    req.setTid(42);
+    req.setTimeout(100);
+    assertEquals(BrokerResultCache.getCacheKey(buildRequest(false)), BrokerResultCache.getCacheKey(req));
+  }
+
+  public void testEviction()
+  {
+    long size = BrokerResultCache.estimateSize(buildResult("1"));
+    BrokerResultCache cache = new BrokerResultCache(size * 2, 60000L, 60000L, ZoieConfig.DEFAULT_VERSION_COMPARATOR);
+    cache.put("a", buildResult("1"));
+    cache.put("b", buildResult("1"));
+    assertNotNull(cache.get("a"));
+    cache.put("c", buildResult("1"));
+    assertEquals(2, cache.size());
+    assertNull(cache.get("b"));
+    assertNotNull(cache.get("a"));
+    assertNotNull(cache.get("c"));
+    assertTrue(cache.getBytes() <= cache.getMaxBytes());
+  }
+
+  public void testExpiration() throws Exception
+  {
+    BrokerResultCache cache = new BrokerResultCache(1 << 20, 50L, 60000L, ZoieConfig.DEFAULT_VERSION_COMPARATOR);
+    cache.put("a", buildResult("1"));
+    assertNotNull(cache.get("a"));
+    Thread.sleep(100);
+    assertNull(cache.get("a"));
+    assertEquals(0, cache.size());
+  }
+
+  public void testNewerIndexVersion() throws Exception
+  {
+    BrokerResultCache cache = new BrokerResultCache(1 << 20, 60000L, 50L, ZoieConfig.DEFAULT_VERSION_COMPARATOR);
+    cache.put("a", buildResult("1"));
+    cache.put("b", buildResult("2"));
+    // still within the allowed staleness
+    assertNotNull(cache.get("a"));
+    Thread.sleep(100);
+    assertNull(cache.get("a"));
+    assertNotNull(cache.get("b"));
+
+    SenseiResult failed = buildResult("2");
+    failed.addError(new SenseiError("failed", ErrorType.BrokerGatherError));
+    cache.put("c", failed);
+    assertNull(cache.get("c"));
+  }
+
+  public void testWithoutVersionComparator() throws Exception
+  {
+    // versions, that the default comparator can't parse, are not compared at all
+    BrokerResultCache cache = new BrokerResultCache(1 << 20, 60000L, 0L, null);
+    cache.put("a", buildResult("0:15,1:7"));
+    cache.put("b", buildResult("0:16,1:7"));
+    Thread.sleep(10);
+    assertNotNull(cache.get("a"));
+    assertNotNull(cache.get("b"));
+  }
+
+  public void testCopyOf()
+  {
+    SenseiResult res = buildResult("1");
+    res.setNumHits(5);
+    res.setTotalDocs(50);
+    res.setNumHitsLowerBound(true);
+    res.setTid(1L);
+    res.setTime(30L);
+
+    SenseiResult copy = BrokerResultCache.copyOf(res, 2L, 0L);
+    assertNotSame(res, copy);
+    assertEquals(2L, copy.getTid());
+    assertEquals(0L, copy.getTime());
+    assertSame(res.getSenseiHits(), copy.getSenseiHits());
+    assertEquals(5, copy.getNumHits());
+    assertEquals(50, copy.getTotalDocs());
+    assertTrue(copy.isNumHitsLowerBound());
+    assertEquals("1", copy.getIndexVersion());
+    // the cached result keeps its own tid
+    assertEquals(1L, res.getTid());
+  }
+}
@@ -0,0 +1,231 @@
+package com.senseidb.search.node.broker;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import com.senseidb.search.node.Broker;
+import com.senseidb.search.req.ErrorType;
+import com.senseidb.search.req.SenseiError;
+import com.senseidb.search.req.SenseiHit;
+import com.senseidb.search.req.SenseiRequest;
+import com.senseidb.search.req.SenseiResult;
+import com.senseidb.svc.api.SenseiException;
+
+public class LayeredBrokerTest extends TestCase
+{
+  private static class MockBroker implements Broker<SenseiRequest, SenseiResult>
+  {
+    private final int numHits;
+    private final long sleep;
+    private final boolean fail;
+    private final List<SenseiRequest> requests = Collections.synchronizedList(new ArrayList<SenseiRequest>());
+
+    private MockBroker(int numHits, long sleep, boolean fail)
+    {
+      this.numHits = numHits;
+      this.sleep = sleep;
+      this.fail = fail;
+    }
+
+    public SenseiResult browse(SenseiRequest req) throws SenseiException
+    {
+      requests.add(req);
+      try
+      {
+        Thread.sleep(sleep);
+      }
+      catch (InterruptedException e)
+      {
+        throw new SenseiException("interrupted", e);
+      }
+      if (fail)
+      {
+        throw new SenseiException("broken cluster");
+      }
+      int size = Math.max(0, Math.min(req.getCount(), numHits - req.getOffset()));
+      SenseiHit[] hits = new SenseiHit[size];
+      for (int i = 0; i < size; i++)
+      {
+        hits[i] = new SenseiHit();
+        hits[i].setDocid(req.getOffset() + i);
+        hits[i].setScore(numHits - req.getOffset() - i);
+      }
+      SenseiResult result = new SenseiResult();
+      result.setHits(hits);
+      result.setNumHits(numHits);
+      result.setTotalDocs(numHits);
+      return result;
+    }
+  }
+
+  private static class MockPruner implements LayeredClusterPruner
+  {
+    private final boolean prioritiesEqual;
+
+    private MockPruner(boolean prioritiesEqual)
+    {
+      this.prioritiesEqual = prioritiesEqual;
+    }
+
+    public List<String> pruneClusters(SenseiRequest request, List<String> clusters)
+    {
+      return clusters;
+    }
+
+    public boolean clusterPrioritiesEqual(SenseiRequest request)
+    {
+      return prioritiesEqual;
+    }
+  }
+
+  private static LayeredBroker createBroker(Map<String, MockBroker> brokers, boolean prioritiesEqual, long timeout, boolean allowPartialMerge)
+  {
+    List<String> clusters = new ArrayList<String>(brokers.keySet());
+    Collections.sort(clusters);
+    return new LayeredBroker(clusters, brokers, new MockPruner(prioritiesEqual), timeout, allowPartialMerge, LayeredBroker.DEFAULT_SPECULATIVE_FILL_RATE);
+  }
+
+  private static SenseiRequest request(int offset, int count)
+  {
+    SenseiRequest req = new SenseiRequest();
+    req.setOffset(offset);
+    req.setCount(count);
+    return req;
+  }
+
+  private static boolean hasError(SenseiResult result, ErrorType errorType)
+  {
+    for (SenseiError error : result.getErrors())
+    {
+      if (error.getErrorType() == errorType)
+      {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  public void testEqualPrioritiesAreQueriedConcurrently() throws Exception
+  {
+    Map<String, MockBroker> brokers = new HashMap<String, MockBroker>();
+    brokers.put("a", new MockBroker(10, 300, false));
+    brokers.put("b", new MockBroker(20, 300, false));
+    brokers.put("c", new MockBroker(30, 300, false));
+    LayeredBroker broker = createBroker(brokers, true, 5000, true);
+    try
+    {
+      long start = System.currentTimeMillis();
+      SenseiResult result = broker.browse(request(0, 10));
+      long time = System.currentTimeMillis() - start;
+      assertTrue("the clusters were queried one after another: " + time + "ms", time < 800);
+      assertEquals(60, result.getNumHits());
+      assertEquals(10, result.getSenseiHits().length);
+      assertTrue(result.getErrors().isEmpty());
+    }
+    finally
+    {
+      broker.stop();
+    }
+  }
+
+  public void testPartialResults() throws Exception
+  {
+    Map<String, MockBroker> brokers = new HashMap<String, MockBroker>();
+    brokers.put("a", new MockBroker(10, 0, false));
+    brokers.put("b", new MockBroker(20, 0, true));
+    brokers.put("c", new MockBroker(30, 2000, false));
+    LayeredBroker broker = createBroker(brokers, true, 300, true);
+    try
+    {
+      long start = System.currentTimeMillis();
+      SenseiResult result = broker.browse(request(0, 10));
+      assertTrue(System.currentTimeMillis() - start < 1500);
+      assertEquals(10, result.getNumHits());
+      assertTrue(hasError(result, ErrorType.BrokerGatherError));
+      assertTrue(hasError(result, ErrorType.BrokerTimeout));
+    }
+    finally
+    {
+      broker.stop();
+    }
+
+    broker = createBroker(brokers, true, 300, false);
+    try
+    {
+      broker.browse(request(0, 10));
+      fail("the failed cluster should fail the request without the partial merge");
+    }
+    catch (SenseiException e)
+    {
+      // expected
+    }
+    finally
+    {
+      broker.stop();
+    }
+  }
+
+  public void testPrioritizedClusters() throws Exception
+  {
+    Map<String, MockBroker> brokers = new HashMap<String, MockBroker>();
+    brokers.put("a", new MockBroker(15, 0, false));
+    brokers.put("b", new MockBroker(100, 0, false));
+    LayeredBroker broker = createBroker(brokers, false, 5000, true);
+    try
+    {
+      // the first cluster fills the page, the second is not queried
+      SenseiResult result = broker.browse(request(0, 10));
+      assertEquals(10, result.getSenseiHits().length);
+      assertEquals(1, brokers.get("a").requests.size());
+      assertEquals(0, brokers.get("b").requests.size());
+
+      // the first cluster has 5 of the 20 hits, the rest of the page comes from the second one
+      result = broker.browse(request(10, 20));
+      assertEquals(2, brokers.get("a").requests.size());
+      assertEquals(1, brokers.get("b").requests.size());
+      SenseiRequest second = brokers.get("b").requests.get(0);
+      assertEquals(0, second.getOffset());
+      assertEquals(15, second.getCount());
+    }
+    finally
+    {
+      broker.stop();
+    }
+  }
+
+  public void testSpeculativeRequest() throws Exception
+  {
+    Map<String, MockBroker> brokers = new HashMap<String, MockBroker>();
+    brokers.put("a", new MockBroker(5, 200, false));
+    brokers.put("b", new MockBroker(100, 200, false));
+    LayeredBroker broker = createBroker(brokers, false, 5000, true);
+    try
+    {
+      // the first cluster never fills the page, so the broker learns to start the second one with it
+      for (int i = 0; i < 10; i++)
+      {
+        broker.browse(request(0, 10));
+      }
+      int sequential = brokers.get("b").requests.size();
+      long start = System.currentTimeMillis();
+      SenseiResult result = broker.browse(request(2, 10));
+      long time = System.currentTimeMillis() - start;
+      assertTrue("the second cluster wasn't started speculatively: " + time + "ms", time < 380);
+      assertEquals(sequential + 1, brokers.get("b").requests.size());
+      // the speculative request asks for all the hits the second cluster might contribute
+      SenseiRequest speculative = brokers.get("b").requests.get(sequential);
+      assertEquals(0, speculative.getOffset());
+      assertEquals(12, speculative.getCount());
+      assertEquals(105, result.getNumHits());
+    }
+    finally
+    {
+      broker.stop();
+    }
+  }
+}
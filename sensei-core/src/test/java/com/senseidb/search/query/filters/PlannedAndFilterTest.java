@@ -0,0 +1,136 @@
+package com.senseidb.search.query.filters;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.util.OpenBitSet;
+import org.apache.lucene.util.SortedVIntList;
+
+public class PlannedAndFilterTest extends TestCase
+{
+  private static final class FixedFilter extends EstimatedFilter
+  {
+    private static final long serialVersionUID = 1L;
+
+    private final DocIdSet _set;
+    private final double _estimate;
+    private int _built = 0;
+
+    private FixedFilter(DocIdSet set, double estimate)
+    {
+      _set = set;
+      _estimate = estimate;
+    }
+
+    @Override
+    public double estimateSelectivity(IndexReader reader)
+    {
+      return _estimate;
+    }
+
+    @Override
+    public DocIdSet getDocIdSet(IndexReader reader)
+    {
+      ++_built;
+      return _set;
+    }
+  }
+
+  private static OpenBitSet bits(int maxDoc, int step, int offset)
+  {
+    OpenBitSet bits = new OpenBitSet(maxDoc);
+    for (int i = offset; i < maxDoc; i += step)
+    {
+      bits.set(i);
+    }
+    return bits;
+  }
+
+  private static SortedVIntList list(OpenBitSet bits) throws Exception
+  {
+    return new SortedVIntList(bits.iterator());
+  }
+
+  private static List<Integer> docs(DocIdSet set) throws Exception
+  {
+    List<Integer> docs = new ArrayList<Integer>();
+    DocIdSetIterator iter = set.iterator();
+    int doc;
+    while ((doc = iter.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS)
+    {
+      docs.add(doc);
+    }
+    return docs;
+  }
+
+  public void testLeapfrog() throws Exception
+  {
+    int maxDoc = 10000;
+    OpenBitSet by3 = bits(maxDoc, 3, 0);
+    OpenBitSet by5 = bits(maxDoc, 5, 0);
+    OpenBitSet by7 = bits(maxDoc, 7, 1);
+
+    List<Integer> expected = new ArrayList<Integer>();
+    for (int i = 0; i < maxDoc; ++i)
+    {
+      if (by3.get(i) && by5.get(i) && by7.get(i))
+      {
+        expected.add(i);
+      }
+    }
+    assertFalse(expected.isEmpty());
+
+    // iterators only, and with the random access checks
+    DocIdSet set = new PlannedAndFilter.LeapfrogDocIdSet(new DocIdSet[] { list(by7), list(by5), list(by3) });
+    assertEquals(expected, docs(set));
+    set = new PlannedAndFilter.LeapfrogDocIdSet(new DocIdSet[] { list(by7), by5, list(by3) });
+    assertEquals(expected, docs(set));
+
+    DocIdSetIterator iter = set.iterator();
+    int target = expected.get(1) - 1;
+    assertEquals(expected.get(1).intValue(), iter.advance(target));
+    assertEquals(expected.get(2).intValue(), iter.nextDoc());
+    assertEquals(DocIdSetIterator.NO_MORE_DOCS, iter.advance(maxDoc));
+
+    set = new PlannedAndFilter.LeapfrogDocIdSet(new DocIdSet[] { list(by3), DocIdSet.EMPTY_DOCIDSET });
+    assertTrue(docs(set).isEmpty());
+  }
+
+  public void testPlan() throws Exception
+  {
+    OpenBitSet by2 = bits(1000, 2, 0);
+    OpenBitSet by10 = bits(1000, 10, 0);
+    FixedFilter all = new FixedFilter(bits(1000, 1, 0), 1.0);
+    FixedFilter half = new FixedFilter(list(by2), 0.5);
+    FixedFilter tenth = new FixedFilter(list(by10), 0.1);
+    FixedFilter unknown = new FixedFilter(by2, EstimatedFilter.UNKNOWN);
+
+    PlannedAndFilter nested = new PlannedAndFilter(Arrays.<Filter> asList(half, unknown));
+    PlannedAndFilter filter = new PlannedAndFilter(Arrays.<Filter> asList(all, nested, null, tenth));
+    assertEquals(Arrays.<Filter> asList(all, half, unknown, tenth), filter.getFilters());
+    assertEquals(0.1, filter.estimateSelectivity(null), 0.0);
+
+    DocIdSet set = filter.getDocIdSet(null);
+    assertEquals(docs(by10), docs(set));
+    // the clause, that matches every document, is not even built
+    assertEquals(0, all._built);
+
+    // a clause, that matches nothing, empties the AND before any other one is built
+    FixedFilter none = new FixedFilter(list(by2), 0.0);
+    filter = new PlannedAndFilter(Arrays.<Filter> asList(half, none));
+    assertSame(DocIdSet.EMPTY_DOCIDSET, filter.getDocIdSet(null));
+    assertEquals(0, none._built);
+
+    // the only clause left is used as it is
+    filter = new PlannedAndFilter(Arrays.<Filter> asList(all, tenth));
+    assertSame(tenth._set, filter.getDocIdSet(null));
+    assertEquals(1.0, new PlannedAndFilter(Arrays.<Filter> asList(all, all)).estimateSelectivity(null), 0.0);
+  }
+}
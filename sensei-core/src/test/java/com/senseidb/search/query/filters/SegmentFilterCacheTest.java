@@ -0,0 +1,210 @@
+package com.senseidb.search.query.filters;
+
+import java.util.Arrays;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.util.OpenBitSet;
+import org.apache.lucene.util.SortedVIntList;
+import org.json.JSONObject;
+
+public class SegmentFilterCacheTest extends TestCase
+{
+  private static String type(String filter) throws Exception
+  {
+    return (String) new JSONObject(filter).keys().next();
+  }
+
+  private static Object body(String filter) throws Exception
+  {
+    JSONObject json = new JSONObject(filter);
+    return json.get((String) json.keys().next());
+  }
+
+  private static String filterKey(String filter) throws Exception
+  {
+    return SegmentFilterCache.getFilterKey(type(filter), body(filter));
+  }
+
+  private static Set<String> fields(String filter) throws Exception
+  {
+    return SegmentFilterCache.getCacheableFields(type(filter), body(filter));
+  }
+
+  public void testFilterKey() throws Exception
+  {
+    assertEquals(filterKey("{\"range\":{\"year\":{\"from\":1995,\"to\":2000,\"include_lower\":true}}}"),
+                 filterKey("{\"range\":{\"year\":{\"include_lower\":true,\"to\":2000,\"from\":1995}}}"));
+    assertFalse(filterKey("{\"range\":{\"year\":{\"from\":1995,\"to\":2000}}}")
+        .equals(filterKey("{\"range\":{\"year\":{\"from\":1995,\"to\":2001}}}")));
+    assertFalse(filterKey("{\"term\":{\"color\":\"red\"}}").equals(filterKey("{\"terms\":{\"color\":\"red\"}}")));
+  }
+
+  public void testCacheableFields() throws Exception
+  {
+    Set<String> fields = fields("{\"and\":[{\"term\":{\"color\":\"red\",\"_noOptimize\":true}},"
+                                + "{\"bool\":{\"must\":{\"range\":{\"year\":{\"from\":1995}}},"
+                                + "\"should\":[{\"isNull\":\"tags\"}]}}]}");
+    assertNotNull(fields);
+    assertEquals(3, fields.size());
+    assertTrue(fields.contains("color"));
+    assertTrue(fields.contains("year"));
+    assertTrue(fields.contains("tags"));
+
+    // the queries and the custom filters are not cached, nor are the filters that have them
+    assertNull(fields("{\"query\":{\"query_string\":{\"query\":\"cool\"}}}"));
+    assertNull(fields("{\"or\":[{\"term\":{\"color\":\"red\"}},{\"custom\":{\"class\":\"x.Filter\"}}]}"));
+    assertNull(fields("{\"ids\":{\"values\":[\"1\"]}}"));
+  }
+
+  public void testWrapWhenEnabled() throws Exception
+  {
+    Filter filter = new Filter()
+    {
+      @Override
+      public DocIdSet getDocIdSet(org.apache.lucene.index.IndexReader reader)
+      {
+        return null;
+      }
+    };
+    SegmentFilterCache cache = new SegmentFilterCache(0L);
+    assertSame(filter, cache.wrap(filter, "term", new JSONObject("{\"color\":\"red\"}")));
+    cache.setMaxBytes(1024 * 1024);
+    assertNotSame(filter, cache.wrap(filter, "term", new JSONObject("{\"color\":\"red\"}")));
+    assertSame(filter, cache.wrap(filter, "query", new JSONObject("{\"query_string\":{\"query\":\"cool\"}}")));
+  }
+
+  private static final class EstimatedTestFilter extends EstimatedFilter
+  {
+    private static final long serialVersionUID = 1L;
+
+    private final double _estimate;
+
+    private EstimatedTestFilter(double estimate)
+    {
+      _estimate = estimate;
+    }
+
+    @Override
+    public double estimateSelectivity(IndexReader reader)
+    {
+      return _estimate;
+    }
+
+    @Override
+    public DocIdSet getDocIdSet(IndexReader reader)
+    {
+      return null;
+    }
+  }
+
+  public void testWrappedFilterDelegates() throws Exception
+  {
+    SegmentFilterCache cache = new SegmentFilterCache(1024 * 1024);
+    EstimatedTestFilter tenth = new EstimatedTestFilter(0.1);
+    Filter cached = cache.wrap(tenth, "term", new JSONObject("{\"color\":\"red\"}"));
+    assertNotSame(tenth, cached);
+    assertSame(tenth, SegmentFilterCache.unwrap(cached));
+    assertEquals(0.1, ((EstimatedFilter) cached).estimateSelectivity(null), 0.0);
+
+    // a cached AND is flattened into the AND it is a clause of
+    EstimatedTestFilter half = new EstimatedTestFilter(0.5);
+    Filter cachedAnd = cache.wrap(new PlannedAndFilter(Arrays.<Filter> asList(tenth, half)), "and",
+                                  body("{\"and\":[{\"term\":{\"color\":\"red\"}},{\"term\":{\"year\":\"2000\"}}]}"));
+    PlannedAndFilter and = new PlannedAndFilter(Arrays.<Filter> asList(cachedAnd, new EstimatedTestFilter(0.2)));
+    assertEquals(3, and.getFilters().size());
+    assertSame(tenth, and.getFilters().get(0));
+    assertEquals(0.1, and.estimateSelectivity(null), 0.0);
+  }
+
+  public void testOnlyTheRequestFilterIsCached() throws Exception
+  {
+    SegmentFilterCache.getInstance().setMaxBytes(1024 * 1024);
+    try
+    {
+      Filter filter = FilterConstructor.constructFilter(
+          new JSONObject("{\"and\":[{\"term\":{\"color\":\"red\"}},"
+                         + "{\"bool\":{\"must\":{\"term\":{\"year\":\"2000\"}},\"should\":[{\"term\":{\"tag\":\"a\"}}]}}]}"),
+          null);
+      Filter unwrapped = SegmentFilterCache.unwrap(filter);
+      assertNotSame(filter, unwrapped);
+      assertTrue(unwrapped instanceof PlannedAndFilter);
+      // the nested bool is flattened, none of the clauses is cached on its own
+      for (Filter clause : ((PlannedAndFilter) unwrapped).getFilters())
+      {
+        assertSame(clause, SegmentFilterCache.unwrap(clause));
+        assertFalse(clause instanceof PlannedAndFilter);
+      }
+      assertEquals(3, ((PlannedAndFilter) unwrapped).getFilters().size());
+    }
+    finally
+    {
+      SegmentFilterCache.getInstance().setMaxBytes(0L);
+    }
+  }
+
+  public void testEviction() throws Exception
+  {
+    Object core1 = new Object();
+    Object core2 = new Object();
+    SegmentFilterCache cache = new SegmentFilterCache(1000L);
+    cache.put(core1, "a", DocIdSet.EMPTY_DOCIDSET, 300L);
+    cache.put(core2, "a", DocIdSet.EMPTY_DOCIDSET, 300L);
+    assertEquals(2, cache.size());
+    assertSame(DocIdSet.EMPTY_DOCIDSET, cache.get(core1, "a"));
+    assertNull(cache.get(core1, "b"));
+    assertNull(cache.get(new Object(), "a"));
+
+    // core2 is the least recently used one
+    cache.put(core1, "b", DocIdSet.EMPTY_DOCIDSET, 300L);
+    assertEquals(2, cache.size());
+    assertNotNull(cache.get(core1, "a"));
+    assertNotNull(cache.get(core1, "b"));
+    assertNull(cache.get(core2, "a"));
+    assertTrue(cache.getBytes() <= 1000L);
+
+    // too large to be cached at all
+    cache.put(core2, "c", DocIdSet.EMPTY_DOCIDSET, 2000L);
+    assertNull(cache.get(core2, "c"));
+
+    cache.setMaxBytes(0L);
+    assertEquals(0, cache.size());
+    assertEquals(0L, cache.getBytes());
+  }
+
+  public void testToCacheable() throws Exception
+  {
+    OpenBitSet dense = new OpenBitSet(1000);
+    for (int i = 0; i < 1000; i += 2)
+    {
+      dense.set(i);
+    }
+    long[] size = new long[1];
+    DocIdSet cached = SegmentFilterCache.toCacheable(dense, 1000, size);
+    assertTrue(cached instanceof OpenBitSet);
+    assertEquals(500, ((OpenBitSet) cached).cardinality());
+    assertEquals(128L, size[0]);
+
+    OpenBitSet sparse = new OpenBitSet(100000);
+    sparse.set(10);
+    sparse.set(5000);
+    sparse.set(99999);
+    cached = SegmentFilterCache.toCacheable(sparse, 100000, size);
+    assertTrue(cached instanceof SortedVIntList);
+    assertTrue(size[0] < 16);
+    DocIdSetIterator iter = cached.iterator();
+    assertEquals(10, iter.nextDoc());
+    assertEquals(5000, iter.nextDoc());
+    assertEquals(99999, iter.nextDoc());
+    assertEquals(DocIdSetIterator.NO_MORE_DOCS, iter.nextDoc());
+
+    cached = SegmentFilterCache.toCacheable(null, 100, size);
+    assertEquals(0L, size[0]);
+    assertEquals(DocIdSetIterator.NO_MORE_DOCS, cached.iterator().nextDoc());
+  }
+}
@@ -0,0 +1,231 @@
+package com.senseidb.svc.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.queryParser.QueryParser;
+import org.apache.lucene.search.SortField;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.Version;
+
+import com.browseengine.bobo.api.BoboIndexReader;
+import com.browseengine.bobo.api.FacetSpec;
+import com.browseengine.bobo.facets.FacetHandler;
+import com.browseengine.bobo.facets.data.PredefinedTermListFactory;
+import com.browseengine.bobo.facets.impl.MultiValueFacetHandler;
+import com.browseengine.bobo.facets.impl.RangeFacetHandler;
+import com.browseengine.bobo.facets.impl.SimpleFacetHandler;
+import com.senseidb.indexing.SenseiIndexPruner;
+import com.senseidb.search.node.SenseiCore;
+import com.senseidb.search.node.impl.SimpleQueryBuilderFactory;
+import com.senseidb.search.req.SenseiHit;
+import com.senseidb.search.req.SenseiRequest;
+import com.senseidb.search.req.SenseiResult;
+import com.senseidb.search.req.mapred.functions.MaxMapReduce;
+
+public class SortBoundedSegmentsTest extends TestCase
+{
+  private static final SimpleQueryBuilderFactory QUERY_BUILDER_FACTORY =
+      new SimpleQueryBuilderFactory(new QueryParser(Version.LUCENE_35, "contents", new StandardAnalyzer(Version.LUCENE_35)));
+
+  // cars of the years 2000-2004, 2010-2014 and 2005-2009, the uid of each is its year
+  private BoboIndexReader segment1;
+  private BoboIndexReader segment2;
+  private BoboIndexReader segment3;
+  private List<BoboIndexReader> segments;
+
+  @Override
+  protected void setUp() throws Exception
+  {
+    segment1 = buildSegment(2000, 5, true);
+    segment2 = buildSegment(2010, 5, true);
+    segment3 = buildSegment(2005, 5, false);
+    segments = Arrays.asList(segment1, segment2, segment3);
+  }
+
+  @Override
+  protected void tearDown() throws Exception
+  {
+    for (BoboIndexReader segment : segments)
+    {
+      segment.close();
+    }
+  }
+
+  /**
+   * @param withPrice whether every car has a price, else the first one has none
+   */
+  private static BoboIndexReader buildSegment(int firstYear, int count, boolean withPrice) throws Exception
+  {
+    RAMDirectory directory = new RAMDirectory();
+    IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(Version.LUCENE_35,
+                                                                           new StandardAnalyzer(Version.LUCENE_35)));
+    for (int i = 0; i < count; ++i)
+    {
+      int year = firstYear + i;
+      Document doc = new Document();
+      doc.add(new Field("_uid", String.format("%08d", year), Field.Store.NO, Field.Index.NOT_ANALYZED_NO_NORMS));
+      doc.add(new Field("year", String.format("%05d", year), Field.Store.NO, Field.Index.NOT_ANALYZED_NO_NORMS));
+      doc.add(new Field("color", i % 2 == 0 ? "red" : "blue", Field.Store.NO, Field.Index.NOT_ANALYZED_NO_NORMS));
+      doc.add(new Field("tag", "a", Field.Store.NO, Field.Index.NOT_ANALYZED_NO_NORMS));
+      if (withPrice || i > 0)
+      {
+        doc.add(new Field("price", String.format("%08d", 1000 * (i + 1)), Field.Store.NO, Field.Index.NOT_ANALYZED_NO_NORMS));
+      }
+      writer.addDocument(doc);
+    }
+    writer.close();
+    List<FacetHandler<?>> facetHandlers = Arrays.<FacetHandler<?>>asList(
+        new SimpleFacetHandler("_uid", new PredefinedTermListFactory<Long>(Long.class, "00000000")),
+        new SimpleFacetHandler("color"),
+        new MultiValueFacetHandler("tag"),
+        new RangeFacetHandler("year", "year", new PredefinedTermListFactory<Integer>(Integer.class, "00000"), null),
+        new RangeFacetHandler("price", "price", new PredefinedTermListFactory<Integer>(Integer.class, "00000000"), null));
+    return BoboIndexReader.getInstance(IndexReader.open(directory, true), facetHandlers);
+  }
+
+  private static SenseiRequest sortedRequest(String field, boolean reverse, int count)
+  {
+    SenseiRequest req = new SenseiRequest();
+    req.setOffset(0);
+    req.setCount(count);
+    req.addSortField(new SortField(field, SortField.CUSTOM, reverse));
+    return req;
+  }
+
+  private SenseiResult search(SenseiRequest req, boolean earlyTermination) throws Exception
+  {
+    SenseiCore core = new SenseiCore(0, new int[] { 0 }, null, null, QUERY_BUILDER_FACTORY, null);
+    core.setIndexPruner(new SenseiIndexPruner.DefaultSenseiIndexPruner());
+    core.setEarlyTermination(earlyTermination);
+    return new CoreSenseiServiceImpl(core).handlePartitionedRequest(req, segments, QUERY_BUILDER_FACTORY);
+  }
+
+  private static List<Long> uids(SenseiResult res)
+  {
+    List<Long> uids = new ArrayList<Long>();
+    for (SenseiHit hit : res.getSenseiHits())
+    {
+      uids.add(hit.getUID());
+    }
+    return uids;
+  }
+
+  public void testDescendingOrder() throws Exception
+  {
+    SortBoundedSegments sorted = SortBoundedSegments.build(sortedRequest("year", true, 3), segments);
+    assertNotNull(sorted);
+    assertEquals(Arrays.asList(segment2, segment3, segment1), sorted.getReaders());
+    assertEquals(Integer.valueOf(2014), sorted.getValue(0, 4));
+    assertEquals(Integer.valueOf(2005), sorted.getValue(1, 0));
+    assertTrue(sorted.compare(toComparable(2014), toComparable(2013)) < 0);
+  }
+
+  public void testAscendingOrder() throws Exception
+  {
+    SortBoundedSegments sorted = SortBoundedSegments.build(sortedRequest("year", false, 3), segments);
+    assertNotNull(sorted);
+    assertEquals(Arrays.asList(segment1, segment3, segment2), sorted.getReaders());
+    assertEquals(Integer.valueOf(2000), sorted.getValue(0, 0));
+    assertTrue(sorted.compare(toComparable(2013), toComparable(2014)) < 0);
+  }
+
+  public void testStopConditionWithTies() throws Exception
+  {
+    SortBoundedSegments sorted = SortBoundedSegments.build(sortedRequest("year", true, 3), segments);
+    // the second segment holds up to 2009
+    assertTrue(sorted.cannotBeat(1, toComparable(2010)));
+    assertFalse("a tie with the bound must still be visited", sorted.cannotBeat(1, toComparable(2009)));
+    assertFalse(sorted.cannotBeat(1, toComparable(2008)));
+
+    sorted = SortBoundedSegments.build(sortedRequest("year", false, 3), segments);
+    // the second segment holds from 2005
+    assertTrue(sorted.cannotBeat(1, toComparable(2004)));
+    assertFalse("a tie with the bound must still be visited", sorted.cannotBeat(1, toComparable(2005)));
+    assertFalse(sorted.cannotBeat(1, toComparable(2006)));
+  }
+
+  public void testFallbacks() throws Exception
+  {
+    assertNotNull(SortBoundedSegments.build(sortedRequest("year", true, 3), segments));
+
+    SenseiRequest req = sortedRequest("year", true, 3);
+    req.setFacetSpec("color", new FacetSpec());
+    assertNull("facets need every hit", SortBoundedSegments.build(req, segments));
+
+    req = sortedRequest("year", true, 3);
+    req.setGroupBy(new String[] { "color" });
+    assertNull("groups need every hit", SortBoundedSegments.build(req, segments));
+
+    req = sortedRequest("year", true, 3);
+    req.setDistinct(new String[] { "color" });
+    assertNull("distinct values need every hit", SortBoundedSegments.build(req, segments));
+
+    req = sortedRequest("year", true, 3);
+    req.setMapReduceFunction(new MaxMapReduce());
+    assertNull("a map reduce needs every hit", SortBoundedSegments.build(req, segments));
+
+    assertNull("multi value fields have no single bound", SortBoundedSegments.build(sortedRequest("tag", true, 3), segments));
+    assertNull("documents without a value sort before all the others",
+               SortBoundedSegments.build(sortedRequest("price", false, 3), segments));
+    assertNull("no facet handler", SortBoundedSegments.build(sortedRequest("name", true, 3), segments));
+    assertNull(SortBoundedSegments.build(new SenseiRequest(), segments));
+    assertNull(SortBoundedSegments.build(sortedRequest("year", true, 0), segments));
+    assertNull("a single segment has nothing to skip",
+               SortBoundedSegments.build(sortedRequest("year", true, 3), Arrays.asList(segment1)));
+  }
+
+  public void testEarlyStop() throws Exception
+  {
+    // the first segment has the 3 best hits, the second one can't beat 2012
+    SenseiResult res = search(sortedRequest("year", true, 3), true);
+    assertEquals(Arrays.asList(2014L, 2013L, 2012L), uids(res));
+    assertEquals(5, res.getNumHits());
+    assertEquals(15, res.getTotalDocs());
+    assertTrue(res.isNumHitsLowerBound());
+
+    // the 7 best hits need two segments, the last one can't beat 2008
+    res = search(sortedRequest("year", true, 7), true);
+    assertEquals(Arrays.asList(2014L, 2013L, 2012L, 2011L, 2010L, 2009L, 2008L), uids(res));
+    assertEquals(10, res.getNumHits());
+    assertEquals(15, res.getTotalDocs());
+    assertTrue(res.isNumHitsLowerBound());
+
+    res = search(sortedRequest("year", false, 3), true);
+    assertEquals(Arrays.asList(2000L, 2001L, 2002L), uids(res));
+    assertEquals(5, res.getNumHits());
+    assertEquals(15, res.getTotalDocs());
+    assertTrue(res.isNumHitsLowerBound());
+  }
+
+  public void testNoEarlyStop() throws Exception
+  {
+    // every segment is needed for 12 hits
+    SenseiResult res = search(sortedRequest("year", true, 12), true);
+    assertEquals(12, res.getSenseiHits().length);
+    assertEquals(15, res.getNumHits());
+    assertEquals(15, res.getTotalDocs());
+    assertFalse(res.isNumHitsLowerBound());
+
+    res = search(sortedRequest("year", true, 3), false);
+    assertEquals(Arrays.asList(2014L, 2013L, 2012L), uids(res));
+    assertEquals(15, res.getNumHits());
+    assertEquals(15, res.getTotalDocs());
+    assertFalse(res.isNumHitsLowerBound());
+  }
+
+  @SuppressWarnings("unchecked")
+  private static Comparable<Object> toComparable(int value)
+  {
+    return (Comparable<Object>) (Comparable<?>) Integer.valueOf(value);
+  }
+}
@@ -10,13 +10,13 @@ import com.senseidb.indexing.DataSourceFilter;
 public class AvroDataSourceFilter<D> extends DataSourceFilter<DataPacket> {
 
   private final Class<D> _cls;
-  private BinaryDecoder binDecoder;
+  // the decoder is reused by each decode thread
+  private final ThreadLocal<BinaryDecoder> binDecoder = new ThreadLocal<BinaryDecoder>();
   private final SpecificDatumReader<D> reader;
   private final DataSourceFilter<D> _dataMapper;
   
   public AvroDataSourceFilter(Class<D> cls,DataSourceFilter<D> dataMapper){
     _cls = cls;
-    binDecoder = null;
     reader = new SpecificDatumReader<D>(_cls);
     _dataMapper = dataMapper;
     if (_dataMapper == null){
@@ -26,9 +26,10 @@ public class AvroDataSourceFilter<D> extends DataSourceFilter<DataPacket> {
   
   @Override
   protected JSONObject doFilter(DataPacket packet) throws Exception {
-    binDecoder = DecoderFactory.defaultFactory().createBinaryDecoder(packet.data,packet.offset,packet.size, binDecoder);
+    BinaryDecoder decoder = DecoderFactory.defaultFactory().createBinaryDecoder(packet.data,packet.offset,packet.size, binDecoder.get());
+    binDecoder.set(decoder);
     D avroObj = _cls.newInstance();
-    reader.read(avroObj,binDecoder);
+    reader.read(avroObj,decoder);
     return _dataMapper.filter(avroObj);
   }
 }
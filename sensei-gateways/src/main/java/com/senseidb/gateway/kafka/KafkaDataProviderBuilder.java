@@ -7,7 +7,6 @@ import java.util.Set;
 import org.json.JSONObject;
 
 import proj.zoie.impl.indexing.StreamDataProvider;
-import proj.zoie.impl.indexing.ZoieConfig;
 
 import com.senseidb.gateway.SenseiGateway;
 import com.senseidb.indexing.DataSourceFilter;
@@ -15,7 +14,12 @@ import com.senseidb.indexing.ShardingStrategy;
 
 public class KafkaDataProviderBuilder extends SenseiGateway<DataPacket>{
 
-	private final Comparator<String> _versionComparator = ZoieConfig.DEFAULT_VERSION_COMPARATOR;
+  /**
+   * Compares the offset versions of {@link KafkaStreamDataProvider}, and the numeric versions of the earlier providers
+   */
+  public static final Comparator<String> DEFAULT_VERSION_COMPARATOR = KafkaVersion.COMPARATOR;
+
+	private final Comparator<String> _versionComparator = DEFAULT_VERSION_COMPARATOR;
 
   private void extractProperty(Properties props, String key)
   {
@@ -47,8 +51,16 @@ public class KafkaDataProviderBuilder extends SenseiGateway<DataPacket>{
     extractProperty(props, "queuedchunks.max");
     extractProperty(props, "autocommit.interval.ms");
     extractProperty(props, "rebalance.retries.max");
+    extractProperty(props, "autocommit.enable");
+    extractProperty(props, "autooffset.reset");
+    extractProperty(props, "zk.sessiontimeout.ms");
+    extractProperty(props, "zk.connectiontimeout.ms");
 
-    long offset = oldSinceKey == null ? 0L : Long.parseLong(oldSinceKey);
+    String decodeThreadsStr = config.get("kafka.decode.threads");
+    String decodeQueueSizeStr = config.get("kafka.decode.queueSize");
+    // the custom converters may not be thread safe, so they are run by one thread unless configured otherwise
+    int decodeThreads = KafkaStreamDataProvider.DEFAULT_DECODE_THREADS;
+    int decodeQueueSize = decodeQueueSizeStr != null ? Integer.parseInt(decodeQueueSizeStr) : KafkaStreamDataProvider.DEFAULT_DECODE_QUEUE_SIZE;
     
     if (dataFilter==null){
       String type = config.get("kafka.msg.type");
@@ -58,6 +70,7 @@ public class KafkaDataProviderBuilder extends SenseiGateway<DataPacket>{
     
       if ("json".equals(type)){
         dataFilter = new DefaultJsonDataSourceFilter();
+        decodeThreads = Math.min(4, Runtime.getRuntime().availableProcessors());
       }
       else if ("avro".equals(type)){
         String msgClsString = config.get("kafka.msg.avro.class");
@@ -71,6 +84,9 @@ public class KafkaDataProviderBuilder extends SenseiGateway<DataPacket>{
         throw new IllegalArgumentException("invalid msg type: "+type);
       }
     }
+    if (decodeThreadsStr != null){
+      decodeThreads = Integer.parseInt(decodeThreadsStr);
+    }
     
 		KafkaStreamDataProvider provider = new KafkaStreamDataProvider(_versionComparator,
                                                                    zookeeperUrl,
@@ -78,9 +94,13 @@ public class KafkaDataProviderBuilder extends SenseiGateway<DataPacket>{
                                                                    batchsize,
                                                                    consumerGroupId,
                                                                    topic,
-                                                                   offset,
+                                                                   0L,
                                                                    dataFilter,
-                                                                   props);
+                                                                   props,
+                                                                   decodeThreads,
+                                                                   decodeQueueSize);
+    // the version of the index has the offsets of the partitions to resume from
+    provider.setStartingOffset(oldSinceKey);
 		return provider;
 	}
 
@@ -1,51 +1,118 @@
 package com.senseidb.gateway.kafka;
 
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Comparator;
-import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.NoSuchElementException;
 import java.util.Properties;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
-import kafka.consumer.Consumer;
-import kafka.consumer.ConsumerConfig;
-import kafka.consumer.ConsumerIterator;
-import kafka.consumer.KafkaMessageStream;
-import kafka.javaapi.consumer.ConsumerConnector;
+import kafka.api.FetchRequest;
+import kafka.api.OffsetRequest;
+import kafka.cluster.Broker;
+import kafka.common.ErrorMapping;
+import kafka.javaapi.consumer.SimpleConsumer;
+import kafka.javaapi.message.ByteBufferMessageSet;
 import kafka.message.Message;
+import kafka.message.MessageAndOffset;
+import kafka.utils.ZKGroupTopicDirs;
+import kafka.utils.ZKStringSerializer$;
+import kafka.utils.ZkUtils;
 
+import org.I0Itec.zkclient.ZkClient;
 import org.apache.log4j.Logger;
+import org.apache.lucene.util.NamedThreadFactory;
 import org.json.JSONObject;
 
 import proj.zoie.api.DataConsumer.DataEvent;
 import proj.zoie.impl.indexing.StreamDataProvider;
 
 import com.senseidb.indexing.DataSourceFilter;
+import com.senseidb.metrics.MetricsConstants;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Histogram;
+import com.yammer.metrics.core.Meter;
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.Timer;
 
+/**
+ * Consumes every partition of the topics with a fetcher thread, that reads the partition from its broker from a known offset.
+ * The version of each event is the {@link KafkaVersion} with the offsets of all the partitions up to the event, so
+ * {@link #setStartingOffset(String)} with the version of the index resumes each partition exactly where the index stopped.
+ * The partitions, that the version doesn't have, start from the offsets committed for the consumer group, or from the earliest
+ * or the latest offset by the <code>autooffset.reset</code> property. The consumed offsets are committed for the group in
+ * zookeeper, so the kafka tools see the lag of the node. The partitions are found from the brokers registered in zookeeper,
+ * when the provider starts.
+ * <br>
+ * The messages are decoded by a pool of the converter threads, and handed off to the indexing thread through a bounded queue
+ * of the pending decodes. The queue keeps the order, in which the messages arrived from each partition, so the documents of
+ * one partition are indexed in order, however many threads decode them. With more than one decode thread the data converter
+ * must be thread safe.
+ */
 public class KafkaStreamDataProvider extends StreamDataProvider<JSONObject>{
 
   private final Set<String> _topics;
   private final String _consumerGroupId;
   private Properties _kafkaConfig;
-  private ConsumerConnector _consumerConnector;
-  private Iterator<Message> _consumerIterator;
+  private volatile ZkClient _zkClient;
+  private BlockingQueue<PendingMessage> _decodeQueue;
   private ExecutorService _executorService;
+  private ExecutorService _decoderService;
+  private final int _decodeThreads;
+  private final int _decodeQueueSize;
+  private volatile KafkaVersion _startingVersion;
+  private final Map<String, Long> _consumedOffsets = new TreeMap<String, Long>();
+  private final Map<String, Long> _committedOffsets = new TreeMap<String, Long>();
+  private long _lastCommitTime;
+
+  public static final int DEFAULT_DECODE_THREADS = 1;
+  public static final int DEFAULT_DECODE_QUEUE_SIZE = 1024;
+  public static final int DEFAULT_FETCH_SIZE = 1024 * 1024;
+
+  private static final Histogram DecodeQueueDepth = Metrics.newHistogram(new MetricName(MetricsConstants.Domain,"histogram","decode-queue-depth","kafka"),false);
+  private static final Meter DecodedMeter = Metrics.newMeter(new MetricName(MetricsConstants.Domain,"meter","decoded-messages","kafka"),"messages",TimeUnit.SECONDS);
+  private static final Meter DecodeErrorMeter = Metrics.newMeter(new MetricName(MetricsConstants.Domain,"meter","decode-errors","kafka"),"errors",TimeUnit.SECONDS);
+  private static final Meter FetchErrorMeter = Metrics.newMeter(new MetricName(MetricsConstants.Domain,"meter","fetch-errors","kafka"),"errors",TimeUnit.SECONDS);
+  private static final Meter OffsetResetMeter = Metrics.newMeter(new MetricName(MetricsConstants.Domain,"meter","offset-resets","kafka"),"resets",TimeUnit.SECONDS);
+  private static final Timer DecodeTimer = Metrics.newTimer(new MetricName(MetricsConstants.Domain,"timer","decode-time","kafka"),TimeUnit.MILLISECONDS,TimeUnit.SECONDS);
+
 
-  
   private static Logger logger = Logger.getLogger(KafkaStreamDataProvider.class);
     private final String _zookeeperUrl;
     private final int _kafkaSoTimeout;
     private volatile boolean _started = false;
     private final DataSourceFilter<DataPacket> _dataConverter;
-  
+
+  /**
+   * A message of a partition, taken from the decode queue by the indexing thread
+   */
+  private static final class PendingMessage
+  {
+    private final String partition;
+    private final long nextOffset;
+    private final Future<JSONObject> data;
+
+    private PendingMessage(String partition, long nextOffset, Future<JSONObject> data)
+    {
+      this.partition = partition;
+      this.nextOffset = nextOffset;
+      this.data = data;
+    }
+  }
+
   public KafkaStreamDataProvider(Comparator<String> versionComparator,String zookeeperUrl,int soTimeout,int batchSize,
                                  String consumerGroupId,String topic,long startingOffset,DataSourceFilter<DataPacket> dataConverter){
     this(versionComparator, zookeeperUrl, soTimeout, batchSize, consumerGroupId, topic, startingOffset, dataConverter, new Properties());
@@ -53,7 +120,20 @@ public class KafkaStreamDataProvider extends StreamDataProvider<JSONObject>{
 
   public KafkaStreamDataProvider(Comparator<String> versionComparator,String zookeeperUrl,int soTimeout,int batchSize,
                                  String consumerGroupId,String topic,long startingOffset,DataSourceFilter<DataPacket> dataConverter,Properties kafkaConfig){
+    this(versionComparator, zookeeperUrl, soTimeout, batchSize, consumerGroupId, topic, startingOffset, dataConverter, kafkaConfig,
+         DEFAULT_DECODE_THREADS, DEFAULT_DECODE_QUEUE_SIZE);
+  }
+
+  /**
+   * @param decodeThreads the number of the threads, that run the data converter
+   * @param decodeQueueSize the number of the messages, that can be decoded ahead of the indexing thread
+   */
+  public KafkaStreamDataProvider(Comparator<String> versionComparator,String zookeeperUrl,int soTimeout,int batchSize,
+                                 String consumerGroupId,String topic,long startingOffset,DataSourceFilter<DataPacket> dataConverter,Properties kafkaConfig,
+                                 int decodeThreads,int decodeQueueSize){
     super(versionComparator);
+    _decodeThreads = decodeThreads > 0 ? decodeThreads : DEFAULT_DECODE_THREADS;
+    _decodeQueueSize = decodeQueueSize > 0 ? decodeQueueSize : DEFAULT_DECODE_QUEUE_SIZE;
     _consumerGroupId = consumerGroupId;
     _topics = new HashSet<String>();
     for (String raw : topic.split("[, ;]+"))
@@ -67,185 +147,378 @@ public class KafkaStreamDataProvider extends StreamDataProvider<JSONObject>{
     super.setBatchSize(batchSize);
     _zookeeperUrl = zookeeperUrl;
     _kafkaSoTimeout = soTimeout;
-    _consumerConnector = null;
-    _consumerIterator = null;
+    _zkClient = null;
+    _decodeQueue = null;
+    _startingVersion = KafkaVersion.parse(null);
 
-    _kafkaConfig = kafkaConfig;
     if (kafkaConfig == null) {
       kafkaConfig = new Properties();
     }
+    _kafkaConfig = kafkaConfig;
 
     _dataConverter = dataConverter;
     if (_dataConverter == null){
       throw new IllegalArgumentException("kafka data converter is null");
     }
   }
-  
+
+  /**
+   * @param version the {@link KafkaVersion} to resume from. The versions of the earlier providers have no offsets, so all the
+   *        partitions start from the offsets of the consumer group
+   */
   @Override
   public void setStartingOffset(String version){
+    _startingVersion = KafkaVersion.parse(version);
+    logger.info("Kafka consumption starts from: " + (_startingVersion.isEmpty() ? "the consumer group offsets" : version));
   }
-  
+
   @Override
   public DataEvent<JSONObject> next() {
     if (!_started) return null;
 
+    PendingMessage pending;
     try
     {
-      if (!_consumerIterator.hasNext())
-        return null;
+      pending = _decodeQueue.poll(1, TimeUnit.SECONDS);
     }
-    catch (Exception e)
+    catch (InterruptedException e)
     {
-      // Most likely timeout exception - ok to ignore
       return null;
     }
-
-    Message msg = _consumerIterator.next();
-    if (logger.isDebugEnabled()){
-      logger.debug("got new message: "+msg);
+    if (pending == null)
+    {
+      maybeCommitOffsets();
+      return null;
     }
-    long version = System.currentTimeMillis();
-    
-    JSONObject data;
+    DecodeQueueDepth.update(_decodeQueue.size());
+
+    // the offsets move on even if the message can't be decoded, so it's not read again after the restart
+    _consumedOffsets.put(pending.partition, pending.nextOffset);
+    String version = KafkaVersion.format(_consumedOffsets);
+    maybeCommitOffsets();
     try {
-      int size = msg.payloadSize();
-      ByteBuffer byteBuffer = msg.payload();
-      byte[] bytes = new byte[size];
-      byteBuffer.get(bytes,0,size);
-      data = _dataConverter.filter(new DataPacket(bytes,0,size));
-      
+      JSONObject data = awaitDecode(pending.data);
+      if (data == null) {
+        return null;
+      }
       if (logger.isDebugEnabled()){
         logger.debug("message converted: "+data);
       }
-      return new DataEvent<JSONObject>(data, String.valueOf(version));
-    } catch (Exception e) {
-      logger.error(e.getMessage(),e);
+      return new DataEvent<JSONObject>(data, version);
+    } catch (ExecutionException e) {
+      DecodeErrorMeter.mark();
+      logger.error(e.getCause().getMessage(),e.getCause());
+      return null;
+    } catch (CancellationException e) {
+      return null;
+    } catch (InterruptedException e) {
       return null;
     }
   }
 
-  @Override
-  public void reset() {
+  /**
+   * Waits for the decode of the message, the decodes that are still queued when the provider stops are never run
+   * @return the decoded message, or null if the provider is stopped
+   */
+  private JSONObject awaitDecode(Future<JSONObject> data) throws ExecutionException, InterruptedException {
+    while (true) {
+      try {
+        return data.get(1, TimeUnit.SECONDS);
+      } catch (TimeoutException e) {
+        if (!_started) {
+          data.cancel(true);
+          return null;
+        }
+      }
+    }
   }
 
-  @Override
-  public void start() {
-    Properties props = new Properties();
-    props.put("zk.connect", _zookeeperUrl);
-    //props.put("consumer.timeout.ms", _kafkaSoTimeout);
-    props.put("groupid", _consumerGroupId);
-
-    for (String key : _kafkaConfig.stringPropertyNames()) {
-      props.put(key, _kafkaConfig.getProperty(key));
+  /**
+   * Wraps the payload of the message without copying it, unless the payload is not backed by an array
+   */
+  static DataPacket toDataPacket(Message msg) {
+    int size = msg.payloadSize();
+    ByteBuffer byteBuffer = msg.payload();
+    if (byteBuffer.hasArray()) {
+      return new DataPacket(byteBuffer.array(), byteBuffer.arrayOffset() + byteBuffer.position(), size);
     }
+    byte[] bytes = new byte[size];
+    byteBuffer.get(bytes,0,size);
+    return new DataPacket(bytes,0,size);
+  }
 
-    logger.info("Kafka properties: " + props);
+  private Callable<JSONObject> decodeTask(final Message msg) {
+    return new Callable<JSONObject>() {
+      @Override
+      public JSONObject call() throws Exception {
+        if (logger.isDebugEnabled()){
+          logger.debug("got new message: "+msg);
+        }
+        long start = System.nanoTime();
+        JSONObject data = _dataConverter.filter(toDataPacket(msg));
+        DecodeTimer.update(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        DecodedMeter.mark();
+        return data;
+      }
+    };
+  }
 
-    ConsumerConfig consumerConfig = new ConsumerConfig(props);
-    _consumerConnector = Consumer.createJavaConsumerConnector(consumerConfig);
+  private int getIntProperty(String key, int defaultValue) {
+    String value = _kafkaConfig.getProperty(key);
+    return value == null ? defaultValue : Integer.parseInt(value);
+  }
+
+  private static String offsetPath(String consumerGroupId, String topic, String partitionName) {
+    return new ZKGroupTopicDirs(consumerGroupId, topic).consumerOffsetDir() + "/" + partitionName;
+  }
+
+  /**
+   * Writes the consumed offsets to the consumer group, every <code>autocommit.interval.ms</code> unless
+   * <code>autocommit.enable</code> is false. The offsets are the ones the indexing thread has taken, so they may be ahead of
+   * the index, which resumes from its own version anyway.
+   */
+  private void maybeCommitOffsets() {
+    ZkClient zkClient = _zkClient;
+    if (zkClient == null || !"true".equals(_kafkaConfig.getProperty("autocommit.enable", "true"))) {
+      return;
+    }
+    long now = System.currentTimeMillis();
+    if (now - _lastCommitTime < getIntProperty("autocommit.interval.ms", 10000)) {
+      return;
+    }
+    _lastCommitTime = now;
+    for (Map.Entry<String, Long> entry : _consumedOffsets.entrySet()) {
+      if (entry.getValue().equals(_committedOffsets.get(entry.getKey()))) {
+        continue;
+      }
+      String key = entry.getKey();
+      int index = key.lastIndexOf(':');
+      try {
+        ZkUtils.updatePersistentPath(zkClient, offsetPath(_consumerGroupId, key.substring(0, index), key.substring(index + 1)),
+                                     String.valueOf(entry.getValue()));
+        _committedOffsets.put(key, entry.getValue());
+      }
+      catch (Exception e) {
+        logger.warn("unable to commit the offset of " + key + ": " + e.getMessage(), e);
+      }
+    }
+  }
+
+  /**
+   * @return the offset to start the partition from, or -1 if the offset should be reset
+   */
+  private long startingOffset(String topic, Broker broker, int partId) {
+    Long offset = _startingVersion.getOffset(KafkaVersion.partitionKey(topic, broker.id(), partId));
+    if (offset != null) {
+      return offset;
+    }
+    String committed = ZkUtils.readDataMaybeNull(_zkClient, offsetPath(_consumerGroupId, topic, broker.id() + "-" + partId));
+    return committed == null ? -1L : Long.parseLong(committed);
+  }
 
-    Map<String, Integer> topicCountMap = new HashMap<String, Integer>();
+  /**
+   * Reads the topic partitions from the brokers registered in zookeeper
+   */
+  private List<PartitionFetcher> createFetchers() {
+    List<PartitionFetcher> fetchers = new ArrayList<PartitionFetcher>();
     for (String topic : _topics)
     {
-      topicCountMap.put(topic, 1);
+      String topicPath = ZkUtils.BrokerTopicsPath() + "/" + topic;
+      if (!_zkClient.exists(topicPath))
+      {
+        logger.warn("topic " + topic + " is not registered by any broker");
+        continue;
+      }
+      for (String brokerId : _zkClient.getChildren(topicPath))
+      {
+        String brokerInfo = ZkUtils.readDataMaybeNull(_zkClient, ZkUtils.BrokerIdsPath() + "/" + brokerId);
+        if (brokerInfo == null)
+        {
+          logger.warn("broker " + brokerId + " of topic " + topic + " is not registered");
+          continue;
+        }
+        Broker broker = Broker.createBroker(Integer.parseInt(brokerId), brokerInfo);
+        int numPartitions = Integer.parseInt(ZkUtils.readData(_zkClient, topicPath + "/" + brokerId));
+        for (int partId = 0; partId < numPartitions; ++partId)
+        {
+          fetchers.add(new PartitionFetcher(topic, broker, partId, startingOffset(topic, broker, partId)));
+        }
+      }
+    }
+    return fetchers;
+  }
+
+  /**
+   * Fetches one partition from its broker and queues the messages for the decoding
+   */
+  private final class PartitionFetcher implements Runnable
+  {
+    private final String _topic;
+    private final Broker _broker;
+    private final int _partId;
+    private final String _partitionKey;
+    private long _offset;
+
+    private PartitionFetcher(String topic, Broker broker, int partId, long offset)
+    {
+      _topic = topic;
+      _broker = broker;
+      _partId = partId;
+      _partitionKey = KafkaVersion.partitionKey(topic, broker.id(), partId);
+      _offset = offset;
     }
-    Map<String, List<KafkaMessageStream<Message>>> topicMessageStreams =
-        _consumerConnector.createMessageStreams(topicCountMap);
 
-    final ArrayBlockingQueue<Message> queue = new ArrayBlockingQueue<Message>(8, true);
+    private long resetOffset(SimpleConsumer consumer)
+    {
+      OffsetResetMeter.mark();
+      boolean largest = OffsetRequest.LargestTimeString().equals(_kafkaConfig.getProperty("autooffset.reset"));
+      long time = largest ? OffsetRequest.LatestTime() : OffsetRequest.EarliestTime();
+      long offset = consumer.getOffsetsBefore(_topic, _partId, time, 1)[0];
+      logger.info("partition " + _partitionKey + " starts from the " + (largest ? "latest" : "earliest") + " offset " + offset);
+      return offset;
+    }
 
-    int streamCount = 0;
-    for (List<KafkaMessageStream<Message>> streams : topicMessageStreams.values())
+    /**
+     * Moves the offset, that is out of range, only forward, since the {@link KafkaVersion}s are ordered by the sum of the
+     * offsets: the expired messages are skipped up to the earliest offset. An offset ahead of the latest one is kept, until the
+     * partition grows past it, the messages in between are skipped.
+     * @return true if the offset has been moved
+     */
+    private boolean skipOutOfRange(SimpleConsumer consumer)
     {
-      for (KafkaMessageStream<Message> stream : streams)
+      OffsetResetMeter.mark();
+      long earliest = consumer.getOffsetsBefore(_topic, _partId, OffsetRequest.EarliestTime(), 1)[0];
+      if (_offset < earliest)
       {
-        ++streamCount;
+        logger.warn("offset " + _offset + " of " + _partitionKey + " has expired, " + (earliest - _offset)
+                    + " messages are skipped up to the earliest offset " + earliest);
+        _offset = earliest;
+        return true;
       }
+      long latest = consumer.getOffsetsBefore(_topic, _partId, OffsetRequest.LatestTime(), 1)[0];
+      logger.error("offset " + _offset + " of " + _partitionKey + " is ahead of the latest offset " + latest
+                   + ", the partition is read again once it reaches the offset, the messages in between are skipped");
+      return false;
     }
-    _executorService = Executors.newFixedThreadPool(streamCount);
 
-    for (List<KafkaMessageStream<Message>> streams : topicMessageStreams.values())
+    @Override
+    public void run()
     {
-      for (KafkaMessageStream<Message> stream : streams)
+      logger.info("Kafka fetcher of " + _partitionKey + " started from offset " + _offset);
+      int fetchSize = getIntProperty("fetch.size", DEFAULT_FETCH_SIZE);
+      int bufferSize = getIntProperty("socket.buffersize", 64 * 1024);
+      long backoff = getIntProperty("backoff.increment.ms", 1000);
+      SimpleConsumer consumer = null;
+      try
       {
-        final KafkaMessageStream<Message> messageStream = stream;
-        _executorService.execute(new Runnable()
+        while (_started && !Thread.currentThread().isInterrupted())
+        {
+          try
           {
-            @Override
-            public void run()
+            if (consumer == null)
             {
-              logger.info("Kafka consumer thread started: " + Thread.currentThread().getId());
-              try
-              {
-                for (Message message : messageStream)
-                {
-                  queue.put(message);
-                }
-              }
-              catch(Exception e)
+              consumer = new SimpleConsumer(_broker.host(), _broker.port(), _kafkaSoTimeout, bufferSize);
+            }
+            if (_offset < 0)
+            {
+              _offset = resetOffset(consumer);
+            }
+            ByteBufferMessageSet messages = consumer.fetch(new FetchRequest(_topic, _partId, _offset, fetchSize));
+            int errorCode = messages.getErrorCode();
+            if (errorCode == ErrorMapping.OffsetOutOfRangeCode())
+            {
+              if (!skipOutOfRange(consumer))
               {
-                // normally it should the stop interupt exception.
-                logger.error(e.getMessage(), e);
+                Thread.sleep(backoff);
               }
-              logger.info("Kafka consumer thread ended: " + Thread.currentThread().getId());
+              continue;
+            }
+            ErrorMapping.maybeThrowException(errorCode);
+            boolean empty = true;
+            for (MessageAndOffset message : messages)
+            {
+              empty = false;
+              // the pending decode takes the place of the message in the queue, so the order is kept
+              _decodeQueue.put(new PendingMessage(_partitionKey, message.offset(), _decoderService.submit(decodeTask(message.message()))));
+              _offset = message.offset();
+            }
+            if (empty)
+            {
+              Thread.sleep(backoff);
             }
           }
-        );
+          catch (InterruptedException e)
+          {
+            break;
+          }
+          catch (Exception e)
+          {
+            if (!_started)
+            {
+              break;
+            }
+            FetchErrorMeter.mark();
+            logger.error("fetch of " + _partitionKey + " from " + _broker.host() + ":" + _broker.port() + " failed: " + e.getMessage(), e);
+            if (consumer != null)
+            {
+              consumer.close();
+              consumer = null;
+            }
+            Thread.sleep(backoff);
+          }
+        }
       }
-    }
-
-    _consumerIterator = new Iterator<Message>()
-    {
-      private Message message = null;
-
-      @Override
-      public boolean hasNext()
+      catch (InterruptedException e)
       {
-        if (message != null)  return true;
-
-        try
-        {
-          message = queue.poll(1, TimeUnit.SECONDS);
-        }
-        catch(InterruptedException ie)
-        {
-          return false;
-        }
-
-        if (message != null)
-        {
-          return true;
-        }
-        else
-        {
-          return false;
-        }
+        // stopped while backing off
       }
-
-      @Override
-      public Message next()
+      finally
       {
-        if (hasNext())
-        {
-          Message res = message;
-          message = null;
-          return res;
-        }
-        else
+        if (consumer != null)
         {
-          throw new NoSuchElementException();
+          consumer.close();
         }
       }
+      logger.info("Kafka fetcher of " + _partitionKey + " ended at offset " + _offset);
+    }
+  }
 
-      @Override
-      public void remove()
-      {
-        throw new UnsupportedOperationException("not supported");
-      }
-    };
+  @Override
+  public void reset() {
+  }
+
+  @Override
+  public void start() {
+    logger.info("Kafka properties: " + _kafkaConfig);
+
+    _zkClient = new ZkClient(_zookeeperUrl,
+                             getIntProperty("zk.sessiontimeout.ms", 6000),
+                             getIntProperty("zk.connectiontimeout.ms", 6000),
+                             ZKStringSerializer$.MODULE$);
+
+    _consumedOffsets.clear();
+    _consumedOffsets.putAll(_startingVersion.getOffsets());
+    _committedOffsets.clear();
+    _lastCommitTime = System.currentTimeMillis();
+    List<PartitionFetcher> fetchers = createFetchers();
+    if (fetchers.isEmpty())
+    {
+      logger.warn("no partitions found for the topics " + _topics);
+    }
+
+    _decodeQueue = new ArrayBlockingQueue<PendingMessage>(_decodeQueueSize);
+    _decoderService = Executors.newFixedThreadPool(_decodeThreads, new NamedThreadFactory("kafka-decoder"));
+    _executorService = Executors.newFixedThreadPool(Math.max(1, fetchers.size()), new NamedThreadFactory("kafka-fetcher"));
 
-    super.start();
     _started = true;
+    for (PartitionFetcher fetcher : fetchers)
+    {
+      _executorService.execute(fetcher);
+    }
+
+    logger.info("Kafka consumes " + fetchers.size() + " partitions, the messages are decoded by " + _decodeThreads
+                + " threads, with up to " + _decodeQueueSize + " messages ahead");
+    super.start();
   }
 
   @Override
@@ -256,16 +529,29 @@ public class KafkaStreamDataProvider extends StreamDataProvider<JSONObject>{
     {
       if (_executorService != null)
       {
-        _executorService.shutdown();
+        // the fetcher threads may wait for the space in the full decode queue
+        _executorService.shutdownNow();
+      }
+      if (_decoderService != null)
+      {
+        // the decodes, that haven't started, are cancelled, so the indexing thread doesn't wait for them
+        for (Runnable decode : _decoderService.shutdownNow())
+        {
+          if (decode instanceof Future)
+          {
+            ((Future<?>) decode).cancel(false);
+          }
+        }
       }
     }
     finally
     {
       try
       {
-        if (_consumerConnector != null)
+        if (_zkClient != null)
         {
-          _consumerConnector.shutdown();
+          _zkClient.close();
+          _zkClient = null;
         }
       }
       finally
@@ -273,5 +559,5 @@ public class KafkaStreamDataProvider extends StreamDataProvider<JSONObject>{
         super.stop();
       }
     }
-  }  
+  }
 }
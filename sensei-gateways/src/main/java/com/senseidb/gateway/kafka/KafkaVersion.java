@@ -0,0 +1,185 @@
+package com.senseidb.gateway.kafka;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * The version of the kafka events: the offset of the next message of each topic partition, that the index has seen, as
+ * <code>topic:brokerId-partId=offset,...</code> sorted by the partition. The version of the last indexed event is where the
+ * consumption resumes after a restart.
+ */
+public final class KafkaVersion
+{
+  private static final char PARTITION_SEPARATOR = ',';
+  private static final char OFFSET_SEPARATOR = '=';
+
+  /**
+   * Orders the offset versions by the sum of their offsets: each partition only moves forward, so the later version of the
+   * stream always has the larger sum. The plain numeric versions of the earlier providers are older than any offset version,
+   * and are compared as numbers.
+   */
+  public static final Comparator<String> COMPARATOR = new Comparator<String>()
+  {
+    public int compare(String v1, String v2)
+    {
+      if (v1 == v2)
+      {
+        return 0;
+      }
+      boolean empty1 = v1 == null || v1.length() == 0;
+      boolean empty2 = v2 == null || v2.length() == 0;
+      if (empty1 || empty2)
+      {
+        return empty1 ? (empty2 ? 0 : -1) : 1;
+      }
+      boolean offsets1 = isOffsetVersion(v1);
+      boolean offsets2 = isOffsetVersion(v2);
+      if (offsets1 != offsets2)
+      {
+        return offsets1 ? 1 : -1;
+      }
+      if (!offsets1)
+      {
+        return compareNumeric(v1, v2);
+      }
+      long sum1 = totalOffset(v1);
+      long sum2 = totalOffset(v2);
+      if (sum1 != sum2)
+      {
+        return sum1 < sum2 ? -1 : 1;
+      }
+      return v1.compareTo(v2);
+    }
+  };
+
+  private final SortedMap<String, Long> _offsets;
+
+  private KafkaVersion(SortedMap<String, Long> offsets)
+  {
+    _offsets = offsets;
+  }
+
+  public static String partitionKey(String topic, int brokerId, int partId)
+  {
+    return topic + ":" + brokerId + "-" + partId;
+  }
+
+  public static boolean isOffsetVersion(String version)
+  {
+    return version != null && version.indexOf(OFFSET_SEPARATOR) >= 0;
+  }
+
+  /**
+   * @return the offsets of the version, or no offsets if the version is empty or was not made by the offset based provider
+   */
+  public static KafkaVersion parse(String version)
+  {
+    SortedMap<String, Long> offsets = new TreeMap<String, Long>();
+    if (isOffsetVersion(version))
+    {
+      for (String entry : version.split(String.valueOf(PARTITION_SEPARATOR)))
+      {
+        int index = entry.lastIndexOf(OFFSET_SEPARATOR);
+        if (index <= 0)
+        {
+          throw new IllegalArgumentException("invalid kafka version: " + version);
+        }
+        try
+        {
+          offsets.put(entry.substring(0, index).trim(), Long.parseLong(entry.substring(index + 1).trim()));
+        }
+        catch (NumberFormatException e)
+        {
+          throw new IllegalArgumentException("invalid kafka version: " + version, e);
+        }
+      }
+    }
+    return new KafkaVersion(offsets);
+  }
+
+  public static String format(Map<String, Long> offsets)
+  {
+    StringBuilder buf = new StringBuilder();
+    for (Map.Entry<String, Long> entry : offsets.entrySet())
+    {
+      if (buf.length() > 0)
+      {
+        buf.append(PARTITION_SEPARATOR);
+      }
+      buf.append(entry.getKey()).append(OFFSET_SEPARATOR).append(entry.getValue());
+    }
+    return buf.toString();
+  }
+
+  /**
+   * @return the offset of the partition, or null if the version doesn't have it
+   */
+  public Long getOffset(String partitionKey)
+  {
+    return _offsets.get(partitionKey);
+  }
+
+  public SortedMap<String, Long> getOffsets()
+  {
+    return Collections.unmodifiableSortedMap(_offsets);
+  }
+
+  public boolean isEmpty()
+  {
+    return _offsets.isEmpty();
+  }
+
+  @Override
+  public String toString()
+  {
+    return format(_offsets);
+  }
+
+  private static int compareNumeric(String v1, String v2)
+  {
+    try
+    {
+      long l1 = Long.parseLong(v1);
+      long l2 = Long.parseLong(v2);
+      return l1 < l2 ? -1 : (l1 == l2 ? 0 : 1);
+    }
+    catch (NumberFormatException e)
+    {
+      return v1.compareTo(v2);
+    }
+  }
+
+  /**
+   * Sums the offsets without parsing the version into a map, since the versions are compared for every event.
+   */
+  static long totalOffset(String version)
+  {
+    long sum = 0;
+    long current = 0;
+    boolean inOffset = false;
+    for (int i = 0; i < version.length(); i++)
+    {
+      char c = version.charAt(i);
+      if (c == OFFSET_SEPARATOR)
+      {
+        // a topic can't have the separators, so the last one of the entry starts the offset
+        inOffset = true;
+        current = 0;
+      }
+      else if (c == PARTITION_SEPARATOR)
+      {
+        sum += current;
+        current = 0;
+        inOffset = false;
+      }
+      else if (inOffset && c >= '0' && c <= '9')
+      {
+        current = current * 10 + (c - '0');
+      }
+    }
+    return sum + current;
+  }
+}
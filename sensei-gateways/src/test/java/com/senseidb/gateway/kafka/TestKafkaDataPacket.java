@@ -0,0 +1,25 @@
+package com.senseidb.gateway.kafka;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import kafka.message.Message;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+public class TestKafkaDataPacket {
+
+  @Test
+  public void testPayloadIsNotCopied() throws Exception {
+    JSONObject json = new JSONObject().put("id", 1).put("color", "red");
+    Message message = new Message(json.toString().getBytes(DefaultJsonDataSourceFilter.UTF8));
+    DataPacket packet = KafkaStreamDataProvider.toDataPacket(message);
+    assertSame(message.payload().array(), packet.data);
+    assertEquals(message.payloadSize(), packet.size);
+
+    JSONObject decoded = new DefaultJsonDataSourceFilter().filter(packet);
+    assertEquals(1, decoded.getInt("id"));
+    assertEquals("red", decoded.getString("color"));
+  }
+}
@@ -0,0 +1,61 @@
+package com.senseidb.gateway.kafka;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Comparator;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.Test;
+
+public class TestKafkaVersion {
+
+  @Test
+  public void testFormatAndParse() {
+    Map<String, Long> offsets = new TreeMap<String, Long>();
+    offsets.put(KafkaVersion.partitionKey("cars", 1, 0), 1234L);
+    offsets.put(KafkaVersion.partitionKey("cars", 1, 1), 88L);
+    offsets.put(KafkaVersion.partitionKey("trucks.v2", 2, 0), 0L);
+    String version = KafkaVersion.format(offsets);
+    assertEquals("cars:1-0=1234,cars:1-1=88,trucks.v2:2-0=0", version);
+
+    KafkaVersion parsed = KafkaVersion.parse(version);
+    assertEquals(offsets, parsed.getOffsets());
+    assertEquals(Long.valueOf(88L), parsed.getOffset("cars:1-1"));
+    assertNull(parsed.getOffset("cars:2-0"));
+    assertEquals(version, parsed.toString());
+    assertEquals(1322L, KafkaVersion.totalOffset(version));
+  }
+
+  @Test
+  public void testLegacyVersionsHaveNoOffsets() {
+    assertTrue(KafkaVersion.parse(null).isEmpty());
+    assertTrue(KafkaVersion.parse("").isEmpty());
+    assertTrue(KafkaVersion.parse("1357924680").isEmpty());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidVersion() {
+    KafkaVersion.parse("cars:1-0=12a");
+  }
+
+  @Test
+  public void testComparator() {
+    Comparator<String> comparator = KafkaVersion.COMPARATOR;
+    assertEquals(0, comparator.compare(null, ""));
+    assertTrue(comparator.compare(null, "5") < 0);
+    assertTrue(comparator.compare("5", "12") < 0);
+    assertTrue(comparator.compare("12", "5") > 0);
+    // any offset version is newer than the timestamp versions of the earlier provider
+    assertTrue(comparator.compare("1357924680000", "cars:1-0=1") < 0);
+    assertTrue(comparator.compare("cars:1-0=1", "1357924680000") > 0);
+
+    assertTrue(comparator.compare("cars:1-0=100,cars:1-1=50", "cars:1-0=100,cars:1-1=51") < 0);
+    assertTrue(comparator.compare("cars:1-0=100,cars:1-1=50", "cars:1-0=100") > 0);
+    // a partition, that has appeared in the stream, makes the version newer
+    assertTrue(comparator.compare("cars:1-0=100", "cars:1-0=100,cars:2-0=0") < 0);
+    assertEquals(0, comparator.compare("cars:1-0=100,cars:1-1=50", "cars:1-0=100,cars:1-1=50"));
+  }
+}